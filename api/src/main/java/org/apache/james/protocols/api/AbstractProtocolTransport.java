@@ -20,10 +20,12 @@
 package org.apache.james.protocols.api;
 
 import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.james.protocols.api.future.FutureResponse;
 import org.apache.james.protocols.api.future.FutureResponse.ResponseListener;
@@ -38,13 +40,229 @@ import org.apache.james.protocols.api.future.FutureResponse.ResponseListener;
  */
 public abstract class AbstractProtocolTransport implements ProtocolTransport{
     
-    private final static String CRLF = "\r\n";
+    private final static byte CR = '\r';
+    private final static byte LF = '\n';
+    private final static byte UNMAPPABLE = '?';
 
     
-    // TODO: Should we limit the size ?
+    // the size is bounded by the ResponseQueueWatermarks if any are set, as we stop to read once the high watermark is reached
     private final Queue<Response> responses = new LinkedBlockingQueue<Response>();
     private volatile boolean isAsync = false;
     
+    // guards all the write aggregation state and makes sure flushes and direct writes don't interleave
+    private final Object writeLock = new Object();
+    private volatile boolean writeAggregation = false;
+    private boolean batching = false;
+    private final List<byte[]> pendingWrites = new ArrayList<byte[]>();
+    private long flushCount = 0;
+    private long flushedResponseCount = 0;
+    
+    private volatile ResponseQueueWatermarks watermarks;
+    private final AtomicInteger queuedResponses = new AtomicInteger();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final Object watermarkLock = new Object();
+    private boolean readSuspended = false;
+    // reading was paused because data was received while a FutureResponse was pending, guarded by watermarkLock
+    private boolean readPaused = false;
+    
+    /**
+     * Set the {@link ResponseQueueWatermarks} which should be used to limit the count of queued {@link Response}'s and bytes. This must be
+     * set before the first {@link Response} is written.
+     * 
+     * @param watermarks the watermarks or <code>null</code> if the queue should not be bounded
+     */
+    public void setResponseQueueWatermarks(ResponseQueueWatermarks watermarks) {
+        this.watermarks = watermarks;
+    }
+    
+    /**
+     * Return the {@link ResponseQueueWatermarks} in use or <code>null</code> if the queue is not bounded
+     * 
+     * @return watermarks
+     */
+    public ResponseQueueWatermarks getResponseQueueWatermarks() {
+        return watermarks;
+    }
+    
+    /**
+     * Return the count of {@link Response}'s which were passed to {@link #writeResponse(Response, ProtocolSession)} but were not handed 
+     * over to the underlying transport yet. 
+     * 
+     * @return queuedResponses
+     */
+    public int getQueuedResponseCount() {
+        return queuedResponses.get();
+    }
+    
+    /**
+     * Return the count of bytes which are buffered but were not written to the remote peer yet
+     * 
+     * @return queuedBytes
+     */
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+    
+    /**
+     * Return <code>true</code> if reading from the remote peer is currently suspended because a high watermark was reached
+     * 
+     * @return readSuspended
+     */
+    public boolean isReadSuspended() {
+        synchronized (watermarkLock) {
+            return readSuspended;
+        }
+    }
+    
+    /**
+     * Sub-classes should call this if they hand over bytes to the underlying transport which are not written to the remote peer yet. 
+     * Once the bytes were written {@link #bytesWritten(long)} MUST get called.
+     * 
+     * @param bytes
+     */
+    protected final void bytesQueued(long bytes) {
+        updateQueue(0, bytes);
+    }
+    
+    /**
+     * Sub-classes should call this once bytes which were reported via {@link #bytesQueued(long)} were written to the remote peer or the 
+     * write failed.
+     * 
+     * @param bytes
+     */
+    protected final void bytesWritten(long bytes) {
+        updateQueue(0, -bytes);
+    }
+    
+    private void updateQueue(int responses, long bytes) {
+        if (responses != 0) {
+            queuedResponses.addAndGet(responses);
+        }
+        if (bytes != 0) {
+            queuedBytes.addAndGet(bytes);
+        }
+        ResponseQueueWatermarks watermarks = this.watermarks;
+        if (watermarks != null) {
+            watermarks.update(responses, bytes);
+            synchronized (watermarkLock) {
+                int r = queuedResponses.get();
+                long b = queuedBytes.get();
+                if (!readSuspended) {
+                    if (watermarks.isHighWatermarkReached(r, b)) {
+                        readSuspended = true;
+                        watermarks.suspended();
+                        if (!readPaused) {
+                            setReadable(false);
+                        }
+                    }
+                } else if (watermarks.isLowWatermarkReached(r, b)) {
+                    readSuspended = false;
+                    if (!readPaused) {
+                        setReadable(true);
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Enable or disable the aggregation of written {@link Response}'s. If enabled all {@link Response}'s which are written between
+     * {@link #beginBatch()} and {@link #endBatch(ProtocolSession)} are buffered and written to the remote peer with one write operation.
+     * 
+     * This is most useful for clients which make use of PIPELINING.
+     * 
+     * @param writeAggregation
+     */
+    public void setWriteAggregation(boolean writeAggregation) {
+        this.writeAggregation = writeAggregation;
+    }
+    
+    /**
+     * Return <code>true</code> if write aggregation is enabled
+     * 
+     * @return writeAggregation
+     */
+    public boolean isWriteAggregation() {
+        return writeAggregation;
+    }
+    
+    /**
+     * Start a new batch. All {@link Response}'s written till {@link #endBatch(ProtocolSession)} is called get buffered. This is a no-op
+     * if write aggregation is disabled or a batch was already started.
+     * 
+     * This is typically called once a line of an inbound read is processed.
+     */
+    public void beginBatch() {
+        if (writeAggregation) {
+            synchronized (writeLock) {
+                batching = true;
+            }
+        }
+    }
+    
+    /**
+     * End the current batch and flush all buffered {@link Response}'s to the remote peer.
+     * 
+     * This is typically called once all lines of an inbound read were processed.
+     * 
+     * @param session
+     */
+    public void endBatch(ProtocolSession session) {
+        if (writeAggregation) {
+            synchronized (writeLock) {
+                batching = false;
+                flush(session);
+            }
+        }
+    }
+    
+    /**
+     * Return how often buffered {@link Response}'s were flushed to the remote peer
+     * 
+     * @return flushCount
+     */
+    public long getFlushCount() {
+        synchronized (writeLock) {
+            return flushCount;
+        }
+    }
+    
+    /**
+     * Return the count of {@link Response}'s which were written to the remote peer as part of a flush. Together with
+     * {@link #getFlushCount()} this gives the average count of {@link Response}'s per flush.
+     * 
+     * @return flushedResponseCount
+     */
+    public long getFlushedResponseCount() {
+        synchronized (writeLock) {
+            return flushedResponseCount;
+        }
+    }
+    
+    /**
+     * Write all buffered {@link Response}'s to the remote peer. Callers MUST hold the writeLock
+     * 
+     * @param session
+     */
+    private void flush(ProtocolSession session) {
+        int size = pendingWrites.size();
+        if (size > 0) {
+            long bytes = 0;
+            for (int i = 0; i < size; i++) {
+                bytes += pendingWrites.get(i).length;
+            }
+            if (size == 1) {
+                writeToClient(pendingWrites.get(0), session, false);
+            } else {
+                writeToClient(pendingWrites, session);
+            }
+            pendingWrites.clear();
+            flushCount++;
+            flushedResponseCount += size;
+            updateQueue(0, -bytes);
+        }
+    }
+    
     /**
      * @see org.apache.james.protocols.api.ProtocolTransport#writeResponse(org.apache.james.protocols.api.Response, org.apache.james.protocols.api.ProtocolSession)
      */
@@ -53,6 +271,7 @@ public abstract class AbstractProtocolTransport implements ProtocolTransport{
         // we do this synchronously because we may have a dequeuer thread working on
         // isAsync and responses.
         boolean enqueued = false;
+        updateQueue(1, 0);
         synchronized(this) {
             if (isAsync == true) {
                 responses.offer(response);
@@ -64,10 +283,84 @@ public abstract class AbstractProtocolTransport implements ProtocolTransport{
         // set us "asynchrnous" and wait for response to be ready.
         if (!enqueued) {
             if (isResponseWritable(response)) {
-                writeResponseToClient(response, session);
+                dequeue(response, session);
             } else {
+                // the FutureResponse forces us to keep the order, so write out everything we have buffered till now
+                synchronized (writeLock) {
+                    flush(session);
+                }
+                // switch to asynchronous mode before the listener is added, as it may get notified directly
+                synchronized (this) {
+                    isAsync = true;
+                }
                 addDequeuerListener(response, session);
-                isAsync = true;
+            }
+        }
+    }
+
+    /**
+     * Return <code>true</code> if a {@link FutureResponse} was written which is not ready yet, or if there are
+     * still {@link Response}'s queued behind such a {@link FutureResponse}
+     * 
+     * @return pending
+     */
+    public boolean isResponsePending() {
+        return isAsync;
+    }
+
+    /**
+     * Get called once all queued {@link Response}'s were written to the client after a {@link FutureResponse} was
+     * completed, so {@link #isResponsePending()} returns <code>false</code> again. This is called by the thread which
+     * completed the {@link FutureResponse}.
+     * 
+     * This implementation does nothing
+     * 
+     * @param session
+     */
+    protected void onResponsesWritten(ProtocolSession session) {
+    }
+
+    /**
+     * Stop to read from the remote peer until all pending {@link FutureResponse}'s were written. Transports call this once they 
+     * need to hold back received data because {@link #isResponsePending()} returns <code>true</code>, so a client which sends 
+     * ahead (or a delayed {@link Response} which is used as tarpit) does not make us buffer more and more data. 
+     * 
+     * If no {@link FutureResponse} is pending anymore, this does nothing.
+     */
+    public void pauseReadWhilePending() {
+        synchronized (watermarkLock) {
+            synchronized (this) {
+                if (!isAsync) {
+                    return;
+                }
+            }
+            if (!readPaused) {
+                readPaused = true;
+                if (!readSuspended) {
+                    setReadable(false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Return <code>true</code> if reading from the remote peer is currently paused because of {@link #pauseReadWhilePending()}
+     * 
+     * @return readPaused
+     */
+    public boolean isReadPaused() {
+        synchronized (watermarkLock) {
+            return readPaused;
+        }
+    }
+
+    private void resumePausedRead() {
+        synchronized (watermarkLock) {
+            if (readPaused) {
+                readPaused = false;
+                if (!readSuspended) {
+                    setReadable(true);
+                }
             }
         }
     }
@@ -93,14 +386,18 @@ public abstract class AbstractProtocolTransport implements ProtocolTransport{
                 queuedResponse = responses.poll();
                 if (queuedResponse == null) {
                     isAsync = false;
-                    break;
                 }
             }
+            if (queuedResponse == null) {
+                resumePausedRead();
+                onResponsesWritten(session);
+                break;
+            }
 
             // if we have something in the queue we continue writing until we
             // find something asynchronous.
             if (isResponseWritable(queuedResponse)) {
-                writeResponseToClient(queuedResponse, session);
+                dequeue(queuedResponse, session);
             } else {
                 addDequeuerListener(queuedResponse, session);
                 // no changes to isAsync here, because in this method we are always already async.
@@ -117,12 +414,26 @@ public abstract class AbstractProtocolTransport implements ProtocolTransport{
         ((FutureResponse) response).addListener(new ResponseListener() {
                 
             public void onResponse(FutureResponse response) {
-                writeResponseToClient(response, session);
+                dequeue(response, session);
                 writeQueuedResponses(session);
             }
         });
     }
     
+    /**
+     * Write the {@link Response} to the client and remove it from the queue
+     * 
+     * @param response
+     * @param session
+     */
+    private void dequeue(Response response, ProtocolSession session) {
+        try {
+            writeResponseToClient(response, session);
+        } finally {
+            updateQueue(-1, 0);
+        }
+    }
+    
     /**
      * Write the {@link Response} to the client
      * 
@@ -131,57 +442,114 @@ public abstract class AbstractProtocolTransport implements ProtocolTransport{
      */
     protected void writeResponseToClient(Response response, ProtocolSession session) {
         if (response != null) {
-            boolean startTLS = false;
-            if (response instanceof StartTlsResponse) {
-                if (isStartTLSSupported()) {
-                    startTLS = true;
-                } else {
-                    
-                    // StartTls is not supported by this transport, so throw a exception
-                    throw new UnsupportedOperationException("StartTls is not supported by this ProtocolTransport implementation");
-                }
+            synchronized (writeLock) {
+                writeResponseToClient0(response, session);
             }
-            
-            
-            if (response instanceof StreamResponse) {
-                writeToClient(toBytes(response), session, false);
-                writeToClient(((StreamResponse) response).getStream(), session, startTLS);
+        }
+    }
+    
+    private void writeResponseToClient0(Response response, ProtocolSession session) {
+        if (session != null && session.getMetrics() != null && response != Response.DISCONNECT) {
+            session.getMetrics().responseWritten();
+        }
+        boolean startTLS = false;
+        if (response instanceof StartTlsResponse) {
+            if (isStartTLSSupported()) {
+                startTLS = true;
             } else {
-                writeToClient(toBytes(response), session, startTLS);
+                
+                // StartTls is not supported by this transport, so throw a exception
+                throw new UnsupportedOperationException("StartTls is not supported by this ProtocolTransport implementation");
             }
-            // reset state on starttls
-            if (startTLS) {
-                session.resetState();
+        }
+        
+        
+        if (response instanceof StreamResponse) {
+            flush(session);
+            writeToClient(toBytes(response), session, false);
+            if (response instanceof SegmentedStreamResponse) {
+                writeToClient(((SegmentedStreamResponse) response).getSegments(), session, startTLS);
+            } else {
+                writeToClient(((StreamResponse) response).getStream(), session, startTLS);
             }
-            
-            if (response.isEndSession()) {
-                // close the channel if needed after the message was written out
-                close();
-           } 
-         }        
+        } else if (startTLS || !batching) {
+            // make sure everything is written before we start to encrypt
+            flush(session);
+            writeToClient(toBytes(response), session, startTLS);
+        } else {
+            byte[] bytes = toBytes(response);
+            pendingWrites.add(bytes);
+            updateQueue(0, bytes.length);
+        }
+        // reset state on starttls
+        if (startTLS) {
+            session.resetState();
+        }
+        
+        if (response.isEndSession()) {
+            flush(session);
+            // close the channel if needed after the message was written out
+            close();
+        }
     }
     
 
     /**
-     * Take the {@link Response} and encode it to a <code>byte</code> array
+     * Take the {@link Response} and encode it to a <code>byte</code> array. The bytes of an {@link ImmutableResponse} are shared and 
+     * so MUST NOT be modified.
      * 
      * @param response
      * @return bytes
      */
     protected static byte[] toBytes(Response response) {
-        StringBuilder builder = new StringBuilder();
-        List<CharSequence> lines = response.getLines();
-        for (int i = 0; i < lines.size(); i++) {
-            builder.append(lines.get(i));
-            if (i < lines.size()) {
-                builder.append(CRLF);
-            }
+        if (response instanceof ImmutableResponse) {
+            return ((ImmutableResponse) response).getBytes();
         }
-        try {
-            return builder.toString().getBytes("US-ASCII");
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException("No US-ASCII ?");
+        return toBytes(response.getLines());
+    }
+    
+    /**
+     * Encode the given lines to US-ASCII and terminate each of them with a CRLF. The lines are encoded directly into the returned
+     * array, so no intermediate {@link String}'s are created. Characters which are not part of US-ASCII are replaced with a <code>?</code>
+     * 
+     * @param lines
+     * @return bytes
+     */
+    static byte[] toBytes(List<CharSequence> lines) {
+        int size = lines.size();
+        int length = 0;
+        for (int i = 0; i < size; i++) {
+            length += encode(lines.get(i), null, 0) + 2;
         }
+        byte[] bytes = new byte[length];
+        int pos = 0;
+        for (int i = 0; i < size; i++) {
+            pos = encode(lines.get(i), bytes, pos);
+            bytes[pos++] = CR;
+            bytes[pos++] = LF;
+        }
+        return bytes;
+    }
+    
+    /**
+     * Encode the {@link CharSequence} to US-ASCII. If <code>bytes</code> is <code>null</code> only the length is calculated
+     * 
+     * @return the position after the last written byte
+     */
+    private static int encode(CharSequence line, byte[] bytes, int pos) {
+        int length = line.length();
+        for (int i = 0; i < length; i++) {
+            char c = line.charAt(i);
+            if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(line.charAt(i + 1))) {
+                // a surrogate pair is replaced with one byte
+                i++;
+            }
+            if (bytes != null) {
+                bytes[pos] = c < 128 ? (byte) c : UNMAPPABLE;
+            }
+            pos++;
+        }
+        return pos;
     }
     
 
@@ -194,6 +562,29 @@ public abstract class AbstractProtocolTransport implements ProtocolTransport{
      */
     protected abstract void writeToClient(byte[] bytes, ProtocolSession session, boolean startTLS);
     
+    /**
+     * Write the given buffered <code>byte's</code> to the remote peer. This implementation just merge them to one
+     * <code>byte</code> array and call {@link #writeToClient(byte[], ProtocolSession, boolean)}. Sub-classes should override this 
+     * if the underlying transport supports gathering writes.
+     * 
+     * @param bytes    the bytes to write, one array per {@link Response}
+     * @param session  the {@link ProtocolSession} for the write request
+     */
+    protected void writeToClient(List<byte[]> bytes, ProtocolSession session) {
+        int length = 0;
+        for (int i = 0; i < bytes.size(); i++) {
+            length += bytes.get(i).length;
+        }
+        byte[] merged = new byte[length];
+        int pos = 0;
+        for (int i = 0; i < bytes.size(); i++) {
+            byte[] b = bytes.get(i);
+            System.arraycopy(b, 0, merged, pos, b.length);
+            pos += b.length;
+        }
+        writeToClient(merged, session, false);
+    }
+    
     /**
      * Write the given {@link InputStream} to the remote peer
      * 
@@ -203,6 +594,19 @@ public abstract class AbstractProtocolTransport implements ProtocolTransport{
      */
     protected abstract void writeToClient(InputStream in, ProtocolSession session, boolean startTLS);
 
+    /**
+     * Write the given {@link StreamSegment}'s to the remote peer. This implementation just combines them to one {@link InputStream} and 
+     * call {@link #writeToClient(InputStream, ProtocolSession, boolean)}. Sub-classes should override this if the underlying transport 
+     * can transfer some of the segments more efficient.
+     * 
+     * @param segments the {@link StreamSegment}'s which should be written back to the client
+     * @param session  the {@link ProtocolSession} for the write request
+     * @param startTLS true if startTLS should be started after the segments were written to the client
+     */
+    protected void writeToClient(List<StreamSegment> segments, ProtocolSession session, boolean startTLS) {
+        writeToClient(StreamSegment.toInputStream(segments), session, startTLS);
+    }
+
     
     /**
      * Close the Transport
@@ -107,25 +107,13 @@ public abstract class AbstractResponse implements Response{
     }
     
     /**
-     * Return a immutable instance of this {@link AbstractResponse}
+     * Return a immutable snapshot of this {@link AbstractResponse}. The snapshot is encoded once, so it's cheap to write it to the client
+     * many times.
      * 
      * @return immutable
      */
     public Response immutable() {
-        return new Response() {
-            
-            public boolean isEndSession() {
-                return AbstractResponse.this.isEndSession();
-            }
-            
-            public String getRetCode() {
-                return AbstractResponse.this.getRetCode();
-            }
-            
-            public List<CharSequence> getLines() {
-                return AbstractResponse.this.getLines();
-            }
-        };
+        return new ImmutableResponse(this);
     }
 
 }
@@ -0,0 +1,129 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.protocols.api;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.james.protocols.api.ProtocolSession.State;
+
+/**
+ * Typed key of an attachment of a {@link ProtocolSession}. Every key gets a slot index assigned when it is registered, so the
+ * session can store the value in a plain array and access it without hashing. Keys are meant to be registered once as constants 
+ * (so when the handlers get wired), as the slots are never released.
+ * 
+ * The key is registered under its name, and the String based methods of {@link ProtocolSession} use the same slot if a key for
+ * the name exists. This way handlers can switch to the typed API one by one.
+ *
+ * @param <T> the type of the value
+ */
+public final class AttributeKey<T> {
+
+    private final static ConcurrentMap<String, AttributeKey<?>> KEYS = new ConcurrentHashMap<String, AttributeKey<?>>();
+    private static volatile AttributeKey<?>[] slots = new AttributeKey<?>[0];
+
+    private final String name;
+    private final int slot;
+
+    private AttributeKey(String name, int slot) {
+        this.name = name;
+        this.slot = slot;
+    }
+
+    /**
+     * Return the {@link AttributeKey} which is registered for the given name. If no key exists yet, a new one is registered.
+     * 
+     * @param name
+     * @return key
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> AttributeKey<T> valueOf(String name) {
+        if (name == null) {
+            throw new IllegalArgumentException("Name can not be null");
+        }
+        AttributeKey<?> key = KEYS.get(name);
+        if (key == null) {
+            synchronized (KEYS) {
+                key = KEYS.get(name);
+                if (key == null) {
+                    AttributeKey<?>[] registered = Arrays.copyOf(slots, slots.length + 1);
+                    key = new AttributeKey<Object>(name, slots.length);
+                    registered[key.slot] = key;
+                    KEYS.put(name, key);
+                    slots = registered;
+                }
+            }
+        }
+        return (AttributeKey<T>) key;
+    }
+
+    /**
+     * Return the {@link AttributeKey} which is registered for the given name or <code>null</code> if there is none.
+     * 
+     * @param name
+     * @return key
+     */
+    static AttributeKey<?> lookup(Object name) {
+        return KEYS.get(name);
+    }
+
+    /**
+     * Return the {@link AttributeKey} which uses the given slot
+     * 
+     * @param slot
+     * @return key
+     */
+    static AttributeKey<?> forSlot(int slot) {
+        return slots[slot];
+    }
+
+    /**
+     * Return the count of registered keys, which is the count of slots a session needs to hold all of them in one {@link State}
+     * 
+     * @return count
+     */
+    public static int getSlotCount() {
+        return slots.length;
+    }
+
+    /**
+     * Return the name under which this key is registered
+     * 
+     * @return name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Return the slot index of this key
+     * 
+     * @return slot
+     */
+    public int getSlot() {
+        return slot;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
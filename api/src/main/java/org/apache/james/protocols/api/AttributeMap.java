@@ -0,0 +1,263 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.protocols.api;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Holds the attachments of one {@link ProtocolSession.State} of a session. Values of registered {@link AttributeKey}'s are stored in
+ * an array which is indexed by {@link AttributeKey#getSlot()}, all other String keys end up in a {@link HashMap} which is only
+ * created when needed. Both are allocated lazy, so a session which never stores anything in a {@link ProtocolSession.State}
+ * does not pay for it.
+ * 
+ * The {@link Map} view is only here to support the deprecated {@link ProtocolSession#getState()} and 
+ * {@link ProtocolSession#getConnectionState()}. As with {@link ProtocolSession#setAttachment(String, Object, ProtocolSession.State)},
+ * storing <code>null</code> removes the mapping.
+ * 
+ * This class is not thread-safe.
+ */
+final class AttributeMap extends AbstractMap<String, Object> {
+
+    // Object header plus length of an array, and the size of a reference (compressed oops)
+    private final static int ARRAY_HEADER = 16;
+    private final static int REFERENCE = 4;
+    // HashMap instance and a HashMap.Node
+    private final static int HASHMAP = 48;
+    private final static int HASHMAP_ENTRY = 32;
+
+    private Object[] slots;
+    private int slotsUsed;
+    private Map<String, Object> overflow;
+
+    public Object get(AttributeKey<?> key) {
+        int slot = key.getSlot();
+        Object[] slots = this.slots;
+        if (slots == null || slot >= slots.length) {
+            return null;
+        }
+        return slots[slot];
+    }
+
+    public Object set(AttributeKey<?> key, Object value) {
+        int slot = key.getSlot();
+        if (slots == null || slot >= slots.length) {
+            if (value == null) {
+                return null;
+            }
+            // size it for all keys known by now, so keys registered later are the only reason to grow it
+            int length = Math.max(slot + 1, AttributeKey.getSlotCount());
+            slots = slots == null ? new Object[length] : Arrays.copyOf(slots, length);
+        }
+        Object old = slots[slot];
+        slots[slot] = value;
+        if (old == null && value != null) {
+            slotsUsed++;
+        } else if (old != null && value == null) {
+            slotsUsed--;
+        }
+        return old;
+    }
+
+    @Override
+    public Object get(Object key) {
+        AttributeKey<?> attributeKey = AttributeKey.lookup(key);
+        if (attributeKey != null) {
+            return get(attributeKey);
+        }
+        return overflow == null ? null : overflow.get(key);
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        AttributeKey<?> attributeKey = AttributeKey.lookup(key);
+        if (attributeKey != null) {
+            return set(attributeKey, value);
+        }
+        if (value == null) {
+            return remove(key);
+        }
+        if (overflow == null) {
+            overflow = new HashMap<String, Object>();
+        }
+        return overflow.put(key, value);
+    }
+
+    @Override
+    public Object remove(Object key) {
+        AttributeKey<?> attributeKey = AttributeKey.lookup(key);
+        if (attributeKey != null) {
+            return set(attributeKey, null);
+        }
+        return overflow == null ? null : overflow.remove(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        AttributeKey<?> attributeKey = AttributeKey.lookup(key);
+        if (attributeKey != null) {
+            return get(attributeKey) != null;
+        }
+        return overflow != null && overflow.containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        return slotsUsed + (overflow == null ? 0 : overflow.size());
+    }
+
+    /**
+     * Remove all values. The slot array is kept, so it does not need to get allocated again for the next transaction
+     */
+    @Override
+    public void clear() {
+        if (slotsUsed > 0) {
+            Arrays.fill(slots, null);
+            slotsUsed = 0;
+        }
+        overflow = null;
+    }
+
+    /**
+     * Close all values which implement {@link Closeable} and remove all values after that. Exceptions thrown on close are ignored.
+     */
+    public void reset() {
+        for (Object value : values()) {
+            if (value instanceof Closeable) {
+                try {
+                    ((Closeable) value).close();
+                } catch (IOException e) {
+                    // ignore on close
+                }
+            }
+        }
+        clear();
+    }
+
+    /**
+     * Return the estimated count of bytes which are used to hold the values, not counting the values itself. The estimation
+     * assumes a 64-bit JVM with compressed references.
+     * 
+     * @return footprint
+     */
+    public long getFootprint() {
+        long footprint = 0;
+        if (slots != null) {
+            footprint += align(ARRAY_HEADER + (long) REFERENCE * slots.length);
+        }
+        if (overflow != null) {
+            int size = overflow.size();
+            int capacity = Integer.highestOneBit(Math.max(16, (int) (size / 0.75f) + 1) - 1) << 1;
+            footprint += HASHMAP + align(ARRAY_HEADER + (long) REFERENCE * capacity) + (long) HASHMAP_ENTRY * size;
+        }
+        return footprint;
+    }
+
+    private static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet() {
+        return new AbstractSet<Map.Entry<String, Object>>() {
+
+            @Override
+            public Iterator<Map.Entry<String, Object>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                return AttributeMap.this.size();
+            }
+        };
+    }
+
+    /**
+     * Iterates over the used slots first and then over the overflow map. 
+     */
+    private final class EntryIterator implements Iterator<Map.Entry<String, Object>> {
+        private final Iterator<Map.Entry<String, Object>> overflowIterator = overflow == null ? null : overflow.entrySet().iterator();
+        private int nextSlot = -1;
+        private String current;
+
+        public EntryIterator() {
+            findNextSlot();
+        }
+
+        private void findNextSlot() {
+            nextSlot++;
+            while (slots != null && nextSlot < slots.length && slots[nextSlot] == null) {
+                nextSlot++;
+            }
+        }
+
+        private boolean hasNextSlot() {
+            return slots != null && nextSlot < slots.length;
+        }
+
+        public boolean hasNext() {
+            return hasNextSlot() || (overflowIterator != null && overflowIterator.hasNext());
+        }
+
+        public Map.Entry<String, Object> next() {
+            if (hasNextSlot()) {
+                final AttributeKey<?> key = AttributeKey.forSlot(nextSlot);
+                Map.Entry<String, Object> entry = new SimpleEntry<String, Object>(key.getName(), slots[nextSlot]) {
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    public Object setValue(Object value) {
+                        super.setValue(value);
+                        return set(key, value);
+                    }
+                };
+                current = key.getName();
+                findNextSlot();
+                return entry;
+            }
+            if (overflowIterator != null && overflowIterator.hasNext()) {
+                Map.Entry<String, Object> entry = overflowIterator.next();
+                current = null;
+                return entry;
+            }
+            throw new NoSuchElementException();
+        }
+
+        public void remove() {
+            if (current != null) {
+                AttributeMap.this.remove(current);
+                current = null;
+            } else if (overflowIterator != null) {
+                overflowIterator.remove();
+            } else {
+                throw new IllegalStateException();
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.protocols.api;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+/**
+ * {@link StreamSegment} which is backed by a <code>byte</code> array
+ */
+public class BytesStreamSegment extends StreamSegment {
+
+    private final byte[] bytes;
+    private final int offset;
+    private final int length;
+
+    public BytesStreamSegment(byte[] bytes) {
+        this(bytes, 0, bytes.length);
+    }
+    
+    public BytesStreamSegment(byte[] bytes, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > bytes.length) {
+            throw new IllegalArgumentException("offset and length must be within the bounds of the array");
+        }
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+    }
+    
+    public byte[] getBytes() {
+        return bytes;
+    }
+    
+    public int getOffset() {
+        return offset;
+    }
+    
+    /*
+     * (non-Javadoc)
+     * @see org.apache.james.protocols.api.StreamSegment#getLength()
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.james.protocols.api.StreamSegment#getStream()
+     */
+    public InputStream getStream() {
+        return new ByteArrayInputStream(bytes, offset, length);
+    }
+}
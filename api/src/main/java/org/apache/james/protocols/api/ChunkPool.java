@@ -0,0 +1,171 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.protocols.api;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of fixed size {@link ByteBuffer} chunks which are used to hold data of unknown size, like the body of a message. Released 
+ * chunks are kept till the configured max count is reached, so buffering data does not need to allocate new memory each time. 
+ * 
+ * Every instance serves one chunk size. The chunks are either on the heap or direct.
+ * 
+ * This class is thread-safe.
+ */
+public class ChunkPool {
+
+    public final static int DEFAULT_CHUNK_SIZE = 16 * 1024;
+    public final static int DEFAULT_MAX_POOLED = 1024;
+    
+    private static ChunkPool defaultPool;
+    
+    private final int chunkSize;
+    private final int maxPooled;
+    private final boolean direct;
+    private final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicInteger pooled = new AtomicInteger();
+    private final AtomicInteger acquired = new AtomicInteger();
+    private final AtomicLong allocated = new AtomicLong();
+    
+    /**
+     * Create a new pool
+     * 
+     * @param chunkSize the size of every chunk in bytes
+     * @param maxPooled the max count of released chunks which are kept for reuse, <code>0</code> disables pooling
+     * @param direct    <code>true</code> if direct {@link ByteBuffer}'s should be used
+     */
+    public ChunkPool(int chunkSize, int maxPooled, boolean direct) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be a positive integer: " + chunkSize);
+        }
+        if (maxPooled < 0) {
+            throw new IllegalArgumentException("maxPooled must be >= 0: " + maxPooled);
+        }
+        this.chunkSize = chunkSize;
+        this.maxPooled = maxPooled;
+        this.direct = direct;
+    }
+    
+    /**
+     * Return the shared {@link ChunkPool} which holds up to {@link #DEFAULT_MAX_POOLED} heap chunks of {@link #DEFAULT_CHUNK_SIZE} bytes
+     * 
+     * @return pool
+     */
+    public static synchronized ChunkPool getDefault() {
+        if (defaultPool == null) {
+            defaultPool = new ChunkPool(DEFAULT_CHUNK_SIZE, DEFAULT_MAX_POOLED, false);
+        }
+        return defaultPool;
+    }
+    
+    /**
+     * Return an empty chunk. It MUST be passed to {@link #release(ByteBuffer)} once it is not used anymore.
+     * 
+     * @return chunk
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer chunk = pool.poll();
+        if (chunk == null) {
+            chunk = direct ? ByteBuffer.allocateDirect(chunkSize) : ByteBuffer.allocate(chunkSize);
+            allocated.incrementAndGet();
+        } else {
+            pooled.decrementAndGet();
+        }
+        acquired.incrementAndGet();
+        return chunk;
+    }
+    
+    /**
+     * Give back a chunk which was returned by {@link #acquire()}. The chunk MUST NOT be used anymore after this, also no views of it.
+     * 
+     * @param chunk
+     */
+    public void release(ByteBuffer chunk) {
+        if (chunk.capacity() != chunkSize) {
+            throw new IllegalArgumentException("Chunk was not acquired from this pool");
+        }
+        acquired.decrementAndGet();
+        if (pooled.incrementAndGet() <= maxPooled) {
+            chunk.clear();
+            pool.offer(chunk);
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+    
+    /**
+     * Return the size of every chunk in bytes
+     * 
+     * @return chunkSize
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+    
+    /**
+     * Return the max count of released chunks which are kept for reuse
+     * 
+     * @return maxPooled
+     */
+    public int getMaxPooled() {
+        return maxPooled;
+    }
+    
+    /**
+     * Return <code>true</code> if the chunks are direct {@link ByteBuffer}'s
+     * 
+     * @return direct
+     */
+    public boolean isDirect() {
+        return direct;
+    }
+    
+    /**
+     * Return the count of chunks which are kept for reuse at the moment
+     * 
+     * @return pooled
+     */
+    public int getPooledCount() {
+        return pooled.get();
+    }
+    
+    /**
+     * Return the count of chunks which are in use at the moment
+     * 
+     * @return acquired
+     */
+    public int getAcquiredCount() {
+        return acquired.get();
+    }
+    
+    /**
+     * Return the count of chunks which had to be allocated since the pool was created. If this grows while the count of acquired 
+     * chunks stays the same, the max count of pooled chunks is too small.
+     * 
+     * @return allocated
+     */
+    public long getAllocatedCount() {
+        return allocated.get();
+    }
+}
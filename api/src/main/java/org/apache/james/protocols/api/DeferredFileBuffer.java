@@ -0,0 +1,431 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.protocols.api;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Buffer for data of unknown size, which is kept in memory till it exceeds a threshold and is moved to a temporary file after that.
+ * This way the heap used by the buffer is bounded by the threshold, no matter how much data is written to it.
+ * 
+ * The data in memory is held in fixed size chunks of a {@link ChunkPool}, so growing the buffer never copies what was written before and 
+ * buffering the data of many sessions does not need to allocate new memory each time. The written data can 
+ * be read at any time and as often as needed via {@link #getInputStream()}, {@link #getChannel()} or {@link #read(long, byte[], int, int)}, 
+ * also while data is still appended. {@link #getReadOnlyBuffers()} gives access to the data without copying it at all.
+ * 
+ * {@link #close()} must be called once the buffer is not needed anymore, as it gives back the chunks and deletes the temporary file. If it 
+ * is stored as an attachment of
+ * {@link ProtocolSession.State#Transaction}, this is done when the state is reset.
+ * 
+ * This class is not thread-safe.
+ */
+public class DeferredFileBuffer implements Closeable {
+
+    public final static int DEFAULT_THRESHOLD = 256 * 1024;
+
+    private final static long MAX_MAPPING = Integer.MAX_VALUE;
+    private final static String PREFIX = "james-protocols-";
+    private final static String SUFFIX = ".buffer";
+
+    private final int threshold;
+    private final File directory;
+    private final ChunkPool pool;
+    private final int chunkSize;
+    private final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+    private long length;
+    private File file;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private boolean closed;
+
+    /**
+     * Create a new buffer 
+     * 
+     * @param threshold the count of bytes which are kept in memory
+     * @param directory the directory in which the temporary file is created or <code>null</code> to use the default temporary directory
+     * @param pool      the {@link ChunkPool} which is used to hold the data in memory
+     */
+    public DeferredFileBuffer(int threshold, File directory, ChunkPool pool) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("Threshold must be >= 0");
+        }
+        this.threshold = threshold;
+        this.directory = directory;
+        this.pool = pool;
+        this.chunkSize = pool.getChunkSize();
+    }
+
+    /**
+     * Create a new buffer which uses the {@link ChunkPool#getDefault()}
+     * 
+     * @param threshold the count of bytes which are kept in memory
+     * @param directory the directory in which the temporary file is created or <code>null</code> to use the default temporary directory
+     */
+    public DeferredFileBuffer(int threshold, File directory) {
+        this(threshold, directory, ChunkPool.getDefault());
+    }
+
+    public DeferredFileBuffer(int threshold) {
+        this(threshold, null);
+    }
+
+    public DeferredFileBuffer() {
+        this(DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * Append the remaining bytes of the given {@link ByteBuffer}. The position of the {@link ByteBuffer} is moved to its limit.
+     * 
+     * @param src
+     * @throws IOException
+     */
+    public void write(ByteBuffer src) throws IOException {
+        ensureOpen();
+        int count = src.remaining();
+        if (channel == null && length + count > threshold) {
+            spill();
+        }
+        if (channel != null) {
+            while (src.hasRemaining()) {
+                length += channel.write(src, length);
+            }
+        } else {
+            while (src.hasRemaining()) {
+                // the position of the last chunk is where the next byte is written to
+                ByteBuffer chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+                if (chunk == null || !chunk.hasRemaining()) {
+                    chunk = pool.acquire();
+                    chunks.add(chunk);
+                }
+                int len = Math.min(chunk.remaining(), src.remaining());
+                if (len == src.remaining()) {
+                    chunk.put(src);
+                } else {
+                    ByteBuffer part = src.duplicate();
+                    part.limit(part.position() + len);
+                    chunk.put(part);
+                    src.position(src.position() + len);
+                }
+                length += len;
+            }
+        }
+    }
+
+    /**
+     * Append the given bytes
+     * 
+     * @param b
+     * @param off
+     * @param len
+     * @throws IOException
+     */
+    public void write(byte[] b, int off, int len) throws IOException {
+        write(ByteBuffer.wrap(b, off, len));
+    }
+
+    /**
+     * Move the data to the temporary file
+     */
+    private void spill() throws IOException {
+        file = File.createTempFile(PREFIX, SUFFIX, directory);
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            channel = raf.getChannel();
+            long position = 0;
+            for (int i = 0; i < chunks.size(); i++) {
+                ByteBuffer chunk = chunks.get(i).duplicate();
+                chunk.flip();
+                while (chunk.hasRemaining()) {
+                    position += channel.write(chunk, position);
+                }
+            }
+        } catch (IOException e) {
+            deleteFile();
+            throw e;
+        }
+        releaseChunks();
+    }
+    
+    private void releaseChunks() {
+        for (int i = 0; i < chunks.size(); i++) {
+            pool.release(chunks.get(i));
+        }
+        chunks.clear();
+    }
+
+    /**
+     * Read up to <code>len</code> bytes which were written at the given position
+     * 
+     * @param position
+     * @param b
+     * @param off
+     * @param len
+     * @return read the count of bytes which were read or <code>-1</code> if the position is at the end of the written data
+     * @throws IOException
+     */
+    public int read(long position, byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        if (position >= length) {
+            return -1;
+        }
+        len = (int) Math.min(len, length - position);
+        if (channel != null) {
+            ByteBuffer dst = ByteBuffer.wrap(b, off, len);
+            while (dst.hasRemaining()) {
+                if (channel.read(dst, position + dst.position() - off) < 0) {
+                    break;
+                }
+            }
+            return dst.position() - off;
+        }
+        int read = 0;
+        while (read < len) {
+            long pos = position + read;
+            ByteBuffer chunk = chunks.get((int) (pos / chunkSize));
+            int offset = (int) (pos % chunkSize);
+            int count = Math.min(chunkSize - offset, len - read);
+            if (chunk.hasArray()) {
+                System.arraycopy(chunk.array(), chunk.arrayOffset() + offset, b, off + read, count);
+            } else {
+                ByteBuffer src = chunk.duplicate();
+                src.limit(offset + count);
+                src.position(offset);
+                src.get(b, off + read, count);
+            }
+            read += count;
+        }
+        return read;
+    }
+
+    /**
+     * Return an {@link OutputStream} which appends to this buffer. The returned stream also implements {@link WritableByteChannel}.
+     * 
+     * @return out
+     */
+    public OutputStream getOutputStream() {
+        return new BufferOutputStream();
+    }
+
+    /**
+     * Return a new {@link InputStream} which reads the data from the start. The stream ends once it reached the data written so far.
+     * 
+     * @return in
+     */
+    public InputStream getInputStream() {
+        return new InputStream() {
+            private long position = 0;
+            private long mark = 0;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                if (read(b, 0, 1) == -1) {
+                    return -1;
+                }
+                return b[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                int read = DeferredFileBuffer.this.read(position, b, off, len);
+                if (read > 0) {
+                    position += read;
+                }
+                return read;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                long skipped = Math.max(0, Math.min(n, length - position));
+                position += skipped;
+                return skipped;
+            }
+
+            @Override
+            public int available() throws IOException {
+                return (int) Math.min(Integer.MAX_VALUE, length - position);
+            }
+
+            @Override
+            public boolean markSupported() {
+                return true;
+            }
+
+            @Override
+            public synchronized void mark(int readlimit) {
+                mark = position;
+            }
+
+            @Override
+            public synchronized void reset() throws IOException {
+                position = mark;
+            }
+        };
+    }
+
+    /**
+     * Return a new {@link ReadableByteChannel} which reads the data from the start. The channel ends once it reached the data written so far.
+     * 
+     * @return channel
+     */
+    public ReadableByteChannel getChannel() {
+        return Channels.newChannel(getInputStream());
+    }
+
+    /**
+     * Return a read-only view of the data written so far without copying it. The chunks in memory are sliced, the data of the temporary 
+     * file is memory-mapped. Data which is written after this call is not part of the returned {@link ByteBuffer}'s.
+     * 
+     * The returned {@link ByteBuffer}'s MUST NOT be used anymore once the buffer was closed.
+     * 
+     * @return buffers
+     * @throws IOException
+     */
+    public ByteBuffer[] getReadOnlyBuffers() throws IOException {
+        ensureOpen();
+        if (channel != null) {
+            ByteBuffer[] buffers = new ByteBuffer[(int) ((length + MAX_MAPPING - 1) / MAX_MAPPING)];
+            for (int i = 0; i < buffers.length; i++) {
+                long position = i * MAX_MAPPING;
+                buffers[i] = channel.map(MapMode.READ_ONLY, position, Math.min(MAX_MAPPING, length - position));
+            }
+            return buffers;
+        }
+        ByteBuffer[] buffers = new ByteBuffer[chunks.size()];
+        for (int i = 0; i < buffers.length; i++) {
+            ByteBuffer chunk = chunks.get(i).asReadOnlyBuffer();
+            chunk.flip();
+            buffers[i] = chunk;
+        }
+        return buffers;
+    }
+
+    /**
+     * Return the count of written bytes
+     * 
+     * @return length
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Return <code>true</code> if the data is still held in memory
+     * 
+     * @return inMemory
+     */
+    public boolean isInMemory() {
+        return channel == null;
+    }
+
+    /**
+     * Return the temporary file which holds the data or <code>null</code> if the data is held in memory
+     * 
+     * @return file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Return the count of bytes of the chunks which are used to hold the data
+     * 
+     * @return memory
+     */
+    public long getMemoryUsage() {
+        return (long) chunks.size() * chunkSize;
+    }
+
+    /**
+     * Give back the chunks to the {@link ChunkPool} and delete the temporary file. The buffer can not be used anymore after that
+     */
+    public void close() {
+        if (!closed) {
+            closed = true;
+            releaseChunks();
+            deleteFile();
+        }
+    }
+
+    private void deleteFile() {
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                // ignore on close
+            }
+            raf = null;
+            channel = null;
+        }
+        if (file != null) {
+            file.delete();
+            file = null;
+        }
+    }
+
+    /**
+     * {@link OutputStream} which appends to the buffer. It also implements {@link WritableByteChannel}, so callers which hold the data
+     * in a {@link ByteBuffer} don't need to copy it to an array first. Closing it does not close the buffer.
+     */
+    private final class BufferOutputStream extends OutputStream implements WritableByteChannel {
+
+        @Override
+        public void write(int b) throws IOException {
+            DeferredFileBuffer.this.write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            DeferredFileBuffer.this.write(b, off, len);
+        }
+
+        public int write(ByteBuffer src) throws IOException {
+            int count = src.remaining();
+            DeferredFileBuffer.this.write(src);
+            return count;
+        }
+
+        public boolean isOpen() {
+            return !closed;
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Buffer was closed already");
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.protocols.api;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link StreamSegment} which is backed by a region of a {@link FileChannel}. The segment does not close the {@link FileChannel}, so 
+ * more then one segment can be backed by the same {@link FileChannel}. The transport which writes the segments closes every 
+ * {@link FileChannel} once after the last segment was transferred, see {@link #closeChannels(List)}.
+ */
+public class FileStreamSegment extends StreamSegment {
+
+    private final FileChannel channel;
+    private final long offset;
+    private final long length;
+
+    /**
+     * Create a new segment
+     * 
+     * @param channel the {@link FileChannel} to read from
+     * @param offset  the position of the first byte of the segment in the file
+     * @param length  the length of the segment in bytes
+     */
+    public FileStreamSegment(FileChannel channel, long offset, long length) {
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException("offset and length must not be negative");
+        }
+        this.channel = channel;
+        this.offset = offset;
+        this.length = length;
+    }
+    
+    /**
+     * Return the {@link FileChannel} which backs this segment
+     * 
+     * @return channel
+     */
+    public FileChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Return the position of the first byte of the segment in the file
+     * 
+     * @return offset
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.james.protocols.api.StreamSegment#getLength()
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Return an {@link InputStream} which reads the region of the file. This does not change the position of the {@link FileChannel}
+     * and closing the {@link InputStream} does not close the {@link FileChannel}.
+     */
+    public InputStream getStream() {
+        return new FileRegionInputStream();
+    }
+    
+    /**
+     * Close the {@link FileChannel} of every {@link FileStreamSegment} in the given {@link List}. Each {@link FileChannel} is only closed
+     * one time, even if it backs more then one segment.
+     * 
+     * @param segments
+     * @throws IOException if a {@link FileChannel} could not be closed. All other {@link FileChannel}'s are closed anyway
+     */
+    public static void closeChannels(List<StreamSegment> segments) throws IOException {
+        Map<FileChannel, Boolean> channels = new IdentityHashMap<FileChannel, Boolean>();
+        IOException ex = null;
+        for (int i = 0; i < segments.size(); i++) {
+            StreamSegment segment = segments.get(i);
+            if (segment instanceof FileStreamSegment) {
+                FileChannel channel = ((FileStreamSegment) segment).getChannel();
+                if (channels.put(channel, Boolean.TRUE) == null) {
+                    try {
+                        channel.close();
+                    } catch (IOException e) {
+                        if (ex == null) {
+                            ex = e;
+                        }
+                    }
+                }
+            }
+        }
+        if (ex != null) {
+            throw ex;
+        }
+    }
+    
+    private final class FileRegionInputStream extends InputStream {
+        private long position = offset;
+        private final long end = offset + length;
+        
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int r = read(b, 0, 1);
+            if (r == -1) {
+                return -1;
+            }
+            return b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            long remaining = end - position;
+            if (remaining <= 0) {
+                return -1;
+            }
+            int r = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, remaining)), position);
+            if (r == -1) {
+                // the file was truncated
+                position = end;
+                return -1;
+            }
+            position += r;
+            return r;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(Integer.MAX_VALUE, end - position);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.protocols.api;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable snapshot of a {@link Response}. The {@link Response} is encoded to its wire format once, so it can be written to many
+ * clients without encoding it again. 
+ */
+public class ImmutableResponse implements Response {
+
+    private final String retCode;
+    private final List<CharSequence> lines;
+    private final boolean endSession;
+    private final byte[] bytes;
+    
+    /**
+     * Create a snapshot of the given {@link Response}
+     * 
+     * @param response
+     */
+    public ImmutableResponse(Response response) {
+        this.retCode = response.getRetCode();
+        this.lines = Collections.unmodifiableList(new ArrayList<CharSequence>(response.getLines()));
+        this.endSession = response.isEndSession();
+        this.bytes = AbstractProtocolTransport.toBytes(lines);
+    }
+    
+    /*
+     * (non-Javadoc)
+     * @see org.apache.james.protocols.api.Response#getRetCode()
+     */
+    public String getRetCode() {
+        return retCode;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.james.protocols.api.Response#getLines()
+     */
+    public List<CharSequence> getLines() {
+        return lines;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.james.protocols.api.Response#isEndSession()
+     */
+    public boolean isEndSession() {
+        return endSession;
+    }
+    
+    /**
+     * Return the encoded {@link Response} as it is written to the client. The returned array is shared, so it MUST NOT be modified.
+     * 
+     * @return bytes
+     */
+    public byte[] getBytes() {
+        return bytes;
+    }
+    
+    @Override
+    public String toString() {
+        return lines.toString();
+    }
+}
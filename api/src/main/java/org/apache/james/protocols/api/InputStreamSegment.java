@@ -0,0 +1,49 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.protocols.api;
+
+import java.io.InputStream;
+
+/**
+ * {@link StreamSegment} which wraps an {@link InputStream} of unknown length
+ */
+public class InputStreamSegment extends StreamSegment {
+
+    private final InputStream in;
+
+    public InputStreamSegment(InputStream in) {
+        this.in = in;
+    }
+    
+    /**
+     * Return <code>-1</code> as the length is not known
+     */
+    public long getLength() {
+        return -1;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.james.protocols.api.StreamSegment#getStream()
+     */
+    public InputStream getStream() {
+        return in;
+    }
+}
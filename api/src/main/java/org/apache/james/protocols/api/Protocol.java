@@ -20,6 +20,7 @@
 package org.apache.james.protocols.api;
 
 import org.apache.james.protocols.api.handler.ProtocolHandlerChain;
+import org.apache.james.protocols.api.metrics.ProtocolMetrics;
 
 /**
  * Define a protocol
@@ -48,4 +49,11 @@ public interface Protocol {
      */
     ProtocolSession newSession(ProtocolTransport transport);
 
+    /**
+     * Return the {@link ProtocolMetrics} which are shared by all sessions of the {@link Protocol}
+     * 
+     * @return metrics
+     */
+    ProtocolMetrics getMetrics();
+
 }
@@ -21,6 +21,7 @@ package org.apache.james.protocols.api;
 
 import org.apache.james.protocols.api.handler.ProtocolHandlerChain;
 import org.apache.james.protocols.api.logger.Logger;
+import org.apache.james.protocols.api.metrics.ProtocolMetrics;
 
 /**
  * Basic {@link Protocol} implementation 
@@ -30,6 +31,7 @@ public class ProtocolImpl implements Protocol{
     private final ProtocolHandlerChain chain;
     private final ProtocolConfiguration config;
     protected final Logger logger;
+    private final ProtocolMetrics metrics = new ProtocolMetrics();
 
     public ProtocolImpl(ProtocolHandlerChain chain, ProtocolConfiguration config, Logger logger) {
         this.chain = chain;
@@ -61,4 +63,12 @@ public class ProtocolImpl implements Protocol{
         return config;
     }
 
+    /*
+     * (non-Javadoc)
+     * @see org.apache.james.protocols.api.Protocol#getMetrics()
+     */
+    public ProtocolMetrics getMetrics() {
+        return metrics;
+    }
+
 }
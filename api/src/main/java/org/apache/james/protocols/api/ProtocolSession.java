@@ -25,6 +25,7 @@ import java.util.Map;
 
 import org.apache.james.protocols.api.handler.LineHandler;
 import org.apache.james.protocols.api.logger.Logger;
+import org.apache.james.protocols.api.metrics.ProtocolMetrics;
 
 /**
  * Session for a protocol. Every new connection generates a new session
@@ -63,6 +64,26 @@ public interface ProtocolSession {
      */
     Object getAttachment(String key, State state);
     
+    /**
+     * Store the given value with the given {@link AttributeKey} in the specified {@link State}. This does the same as 
+     * {@link #setAttachment(String, Object, State)} with the name of the key, but without the need of a hash lookup and a cast.
+     * 
+     * @param key the key under which the value should get stored
+     * @param value the value which will get stored under the given key or <code>null</code> if you want to remove any value which is stored under the key
+     * @param state the {@link State} to which the mapping belongs
+     * @return oldValue the value which was stored before for this key or <code>null</code> if non was stored before.
+     */
+    <T> T setAttachment(AttributeKey<T> key, T value, State state);
+
+    /**
+     * Return the value which is stored for the given {@link AttributeKey} in the specified {@link State} or <code>null</code> if non was stored before.
+     * 
+     * @param key the key under which the value should be searched
+     * @param state the {@link State} in which the value was stored for the key
+     * @return value the stored value for the key
+     */
+    <T> T getAttachment(AttributeKey<T> key, State state);
+    
     
     /**
      * Return Map which can be used to store objects within a session
@@ -85,7 +106,7 @@ public interface ProtocolSession {
 
     
     /**
-     * Reset the state
+     * Reset the state. Attachments of the {@link State#Transaction} which implement {@link java.io.Closeable} are closed
      */
     void resetState();
 
@@ -125,6 +146,30 @@ public interface ProtocolSession {
      * @return Response or null if no response should be written before closing the connection
      */
     Response newFatalErrorResponse();
+
+    /**
+     * Define a response object to be used as reply if the connection was rejected because it exceeded a connection limit.
+     * Connection will be closed after this response.
+     * 
+     * @return Response or null if no response should be written before closing the connection
+     */
+    Response newConnectionLimitExceededResponse();
+
+    /**
+     * Define a response object to be used as reply if the server shuts down while the session is not in a transaction. 
+     * Connection will be closed after this response.
+     * 
+     * @return Response or null if no response should be written before closing the connection
+     */
+    Response newShutdownResponse();
+
+    /**
+     * Return <code>true</code> if the session is in the middle of a transaction which would get lost if the connection is closed 
+     * now. A graceful shutdown waits till the transaction was completed.
+     * 
+     * @return inTransaction
+     */
+    boolean isInTransaction();
     
     /**
      * Returns the user name associated with this interaction.
@@ -160,6 +205,13 @@ public interface ProtocolSession {
      * @return config
      */
     ProtocolConfiguration getConfiguration();
+
+    /**
+     * Return the {@link ProtocolMetrics} to which the statistics of the {@link ProtocolSession} are reported
+     * 
+     * @return metrics or <code>null</code> if no statistics are collected
+     */
+    ProtocolMetrics getMetrics();
     
     /**
      * Return the {@link Charset} which is used by the {@link ProtocolSession}
@@ -192,4 +244,19 @@ public interface ProtocolSession {
      */
     int getPushedLineHandlerCount();
 
+    /**
+     * Set the timeout after which the connection is closed if nothing was received from the client. This can be used to apply 
+     * different timeouts in different states of the protocol
+     * 
+     * @param timeout the timeout in seconds or 0 if the connection should never time out
+     */
+    void setIdleTimeout(int timeout);
+
+    /**
+     * Return the timeout in seconds after which the connection is closed if nothing was received from the client
+     * 
+     * @return timeout or 0 if the connection never times out
+     */
+    int getIdleTimeout();
+
 }
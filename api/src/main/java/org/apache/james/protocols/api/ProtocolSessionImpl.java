@@ -19,9 +19,9 @@
 
 package org.apache.james.protocols.api;
 
+import java.io.Closeable;
 import java.net.InetSocketAddress;
 import java.nio.charset.Charset;
-import java.util.HashMap;
 import java.util.Map;
 
 
@@ -29,6 +29,7 @@ import org.apache.james.protocols.api.ProtocolTransport;
 import org.apache.james.protocols.api.handler.LineHandler;
 import org.apache.james.protocols.api.logger.ContextualLogger;
 import org.apache.james.protocols.api.logger.Logger;
+import org.apache.james.protocols.api.metrics.ProtocolMetrics;
 
 /**
  * Basic implementation of {@link ProtocolSession}
@@ -39,9 +40,10 @@ public class ProtocolSessionImpl implements ProtocolSession {
 
     private final Logger pLog;
     private final ProtocolTransport transport;
-    private final Map<String, Object> connectionState;
-    private final Map<String, Object> sessionState;
+    private final AttributeMap connectionState;
+    private final AttributeMap sessionState;
     private String user;
+    private volatile ProtocolMetrics metrics;
     protected final ProtocolConfiguration config;
     private final static Charset CHARSET = Charset.forName("US-ASCII");
     private final static String DELIMITER = "\r\n";
@@ -49,8 +51,8 @@ public class ProtocolSessionImpl implements ProtocolSession {
     public ProtocolSessionImpl(Logger logger, ProtocolTransport transport, ProtocolConfiguration config) {
         this.transport = transport;
         this.pLog = new ContextualLogger(this, logger);
-        this.connectionState = new HashMap<String, Object>();
-        this.sessionState = new HashMap<String, Object>();
+        this.connectionState = new AttributeMap();
+        this.sessionState = new AttributeMap();
         this.config = config;
 
     }
@@ -156,11 +158,51 @@ public class ProtocolSessionImpl implements ProtocolSession {
     }
 
     /**
-     * This implementation just clears the sessions state. Sub-classes should
+     * This implementation just returns <code>null</code>. Sub-classes should
+     * overwrite this if needed
+     */
+    public Response newConnectionLimitExceededResponse() {
+        return null;
+    }
+
+    /**
+     * This implementation just returns <code>null</code>. Sub-classes should
+     * overwrite this if needed
+     */
+    public Response newShutdownResponse() {
+        return null;
+    }
+
+    /**
+     * This implementation returns <code>true</code> while a {@link LineHandler} is pushed, as this is typically the case while a
+     * multi-line request is received. Sub-classes should overwrite this if needed
+     */
+    public boolean isInTransaction() {
+        return getPushedLineHandlerCount() > 0;
+    }
+
+    /**
+     * This implementation just clears the sessions state. Values which implement {@link Closeable} are closed before. Sub-classes should
      * overwrite this if needed
      */
     public void resetState() {
-        sessionState.clear();
+        sessionState.reset();
+    }
+
+    /**
+     * @see org.apache.james.protocols.api.ProtocolSession#getMetrics()
+     */
+    public ProtocolMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Set the {@link ProtocolMetrics} to which the statistics of this session are reported
+     * 
+     * @param metrics the metrics or <code>null</code> if no statistics should be collected
+     */
+    public void setMetrics(ProtocolMetrics metrics) {
+        this.metrics = metrics;
     }
 
     /**
@@ -176,17 +218,9 @@ public class ProtocolSessionImpl implements ProtocolSession {
      */
     public Object setAttachment(String key, Object value, State state) {
         if (state == State.Connection) {
-            if (value == null) {
-                return connectionState.remove(key);
-            } else {
-                return connectionState.put(key, value);
-            }
+            return connectionState.put(key, value);
         } else {
-            if (value == null) {
-                return sessionState.remove(key);
-            } else {
-                return sessionState.put(key, value);
-            }
+            return sessionState.put(key, value);
         }
     }
 
@@ -202,6 +236,42 @@ public class ProtocolSessionImpl implements ProtocolSession {
         }
     }
 
+    /*
+     * (non-Javadoc)
+     * @see org.apache.james.protocols.api.ProtocolSession#setAttachment(org.apache.james.protocols.api.AttributeKey, java.lang.Object, org.apache.james.protocols.api.ProtocolSession.State)
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T setAttachment(AttributeKey<T> key, T value, State state) {
+        if (state == State.Connection) {
+            return (T) connectionState.set(key, value);
+        } else {
+            return (T) sessionState.set(key, value);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.james.protocols.api.ProtocolSession#getAttachment(org.apache.james.protocols.api.AttributeKey, org.apache.james.protocols.api.ProtocolSession.State)
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getAttachment(AttributeKey<T> key, State state) {
+        if (state == State.Connection) {
+            return (T) connectionState.get(key);
+        } else {
+            return (T) sessionState.get(key);
+        }
+    }
+
+    /**
+     * Return the estimated count of bytes this session uses to hold its attachments of both {@link State}'s, not counting the 
+     * attached values itself. The estimation assumes a 64-bit JVM with compressed references.
+     * 
+     * @return footprint
+     */
+    public long getAttachmentFootprint() {
+        return connectionState.getFootprint() + sessionState.getFootprint();
+    }
+
     /**
      * Returns a Charset for US-ASCII
      */
@@ -240,4 +310,20 @@ public class ProtocolSessionImpl implements ProtocolSession {
         transport.pushLineHandler(overrideCommandHandler, this);
     }
 
+    /*
+     * (non-Javadoc)
+     * @see org.apache.james.protocols.api.ProtocolSession#setIdleTimeout(int)
+     */
+    public void setIdleTimeout(int timeout) {
+        transport.setIdleTimeout(timeout);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.james.protocols.api.ProtocolSession#getIdleTimeout()
+     */
+    public int getIdleTimeout() {
+        return transport.getIdleTimeout();
+    }
+
 }
@@ -111,4 +111,19 @@ public interface ProtocolTransport {
      * @return
      */
     boolean isReadable();
+
+    /**
+     * Set the timeout after which the connection is closed if nothing was received from the client. The time which passed since 
+     * the last receive counts against the new timeout. This allows to use different timeouts in different states of the protocol
+     * 
+     * @param timeout the timeout in seconds or 0 if the connection should never time out
+     */
+    void setIdleTimeout(int timeout);
+
+    /**
+     * Return the timeout in seconds after which the connection is closed if nothing was received from the client
+     * 
+     * @return timeout or 0 if the connection never times out
+     */
+    int getIdleTimeout();
 }
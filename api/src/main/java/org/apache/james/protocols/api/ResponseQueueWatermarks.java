@@ -0,0 +1,141 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.protocols.api;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * High and low watermarks for the {@link Response}'s and bytes which are queued by an {@link AbstractProtocolTransport}. Once one
+ * of the high watermarks is reached the transport stops to read from the remote peer, and it will start to read again after both
+ * queues drained below the low watermarks.
+ * 
+ * One instance is typically shared by all transports of a server, so it also keeps track of the global queue depth.
+ */
+public class ResponseQueueWatermarks {
+
+    private final int lowResponses;
+    private final int highResponses;
+    private final long lowBytes;
+    private final long highBytes;
+    
+    private final AtomicInteger queuedResponses = new AtomicInteger();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final AtomicLong suspendCount = new AtomicLong();
+
+    /**
+     * Create a new instance
+     * 
+     * @param lowResponses  reads are resumed once the count of queued {@link Response}'s is equal or lower than this
+     * @param highResponses reads are suspended once the count of queued {@link Response}'s is equal or higher than this
+     * @param lowBytes      reads are resumed once the count of queued bytes is equal or lower than this
+     * @param highBytes     reads are suspended once the count of queued bytes is equal or higher than this
+     */
+    public ResponseQueueWatermarks(int lowResponses, int highResponses, long lowBytes, long highBytes) {
+        if (lowResponses < 0 || highResponses <= lowResponses) {
+            throw new IllegalArgumentException("highResponses must be greater than lowResponses and lowResponses must not be negative");
+        }
+        if (lowBytes < 0 || highBytes <= lowBytes) {
+            throw new IllegalArgumentException("highBytes must be greater than lowBytes and lowBytes must not be negative");
+        }
+        this.lowResponses = lowResponses;
+        this.highResponses = highResponses;
+        this.lowBytes = lowBytes;
+        this.highBytes = highBytes;
+    }
+    
+    public int getLowResponses() {
+        return lowResponses;
+    }
+
+    public int getHighResponses() {
+        return highResponses;
+    }
+
+    public long getLowBytes() {
+        return lowBytes;
+    }
+
+    public long getHighBytes() {
+        return highBytes;
+    }
+
+    /**
+     * Return the count of {@link Response}'s which are queued by all transports which use this instance
+     * 
+     * @return queuedResponses
+     */
+    public int getQueuedResponses() {
+        return queuedResponses.get();
+    }
+    
+    /**
+     * Return the count of bytes which are queued by all transports which use this instance
+     * 
+     * @return queuedBytes
+     */
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+    
+    /**
+     * Return how often reads were suspended because a high watermark was reached
+     * 
+     * @return suspendCount
+     */
+    public long getSuspendCount() {
+        return suspendCount.get();
+    }
+    
+    /**
+     * Return <code>true</code> if one of the high watermarks is reached
+     * 
+     * @param responses
+     * @param bytes
+     * @return reached
+     */
+    public boolean isHighWatermarkReached(int responses, long bytes) {
+        return responses >= highResponses || bytes >= highBytes;
+    }
+    
+    /**
+     * Return <code>true</code> if both queues drained to the low watermarks
+     * 
+     * @param responses
+     * @param bytes
+     * @return drained
+     */
+    public boolean isLowWatermarkReached(int responses, long bytes) {
+        return responses <= lowResponses && bytes <= lowBytes;
+    }
+    
+    void update(int responses, long bytes) {
+        if (responses != 0) {
+            queuedResponses.addAndGet(responses);
+        }
+        if (bytes != 0) {
+            queuedBytes.addAndGet(bytes);
+        }
+    }
+    
+    void suspended() {
+        suspendCount.incrementAndGet();
+    }
+}
@@ -0,0 +1,39 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.protocols.api;
+
+import java.util.List;
+
+/**
+ * {@link StreamResponse} which describes its data as a list of {@link StreamSegment}'s. This allows the {@link ProtocolTransport} to 
+ * transfer file-backed data without copying it to the user-space.
+ * 
+ * The {@link #getStream()} method MUST return the same content as the {@link StreamSegment}'s for transports which are not aware of them.
+ */
+public interface SegmentedStreamResponse extends StreamResponse {
+
+    /**
+     * Return the {@link StreamSegment}'s which need to get written to the remote peer. This method should only be called one time, as 
+     * the segments can only be consumed once.
+     * 
+     * @return segments
+     */
+    List<StreamSegment> getSegments();
+}
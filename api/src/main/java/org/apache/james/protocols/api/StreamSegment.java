@@ -0,0 +1,85 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.protocols.api;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.channels.FileChannel;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A segment of the data which is written to the remote peer by a {@link SegmentedStreamResponse}. Transports can use the concrete 
+ * type of the segment to choose the most efficient way to transfer it, like using zero-copy for a {@link FileStreamSegment}.
+ */
+public abstract class StreamSegment {
+
+    /**
+     * Return the length of the segment in bytes or <code>-1</code> if it is not known
+     * 
+     * @return length
+     */
+    public abstract long getLength();
+    
+    /**
+     * Return an {@link InputStream} which holds the content of the segment. This method should only be called one time.
+     * 
+     * @return stream
+     */
+    public abstract InputStream getStream();
+    
+    /**
+     * Return an {@link InputStream} which returns the content of all given {@link StreamSegment}'s in order. The stream of each 
+     * {@link StreamSegment} is only requested once all previous streams were consumed. Closing the returned {@link InputStream} also 
+     * closes the {@link FileChannel}'s of all {@link FileStreamSegment}'s.
+     * 
+     * @param segments
+     * @return stream
+     */
+    public static InputStream toInputStream(final List<StreamSegment> segments) {
+        return new SequenceInputStream(new Enumeration<InputStream>() {
+            private int count = 0;
+            
+            public boolean hasMoreElements() {
+                return count < segments.size();
+            }
+
+            public InputStream nextElement() {
+                if (hasMoreElements()) {
+                    return segments.get(count++).getStream();
+                } else {
+                    throw new NoSuchElementException();
+                }
+            }
+        }) {
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    FileStreamSegment.closeChannels(segments);
+                }
+            }
+        };
+    }
+}
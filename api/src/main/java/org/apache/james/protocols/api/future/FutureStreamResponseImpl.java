@@ -20,16 +20,21 @@
 package org.apache.james.protocols.api.future;
 
 import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
 
+import org.apache.james.protocols.api.InputStreamSegment;
 import org.apache.james.protocols.api.Response;
+import org.apache.james.protocols.api.SegmentedStreamResponse;
 import org.apache.james.protocols.api.StreamResponse;
+import org.apache.james.protocols.api.StreamSegment;
 
 /**
  * Special {@link FutureResponse} which wraps a {@link StreamResponse} and so provide an async way to get notified about ready responses
  * 
  *
  */
-public class FutureStreamResponseImpl extends FutureResponseImpl implements StreamResponse{
+public class FutureStreamResponseImpl extends FutureResponseImpl implements SegmentedStreamResponse{
 
     /**
      * Set the {@link StreamResponse} to wrap. If a non {@link StreamResponse} is set this implementation will throw an {@link IllegalArgumentException}
@@ -53,4 +58,16 @@ public class FutureStreamResponseImpl extends FutureResponseImpl implements Stre
         return ((StreamResponse) response).getStream();
         
     }
+
+    /**
+     * Return the {@link StreamSegment}'s of the wrapped {@link SegmentedStreamResponse} or one {@link StreamSegment} which holds the 
+     * {@link InputStream} if the wrapped {@link StreamResponse} is not segmented
+     */
+    public List<StreamSegment> getSegments() {
+        checkReady();
+        if (response instanceof SegmentedStreamResponse) {
+            return ((SegmentedStreamResponse) response).getSegments();
+        }
+        return Collections.<StreamSegment>singletonList(new InputStreamSegment(((StreamResponse) response).getStream()));
+    }
 }
@@ -0,0 +1,138 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.protocols.api.future;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.james.protocols.api.Response;
+
+/**
+ * Releases {@link Response}'s after a delay without blocking a thread while waiting. The returned {@link FutureResponse} is completed
+ * by a timer, so a handler can return it to slow down a client (for example to tarpit it) and the transport writes it once the delay 
+ * is over. As with every {@link FutureResponse} the order of the {@link Response}'s is kept and the following lines of the client are 
+ * not processed before it was written.
+ * 
+ * Completing the {@link FutureResponse} may process the lines which were received in the meantime, so this is not done by the timer
+ * thread itself but handed over to an {@link Executor}. This {@link Executor} must be bounded, otherwise a lot of timers which fire
+ * at the same time (for example while thousands of connections are tarpitted) would start one thread per connection.
+ */
+public class ResponseScheduler {
+
+    private static ResponseScheduler defaultScheduler;
+    
+    /**
+     * Count of threads which complete the {@link FutureResponse}'s of the default {@link ResponseScheduler}
+     */
+    private final static int DEFAULT_EXECUTOR_THREADS = Runtime.getRuntime().availableProcessors() * 2;
+
+    private final ScheduledExecutorService timer;
+    private final Executor executor;
+
+    /**
+     * Create a new instance 
+     * 
+     * @param timer the {@link ScheduledExecutorService} which is used to wait for the delay
+     * @param executor the {@link Executor} which completes the {@link FutureResponse}'s
+     */
+    public ResponseScheduler(ScheduledExecutorService timer, Executor executor) {
+        this.timer = timer;
+        this.executor = executor;
+    }
+
+    /**
+     * Return the {@link ResponseScheduler} which is shared by all users in the process. It uses one daemon thread as timer and completes
+     * the {@link FutureResponse}'s with a fixed count of daemon threads (two per CPU), which are stopped while there is nothing to do. 
+     * If more {@link FutureResponse}'s get ready at the same time they are queued.
+     * 
+     * As the held back lines are processed by these threads, handlers which block for a long time (like DNS lookups) delay the 
+     * {@link Response}'s of other sessions. Use an own {@link ResponseScheduler} with a bigger {@link Executor} in this case.
+     * 
+     * @return scheduler
+     */
+    public static synchronized ResponseScheduler getDefault() {
+        if (defaultScheduler == null) {
+            ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("james-protocols-response-timer"));
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(DEFAULT_EXECUTOR_THREADS, DEFAULT_EXECUTOR_THREADS, 60, TimeUnit.SECONDS, 
+                    new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory("james-protocols-response-executor"));
+            executor.allowCoreThreadTimeOut(true);
+            defaultScheduler = new ResponseScheduler(timer, executor);
+        }
+        return defaultScheduler;
+    }
+
+    /**
+     * Return a {@link Response} which gets ready after the given delay. If the delay is not positive the given {@link Response} 
+     * is returned as it is.
+     * 
+     * @param response the {@link Response} to release after the delay
+     * @param delay
+     * @param unit
+     * @return delayedResponse
+     */
+    public Response schedule(final Response response, long delay, TimeUnit unit) {
+        if (delay <= 0) {
+            return response;
+        }
+        final FutureResponseImpl future = new FutureResponseImpl();
+        final Runnable complete = new Runnable() {
+
+            public void run() {
+                future.setResponse(response);
+            }
+        };
+        try {
+            timer.schedule(new Runnable() {
+
+                public void run() {
+                    try {
+                        executor.execute(complete);
+                    } catch (RejectedExecutionException e) {
+                        complete.run();
+                    }
+                }
+            }, delay, unit);
+        } catch (RejectedExecutionException e) {
+            // the timer was shutdown, so don't delay at all
+            return response;
+        }
+        return future;
+    }
+
+    private final static class DaemonThreadFactory implements ThreadFactory {
+        private final String name;
+        
+        public DaemonThreadFactory(String name) {
+            this.name = name;
+        }
+        
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
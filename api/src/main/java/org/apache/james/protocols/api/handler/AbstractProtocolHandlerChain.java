@@ -30,6 +30,8 @@ import java.util.List;
  */
 public abstract class AbstractProtocolHandlerChain implements ProtocolHandlerChain{
 
+    private volatile ProtocolHandlerIndex index;
+
     /**
      * Return an immutable List of all Handlers
      * 
@@ -73,6 +75,29 @@ public abstract class AbstractProtocolHandlerChain implements ProtocolHandlerCha
                 }
             }
         }
+        updateHandlerIndex();
+    }
+    
+    /**
+     * Compile a new {@link ProtocolHandlerIndex} out of the current handlers and publish it. Sub-classes which allow to
+     * modify the chain after {@link #wireExtensibleHandlers()} was called need to call this after every modification.
+     */
+    protected final void updateHandlerIndex() {
+        index = ProtocolHandlerIndex.compile(getHandlers());
+    }
+    
+    /**
+     * Return the {@link ProtocolHandlerIndex} which was compiled during {@link #wireExtensibleHandlers()}. If the chain was not wired yet
+     * a new {@link ProtocolHandlerIndex} is compiled on every call.
+     * 
+     * @see org.apache.james.protocols.api.handler.ProtocolHandlerChain#getHandlerIndex()
+     */
+    public ProtocolHandlerIndex getHandlerIndex() {
+        ProtocolHandlerIndex current = index;
+        if (current == null) {
+            current = ProtocolHandlerIndex.compile(getHandlers());
+        }
+        return current;
     }
     
 
@@ -0,0 +1,48 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.protocols.api.handler;
+
+import java.nio.ByteBuffer;
+
+import org.apache.james.protocols.api.ProtocolSession;
+
+/**
+ * A {@link LineHandler} which is able to consume a payload in big chunks instead of line by line. Once it is pushed the transport 
+ * may call {@link #onLine(ProtocolSession, ByteBuffer)} with chunks which hold more than one line, until the payload is 
+ * terminated as described by the {@link PayloadTerminator}. After that the transport falls back to pass single lines.
+ * 
+ * If the payload is terminated by a {@link PayloadTerminator#DOT_LINE} every chunk holds only complete lines and the terminating line
+ * is passed on its own. If the payload is terminated by a count of bytes the chunks hold exactly the payload and may end in the middle 
+ * of a line.
+ * 
+ * Transports which don't support this just pass single lines, so implementations must be able to handle both.
+ *
+ * @param <S>
+ */
+public interface BulkLineHandler<S extends ProtocolSession> extends LineHandler<S> {
+
+    /**
+     * Return the {@link PayloadTerminator} which marks the end of the payload. This is called once the {@link BulkLineHandler} was pushed.
+     * 
+     * @param session
+     * @return terminator
+     */
+    PayloadTerminator getPayloadTerminator(S session);
+}
@@ -20,6 +20,7 @@
 package org.apache.james.protocols.api.handler;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -35,7 +36,7 @@ import org.apache.james.protocols.api.Request;
 import org.apache.james.protocols.api.Response;
 import org.apache.james.protocols.api.future.FutureResponse;
 import org.apache.james.protocols.api.future.FutureResponse.ResponseListener;
-import org.apache.james.protocols.api.future.FutureResponseImpl;
+import org.apache.james.protocols.api.metrics.ProtocolMetrics;
 
 
 
@@ -49,8 +50,16 @@ public class CommandDispatcher<Session extends ProtocolSession> implements Exten
      */
     private final HashMap<String, List<CommandHandler<Session>>> commandHandlerMap = new HashMap<String, List<CommandHandler<Session>>>();
 
+    /**
+     * Table which is used to lookup the commands directly from the received bytes. It is rebuilt on the next lookup once the commandHandlerMap
+     * was changed.
+     */
+    private volatile CommandTable<CommandEntry<Session>> commandTable;
+
     private final List<ProtocolHandlerResultHandler<Response, Session>> rHandlers = new ArrayList<ProtocolHandlerResultHandler<Response, Session>>();
 
+    private volatile ProtocolHandlerResultPipeline resultPipeline = new ProtocolHandlerResultPipeline(rHandlers);
+
     private final Collection<String> mandatoryCommands;
     
     public CommandDispatcher(Collection<String> mandatoryCommands) {
@@ -74,6 +83,27 @@ public class CommandDispatcher<Session extends ProtocolSession> implements Exten
             commandHandlerMap.put(commandName, handlers);
         }
         handlers.add(cmdHandler);
+        commandTable = null;
+    }
+    
+    /**
+     * Return the {@link CommandTable} for all registered commands and build it if needed
+     * 
+     * @return table
+     */
+    private CommandTable<CommandEntry<Session>> getCommandTable() {
+        CommandTable<CommandEntry<Session>> table = commandTable;
+        if (table == null) {
+            HashMap<String, CommandEntry<Session>> entries = new HashMap<String, CommandEntry<Session>>();
+            Iterator<String> commands = commandHandlerMap.keySet().iterator();
+            while (commands.hasNext()) {
+                String command = commands.next();
+                entries.put(command, new CommandEntry<Session>(this, command, commandHandlerMap.get(command)));
+            }
+            table = CommandTable.build(entries);
+            commandTable = table;
+        }
+        return table;
     }
 
 
@@ -107,6 +137,7 @@ public class CommandDispatcher<Session extends ProtocolSession> implements Exten
     public void wireExtensions(Class interfaceName, List extension) throws WiringException {
         if (interfaceName.equals(ProtocolHandlerResultHandler.class)) {
             rHandlers.addAll(extension);
+            resultPipeline = new ProtocolHandlerResultPipeline(rHandlers);
         }
         if (interfaceName.equals(CommandHandler.class)) {
             for (Iterator it = extension.iterator(); it.hasNext();) {
@@ -128,6 +159,7 @@ public class CommandDispatcher<Session extends ProtocolSession> implements Exten
                     }
                 }
             }
+            getCommandTable();
         }
 
     }
@@ -161,24 +193,56 @@ public class CommandDispatcher<Session extends ProtocolSession> implements Exten
      * @param request
      * @return response
      */
+    @SuppressWarnings("unchecked")
     protected Response dispatchCommandHandlers(Session session, Request request) {
         if (session.getLogger().isDebugEnabled()) {
             session.getLogger().debug(getClass().getName() + " received: " + request.getCommand());
         }
-        List<CommandHandler<Session>> commandHandlers = getCommandHandlers(request.getCommand(), session);
-        // fetch the command handlers registered to the command
-        Iterator<CommandHandler<Session>> handlers = commandHandlers.iterator();
+        List<CommandHandler<Session>> commandHandlers;
+        
+        // the name under which the latency is recorded. Only registered commands are used, as the client can send whatever it wants
+        final String command;
+        if (request instanceof CommandRequest && ((CommandRequest<Session>) request).entry.dispatcher == this) {
+            // the handlers were already resolved while parsing the request
+            commandHandlers = ((CommandRequest<Session>) request).entry.handlers;
+            command = request.getCommand();
+        } else {
+            commandHandlers = getCommandHandlers(request.getCommand(), session);
+            if (commandHandlerMap.containsKey(request.getCommand())) {
+                command = request.getCommand();
+            } else {
+                command = getUnknownCommandHandlerIdentifier();
+            }
+        }
         
-        while (handlers.hasNext()) {
-            final long start = System.currentTimeMillis();
-            CommandHandler<Session> cHandler = handlers.next();
+        final ProtocolMetrics metrics = session.getMetrics();
+        final long dispatchStart = System.nanoTime();
+        ProtocolHandlerResultPipeline pipeline = resultPipeline;
+        for (int i = 0; i < commandHandlers.size(); i++) {
+            final long start = System.nanoTime();
+            CommandHandler<Session> cHandler = commandHandlers.get(i);
             Response response = cHandler.onCommand(session, request);
+            long end = System.nanoTime();
+            if (metrics != null) {
+                metrics.recordHandler(cHandler, end - start);
+            }
             if (response != null) {
-                long executionTime = System.currentTimeMillis() - start;
-
                 // now process the result handlers
-                response = executeResultHandlers(session, response, executionTime, cHandler, rHandlers.iterator());
+                response = pipeline.onResponse(session, response, start, cHandler);
                 if (response != null) {
+                    if (metrics != null) {
+                        if (response instanceof FutureResponse && !((FutureResponse) response).isReady()) {
+                            // record the latency once the command was really completed
+                            ((FutureResponse) response).addListener(new ResponseListener() {
+                                
+                                public void onResponse(FutureResponse response) {
+                                    metrics.recordCommand(command, System.nanoTime() - dispatchStart);
+                                }
+                            });
+                        } else {
+                            metrics.recordCommand(command, end - dispatchStart);
+                        }
+                    }
                     return response;
                 }
             }
@@ -188,39 +252,12 @@ public class CommandDispatcher<Session extends ProtocolSession> implements Exten
         return null;
     }
 
-    private Response executeResultHandlers(final Session session, Response response, final long executionTime, final CommandHandler<Session> cHandler, final Iterator<ProtocolHandlerResultHandler<Response, Session>> resultHandlers) {
-        // Check if the there is a ResultHandler left to execute if not just return the response
-        if (resultHandlers.hasNext()) {
-            // Special handling of FutureResponse
-            // See PROTOCOLS-37
-            if (response instanceof FutureResponse) {
-                final FutureResponseImpl futureResponse = new FutureResponseImpl();
-                ((FutureResponse) response).addListener(new ResponseListener() {
-
-                    public void onResponse(FutureResponse response) {
-                        Response r = resultHandlers.next().onResponse(session, response, executionTime, cHandler);
-                        
-                        // call the next ResultHandler 
-                        r = executeResultHandlers(session, r, executionTime, cHandler, resultHandlers);
-                        
-                        // notify the FutureResponse that we are ready
-                        futureResponse.setResponse(r);
-                    }
-                });
-                
-                // just return the new FutureResponse which will get notified once its ready
-                return futureResponse;
-            }  else {
-                response = resultHandlers.next().onResponse(session, response, executionTime, (CommandHandler<Session>) cHandler);
-                
-                // call the next ResultHandler 
-                return executeResultHandlers(session, response, executionTime, cHandler, resultHandlers);
-            }
-        }
-        return response;
-    }
     /**
-     * Parse the line into a {@link Request}
+     * Parse the line into a {@link Request}. 
+     * 
+     * The command is looked up directly from the bytes of the line and the argument is only decoded once it is requested. For commands 
+     * without an argument a cached {@link Request} is returned, so no objects get allocated at all. The {@link ByteBuffer} must not be 
+     * modified after this method returns.
      * 
      * @param session
      * @param line
@@ -228,29 +265,52 @@ public class CommandDispatcher<Session extends ProtocolSession> implements Exten
      * @throws Exception
      */
     protected Request parseRequest(Session session, ByteBuffer buffer) throws Exception {
-        String curCommandName = null;
-        String curCommandArgument = null;
-        byte[] line;
-        if (buffer.hasArray()) {
-            line = buffer.array();
-        } else {
-            line = new byte[buffer.remaining()];
-            buffer.get(line);
+        int start = buffer.position();
+        int end = buffer.limit();
+        
+        // trim the line like String.trim() does
+        while (start < end && (buffer.get(start) & 0xff) <= ' ') {
+            start++;
         }
-        // This should be changed once we move to java6
-        String cmdString = new String(line, session.getCharset().name()).trim();
-        int spaceIndex = cmdString.indexOf(" ");
-        if (spaceIndex > 0) {
-            curCommandName = cmdString.substring(0, spaceIndex);
-            curCommandArgument = cmdString.substring(spaceIndex + 1);
-        } else {
-            curCommandName = cmdString;
+        while (end > start && (buffer.get(end - 1) & 0xff) <= ' ') {
+            end--;
         }
-        curCommandName = curCommandName.toUpperCase(Locale.US);
-
-        BaseRequest request = new BaseRequest(curCommandName, curCommandArgument);
-        return request;
-
+        
+        int spaceIndex = -1;
+        for (int i = start; i < end; i++) {
+            if (buffer.get(i) == ' ') {
+                spaceIndex = i;
+                break;
+            }
+        }
+        int commandEnd = spaceIndex == -1 ? end : spaceIndex;
+        
+        CommandEntry<Session> entry = getCommandTable().get(buffer, start, commandEnd);
+        if (entry != null) {
+            if (spaceIndex == -1) {
+                return entry.request;
+            }
+            ByteBuffer argument = buffer.duplicate();
+            argument.limit(end);
+            argument.position(spaceIndex + 1);
+            return new CommandRequest<Session>(entry, argument.slice(), session.getCharset());
+        }
+        
+        // not a registered command so just decode it
+        Charset charset = session.getCharset();
+        String curCommandName = decode(buffer, start, commandEnd, charset).toUpperCase(Locale.US);
+        String curCommandArgument = null;
+        if (spaceIndex != -1) {
+            curCommandArgument = decode(buffer, spaceIndex + 1, end, charset);
+        }
+        return new BaseRequest(curCommandName, curCommandArgument);
+    }
+    
+    private static String decode(ByteBuffer buffer, int start, int end, Charset charset) {
+        ByteBuffer b = buffer.duplicate();
+        b.limit(end);
+        b.position(start);
+        return charset.decode(b).toString();
     }
    
     /**
@@ -272,4 +332,68 @@ public class CommandDispatcher<Session extends ProtocolSession> implements Exten
     protected String getUnknownCommandHandlerIdentifier() {
         return UnknownCommandHandler.COMMAND_IDENTIFIER;
     }
+    
+    /**
+     * A registered command and its {@link CommandHandler}'s
+     */
+    private final static class CommandEntry<S extends ProtocolSession> {
+        private final CommandDispatcher<S> dispatcher;
+        private final String command;
+        private final List<CommandHandler<S>> handlers;
+        
+        // the request is immutable if it has no argument, so it can be shared
+        private final CommandRequest<S> request;
+        
+        public CommandEntry(CommandDispatcher<S> dispatcher, String command, List<CommandHandler<S>> handlers) {
+            this.dispatcher = dispatcher;
+            this.command = command;
+            this.handlers = handlers;
+            this.request = new CommandRequest<S>(this, null, null);
+        }
+    }
+    
+    /**
+     * {@link Request} for a registered command which decodes the argument on the first access
+     */
+    private final static class CommandRequest<S extends ProtocolSession> implements Request {
+        private final CommandEntry<S> entry;
+        private final ByteBuffer argumentBuffer;
+        private final Charset charset;
+        private String argument;
+        
+        public CommandRequest(CommandEntry<S> entry, ByteBuffer argumentBuffer, Charset charset) {
+            this.entry = entry;
+            this.argumentBuffer = argumentBuffer;
+            this.charset = charset;
+        }
+
+        /**
+         * @see org.apache.james.protocols.api.Request#getArgument()
+         */
+        public String getArgument() {
+            if (argumentBuffer == null) {
+                return null;
+            }
+            if (argument == null) {
+                argument = charset.decode(argumentBuffer.duplicate()).toString();
+            }
+            return argument;
+        }
+
+        /**
+         * @see org.apache.james.protocols.api.Request#getCommand()
+         */
+        public String getCommand() {
+            return entry.command;
+        }
+        
+        @Override
+        public String toString() {
+            if (argumentBuffer == null) {
+                return entry.command;
+            } else {
+                return entry.command + " " + getArgument();
+            }
+        }
+    }
 }
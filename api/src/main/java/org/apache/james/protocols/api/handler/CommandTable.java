@@ -0,0 +1,161 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.protocols.api.handler;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Immutable table which maps command names to values and allows to lookup them directly from the raw bytes of a line without decoding
+ * them first. The lookup is case-insensitive for the US-ASCII letters.
+ * 
+ * The table is built with a perfect hash over all command names, so a lookup never needs to probe more than one slot and does not 
+ * allocate any objects. Command names which contain non US-ASCII characters are not part of the table.
+ *
+ * @param <V>
+ */
+public final class CommandTable<V> {
+
+    private final static int FNV_PRIME = 0x01000193;
+    private final static int MAX_SEEDS = 256;
+    
+    private final byte[][] names;
+    private final Object[] values;
+    private final int seed;
+    private final int mask;
+    
+    private CommandTable(byte[][] names, Object[] values, int seed) {
+        this.names = names;
+        this.values = values;
+        this.seed = seed;
+        this.mask = names.length - 1;
+    }
+    
+    /**
+     * Build a new {@link CommandTable} for the given commands
+     * 
+     * @param commands the command names and their values
+     * @return table
+     */
+    public static <V> CommandTable<V> build(Map<String, V> commands) {
+        int size = 1;
+        while (size < commands.size() * 2) {
+            size <<= 1;
+        }
+        
+        while (true) {
+            for (int seed = 0; seed < MAX_SEEDS; seed++) {
+                CommandTable<V> table = tryBuild(commands, size, seed);
+                if (table != null) {
+                    return table;
+                }
+            }
+            // no perfect hash found for this size, so try again with a bigger table
+            size <<= 1;
+        }
+    }
+    
+    private static <V> CommandTable<V> tryBuild(Map<String, V> commands, int size, int seed) {
+        byte[][] names = new byte[size][];
+        Object[] values = new Object[size];
+        Iterator<Entry<String, V>> entries = commands.entrySet().iterator();
+        while (entries.hasNext()) {
+            Entry<String, V> entry = entries.next();
+            byte[] name = toUpperCaseAscii(entry.getKey());
+            if (name == null) {
+                continue;
+            }
+            int index = hash(seed, name, 0, name.length) & (size - 1);
+            if (names[index] != null) {
+                if (Arrays.equals(names[index], name)) {
+                    throw new IllegalArgumentException("Duplicated command " + entry.getKey());
+                }
+                // collision
+                return null;
+            }
+            names[index] = name;
+            values[index] = entry.getValue();
+        }
+        return new CommandTable<V>(names, values, seed);
+    }
+    
+    private static byte[] toUpperCaseAscii(String name) {
+        byte[] bytes = new byte[name.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            char c = name.charAt(i);
+            if (c > 127) {
+                return null;
+            }
+            bytes[i] = toUpperCase((byte) c);
+        }
+        return bytes;
+    }
+    
+    private static byte toUpperCase(byte b) {
+        if (b >= 'a' && b <= 'z') {
+            return (byte) (b - ('a' - 'A'));
+        }
+        return b;
+    }
+    
+    private static int hash(int seed, byte[] name, int start, int end) {
+        int h = 0x811c9dc5 ^ seed;
+        for (int i = start; i < end; i++) {
+            h = (h ^ toUpperCase(name[i])) * FNV_PRIME;
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static int hash(int seed, ByteBuffer buffer, int start, int end) {
+        int h = 0x811c9dc5 ^ seed;
+        for (int i = start; i < end; i++) {
+            h = (h ^ toUpperCase(buffer.get(i))) * FNV_PRIME;
+        }
+        return h ^ (h >>> 16);
+    }
+    
+    /**
+     * Return the value for the command which is stored in the given {@link ByteBuffer} between <code>start</code> (inclusive) and 
+     * <code>end</code> (exclusive) or <code>null</code> if the command is not part of the table. The position of the
+     * {@link ByteBuffer} is not changed.
+     * 
+     * @param buffer
+     * @param start
+     * @param end
+     * @return value
+     */
+    @SuppressWarnings("unchecked")
+    public V get(ByteBuffer buffer, int start, int end) {
+        int index = hash(seed, buffer, start, end) & mask;
+        byte[] name = names[index];
+        if (name == null || name.length != end - start) {
+            return null;
+        }
+        for (int i = 0; i < name.length; i++) {
+            if (name[i] != toUpperCase(buffer.get(start + i))) {
+                return null;
+            }
+        }
+        return (V) values[index];
+    }
+}
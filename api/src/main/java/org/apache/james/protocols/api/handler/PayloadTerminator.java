@@ -0,0 +1,68 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.protocols.api.handler;
+
+/**
+ * Describes where the payload which is consumed by a {@link BulkLineHandler} ends
+ */
+public final class PayloadTerminator {
+
+    /**
+     * The payload is terminated by a line which only holds a <code>.</code>, like it is used by SMTP DATA
+     */
+    public final static PayloadTerminator DOT_LINE = new PayloadTerminator(-1);
+    
+    private final long length;
+
+    private PayloadTerminator(long length) {
+        this.length = length;
+    }
+    
+    /**
+     * Return a {@link PayloadTerminator} for a payload which consists of the given count of bytes
+     * 
+     * @param length
+     * @return terminator
+     */
+    public static PayloadTerminator length(long length) {
+        if (length < 0) {
+            throw new IllegalArgumentException("length must not be negative");
+        }
+        return new PayloadTerminator(length);
+    }
+    
+    /**
+     * Return <code>true</code> if the payload is terminated by a line which only holds a <code>.</code>
+     * 
+     * @return dotLine
+     */
+    public boolean isDotLine() {
+        return length == -1;
+    }
+    
+    /**
+     * Return the count of bytes of the payload or <code>-1</code> if it is terminated by a line which only holds a <code>.</code>
+     * 
+     * @return length
+     */
+    public long getLength() {
+        return length;
+    }
+}
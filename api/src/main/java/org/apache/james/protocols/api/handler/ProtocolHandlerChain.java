@@ -37,7 +37,16 @@ public interface ProtocolHandlerChain {
      * @return a List of handlers
      */
     <T> LinkedList<T> getHandlers(Class<T> type);
-    
+
+    /**
+     * Return the {@link ProtocolHandlerIndex} which holds the handlers used on every connect, disconnect and received line.
+     *
+     * The returned instance is an immutable snapshot, so it's safe to use it without any synchronization.
+     *
+     * @return index
+     */
+    ProtocolHandlerIndex getHandlerIndex();
+
     /**
      * Destroy the {@link ProtocolHandlerChain}. After this call it will not be usable anymore
      */
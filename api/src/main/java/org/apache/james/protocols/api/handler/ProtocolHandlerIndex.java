@@ -0,0 +1,130 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.protocols.api.handler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Immutable snapshot of a {@link ProtocolHandlerChain} which holds the handlers that are looked up on every connect, disconnect and
+ * received line in arrays per marker interface.
+ * 
+ * This allows the transport to access them without any locking, type checking or allocation. If the chain changes, a new
+ * {@link ProtocolHandlerIndex} needs to get compiled and published as a whole.
+ * 
+ * The returned arrays are shared and so MUST NOT get modified by the caller.
+ */
+@SuppressWarnings("rawtypes")
+public final class ProtocolHandlerIndex {
+
+    private final ConnectHandler[] connectHandlers;
+    private final DisconnectHandler[] disconnectHandlers;
+    private final LineHandler[] lineHandlers;
+    private final ProtocolHandlerResultHandler[] resultHandlers;
+    private final ProtocolHandlerResultPipeline resultPipeline;
+
+    private ProtocolHandlerIndex(List<ProtocolHandler> handlers) {
+        this.connectHandlers = filter(handlers, ConnectHandler.class, new ConnectHandler[0]);
+        this.disconnectHandlers = filter(handlers, DisconnectHandler.class, new DisconnectHandler[0]);
+        this.lineHandlers = filter(handlers, LineHandler.class, new LineHandler[0]);
+        this.resultHandlers = filter(handlers, ProtocolHandlerResultHandler.class, new ProtocolHandlerResultHandler[0]);
+        this.resultPipeline = new ProtocolHandlerResultPipeline(resultHandlers);
+    }
+
+    /**
+     * Compile a new {@link ProtocolHandlerIndex} for the given handlers. The order of the handlers is preserved.
+     * 
+     * @param handlers
+     * @return index
+     */
+    public static ProtocolHandlerIndex compile(List<ProtocolHandler> handlers) {
+        return new ProtocolHandlerIndex(handlers);
+    }
+
+    private static <T> T[] filter(List<ProtocolHandler> handlers, Class<T> type, T[] empty) {
+        List<T> result = new ArrayList<T>();
+        for (int i = 0; i < handlers.size(); i++) {
+            ProtocolHandler handler = handlers.get(i);
+            if (type.isInstance(handler)) {
+                result.add(type.cast(handler));
+            }
+        }
+        return result.toArray(empty);
+    }
+
+    /**
+     * Return all {@link ConnectHandler}'s
+     * 
+     * @return connectHandlers
+     */
+    public ConnectHandler[] getConnectHandlers() {
+        return connectHandlers;
+    }
+
+    /**
+     * Return all {@link DisconnectHandler}'s
+     * 
+     * @return disconnectHandlers
+     */
+    public DisconnectHandler[] getDisconnectHandlers() {
+        return disconnectHandlers;
+    }
+
+    /**
+     * Return all {@link LineHandler}'s
+     * 
+     * @return lineHandlers
+     */
+    public LineHandler[] getLineHandlers() {
+        return lineHandlers;
+    }
+
+    /**
+     * Return the last {@link LineHandler} of the chain, which is the one that gets called for received lines, or <code>null</code>
+     * if non is registered
+     * 
+     * @return lineHandler
+     */
+    public LineHandler getLastLineHandler() {
+        if (lineHandlers.length == 0) {
+            return null;
+        }
+        return lineHandlers[lineHandlers.length - 1];
+    }
+
+    /**
+     * Return all {@link ProtocolHandlerResultHandler}'s
+     * 
+     * @return resultHandlers
+     */
+    public ProtocolHandlerResultHandler[] getResultHandlers() {
+        return resultHandlers;
+    }
+
+    /**
+     * Return the {@link ProtocolHandlerResultPipeline} which passes a {@link org.apache.james.protocols.api.Response} through all 
+     * {@link ProtocolHandlerResultHandler}'s
+     * 
+     * @return resultPipeline
+     */
+    public ProtocolHandlerResultPipeline getResultPipeline() {
+        return resultPipeline;
+    }
+}
@@ -0,0 +1,146 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.protocols.api.handler;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.james.protocols.api.ProtocolSession;
+import org.apache.james.protocols.api.Response;
+import org.apache.james.protocols.api.future.FutureResponse;
+import org.apache.james.protocols.api.future.FutureResponse.ResponseListener;
+import org.apache.james.protocols.api.future.FutureResponseImpl;
+
+/**
+ * Passes the {@link Response} of a {@link ProtocolHandler} through a fixed list of {@link ProtocolHandlerResultHandler}'s. This is used 
+ * for the {@link ConnectHandler}'s, the {@link LineHandler}'s and the dispatched {@link CommandHandler}'s, so a {@link ProtocolHandlerResultHandler}
+ * sees all of them the same way.
+ * 
+ * If the {@link Response} is a {@link FutureResponse} which is not ready yet, the {@link ProtocolHandlerResultHandler}'s are called once it 
+ * is ready and a {@link FutureResponse} is returned which is completed with their result. In this case the execution time which is passed
+ * to the {@link ProtocolHandlerResultHandler}'s is the time until the {@link FutureResponse} was completed, not the time until the 
+ * {@link ProtocolHandler} returned.
+ * 
+ * Instances are immutable and so can be shared.
+ */
+@SuppressWarnings({ "rawtypes", "unchecked" })
+public final class ProtocolHandlerResultPipeline {
+
+    private final ProtocolHandlerResultHandler[] resultHandlers;
+
+    public ProtocolHandlerResultPipeline(ProtocolHandlerResultHandler[] resultHandlers) {
+        this.resultHandlers = resultHandlers.clone();
+    }
+
+    public ProtocolHandlerResultPipeline(List<? extends ProtocolHandlerResultHandler> resultHandlers) {
+        this.resultHandlers = resultHandlers.toArray(new ProtocolHandlerResultHandler[resultHandlers.size()]);
+    }
+
+    /**
+     * Return <code>true</code> if no {@link ProtocolHandlerResultHandler} is part of the pipeline
+     * 
+     * @return empty
+     */
+    public boolean isEmpty() {
+        return resultHandlers.length == 0;
+    }
+
+    /**
+     * Pass the {@link Response} through all {@link ProtocolHandlerResultHandler}'s and return the result
+     * 
+     * @param session
+     * @param response the {@link Response} which was returned by the handler, may be <code>null</code>
+     * @param start the value of {@link System#nanoTime()} before the handler was called
+     * @param handler the handler which returned the {@link Response}
+     * @return response
+     */
+    public Response onResponse(ProtocolSession session, Response response, long start, ProtocolHandler handler) {
+        if (response == null || resultHandlers.length == 0) {
+            return response;
+        }
+        if (isPending(response)) {
+            return new Execution(session, start, handler).await((FutureResponse) response);
+        }
+        long executionTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        for (int i = 0; i < resultHandlers.length; i++) {
+            Response r = resultHandlers[i].onResponse(session, response, executionTime, handler);
+            if (r == null) {
+                return null;
+            }
+            if (isPending(r)) {
+                // a ProtocolHandlerResultHandler replaced the response with one which is not ready yet, so continue once it is
+                Execution execution = new Execution(session, start, handler);
+                execution.index = i + 1;
+                return execution.await((FutureResponse) r);
+            }
+            response = r;
+        }
+        return response;
+    }
+
+    private static boolean isPending(Response response) {
+        return response instanceof FutureResponse && !((FutureResponse) response).isReady();
+    }
+
+    /**
+     * State of one pass through the pipeline which was suspended because of a pending {@link FutureResponse}
+     */
+    private final class Execution implements ResponseListener {
+        private final ProtocolSession session;
+        private final long start;
+        private final ProtocolHandler handler;
+        private final FutureResponseImpl future;
+        private int index = 0;
+
+        private Execution(ProtocolSession session, long start, ProtocolHandler handler) {
+            this.session = session;
+            this.start = start;
+            this.handler = handler;
+            this.future = new FutureResponseImpl(session.getLogger());
+        }
+
+        private FutureResponse await(FutureResponse pending) {
+            pending.addListener(this);
+            return future;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see org.apache.james.protocols.api.future.FutureResponse.ResponseListener#onResponse(org.apache.james.protocols.api.future.FutureResponse)
+         */
+        public void onResponse(FutureResponse completed) {
+            Response response = completed;
+            long executionTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            while (index < resultHandlers.length) {
+                Response r = resultHandlers[index++].onResponse(session, response, executionTime, handler);
+                if (r == null) {
+                    // the response can not be dropped anymore, so keep the last one
+                    break;
+                }
+                response = r;
+                if (isPending(response)) {
+                    ((FutureResponse) response).addListener(this);
+                    return;
+                }
+            }
+            future.setResponse(response);
+        }
+    }
+}
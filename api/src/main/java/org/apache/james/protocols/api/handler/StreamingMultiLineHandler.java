@@ -0,0 +1,161 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.protocols.api.handler;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.apache.james.protocols.api.AttributeKey;
+import org.apache.james.protocols.api.DeferredFileBuffer;
+import org.apache.james.protocols.api.ProtocolSession;
+import org.apache.james.protocols.api.ProtocolSession.State;
+import org.apache.james.protocols.api.Response;
+import org.apache.james.protocols.api.future.FutureResponse;
+import org.apache.james.protocols.api.future.FutureResponse.ResponseListener;
+
+/**
+ * A {@link LineHandler} which, like {@link MultiLineHandler}, collects the received lines till a point and then passes them all at once to
+ * {@link #onLines(ProtocolSession, DeferredFileBuffer)}. The lines are written to a {@link DeferredFileBuffer}, so only up to the 
+ * memory threshold is held in the heap and the rest goes to a temporary file. The data can be read while it arrives, for example from
+ * {@link #isReady(ProtocolSession, ByteBuffer, DeferredFileBuffer)}.
+ * 
+ * The total count of bytes is bounded as well. If it is exceeded the collected data is dropped and {@link #onTooLarge(ProtocolSession)}
+ * is called.
+ *
+ * @param <S>
+ */
+public abstract class StreamingMultiLineHandler<S extends ProtocolSession> implements LineHandler<S> {
+
+    public final static long UNLIMITED = -1;
+
+    private static final AttributeKey<DeferredFileBuffer> BUFFERED_DATA = AttributeKey.valueOf("STREAMING_BUFFERED_DATA");
+
+    private int memoryThreshold = DeferredFileBuffer.DEFAULT_THRESHOLD;
+    private long maxSize = UNLIMITED;
+    private File directory;
+
+    /**
+     * Set the count of bytes which are kept in memory per session before the data is moved to a temporary file
+     * 
+     * @param memoryThreshold
+     */
+    public void setMemoryThreshold(int memoryThreshold) {
+        this.memoryThreshold = memoryThreshold;
+    }
+
+    /**
+     * Set the maximal count of bytes which are collected per session or {@link #UNLIMITED}
+     * 
+     * @param maxSize
+     */
+    public void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Set the directory in which the temporary files are created. By default the temporary directory of the JVM is used
+     * 
+     * @param directory
+     */
+    public void setDirectory(File directory) {
+        this.directory = directory;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.james.protocols.api.handler.LineHandler#onLine(org.apache.james.protocols.api.ProtocolSession, java.nio.ByteBuffer)
+     */
+    public Response onLine(S session, ByteBuffer line) {
+        DeferredFileBuffer buffer = session.getAttachment(BUFFERED_DATA, State.Transaction);
+        if (buffer == null) {
+            buffer = new DeferredFileBuffer(memoryThreshold, directory);
+            session.setAttachment(BUFFERED_DATA, buffer, State.Transaction);
+        }
+        if (maxSize != UNLIMITED && buffer.getLength() + line.remaining() > maxSize) {
+            session.setAttachment(BUFFERED_DATA, null, State.Transaction);
+            buffer.close();
+            return onTooLarge(session);
+        }
+        try {
+            buffer.write(line.duplicate());
+        } catch (IOException e) {
+            session.getLogger().info("Unable to buffer received data", e);
+            session.setAttachment(BUFFERED_DATA, null, State.Transaction);
+            buffer.close();
+            return session.newFatalErrorResponse();
+        }
+        if (isReady(session, line, buffer)) {
+            session.setAttachment(BUFFERED_DATA, null, State.Transaction);
+            return dispose(onLines(session, buffer), buffer);
+        }
+        return null;
+    }
+
+    /**
+     * Close the {@link DeferredFileBuffer} once the {@link Response} is ready
+     */
+    private Response dispose(Response response, final DeferredFileBuffer buffer) {
+        if (response instanceof FutureResponse && !((FutureResponse) response).isReady()) {
+            ((FutureResponse) response).addListener(new ResponseListener() {
+
+                public void onResponse(FutureResponse response) {
+                    buffer.close();
+                }
+            });
+        } else {
+            buffer.close();
+        }
+        return response;
+    }
+
+    /**
+     * Return <code>true</code> if the collected data is ready to get passed to {@link #onLines(ProtocolSession, DeferredFileBuffer)}. The 
+     * given line was already appended to the {@link DeferredFileBuffer}.
+     * 
+     * @param session
+     * @param line
+     * @param buffer the data collected till now
+     * @return ready
+     */
+    protected abstract boolean isReady(S session, ByteBuffer line, DeferredFileBuffer buffer);
+
+    /**
+     * Handle the collected data. The {@link DeferredFileBuffer} is closed once the returned {@link Response} is ready, so it must not
+     * be used after that.
+     * 
+     * @param session
+     * @param buffer
+     * @return response
+     */
+    protected abstract Response onLines(S session, DeferredFileBuffer buffer);
+
+    /**
+     * Get called if the data exceeds the maximal size. The collected data was dropped already. This implementation pops the handler 
+     * and disconnects the client, as the rest of the data could not be told apart from the commands which follow it.
+     * 
+     * @param session
+     * @return response
+     */
+    protected Response onTooLarge(S session) {
+        session.popLineHandler();
+        return Response.DISCONNECT;
+    }
+}
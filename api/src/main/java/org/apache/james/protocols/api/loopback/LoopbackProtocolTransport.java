@@ -0,0 +1,715 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.protocols.api.loopback;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.james.protocols.api.AbstractProtocolTransport;
+import org.apache.james.protocols.api.Protocol;
+import org.apache.james.protocols.api.ProtocolSession;
+import org.apache.james.protocols.api.ProtocolSessionImpl;
+import org.apache.james.protocols.api.Response;
+import org.apache.james.protocols.api.StartTlsResponse;
+import org.apache.james.protocols.api.StreamResponse;
+import org.apache.james.protocols.api.future.FutureResponse;
+import org.apache.james.protocols.api.handler.BulkLineHandler;
+import org.apache.james.protocols.api.handler.ConnectHandler;
+import org.apache.james.protocols.api.handler.DisconnectHandler;
+import org.apache.james.protocols.api.handler.LineHandler;
+import org.apache.james.protocols.api.handler.PayloadTerminator;
+import org.apache.james.protocols.api.handler.ProtocolHandlerIndex;
+import org.apache.james.protocols.api.handler.ProtocolHandlerResultPipeline;
+import org.apache.james.protocols.api.metrics.ProtocolMetrics;
+
+/**
+ * {@link AbstractProtocolTransport} which drives a {@link Protocol} directly from the bytes passed to {@link #receive(byte[])}, without 
+ * any socket or IO-Thread involved. All {@link Response}'s are collected in memory and can be fetched via {@link #readOutput()}.
+ * 
+ * The received data is split in lines in the same way as it is done by the network transports, including the bulk mode of 
+ * {@link BulkLineHandler}'s. The lines are processed by the thread which calls {@link #receive(byte[])}. While a {@link FutureResponse} 
+ * is pending, or the transport was set to not readable, the received data is held back. It is processed once the pending 
+ * {@link FutureResponse}'s were written, by the thread which completed them, or with the next call of {@link #receive(byte[])}. Lines 
+ * are never processed by two threads at the same time, so if all hooks complete synchronously everything happens in the calling thread 
+ * and the result is fully deterministic.
+ * 
+ * The content of a {@link StreamResponse} is read directly into the collected output. 
+ * 
+ * This is useful for benchmarks and tests which should not measure the network stack, and to embed a {@link Protocol} in-process.
+ * 
+ * {@link StartTlsResponse}'s are supported if enabled via {@link #setStartTLSSupported(boolean)}, but as there is no peer to negotiate 
+ * with the transport only marks TLS as started and keeps to transfer the data in plain.
+ */
+public class LoopbackProtocolTransport extends AbstractProtocolTransport {
+
+    private final static byte LF = '\n';
+    private final static byte CR = '\r';
+    private final static byte DOT = '.';
+    
+    private final static AtomicLong IDS = new AtomicLong();
+    
+    // returned by the decoder if a too long line was discarded
+    private final static ByteBuffer TOO_LONG = ByteBuffer.allocate(0);
+    
+    private final Protocol protocol;
+    private final InetSocketAddress remoteAddress;
+    private final InetSocketAddress localAddress;
+    private final String id = Long.toString(IDS.incrementAndGet());
+    
+    private volatile ProtocolSession session;
+    private volatile boolean startTLSSupported = false;
+    private volatile boolean tlsStarted = false;
+    private volatile boolean readable = true;
+    private volatile int idleTimeout;
+    private int maxLineLength = 8192;
+    
+    // all the decoder state is guarded by the inputLock
+    private final Object inputLock = new Object();
+    private byte[] cumulation;
+    private int readerIndex;
+    private int writerIndex;
+    private PayloadTerminator terminator;
+    private long remaining;
+    private boolean discarding = false;
+    private boolean processing = false;
+    private boolean processAgain = false;
+    private boolean closed = false;
+    private boolean connected = false;
+    
+    // guarded by itself
+    private final List<LineHandler<? extends ProtocolSession>> lineHandlers = new ArrayList<LineHandler<? extends ProtocolSession>>();
+    
+    // guarded by itself
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    
+    /**
+     * Create a new {@link LoopbackProtocolTransport} which uses <code>127.0.0.1</code> as remote and local address
+     * 
+     * @param protocol
+     */
+    public LoopbackProtocolTransport(Protocol protocol) {
+        this(protocol, new InetSocketAddress("127.0.0.1", 0), new InetSocketAddress("127.0.0.1", 0));
+    }
+    
+    public LoopbackProtocolTransport(Protocol protocol, InetSocketAddress remoteAddress, InetSocketAddress localAddress) {
+        this.protocol = protocol;
+        this.remoteAddress = remoteAddress;
+        this.localAddress = localAddress;
+    }
+
+    /**
+     * Set if the transport should accept {@link StartTlsResponse}'s. Default is <code>false</code>
+     * 
+     * @param startTLSSupported
+     */
+    public void setStartTLSSupported(boolean startTLSSupported) {
+        this.startTLSSupported = startTLSSupported;
+    }
+    
+    /**
+     * Set the max length of a line. If a longer line is received it is discarded and the {@link Response} returned by 
+     * {@link ProtocolSession#newLineTooLongResponse()} is written. Default is <code>8192</code>. This must be set before any data is 
+     * received.
+     * 
+     * @param maxLineLength
+     */
+    public void setMaxLineLength(int maxLineLength) {
+        if (maxLineLength <= 0) {
+            throw new IllegalArgumentException("maxLineLength must be a positive integer: " + maxLineLength);
+        }
+        this.maxLineLength = maxLineLength;
+    }
+    
+    /**
+     * Create the {@link ProtocolSession} and call the {@link ConnectHandler}'s. This must be called once before any data is received.
+     * 
+     * @return session
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public ProtocolSession connect() {
+        synchronized (inputLock) {
+            if (connected) {
+                throw new IllegalStateException("Transport was already connected");
+            }
+            connected = true;
+        }
+        ProtocolSession session = protocol.newSession(this);
+        if (session instanceof ProtocolSessionImpl) {
+            ((ProtocolSessionImpl) session).setMetrics(protocol.getMetrics());
+        }
+        this.session = session;
+        
+        ProtocolMetrics metrics = session.getMetrics();
+        if (metrics != null) {
+            metrics.connectionOpened();
+        }
+        ProtocolHandlerIndex index = protocol.getProtocolChain().getHandlerIndex();
+        ConnectHandler[] connectHandlers = index.getConnectHandlers();
+        ProtocolHandlerResultPipeline resultPipeline = index.getResultPipeline();
+        if (connectHandlers != null) {
+            for (int i = 0; i < connectHandlers.length && !isClosed(); i++) {
+                ConnectHandler cHandler = connectHandlers[i];
+                
+                long start = System.nanoTime();
+                Response response = cHandler.onConnect(session);
+                if (metrics != null) {
+                    metrics.recordHandler(cHandler, System.nanoTime() - start);
+                }
+                response = resultPipeline.onResponse(session, response, start, cHandler);
+                if (response != null) {
+                    writeResponse(response, session);
+                }
+            }
+        }
+        return session;
+    }
+    
+    /**
+     * Return the {@link ProtocolSession} or <code>null</code> if {@link #connect()} was not called yet
+     * 
+     * @return session
+     */
+    public ProtocolSession getSession() {
+        return session;
+    }
+    
+    /**
+     * Receive the given bytes like they were sent by the remote peer. The array is not copied, so it MUST NOT be modified afterwards.
+     * 
+     * @param data
+     */
+    public void receive(byte[] data) {
+        receive(data, 0, data.length);
+    }
+    
+    /**
+     * Receive the given bytes like they were sent by the remote peer. The array is not copied, so it MUST NOT be modified afterwards.
+     * 
+     * @param data
+     * @param offset
+     * @param length
+     */
+    public void receive(byte[] data, int offset, int length) {
+        if (session == null) {
+            throw new IllegalStateException("Transport is not connected");
+        }
+        if (length > 0) {
+            ProtocolMetrics metrics = session.getMetrics();
+            if (metrics != null) {
+                metrics.bytesRead(length);
+            }
+            synchronized (inputLock) {
+                if (closed) {
+                    return;
+                }
+                if (readerIndex == writerIndex) {
+                    cumulation = data;
+                    readerIndex = offset;
+                } else {
+                    // copy the incomplete line and the new data to a new array, as we must not modify an array which was already passed
+                    // to a LineHandler
+                    byte[] buffer = new byte[writerIndex - readerIndex + length];
+                    System.arraycopy(cumulation, readerIndex, buffer, 0, writerIndex - readerIndex);
+                    System.arraycopy(data, offset, buffer, writerIndex - readerIndex, length);
+                    cumulation = buffer;
+                    length = buffer.length;
+                    readerIndex = 0;
+                    offset = 0;
+                }
+                writerIndex = offset + length;
+            }
+        }
+        processInput();
+    }
+    
+    /**
+     * Receive the remaining bytes of the given {@link ByteBuffer} like they were sent by the remote peer. If the {@link ByteBuffer} is backed
+     * by an accessible array it is not copied, so it MUST NOT be modified afterwards.
+     * 
+     * @param data
+     */
+    public void receive(ByteBuffer data) {
+        if (data.hasArray()) {
+            receive(data.array(), data.arrayOffset() + data.position(), data.remaining());
+        } else {
+            byte[] bytes = new byte[data.remaining()];
+            data.duplicate().get(bytes);
+            receive(bytes);
+        }
+        data.position(data.limit());
+    }
+    
+    /**
+     * Return the count of received bytes which were not processed yet. This includes an incomplete line and all data which is held 
+     * back while a {@link FutureResponse} is pending or the transport is not readable.
+     * 
+     * @return count
+     */
+    public int getUnprocessedCount() {
+        synchronized (inputLock) {
+            return writerIndex - readerIndex;
+        }
+    }
+    
+    /**
+     * Return all bytes which were written to the remote peer since the last call of this method
+     * 
+     * @return bytes
+     */
+    public byte[] readOutput() {
+        synchronized (output) {
+            byte[] bytes = output.toByteArray();
+            output.reset();
+            return bytes;
+        }
+    }
+
+    /**
+     * Close the connection like it was closed by the remote peer. The {@link DisconnectHandler}'s are called and all data which was not 
+     * processed yet is dropped.
+     */
+    public void disconnect() {
+        close();
+    }
+    
+    /**
+     * Return <code>true</code> if the connection was closed
+     * 
+     * @return closed
+     */
+    public boolean isClosed() {
+        synchronized (inputLock) {
+            return closed;
+        }
+    }
+    
+    /**
+     * Process the received lines till no complete line is left, the transport is not readable anymore or a {@link FutureResponse} is 
+     * pending. If another thread is processing the lines at the moment, it is told to check again and this method returns directly.
+     */
+    private void processInput() {
+        synchronized (inputLock) {
+            if (processing) {
+                processAgain = true;
+                return;
+            }
+            processing = true;
+        }
+        boolean processed = false;
+        try {
+            while (true) {
+                ByteBuffer frame = null;
+                synchronized (inputLock) {
+                    processAgain = false;
+                    if (!closed && readable && !isResponsePending()) {
+                        frame = decode();
+                    }
+                    if (frame == null && !processAgain) {
+                        processing = false;
+                        break;
+                    }
+                }
+                if (frame == TOO_LONG) {
+                    lineTooLong();
+                } else if (frame != null) {
+                    processed = true;
+                    beginBatch();
+                    onLine(frame);
+                }
+            }
+        } catch (RuntimeException e) {
+            synchronized (inputLock) {
+                processing = false;
+            }
+            exceptionCaught(e);
+        }
+        if (processed) {
+            endBatch(session);
+        }
+    }
+    
+    /**
+     * Pass the line to the pushed {@link LineHandler} or the one of the {@link Protocol}
+     * 
+     * @param line
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private void onLine(ByteBuffer line) {
+        ProtocolSession session = this.session;
+        ProtocolMetrics metrics = session.getMetrics();
+        LineHandler lHandler;
+        synchronized (lineHandlers) {
+            // like in the pipeline of the network transports the LineHandler which was pushed first gets the lines
+            lHandler = lineHandlers.isEmpty() ? null : lineHandlers.get(0);
+        }
+        long start = System.nanoTime();
+        Response response;
+        if (lHandler != null) {
+            response = lHandler.onLine(session, line);
+            if (metrics != null) {
+                metrics.recordHandler(lHandler, System.nanoTime() - start);
+            }
+        } else {
+            ProtocolHandlerIndex index = protocol.getProtocolChain().getHandlerIndex();
+            lHandler = index.getLastLineHandler();
+            if (lHandler == null) {
+                return;
+            }
+            response = lHandler.onLine(session, line);
+            response = index.getResultPipeline().onResponse(session, response, start, lHandler);
+        }
+        if (response != null) {
+            writeResponse(response, session);
+        }
+    }
+    
+    private void exceptionCaught(RuntimeException e) {
+        ProtocolSession session = this.session;
+        if (!isClosed()) {
+            Response r = session.newFatalErrorResponse();
+            if (r != null) {
+                writeResponse(r, session);
+            }
+            writeResponse(Response.DISCONNECT, session);
+        }
+        session.getLogger().debug("Unable to process request", e);
+    }
+    
+    /**
+     * Return the next frame, {@link #TOO_LONG} if a too long line was discarded or <code>null</code> if no complete frame was received 
+     * yet. Callers MUST hold the inputLock
+     * 
+     * @return frame
+     */
+    private ByteBuffer decode() {
+        if (readerIndex == writerIndex) {
+            return null;
+        }
+        if (terminator != null) {
+            if (terminator.isDotLine()) {
+                return decodeDotTerminated();
+            } else {
+                return decodeLength();
+            }
+        }
+        return decodeLine();
+    }
+    
+    private ByteBuffer decodeLength() {
+        if (remaining == 0) {
+            // an empty payload
+            terminator = null;
+            return decodeLine();
+        }
+        int length = (int) Math.min(remaining, writerIndex - readerIndex);
+        remaining -= length;
+        if (remaining == 0) {
+            terminator = null;
+        }
+        return readSlice(length);
+    }
+    
+    private ByteBuffer decodeDotTerminated() {
+        int lineStart = readerIndex;
+        while (lineStart < writerIndex) {
+            int eol = indexOf(lineStart, LF);
+            if (eol == -1) {
+                break;
+            }
+            if (eol - lineStart == 2 && cumulation[lineStart] == DOT && cumulation[lineStart + 1] == CR) {
+                if (lineStart == readerIndex) {
+                    // the terminating line, so switch back to single lines after it
+                    terminator = null;
+                    return readSlice(3);
+                }
+                // pass the terminating line on its own
+                break;
+            }
+            lineStart = eol + 1;
+        }
+        if (lineStart == readerIndex) {
+            // no complete line
+            return decodeLine();
+        }
+        return readSlice(lineStart - readerIndex);
+    }
+    
+    private ByteBuffer decodeLine() {
+        int eol = indexOf(readerIndex, LF);
+        if (eol == -1) {
+            if (writerIndex - readerIndex > maxLineLength) {
+                // discard everything till the next delimiter
+                readerIndex = writerIndex;
+                discarding = true;
+            }
+            return null;
+        }
+        
+        int length = eol - readerIndex + 1;
+        if (discarding) {
+            readerIndex += length;
+            discarding = false;
+            return TOO_LONG;
+        }
+        
+        int contentLength = length - 1;
+        if (contentLength > 0 && cumulation[eol - 1] == CR) {
+            contentLength--;
+        }
+        if (contentLength > maxLineLength) {
+            readerIndex += length;
+            return TOO_LONG;
+        }
+        return readSlice(length);
+    }
+    
+    private void lineTooLong() {
+        Response r = session.newLineTooLongResponse();
+        if (r != null) {
+            writeResponse(r, session);
+        }
+    }
+    
+    private int indexOf(int from, byte b) {
+        for (int i = from; i < writerIndex; i++) {
+            if (cumulation[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    private ByteBuffer readSlice(int length) {
+        ByteBuffer frame = ByteBuffer.wrap(cumulation, readerIndex, length).slice().asReadOnlyBuffer();
+        readerIndex += length;
+        return frame;
+    }
+    
+    /**
+     * Process the lines which were held back while a {@link FutureResponse} was pending
+     */
+    @Override
+    protected void onResponsesWritten(ProtocolSession session) {
+        processInput();
+    }
+    
+    @Override
+    protected void writeToClient(byte[] bytes, ProtocolSession session, boolean startTLS) {
+        write(bytes, 0, bytes.length);
+        if (startTLS) {
+            tlsStarted = true;
+        }
+    }
+
+    /**
+     * Write all given <code>byte</code> arrays without merging them first
+     */
+    @Override
+    protected void writeToClient(List<byte[]> bytes, ProtocolSession session) {
+        for (int i = 0; i < bytes.size(); i++) {
+            byte[] b = bytes.get(i);
+            write(b, 0, b.length);
+        }
+    }
+    
+    @Override
+    protected void writeToClient(InputStream in, ProtocolSession session, boolean startTLS) {
+        try {
+            byte[] buf = new byte[8192];
+            int i;
+            while ((i = in.read(buf)) != -1) {
+                write(buf, 0, i);
+            }
+        } catch (IOException e) {
+            session.getLogger().debug("Unable to write stream", e);
+            close();
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // ignore on close
+            }
+        }
+        if (startTLS) {
+            tlsStarted = true;
+        }
+    }
+    
+    private void write(byte[] bytes, int offset, int length) {
+        synchronized (output) {
+            output.write(bytes, offset, length);
+        }
+        ProtocolSession session = this.session;
+        if (session != null && session.getMetrics() != null) {
+            session.getMetrics().bytesWritten(length);
+        }
+    }
+
+    /**
+     * Call the {@link DisconnectHandler}'s and reset the state of the {@link ProtocolSession}. All data which was not processed yet is 
+     * dropped.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    @Override
+    protected void close() {
+        synchronized (inputLock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            cumulation = null;
+            readerIndex = 0;
+            writerIndex = 0;
+        }
+        ProtocolSession session = this.session;
+        if (session != null) {
+            DisconnectHandler[] disconnectHandlers = protocol.getProtocolChain().getHandlerIndex().getDisconnectHandlers();
+            if (disconnectHandlers != null) {
+                for (int i = 0; i < disconnectHandlers.length; i++) {
+                    disconnectHandlers[i].onDisconnect(session);
+                }
+            }
+            if (session.getMetrics() != null) {
+                session.getMetrics().connectionClosed();
+            }
+            session.resetState();
+        }
+    }
+
+    /**
+     * @see org.apache.james.protocols.api.ProtocolTransport#getRemoteAddress()
+     */
+    public InetSocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    /**
+     * @see org.apache.james.protocols.api.ProtocolTransport#getLocalAddress()
+     */
+    public InetSocketAddress getLocalAddress() {
+        return localAddress;
+    }
+
+    /**
+     * @see org.apache.james.protocols.api.ProtocolTransport#getId()
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @see org.apache.james.protocols.api.ProtocolTransport#isTLSStarted()
+     */
+    public boolean isTLSStarted() {
+        return tlsStarted;
+    }
+
+    /**
+     * @see org.apache.james.protocols.api.ProtocolTransport#isStartTLSSupported()
+     */
+    public boolean isStartTLSSupported() {
+        return startTLSSupported;
+    }
+
+    /**
+     * @see org.apache.james.protocols.api.ProtocolTransport#popLineHandler()
+     */
+    public void popLineHandler() {
+        LineHandler<? extends ProtocolSession> handler = null;
+        synchronized (lineHandlers) {
+            if (!lineHandlers.isEmpty()) {
+                handler = lineHandlers.remove(lineHandlers.size() - 1);
+            }
+        }
+        if (handler instanceof BulkLineHandler) {
+            setPayloadTerminator(null);
+        }
+    }
+
+    /**
+     * @see org.apache.james.protocols.api.ProtocolTransport#pushLineHandler(org.apache.james.protocols.api.handler.LineHandler, org.apache.james.protocols.api.ProtocolSession)
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public void pushLineHandler(LineHandler<? extends ProtocolSession> overrideCommandHandler, ProtocolSession session) {
+        synchronized (lineHandlers) {
+            lineHandlers.add(overrideCommandHandler);
+        }
+        if (overrideCommandHandler instanceof BulkLineHandler) {
+            setPayloadTerminator(((BulkLineHandler) overrideCommandHandler).getPayloadTerminator(session));
+        }
+    }
+    
+    private void setPayloadTerminator(PayloadTerminator terminator) {
+        synchronized (inputLock) {
+            this.terminator = terminator;
+            if (terminator != null) {
+                remaining = terminator.getLength();
+            }
+        }
+    }
+
+    /**
+     * @see org.apache.james.protocols.api.ProtocolTransport#getPushedLineHandlerCount()
+     */
+    public int getPushedLineHandlerCount() {
+        synchronized (lineHandlers) {
+            return lineHandlers.size();
+        }
+    }
+
+    /**
+     * Set the transport readable or not. Data which was held back is processed with the next call of {@link #receive(byte[])} or once
+     * pending {@link FutureResponse}'s were written.
+     * 
+     * @see org.apache.james.protocols.api.ProtocolTransport#setReadable(boolean)
+     */
+    public void setReadable(boolean readable) {
+        this.readable = readable;
+    }
+
+    /**
+     * @see org.apache.james.protocols.api.ProtocolTransport#isReadable()
+     */
+    public boolean isReadable() {
+        return readable;
+    }
+
+    /**
+     * The timeout is only stored, as there is no IO which could time out
+     * 
+     * @see org.apache.james.protocols.api.ProtocolTransport#setIdleTimeout(int)
+     */
+    public void setIdleTimeout(int timeout) {
+        this.idleTimeout = timeout;
+    }
+
+    /**
+     * @see org.apache.james.protocols.api.ProtocolTransport#getIdleTimeout()
+     */
+    public int getIdleTimeout() {
+        return idleTimeout;
+    }
+}
@@ -0,0 +1,153 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.protocols.api.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies in nanoseconds. 
+ * 
+ * The values are counted in log-linear buckets like a HDR histogram: every power of two is split into 16 buckets, so a value is 
+ * reported with a relative error of at most 1/16. Recording a value only needs a few shift operations and two atomic increments, 
+ * so it is cheap enough to be always enabled. The read methods don't block the writers, so their results may be slightly off while 
+ * values are recorded concurrently.
+ */
+public class LatencyHistogram {
+
+    private final static int SUB_BUCKET_BITS = 4;
+    private final static int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private final static int SUB_BUCKET_MASK = SUB_BUCKET_COUNT - 1;
+    private final static int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record the given latency
+     * 
+     * @param nanos the latency in nanoseconds. Negative values are recorded as 0
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        buckets.incrementAndGet(indexOf(nanos));
+        sum.addAndGet(nanos);
+        long currentMax = max.get();
+        while (nanos > currentMax && !max.compareAndSet(currentMax, nanos)) {
+            currentMax = max.get();
+        }
+    }
+
+    /**
+     * Return the count of recorded values
+     * 
+     * @return count
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += buckets.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * Return the mean of all recorded values in nanoseconds
+     * 
+     * @return mean or 0 if no value was recorded yet
+     */
+    public double getMean() {
+        long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        return (double) sum.get() / count;
+    }
+
+    /**
+     * Return the highest recorded value in nanoseconds
+     * 
+     * @return max
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Return the value in nanoseconds below which the given percentage of the recorded values fall
+     * 
+     * @param percentile the percentile between 0 and 100
+     * @return value or 0 if no value was recorded yet
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 100");
+        }
+        long[] counts = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return Math.min(highestValueOf(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Clear all recorded values
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets.set(i, 0);
+        }
+        sum.set(0);
+        max.set(0);
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int highestBit = 63 - Long.numberOfLeadingZeros(value);
+        int shift = highestBit - SUB_BUCKET_BITS;
+        return ((shift + 1) << SUB_BUCKET_BITS) | (int) ((value >>> shift) & SUB_BUCKET_MASK);
+    }
+
+    static long highestValueOf(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index >>> SUB_BUCKET_BITS) - 1;
+        long lowest = ((long) (SUB_BUCKET_COUNT | (index & SUB_BUCKET_MASK))) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,212 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.protocols.api.metrics;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.james.protocols.api.Protocol;
+
+/**
+ * Counters and {@link LatencyHistogram}'s of a {@link Protocol}. One instance is shared by all sessions of the {@link Protocol}, and 
+ * all methods are thread-safe and lock-free.
+ * 
+ * The latencies are recorded per command and per handler class (for example per hook). The instance can be registered at an 
+ * MBeanServer as it implements {@link ProtocolMetricsMBean}.
+ */
+public class ProtocolMetrics implements ProtocolMetricsMBean {
+
+    private final AtomicLong connections = new AtomicLong();
+    private final AtomicLong closedConnections = new AtomicLong();
+    private final AtomicLong rejectedConnections = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong responses = new AtomicLong();
+
+    private final ConcurrentMap<String, LatencyHistogram> commandLatencies = new ConcurrentHashMap<String, LatencyHistogram>();
+    private final ConcurrentMap<Class<?>, LatencyHistogram> handlerLatencies = new ConcurrentHashMap<Class<?>, LatencyHistogram>();
+
+    public void connectionOpened() {
+        connections.incrementAndGet();
+    }
+
+    public void connectionClosed() {
+        closedConnections.incrementAndGet();
+    }
+
+    public void connectionRejected() {
+        rejectedConnections.incrementAndGet();
+    }
+
+    public void bytesRead(long bytes) {
+        bytesIn.addAndGet(bytes);
+    }
+
+    public void bytesWritten(long bytes) {
+        bytesOut.addAndGet(bytes);
+    }
+
+    public void responseWritten() {
+        responses.incrementAndGet();
+    }
+
+    /**
+     * Record the latency of the given command. A {@link LatencyHistogram} is kept for every command name, so only names out of a 
+     * bounded set should be given and never the raw command which was sent by the client.
+     * 
+     * @param command
+     * @param nanos the latency in nanoseconds
+     */
+    public void recordCommand(String command, long nanos) {
+        getCommandLatency(command).record(nanos);
+    }
+
+    /**
+     * Record the latency of the given handler or hook
+     * 
+     * @param handler
+     * @param nanos the latency in nanoseconds
+     */
+    public void recordHandler(Object handler, long nanos) {
+        getHandlerLatency(handler.getClass()).record(nanos);
+    }
+
+    /**
+     * Return the {@link LatencyHistogram} of the given command. 
+     * 
+     * @param command
+     * @return histogram
+     */
+    public LatencyHistogram getCommandLatency(String command) {
+        LatencyHistogram histogram = commandLatencies.get(command);
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            LatencyHistogram old = commandLatencies.putIfAbsent(command, histogram);
+            if (old != null) {
+                histogram = old;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Return the {@link LatencyHistogram} of the given handler class
+     * 
+     * @param handlerClass
+     * @return histogram
+     */
+    public LatencyHistogram getHandlerLatency(Class<?> handlerClass) {
+        LatencyHistogram histogram = handlerLatencies.get(handlerClass);
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            LatencyHistogram old = handlerLatencies.putIfAbsent(handlerClass, histogram);
+            if (old != null) {
+                histogram = old;
+            }
+        }
+        return histogram;
+    }
+
+    public long getConnectionCount() {
+        return connections.get();
+    }
+
+    public long getActiveConnectionCount() {
+        return connections.get() - closedConnections.get();
+    }
+
+    public long getRejectedConnectionCount() {
+        return rejectedConnections.get();
+    }
+
+    public long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    public long getResponseCount() {
+        return responses.get();
+    }
+
+    public String[] getCommandNames() {
+        Set<String> names = new TreeSet<String>(commandLatencies.keySet());
+        return names.toArray(new String[names.size()]);
+    }
+
+    public String[] getHandlerNames() {
+        Set<String> names = new TreeSet<String>();
+        Iterator<Class<?>> classes = handlerLatencies.keySet().iterator();
+        while (classes.hasNext()) {
+            names.add(classes.next().getName());
+        }
+        return names.toArray(new String[names.size()]);
+    }
+
+    public long getExecutionCount(String name) {
+        LatencyHistogram histogram = findLatency(name);
+        return histogram == null ? 0 : histogram.getCount();
+    }
+
+    public double getMeanLatency(String name) {
+        LatencyHistogram histogram = findLatency(name);
+        return histogram == null ? 0 : histogram.getMean() / 1000;
+    }
+
+    public double getLatencyAtPercentile(String name, double percentile) {
+        LatencyHistogram histogram = findLatency(name);
+        return histogram == null ? 0 : histogram.getValueAtPercentile(percentile) / 1000d;
+    }
+
+    /**
+     * Reset all counters and latencies. The count of active connections is kept
+     */
+    public void reset() {
+        long active = getActiveConnectionCount();
+        connections.set(active);
+        closedConnections.set(0);
+        rejectedConnections.set(0);
+        bytesIn.set(0);
+        bytesOut.set(0);
+        responses.set(0);
+        commandLatencies.clear();
+        handlerLatencies.clear();
+    }
+
+    private LatencyHistogram findLatency(String name) {
+        LatencyHistogram histogram = commandLatencies.get(name);
+        if (histogram == null) {
+            Iterator<Map.Entry<Class<?>, LatencyHistogram>> entries = handlerLatencies.entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry<Class<?>, LatencyHistogram> entry = entries.next();
+                if (entry.getKey().getName().equals(name)) {
+                    return entry.getValue();
+                }
+            }
+        }
+        return histogram;
+    }
+}
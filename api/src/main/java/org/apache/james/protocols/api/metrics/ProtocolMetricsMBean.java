@@ -0,0 +1,111 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.protocols.api.metrics;
+
+/**
+ * Management interface which exposes the {@link ProtocolMetrics} of a protocol through JMX
+ */
+public interface ProtocolMetricsMBean {
+
+    /**
+     * Return the count of connections which were established
+     * 
+     * @return count
+     */
+    long getConnectionCount();
+
+    /**
+     * Return the count of connections which are open at the moment
+     * 
+     * @return count
+     */
+    long getActiveConnectionCount();
+
+    /**
+     * Return the count of connections which were rejected because they exceeded a limit
+     * 
+     * @return count
+     */
+    long getRejectedConnectionCount();
+
+    /**
+     * Return the count of bytes which were received from clients
+     * 
+     * @return count
+     */
+    long getBytesIn();
+
+    /**
+     * Return the count of bytes which were written to clients
+     * 
+     * @return count
+     */
+    long getBytesOut();
+
+    /**
+     * Return the count of responses which were written to clients
+     * 
+     * @return count
+     */
+    long getResponseCount();
+
+    /**
+     * Return the names of the commands for which latencies were recorded
+     * 
+     * @return names
+     */
+    String[] getCommandNames();
+
+    /**
+     * Return the class names of the handlers and hooks for which latencies were recorded
+     * 
+     * @return names
+     */
+    String[] getHandlerNames();
+
+    /**
+     * Return the count of executions of the given command or handler
+     * 
+     * @param name the command name or the class name of the handler
+     * @return count
+     */
+    long getExecutionCount(String name);
+
+    /**
+     * Return the mean latency in microseconds of the given command or handler
+     * 
+     * @param name the command name or the class name of the handler
+     * @return mean
+     */
+    double getMeanLatency(String name);
+
+    /**
+     * Return the latency in microseconds below which the given percentage of the executions of the given command or handler fall
+     * 
+     * @param name the command name or the class name of the handler
+     * @param percentile the percentile between 0 and 100
+     * @return latency
+     */
+    double getLatencyAtPercentile(String name, double percentile);
+
+    /**
+     * Clear all counters and latencies
+     */
+    void reset();
+}
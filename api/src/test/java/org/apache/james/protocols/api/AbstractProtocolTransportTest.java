@@ -104,6 +104,107 @@ public class AbstractProtocolTransportTest {
         checkWrittenResponses(messages);
     }
     
+    @Test
+    public void testWriteAggregation() throws UnsupportedEncodingException {
+        final List<byte[]> writtenMessages = new ArrayList<byte[]>();
+        AbstractProtocolTransport transport = new TestTransport(writtenMessages, new CountDownLatch(0));
+        transport.setWriteAggregation(true);
+        
+        transport.beginBatch();
+        Response r1 = new TestResponse();
+        Response r2 = new TestResponse();
+        transport.writeResponse(r1, null);
+        transport.writeResponse(r2, null);
+        assertEquals(0, writtenMessages.size());
+
+        transport.endBatch(null);
+        assertEquals(1, writtenMessages.size());
+        assertEquals(1, transport.getFlushCount());
+        assertEquals(2, transport.getFlushedResponseCount());
+        
+        String written = new String(writtenMessages.get(0), US_ASCII);
+        assertEquals(r1.getLines().get(0) + "\r\n" + r2.getLines().get(0) + "\r\n", written);
+        
+        // not in a batch so it should get written directly
+        transport.writeResponse(new TestResponse(), null);
+        assertEquals(2, writtenMessages.size());
+        assertEquals(1, transport.getFlushCount());
+    }
+    
+    @Test
+    public void testWriteAggregationFlushOnFutureResponse() throws UnsupportedEncodingException {
+        final List<byte[]> writtenMessages = new ArrayList<byte[]>();
+        AbstractProtocolTransport transport = new TestTransport(writtenMessages, new CountDownLatch(0));
+        transport.setWriteAggregation(true);
+        
+        transport.beginBatch();
+        transport.writeResponse(new TestResponse(), null);
+        FutureResponseImpl future = new FutureResponseImpl();
+        transport.writeResponse(future, null);
+        
+        // the response before the FutureResponse must not wait for the end of the batch
+        assertEquals(1, writtenMessages.size());
+        
+        future.setResponse(new TestResponse());
+        transport.endBatch(null);
+        assertEquals(2, writtenMessages.size());
+    }
+    
+    @Test
+    public void testResponseQueueWatermarks() {
+        final List<byte[]> writtenMessages = new ArrayList<byte[]>();
+        AbstractProtocolTransport transport = new TestTransport(writtenMessages, new CountDownLatch(0));
+        ResponseQueueWatermarks watermarks = new ResponseQueueWatermarks(1, 3, 0, 1024);
+        transport.setResponseQueueWatermarks(watermarks);
+        
+        FutureResponseImpl future = new FutureResponseImpl();
+        transport.writeResponse(future, null);
+        transport.writeResponse(new TestResponse(), null);
+        assertTrue(transport.isReadable());
+        assertEquals(2, transport.getQueuedResponseCount());
+        
+        transport.writeResponse(new TestResponse(), null);
+        assertFalse(transport.isReadable());
+        assertTrue(transport.isReadSuspended());
+        assertEquals(3, watermarks.getQueuedResponses());
+        assertEquals(1, watermarks.getSuspendCount());
+        
+        future.setResponse(new TestResponse());
+        assertEquals(3, writtenMessages.size());
+        assertTrue(transport.isReadable());
+        assertFalse(transport.isReadSuspended());
+        assertEquals(0, transport.getQueuedResponseCount());
+        assertEquals(0, watermarks.getQueuedResponses());
+    }
+    
+    @Test
+    public void testResponseQueueByteWatermarks() {
+        final List<byte[]> writtenMessages = new ArrayList<byte[]>();
+        AbstractProtocolTransport transport = new TestTransport(writtenMessages, new CountDownLatch(0));
+        ResponseQueueWatermarks watermarks = new ResponseQueueWatermarks(10, 100, 0, 64);
+        transport.setResponseQueueWatermarks(watermarks);
+        transport.setWriteAggregation(true);
+        
+        transport.beginBatch();
+        transport.writeResponse(new TestResponse(), null);
+        assertTrue(transport.isReadable());
+        assertEquals(38, transport.getQueuedBytes());
+        
+        transport.writeResponse(new TestResponse(), null);
+        assertFalse(transport.isReadable());
+        assertEquals(76, watermarks.getQueuedBytes());
+        
+        transport.endBatch(null);
+        assertTrue(transport.isReadable());
+        assertEquals(0, transport.getQueuedBytes());
+        assertEquals(0, watermarks.getQueuedBytes());
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testResponseQueueWatermarksInvalid() {
+        new ResponseQueueWatermarks(10, 10, 0, 64);
+    }
+    
     private void notifyFutureResponses(final List<Response> messages, final boolean reverse) {
         new Thread(new Runnable() {
             
@@ -134,62 +235,7 @@ public class AbstractProtocolTransportTest {
 
         final CountDownLatch latch = new CountDownLatch(messages.size());
 
-        AbstractProtocolTransport transport = new AbstractProtocolTransport() {
-
-            public void setReadable(boolean readable) {
-                throw new UnsupportedOperationException();
-            }
-
-            
-            public void popLineHandler() {
-                throw new UnsupportedOperationException();
-            }
-            
-            public boolean isTLSStarted() {
-                throw new UnsupportedOperationException();
-            }
-            
-            public boolean isStartTLSSupported() {
-                throw new UnsupportedOperationException();
-            }
-            
-            public boolean isReadable() {
-                throw new UnsupportedOperationException();
-            }
-            
-            public InetSocketAddress getRemoteAddress() {
-                throw new UnsupportedOperationException();
-            }
-            
-            public int getPushedLineHandlerCount() {
-                throw new UnsupportedOperationException();
-            }
-            
-            public InetSocketAddress getLocalAddress() {
-                throw new UnsupportedOperationException();
-            }
-            
-            public String getId() {
-                throw new UnsupportedOperationException();
-            }
-            
-            protected void writeToClient(InputStream in, ProtocolSession session, boolean startTLS) {
-                throw new UnsupportedOperationException();
-            }
-            
-            protected void writeToClient(byte[] bytes, ProtocolSession session, boolean startTLS) {
-                writtenMessages.add(bytes);
-                latch.countDown();
-            }
-            
-            protected void close() {
-                throw new UnsupportedOperationException();
-            }
-
-            public void pushLineHandler(LineHandler<? extends ProtocolSession> overrideCommandHandler, ProtocolSession session) {
-                throw new UnsupportedOperationException();                
-            }
-        };
+        AbstractProtocolTransport transport = new TestTransport(writtenMessages, latch);
         for (Response message: messages) {
             transport.writeResponse(message, null);
         }
@@ -210,6 +256,80 @@ public class AbstractProtocolTransportTest {
         }
     }
     
+    private final static class TestTransport extends AbstractProtocolTransport {
+
+        private final List<byte[]> writtenMessages;
+        private final CountDownLatch latch;
+        private volatile boolean readable = true;
+
+        public TestTransport(List<byte[]> writtenMessages, CountDownLatch latch) {
+            this.writtenMessages = writtenMessages;
+            this.latch = latch;
+        }
+
+        public void setReadable(boolean readable) {
+            this.readable = readable;
+        }
+
+        
+        public void popLineHandler() {
+            throw new UnsupportedOperationException();
+        }
+        
+        public boolean isTLSStarted() {
+            throw new UnsupportedOperationException();
+        }
+        
+        public boolean isStartTLSSupported() {
+            throw new UnsupportedOperationException();
+        }
+        
+        public boolean isReadable() {
+            return readable;
+        }
+        
+        public void setIdleTimeout(int timeout) {
+            throw new UnsupportedOperationException();
+        }
+        
+        public int getIdleTimeout() {
+            throw new UnsupportedOperationException();
+        }
+        
+        public InetSocketAddress getRemoteAddress() {
+            throw new UnsupportedOperationException();
+        }
+        
+        public int getPushedLineHandlerCount() {
+            throw new UnsupportedOperationException();
+        }
+        
+        public InetSocketAddress getLocalAddress() {
+            throw new UnsupportedOperationException();
+        }
+        
+        public String getId() {
+            throw new UnsupportedOperationException();
+        }
+        
+        protected void writeToClient(InputStream in, ProtocolSession session, boolean startTLS) {
+            throw new UnsupportedOperationException();
+        }
+        
+        protected void writeToClient(byte[] bytes, ProtocolSession session, boolean startTLS) {
+            writtenMessages.add(bytes);
+            latch.countDown();
+        }
+        
+        protected void close() {
+            throw new UnsupportedOperationException();
+        }
+
+        public void pushLineHandler(LineHandler<? extends ProtocolSession> overrideCommandHandler, ProtocolSession session) {
+            throw new UnsupportedOperationException();                
+        }
+    }
+    
     private final static class TestResponse implements Response {
 
         private String msg;
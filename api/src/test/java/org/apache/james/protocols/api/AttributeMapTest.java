@@ -0,0 +1,109 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.protocols.api;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.junit.Test;
+
+import static junit.framework.Assert.*;
+
+public class AttributeMapTest {
+
+    private final static AttributeKey<String> KEY = AttributeKey.valueOf("AttributeMapTest.KEY");
+    private final static AttributeKey<Long> OTHER_KEY = AttributeKey.valueOf("AttributeMapTest.OTHER_KEY");
+
+    @Test
+    public void testValueOfReturnsRegisteredKey() {
+        AttributeKey<String> key = AttributeKey.valueOf("AttributeMapTest.KEY");
+        assertSame(KEY, key);
+        assertNotSame(KEY.getSlot(), OTHER_KEY.getSlot());
+        assertTrue(AttributeKey.getSlotCount() > OTHER_KEY.getSlot());
+    }
+
+    @Test
+    public void testTypedAndStringKeysShareSlot() {
+        AttributeMap map = new AttributeMap();
+        assertNull(map.set(KEY, "value"));
+        assertEquals("value", map.get(KEY.getName()));
+        assertEquals("value", map.put(KEY.getName(), "other"));
+        assertEquals("other", map.get(KEY));
+        assertTrue(map.containsKey(KEY.getName()));
+        assertEquals(1, map.size());
+
+        // null removes the value
+        assertEquals("other", map.set(KEY, null));
+        assertFalse(map.containsKey(KEY.getName()));
+        assertEquals(0, map.size());
+    }
+
+    @Test
+    public void testUnregisteredKeys() {
+        AttributeMap map = new AttributeMap();
+        map.put("AttributeMapTest.UNREGISTERED", "value");
+        map.set(OTHER_KEY, 1L);
+        assertEquals("value", map.get("AttributeMapTest.UNREGISTERED"));
+        assertEquals(2, map.size());
+
+        Map<String, Object> expected = new HashMap<String, Object>();
+        expected.put("AttributeMapTest.UNREGISTERED", "value");
+        expected.put(OTHER_KEY.getName(), 1L);
+        assertEquals(expected, new HashMap<String, Object>(map));
+
+        // lookups must not register a key
+        int slots = AttributeKey.getSlotCount();
+        assertNull(map.get("AttributeMapTest.MISSING"));
+        assertEquals(slots, AttributeKey.getSlotCount());
+    }
+
+    @Test
+    public void testIteratorRemove() {
+        AttributeMap map = new AttributeMap();
+        map.set(KEY, "value");
+        map.put("AttributeMapTest.UNREGISTERED", "value");
+
+        Iterator<Map.Entry<String, Object>> it = map.entrySet().iterator();
+        while (it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+        assertTrue(map.isEmpty());
+        assertNull(map.get(KEY));
+    }
+
+    @Test
+    public void testClearKeepsSlots() {
+        AttributeMap map = new AttributeMap();
+        assertEquals(0, map.getFootprint());
+
+        map.set(KEY, "value");
+        long footprint = map.getFootprint();
+        assertTrue(footprint > 0);
+
+        map.clear();
+        assertNull(map.get(KEY));
+        assertEquals(footprint, map.getFootprint());
+
+        map.put("AttributeMapTest.UNREGISTERED", "value");
+        assertTrue(map.getFootprint() > footprint);
+    }
+}
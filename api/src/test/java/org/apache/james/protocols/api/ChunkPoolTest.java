@@ -0,0 +1,67 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.protocols.api;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import static junit.framework.Assert.*;
+
+public class ChunkPoolTest {
+
+    @Test
+    public void testReuse() {
+        ChunkPool pool = new ChunkPool(1024, 1, false);
+        ByteBuffer chunk1 = pool.acquire();
+        ByteBuffer chunk2 = pool.acquire();
+        assertEquals(1024, chunk1.capacity());
+        assertEquals(2, pool.getAcquiredCount());
+        assertEquals(2, pool.getAllocatedCount());
+        
+        chunk1.put((byte) 1);
+        pool.release(chunk1);
+        // only one chunk is kept
+        pool.release(chunk2);
+        assertEquals(0, pool.getAcquiredCount());
+        assertEquals(1, pool.getPooledCount());
+        
+        ByteBuffer chunk3 = pool.acquire();
+        assertSame(chunk1, chunk3);
+        assertEquals(0, chunk3.position());
+        assertEquals(1024, chunk3.remaining());
+        assertEquals(0, pool.getPooledCount());
+        assertEquals(2, pool.getAllocatedCount());
+    }
+
+    @Test
+    public void testDirect() {
+        ChunkPool pool = new ChunkPool(1024, 0, true);
+        ByteBuffer chunk = pool.acquire();
+        assertTrue(chunk.isDirect());
+        pool.release(chunk);
+        assertEquals(0, pool.getPooledCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReleaseForeignChunk() {
+        new ChunkPool(1024, 1, false).release(ByteBuffer.allocate(512));
+    }
+}
@@ -0,0 +1,177 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.protocols.api;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import static junit.framework.Assert.*;
+
+public class DeferredFileBufferTest {
+
+    private final static String US_ASCII = "US-ASCII";
+
+    @Test
+    public void testInMemory() throws IOException {
+        DeferredFileBuffer buffer = new DeferredFileBuffer(1024);
+        try {
+            buffer.write(ByteBuffer.wrap("line1\r\n".getBytes(US_ASCII)));
+            buffer.write("line2\r\n".getBytes(US_ASCII), 0, 7);
+            assertTrue(buffer.isInMemory());
+            assertNull(buffer.getFile());
+            assertEquals(14, buffer.getLength());
+            assertEquals("line1\r\nline2\r\n", read(buffer.getInputStream()));
+            
+            // can be read more than once
+            assertEquals("line1\r\nline2\r\n", read(buffer.getInputStream()));
+        } finally {
+            buffer.close();
+        }
+    }
+
+    @Test
+    public void testSpillToFile() throws IOException {
+        DeferredFileBuffer buffer = new DeferredFileBuffer(16);
+        StringBuilder expected = new StringBuilder();
+        try {
+            // write more than one chunk to test the chunk boundaries
+            for (int i = 0; i < 2000; i++) {
+                String line = "line" + i + "\r\n";
+                expected.append(line);
+                buffer.write(ByteBuffer.wrap(line.getBytes(US_ASCII)));
+            }
+            assertFalse(buffer.isInMemory());
+            assertEquals(0, buffer.getMemoryUsage());
+            File file = buffer.getFile();
+            assertTrue(file.exists());
+            assertEquals(expected.length(), file.length());
+            assertEquals(expected.toString(), read(buffer.getInputStream()));
+
+            buffer.close();
+            assertFalse(file.exists());
+        } finally {
+            buffer.close();
+        }
+    }
+
+    @Test
+    public void testReadWhileWriting() throws IOException {
+        DeferredFileBuffer buffer = new DeferredFileBuffer(10000);
+        try {
+            InputStream in = buffer.getInputStream();
+            buffer.write(ByteBuffer.wrap("first".getBytes(US_ASCII)));
+            byte[] b = new byte[20];
+            assertEquals(5, in.read(b));
+            assertEquals(-1, in.read(b));
+
+            buffer.write(ByteBuffer.wrap("second".getBytes(US_ASCII)));
+            assertEquals(6, in.read(b));
+            assertEquals("second", new String(b, 0, 6, US_ASCII));
+        } finally {
+            buffer.close();
+        }
+    }
+
+    @Test
+    public void testReadOnlyBuffers() throws IOException {
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            expected.append("line").append(i).append("\r\n");
+        }
+        byte[] data = expected.toString().getBytes(US_ASCII);
+        
+        for (int threshold: new int[] {data.length, 0}) {
+            DeferredFileBuffer buffer = new DeferredFileBuffer(threshold);
+            try {
+                buffer.write(data, 0, data.length);
+                assertEquals(threshold > 0, buffer.isInMemory());
+                
+                ByteBuffer[] buffers = buffer.getReadOnlyBuffers();
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                for (int i = 0; i < buffers.length; i++) {
+                    assertTrue(buffers[i].isReadOnly());
+                    byte[] b = new byte[buffers[i].remaining()];
+                    buffers[i].get(b);
+                    out.write(b);
+                }
+                assertEquals(expected.toString(), new String(out.toByteArray(), US_ASCII));
+            } finally {
+                buffer.close();
+            }
+        }
+    }
+
+    @Test
+    public void testChunksReleased() throws IOException {
+        ChunkPool pool = new ChunkPool(16, 10, true);
+        DeferredFileBuffer buffer = new DeferredFileBuffer(100, null, pool);
+        try {
+            buffer.write(ByteBuffer.wrap("0123456789012345678901234567890123456789".getBytes(US_ASCII)));
+            assertEquals(3, pool.getAcquiredCount());
+            assertEquals(48, buffer.getMemoryUsage());
+            assertEquals("0123456789012345678901234567890123456789", read(buffer.getInputStream()));
+        } finally {
+            buffer.close();
+        }
+        assertEquals(0, pool.getAcquiredCount());
+        assertEquals(3, pool.getPooledCount());
+        
+        // chunks are also released when the data is moved to the file
+        buffer = new DeferredFileBuffer(20, null, pool);
+        try {
+            buffer.write(ByteBuffer.wrap("0123456789".getBytes(US_ASCII)));
+            assertEquals(1, pool.getAcquiredCount());
+            buffer.write(ByteBuffer.wrap("0123456789012345678901234567890123456789".getBytes(US_ASCII)));
+            assertEquals(0, pool.getAcquiredCount());
+            assertFalse(buffer.isInMemory());
+        } finally {
+            buffer.close();
+        }
+    }
+
+    @Test
+    public void testClosedOnReset() throws IOException {
+        AttributeMap map = new AttributeMap();
+        DeferredFileBuffer buffer = new DeferredFileBuffer(0);
+        buffer.write(ByteBuffer.wrap("data".getBytes(US_ASCII)));
+        File file = buffer.getFile();
+        map.put("DeferredFileBufferTest.BUFFER", buffer);
+        assertTrue(file.exists());
+
+        map.reset();
+        assertFalse(file.exists());
+        assertTrue(map.isEmpty());
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[100];
+        int i;
+        while ((i = in.read(buf)) != -1) {
+            out.write(buf, 0, i);
+        }
+        return new String(out.toByteArray(), US_ASCII);
+    }
+}
@@ -0,0 +1,78 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.protocols.api;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ImmutableResponseTest {
+
+    @Test
+    public void testSnapshot() throws Exception {
+        TestResponse response = new TestResponse("250", "OK");
+        response.setEndSession(true);
+        Response immutable = response.immutable();
+        
+        response.appendLine("changed");
+        response.setEndSession(false);
+        
+        assertEquals(1, immutable.getLines().size());
+        assertEquals("250 OK", immutable.getLines().get(0));
+        assertEquals("250", immutable.getRetCode());
+        assertTrue(immutable.isEndSession());
+    }
+    
+    @Test
+    public void testBytesShared() throws Exception {
+        Response immutable = new TestResponse("250", "OK").immutable();
+        byte[] bytes = AbstractProtocolTransport.toBytes(immutable);
+        assertEquals("250 OK\r\n", new String(bytes, "US-ASCII"));
+        assertSame(bytes, AbstractProtocolTransport.toBytes(immutable));
+    }
+    
+    @Test
+    public void testEncoding() throws Exception {
+        TestResponse response = new TestResponse("250", "first");
+        response.appendLine("café 😀");
+        assertEquals("250 first\r\n250 caf? ?\r\n", new String(AbstractProtocolTransport.toBytes(response), "US-ASCII"));
+        assertEquals(0, AbstractProtocolTransport.toBytes(Response.DISCONNECT).length);
+    }
+    
+    private final static class TestResponse extends AbstractResponse {
+        
+        public TestResponse(String code, CharSequence description) {
+            super(code, description);
+        }
+
+        public List<CharSequence> getLines() {
+            List<CharSequence> result = new ArrayList<CharSequence>();
+            for (int i = 0; i < lines.size(); i++) {
+                result.add(getRetCode() + " " + lines.get(i));
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.protocols.api;
+
+import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Micro-benchmark which compares the allocations and the time needed to encode the {@link Response}'s of typical SMTP and POP3 sessions
+ * with the old {@link StringBuilder} based encoding and with the current encoding of {@link AbstractProtocolTransport}.
+ * 
+ * This is not executed as part of the build. Run it via its main method.
+ */
+public class ResponseEncodingBenchmark {
+
+    private final static int WARMUP = 200000;
+    private final static int ITERATIONS = 1000000;
+    
+    public static void main(String[] args) throws Exception {
+        run("SMTP", smtpSession());
+        run("POP3", pop3Session());
+    }
+    
+    private static void run(String name, Response[] session) throws Exception {
+        // warm up both paths
+        legacy(session, WARMUP);
+        current(session, WARMUP);
+        
+        long legacyBytes = allocatedBytes();
+        long legacyTime = System.nanoTime();
+        long legacyResult = legacy(session, ITERATIONS);
+        legacyTime = System.nanoTime() - legacyTime;
+        legacyBytes = allocatedBytes() - legacyBytes;
+        
+        long currentBytes = allocatedBytes();
+        long currentTime = System.nanoTime();
+        long currentResult = current(session, ITERATIONS);
+        currentTime = System.nanoTime() - currentTime;
+        currentBytes = allocatedBytes() - currentBytes;
+
+        if (legacyResult != currentResult) {
+            throw new IllegalStateException("Encoded length differs");
+        }
+        System.out.println(name + " session with " + session.length + " responses:");
+        System.out.println("  legacy : " + (legacyBytes / ITERATIONS) + " bytes allocated, " + (legacyTime / ITERATIONS) + " ns per session");
+        System.out.println("  current: " + (currentBytes / ITERATIONS) + " bytes allocated, " + (currentTime / ITERATIONS) + " ns per session");
+    }
+    
+    private static long legacy(Response[] session, int iterations) throws UnsupportedEncodingException {
+        long length = 0;
+        for (int i = 0; i < iterations; i++) {
+            for (int a = 0; a < session.length; a++) {
+                StringBuilder builder = new StringBuilder();
+                List<CharSequence> lines = session[a].getLines();
+                for (int b = 0; b < lines.size(); b++) {
+                    builder.append(lines.get(b)).append("\r\n");
+                }
+                length += builder.toString().getBytes("US-ASCII").length;
+            }
+        }
+        return length;
+    }
+    
+    private static long current(Response[] session, int iterations) {
+        long length = 0;
+        for (int i = 0; i < iterations; i++) {
+            for (int a = 0; a < session.length; a++) {
+                length += AbstractProtocolTransport.toBytes(session[a]).length;
+            }
+        }
+        return length;
+    }
+    
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    
+    private static Response[] smtpSession() {
+        BenchmarkResponse ehlo = new BenchmarkResponse("250", "mx.example.org Hello client.example.org [192.168.0.1]", "-", " ");
+        ehlo.appendLine("PIPELINING");
+        ehlo.appendLine("ENHANCEDSTATUSCODES");
+        ehlo.appendLine("8BITMIME");
+        ehlo.appendLine("SIZE 52428800");
+        return new Response[] {
+            new BenchmarkResponse("220", "mx.example.org SMTP Server (JAMES SMTP Server) ready", "-", " "),
+            ehlo,
+            new BenchmarkResponse("250", "2.1.0 Sender <sender@example.org> OK", "-", " "),
+            new BenchmarkResponse("250", "2.1.5 Recipient <rcpt@example.org> OK", "-", " "),
+            new BenchmarkResponse("354", "Ok Send data ending with <CRLF>.<CRLF>", "-", " ").immutable(),
+            new BenchmarkResponse("250", "2.6.0 Message received", "-", " ").immutable(),
+            new BenchmarkResponse("221", "2.0.0 mx.example.org Service closing transmission channel", "-", " ").immutable()
+        };
+    }
+    
+    private static Response[] pop3Session() {
+        BenchmarkResponse list = new BenchmarkResponse("+OK", "2 1320", null, " ");
+        list.appendLine("1 560");
+        list.appendLine("2 760");
+        list.appendLine(".");
+        return new Response[] {
+            new BenchmarkResponse("+OK", "pop.example.org POP3 server (JAMES POP3 Server ) ready", null, " "),
+            new BenchmarkResponse("+OK", null, null, " ").immutable(),
+            new BenchmarkResponse("+OK", "Welcome user", null, " "),
+            new BenchmarkResponse("+OK", "2 1320", null, " "),
+            list,
+            new BenchmarkResponse("+OK", "Message deleted", null, " ").immutable(),
+            new BenchmarkResponse("+OK", "Apache James POP3 Server signing off.", null, " ").immutable()
+        };
+    }
+    
+    /**
+     * {@link Response} which creates its lines like the SMTP and POP3 responses. If a separator for the continuation lines is given 
+     * every line is prefixed with the return code like in SMTP, otherwise only the first line like in POP3.
+     */
+    private final static class BenchmarkResponse extends AbstractResponse {
+        private final String continuation;
+        private final String separator;
+
+        public BenchmarkResponse(String code, CharSequence description, String continuation, String separator) {
+            setRetCode(code);
+            if (description != null) {
+                appendLine(description);
+            }
+            this.continuation = continuation;
+            this.separator = separator;
+        }
+
+        public List<CharSequence> getLines() {
+            List<CharSequence> result = new ArrayList<CharSequence>();
+            if (lines.isEmpty()) {
+                result.add(getRetCode());
+            }
+            for (int i = 0; i < lines.size(); i++) {
+                if (continuation != null) {
+                    result.add(getRetCode() + (i == lines.size() - 1 ? separator : continuation) + lines.get(i));
+                } else if (i == 0) {
+                    result.add(getRetCode() + separator + lines.get(i));
+                } else {
+                    result.add(lines.get(i));
+                }
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.protocols.api;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import static junit.framework.Assert.*;
+
+public class StreamSegmentTest {
+
+    private final static String US_ASCII = "US-ASCII";
+
+    @Test
+    public void testFileStreamSegment() throws IOException {
+        File file = createFile("0123456789");
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            FileStreamSegment segment = new FileStreamSegment(channel, 2, 5);
+            assertEquals(5, segment.getLength());
+            assertEquals("23456", read(segment.getStream()));
+            
+            // the position of the channel must not be changed
+            assertEquals(0, channel.position());
+        } finally {
+            raf.close();
+            file.delete();
+        }
+    }
+    
+    @Test
+    public void testToInputStream() throws IOException {
+        File file = createFile("0123456789");
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            List<StreamSegment> segments = new ArrayList<StreamSegment>();
+            segments.add(new BytesStreamSegment("abc".getBytes(US_ASCII)));
+            segments.add(new FileStreamSegment(raf.getChannel(), 7, 3));
+            segments.add(new InputStreamSegment(new ByteArrayInputStream("def".getBytes(US_ASCII))));
+            segments.add(new BytesStreamSegment("xghix".getBytes(US_ASCII), 1, 3));
+            
+            assertEquals("abc789defghi", read(StreamSegment.toInputStream(segments)));
+        } finally {
+            raf.close();
+            file.delete();
+        }
+    }
+    
+    @Test
+    public void testSharedFileChannel() throws IOException {
+        File file = createFile("0123456789");
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            List<StreamSegment> segments = new ArrayList<StreamSegment>();
+            segments.add(new FileStreamSegment(channel, 0, 2));
+            segments.add(new BytesStreamSegment("-".getBytes(US_ASCII)));
+            segments.add(new FileStreamSegment(channel, 8, 2));
+            
+            InputStream in = StreamSegment.toInputStream(segments);
+            assertEquals("01-89", read(in));
+            
+            // the channel is only closed once the whole stream was closed
+            assertTrue(channel.isOpen());
+            in.close();
+            assertFalse(channel.isOpen());
+        } finally {
+            raf.close();
+            file.delete();
+        }
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testBytesStreamSegmentOutOfBounds() throws IOException {
+        new BytesStreamSegment("abc".getBytes(US_ASCII), 1, 3);
+    }
+    
+    private File createFile(String content) throws IOException {
+        File file = File.createTempFile("segment", ".tmp");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes(US_ASCII));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+    
+    private String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[3];
+        int r;
+        while ((r = in.read(buf)) != -1) {
+            out.write(buf, 0, r);
+        }
+        return new String(out.toByteArray(), US_ASCII);
+    }
+}
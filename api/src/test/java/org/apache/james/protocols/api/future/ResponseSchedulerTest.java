@@ -0,0 +1,90 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.protocols.api.future;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.james.protocols.api.Response;
+import org.junit.Test;
+
+import static junit.framework.Assert.*;
+
+public class ResponseSchedulerTest {
+
+    private final static Response RESPONSE = Response.DISCONNECT;
+
+    @Test
+    public void testNoDelay() {
+        assertSame(RESPONSE, ResponseScheduler.getDefault().schedule(RESPONSE, 0, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testDelay() throws InterruptedException {
+        long start = System.nanoTime();
+        Response response = ResponseScheduler.getDefault().schedule(RESPONSE, 100, TimeUnit.MILLISECONDS);
+        assertTrue(response instanceof FutureResponse);
+        assertFalse(((FutureResponse) response).isReady());
+
+        // blocks till the response is ready
+        assertTrue(response.isEndSession());
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 100);
+    }
+
+    @Test
+    public void testDefaultExecutorIsBounded() throws InterruptedException {
+        final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+        final CountDownLatch latch = new CountDownLatch(500);
+        for (int i = 0; i < 500; i++) {
+            FutureResponse response = (FutureResponse) ResponseScheduler.getDefault().schedule(RESPONSE, 50, TimeUnit.MILLISECONDS);
+            response.addListener(new FutureResponse.ResponseListener() {
+                
+                public void onResponse(FutureResponse response) {
+                    threads.add(Thread.currentThread());
+                    try {
+                        // keep the thread busy, so an unbounded executor would need to start a new one for the next response
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    latch.countDown();
+                }
+            });
+        }
+        assertTrue(latch.await(30, TimeUnit.SECONDS));
+        
+        // the listener is called by the test thread if the response was ready before it was added
+        threads.remove(Thread.currentThread());
+        assertTrue(threads.size() + " threads", threads.size() <= Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    @Test
+    public void testTimerShutdown() {
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+        timer.shutdown();
+        ResponseScheduler scheduler = new ResponseScheduler(timer, timer);
+        assertSame(RESPONSE, scheduler.schedule(RESPONSE, 100, TimeUnit.MILLISECONDS));
+    }
+}
@@ -0,0 +1,90 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.protocols.api.handler;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class CommandTableTest {
+
+    private final static String[] COMMANDS = new String[] {"HELO", "EHLO", "MAIL", "RCPT", "DATA", "RSET", "NOOP", "QUIT", "VRFY", "EXPN",
+        "HELP", "AUTH", "STARTTLS", "USER", "PASS", "STAT", "LIST", "UIDL", "RETR", "DELE", "TOP", "CAPA", "STLS", "LHLO", "###UNKNOWN###"};
+    
+    private CommandTable<String> createTable() {
+        Map<String, String> commands = new HashMap<String, String>();
+        for (int i = 0; i < COMMANDS.length; i++) {
+            commands.put(COMMANDS[i], COMMANDS[i]);
+        }
+        return CommandTable.build(commands);
+    }
+    
+    private String get(CommandTable<String> table, String line) throws Exception {
+        ByteBuffer buffer = ByteBuffer.wrap(line.getBytes("US-ASCII"));
+        return table.get(buffer, 0, buffer.limit());
+    }
+    
+    @Test
+    public void testLookup() throws Exception {
+        CommandTable<String> table = createTable();
+        for (int i = 0; i < COMMANDS.length; i++) {
+            assertEquals(COMMANDS[i], get(table, COMMANDS[i]));
+        }
+    }
+    
+    @Test
+    public void testLookupCaseInsensitive() throws Exception {
+        CommandTable<String> table = createTable();
+        assertEquals("NOOP", get(table, "noop"));
+        assertEquals("STARTTLS", get(table, "StartTls"));
+    }
+    
+    @Test
+    public void testLookupUnknown() throws Exception {
+        CommandTable<String> table = createTable();
+        assertNull(get(table, "NOOPS"));
+        assertNull(get(table, "NOO"));
+        assertNull(get(table, "XYZW"));
+        assertNull(get(table, ""));
+    }
+    
+    @Test
+    public void testLookupSlice() throws Exception {
+        CommandTable<String> table = createTable();
+        ByteBuffer buffer = ByteBuffer.wrap("XXMAIL FROM:<test@localhost>\r\n".getBytes("US-ASCII"));
+        buffer.position(2);
+        ByteBuffer slice = buffer.slice().asReadOnlyBuffer();
+        assertEquals("MAIL", table.get(slice, 0, 4));
+        assertEquals(0, slice.position());
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testDuplicatedCommand() {
+        Map<String, String> commands = new HashMap<String, String>();
+        commands.put("NOOP", "NOOP");
+        commands.put("noop", "noop");
+        CommandTable.build(commands);
+    }
+}
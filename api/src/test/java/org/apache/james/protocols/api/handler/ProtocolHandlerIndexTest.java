@@ -0,0 +1,67 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.protocols.api.handler;
+
+import static junit.framework.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import org.apache.james.protocols.api.ProtocolSession;
+import org.apache.james.protocols.api.Response;
+import org.junit.Test;
+
+public class ProtocolHandlerIndexTest {
+
+    @Test
+    public void testIndexIsCompiledOnWiring() throws WiringException {
+        ProtocolHandlerChainImpl chain = new ProtocolHandlerChainImpl();
+        TestLineHandler first = new TestLineHandler();
+        TestLineHandler last = new TestLineHandler();
+        chain.add(first);
+        chain.add(new CommandHandlerResultLogger());
+        chain.add(last);
+        chain.wireExtensibleHandlers();
+
+        ProtocolHandlerIndex index = chain.getHandlerIndex();
+        assertSame(index, chain.getHandlerIndex());
+        assertEquals(2, index.getLineHandlers().length);
+        assertSame(first, index.getLineHandlers()[0]);
+        assertSame(last, index.getLastLineHandler());
+        assertEquals(1, index.getResultHandlers().length);
+        assertEquals(0, index.getConnectHandlers().length);
+        assertEquals(0, index.getDisconnectHandlers().length);
+    }
+
+    @Test
+    public void testIndexReflectsChangesBeforeWiring() {
+        ProtocolHandlerChainImpl chain = new ProtocolHandlerChainImpl();
+        assertNull(chain.getHandlerIndex().getLastLineHandler());
+
+        TestLineHandler handler = new TestLineHandler();
+        chain.add(handler);
+        assertSame(handler, chain.getHandlerIndex().getLastLineHandler());
+    }
+
+    private final static class TestLineHandler implements LineHandler<ProtocolSession> {
+
+        public Response onLine(ProtocolSession session, ByteBuffer buffer) {
+            return null;
+        }
+    }
+}
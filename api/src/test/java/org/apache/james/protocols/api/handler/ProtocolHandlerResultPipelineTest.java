@@ -0,0 +1,125 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.protocols.api.handler;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.james.protocols.api.ProtocolSession;
+import org.apache.james.protocols.api.ProtocolSessionImpl;
+import org.apache.james.protocols.api.Response;
+import org.apache.james.protocols.api.future.FutureResponse;
+import org.apache.james.protocols.api.future.FutureResponseImpl;
+import org.apache.james.protocols.api.utils.MockLogger;
+import org.junit.Test;
+
+public class ProtocolHandlerResultPipelineTest {
+
+    private final ProtocolSession session = new ProtocolSessionImpl(new MockLogger(), null, null);
+    private final ProtocolHandler handler = new ProtocolHandler() {
+    };
+
+    @Test
+    public void testSyncResponse() {
+        RecordingResultHandler first = new RecordingResultHandler(null);
+        RecordingResultHandler second = new RecordingResultHandler(Response.DISCONNECT);
+        ProtocolHandlerResultPipeline pipeline = new ProtocolHandlerResultPipeline(Arrays.asList(first, second));
+
+        Response response = pipeline.onResponse(session, Response.DISCONNECT, System.nanoTime(), handler);
+        assertSame(Response.DISCONNECT, response);
+        assertEquals(1, first.responses.size());
+        assertEquals(1, second.responses.size());
+        assertSame(handler, first.handler);
+    }
+
+    @Test
+    public void testNullResponseIsNotPassed() {
+        RecordingResultHandler first = new RecordingResultHandler(null);
+        ProtocolHandlerResultPipeline pipeline = new ProtocolHandlerResultPipeline(Arrays.asList(first));
+
+        assertNull(pipeline.onResponse(session, null, System.nanoTime(), handler));
+        assertTrue(first.responses.isEmpty());
+    }
+
+    @Test
+    public void testFutureResponse() throws InterruptedException {
+        RecordingResultHandler first = new RecordingResultHandler(null);
+        RecordingResultHandler second = new RecordingResultHandler(null);
+        ProtocolHandlerResultPipeline pipeline = new ProtocolHandlerResultPipeline(Arrays.asList(first, second));
+
+        FutureResponseImpl future = new FutureResponseImpl();
+        Response response = pipeline.onResponse(session, future, System.nanoTime(), handler);
+        assertTrue(response instanceof FutureResponse);
+        assertFalse(((FutureResponse) response).isReady());
+        assertTrue(first.responses.isEmpty());
+
+        Thread.sleep(50);
+        future.setResponse(Response.DISCONNECT);
+
+        assertTrue(((FutureResponse) response).isReady());
+        assertTrue(response.isEndSession());
+        assertEquals(1, first.responses.size());
+        assertEquals(1, second.responses.size());
+
+        // the execution time must include the time until the response was completed
+        assertTrue(first.executionTime >= 50);
+    }
+
+    @Test
+    public void testResultHandlerReturnsFutureResponse() {
+        final FutureResponseImpl future = new FutureResponseImpl();
+        RecordingResultHandler first = new RecordingResultHandler(future);
+        RecordingResultHandler second = new RecordingResultHandler(null);
+        ProtocolHandlerResultPipeline pipeline = new ProtocolHandlerResultPipeline(Arrays.asList(first, second));
+
+        Response response = pipeline.onResponse(session, Response.DISCONNECT, System.nanoTime(), handler);
+        assertFalse(((FutureResponse) response).isReady());
+        assertEquals(1, first.responses.size());
+        assertTrue(second.responses.isEmpty());
+
+        future.setResponse(Response.DISCONNECT);
+        assertTrue(((FutureResponse) response).isReady());
+        assertEquals(1, second.responses.size());
+    }
+
+    private final static class RecordingResultHandler implements ProtocolHandlerResultHandler<Response, ProtocolSession> {
+        private final List<Response> responses = new ArrayList<Response>();
+        private final Response replacement;
+        private long executionTime;
+        private ProtocolHandler handler;
+
+        public RecordingResultHandler(Response replacement) {
+            this.replacement = replacement;
+        }
+
+        public Response onResponse(ProtocolSession session, Response response, long executionTime, ProtocolHandler handler) {
+            responses.add(response);
+            this.executionTime = executionTime;
+            this.handler = handler;
+            if (replacement != null) {
+                return replacement;
+            }
+            return response;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.protocols.api.handler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+
+import org.apache.james.protocols.api.AttributeKey;
+import org.apache.james.protocols.api.DeferredFileBuffer;
+import org.apache.james.protocols.api.ProtocolSession;
+import org.apache.james.protocols.api.ProtocolSession.State;
+import org.apache.james.protocols.api.Response;
+import org.junit.Test;
+
+import static junit.framework.Assert.*;
+
+public class StreamingMultiLineHandlerTest {
+
+    private final static String US_ASCII = "US-ASCII";
+
+    /**
+     * Create a {@link ProtocolSession} which supports the typed attachments and counts popped handlers
+     */
+    private static ProtocolSession createSession(final int[] popped) {
+        return (ProtocolSession) Proxy.newProxyInstance(StreamingMultiLineHandlerTest.class.getClassLoader(), new Class<?>[] { ProtocolSession.class }, new InvocationHandler() {
+            private Object value;
+
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                String name = method.getName();
+                if (name.equals("getAttachment") && args[0] instanceof AttributeKey && args[1] == State.Transaction) {
+                    return value;
+                } else if (name.equals("setAttachment") && args[0] instanceof AttributeKey && args[2] == State.Transaction) {
+                    Object old = value;
+                    value = args[1];
+                    return old;
+                } else if (name.equals("popLineHandler")) {
+                    popped[0]++;
+                    return null;
+                }
+                throw new UnsupportedOperationException(name);
+            }
+        });
+    }
+
+    private final static class TestHandler extends StreamingMultiLineHandler<ProtocolSession> {
+        private String data;
+        private DeferredFileBuffer buffer;
+
+        @Override
+        protected boolean isReady(ProtocolSession session, ByteBuffer line, DeferredFileBuffer buffer) {
+            return line.remaining() == 3 && line.get(line.position()) == '.';
+        }
+
+        @Override
+        protected Response onLines(ProtocolSession session, DeferredFileBuffer buffer) {
+            try {
+                this.buffer = buffer;
+                data = read(buffer.getInputStream());
+                return Response.DISCONNECT;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    @Test
+    public void testCollectAndSpill() throws IOException {
+        TestHandler handler = new TestHandler();
+        handler.setMemoryThreshold(10);
+        ProtocolSession session = createSession(new int[1]);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            String line = "line" + i + "\r\n";
+            expected.append(line);
+            assertNull(handler.onLine(session, ByteBuffer.wrap(line.getBytes(US_ASCII))));
+        }
+        expected.append(".\r\n");
+        assertSame(Response.DISCONNECT, handler.onLine(session, ByteBuffer.wrap(".\r\n".getBytes(US_ASCII))));
+        assertEquals(expected.toString(), handler.data);
+
+        // the buffer must be closed after it was handled
+        assertNull(handler.buffer.getFile());
+        assertNull(session.getAttachment(AttributeKey.<DeferredFileBuffer>valueOf("STREAMING_BUFFERED_DATA"), State.Transaction));
+    }
+
+    @Test
+    public void testTooLarge() throws IOException {
+        TestHandler handler = new TestHandler();
+        handler.setMaxSize(20);
+        int[] popped = new int[1];
+        ProtocolSession session = createSession(popped);
+        assertNull(handler.onLine(session, ByteBuffer.wrap("0123456789\r\n".getBytes(US_ASCII))));
+        assertSame(Response.DISCONNECT, handler.onLine(session, ByteBuffer.wrap("0123456789\r\n".getBytes(US_ASCII))));
+        assertEquals(1, popped[0]);
+        assertNull(handler.data);
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[100];
+        int i;
+        while ((i = in.read(buf)) != -1) {
+            out.write(buf, 0, i);
+        }
+        return new String(out.toByteArray(), US_ASCII);
+    }
+}
@@ -0,0 +1,116 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.protocols.api.metrics;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+public class ProtocolMetricsTest {
+
+    @Test
+    public void testBucketBounds() {
+        for (long value = 0; value < 100000; value++) {
+            int index = LatencyHistogram.indexOf(value);
+            assertTrue(LatencyHistogram.highestValueOf(index) >= value);
+            if (index > 0) {
+                assertTrue(LatencyHistogram.highestValueOf(index - 1) < value);
+            }
+        }
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.highestValueOf(LatencyHistogram.indexOf(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getValueAtPercentile(99));
+        
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000000, histogram.getMax());
+        assertEquals(500500d, histogram.getMean(), 0.1);
+        
+        // the relative error must be at most 1/16
+        assertWithinError(500000, histogram.getValueAtPercentile(50));
+        assertWithinError(990000, histogram.getValueAtPercentile(99));
+        assertEquals(1000000, histogram.getValueAtPercentile(100));
+        
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+    }
+
+    @Test
+    public void testCounters() {
+        ProtocolMetrics metrics = new ProtocolMetrics();
+        metrics.connectionOpened();
+        metrics.connectionOpened();
+        metrics.connectionClosed();
+        metrics.connectionRejected();
+        metrics.bytesRead(10);
+        metrics.bytesWritten(20);
+        metrics.responseWritten();
+        metrics.recordCommand("HELO", 2000);
+        metrics.recordHandler(this, 4000);
+        
+        assertEquals(2, metrics.getConnectionCount());
+        assertEquals(1, metrics.getActiveConnectionCount());
+        assertEquals(1, metrics.getRejectedConnectionCount());
+        assertEquals(10, metrics.getBytesIn());
+        assertEquals(20, metrics.getBytesOut());
+        assertEquals(1, metrics.getResponseCount());
+        assertEquals(1, metrics.getExecutionCount("HELO"));
+        assertEquals(1, metrics.getExecutionCount(getClass().getName()));
+        assertEquals(4d, metrics.getMeanLatency(getClass().getName()), 0.001);
+        assertEquals(0, metrics.getExecutionCount("UNKNOWN"));
+        
+        metrics.reset();
+        assertEquals(1, metrics.getConnectionCount());
+        assertEquals(1, metrics.getActiveConnectionCount());
+        assertEquals(0, metrics.getCommandNames().length);
+    }
+
+    @Test
+    public void testJMX() throws Exception {
+        ProtocolMetrics metrics = new ProtocolMetrics();
+        metrics.recordCommand("EHLO", 1000);
+        metrics.recordCommand("MAIL", 1000);
+        
+        MBeanServer server = MBeanServerFactory.newMBeanServer();
+        ObjectName name = new ObjectName("org.apache.james:type=server,name=smtpserver,sub-type=metrics");
+        server.registerMBean(metrics, name);
+        
+        assertEquals(0L, server.getAttribute(name, "ConnectionCount"));
+        String[] commands = (String[]) server.getAttribute(name, "CommandNames");
+        assertEquals(2, commands.length);
+        assertEquals("EHLO", commands[0]);
+        assertEquals(1L, server.invoke(name, "getExecutionCount", new Object[] {"MAIL"}, new String[] {String.class.getName()}));
+    }
+
+    private static void assertWithinError(long expected, long value) {
+        assertTrue("Value " + value + " not within error of " + expected, Math.abs(value - expected) <= expected / 16);
+    }
+}
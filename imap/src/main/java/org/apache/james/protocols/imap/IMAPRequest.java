@@ -18,13 +18,16 @@
  ****************************************************************/
 package org.apache.james.protocols.imap;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.Locale;
+import java.util.NoSuchElementException;
 
+import org.apache.james.protocols.api.DeferredFileBuffer;
 import org.apache.james.protocols.api.Request;
 
 public class IMAPRequest implements Request {
@@ -32,12 +35,35 @@ public class IMAPRequest implements Request {
     private static final String US_ASCII = "US_ASCII";
     
     private static final String CRLF = "\r\n";
+    private final static int LITERAL_CHUNK_SIZE = 8192;
+
     private final Collection<ByteBuffer> lines;
+    private final DeferredFileBuffer literal;
     private final String tag;
     private final String command;
     
     public IMAPRequest(Collection<ByteBuffer> lines) {
+        this(lines, null);
+    }
+    
+    public IMAPRequest(ByteBuffer line) {
+        this(Arrays.asList(line));
+    }
+
+    /**
+     * Create a request which consists of the given line and the data which followed it, like a literal. The data is read from the 
+     * {@link DeferredFileBuffer} when it is needed, so it must not be closed before the request was processed.
+     * 
+     * @param line
+     * @param literal
+     */
+    public IMAPRequest(ByteBuffer line, DeferredFileBuffer literal) {
+        this(Arrays.asList(line), literal);
+    }
+
+    private IMAPRequest(Collection<ByteBuffer> lines, DeferredFileBuffer literal) {
         this.lines = lines;
+        this.literal = literal;
         ByteBuffer buf = lines.iterator().next();
         buf.rewind();
         
@@ -45,10 +71,6 @@ public class IMAPRequest implements Request {
         this.command = read(buf).toUpperCase(Locale.US);
     }
     
-    public IMAPRequest(ByteBuffer line) {
-        this(Arrays.asList(line));
-    }
-    
     private String read(ByteBuffer buf) {
         StringBuilder sb = new StringBuilder();
         int i;
@@ -75,6 +97,9 @@ public class IMAPRequest implements Request {
         int tagOffeset = tag.length() + command.length() + 2;
         StringBuilder sb = new StringBuilder();
         Iterator<ByteBuffer> linesIt = lines.iterator();
+        if (literal != null) {
+            linesIt = new LiteralIterator(linesIt);
+        }
         
         while (linesIt.hasNext()){
             ByteBuffer line = linesIt.next();
@@ -116,7 +141,7 @@ public class IMAPRequest implements Request {
     public Iterator<ByteBuffer> getArguments() {
         return new Iterator<ByteBuffer>() {
             boolean first = true;
-            Iterator<ByteBuffer> buffIt = lines.iterator();
+            Iterator<ByteBuffer> buffIt = literal == null ? lines.iterator() : new LiteralIterator(lines.iterator());
 
             public boolean hasNext() {
                 return buffIt.hasNext();
@@ -140,4 +165,44 @@ public class IMAPRequest implements Request {
         };
     }
 
+    /**
+     * {@link Iterator} which returns the lines first and then reads the literal in chunks 
+     */
+    private final class LiteralIterator implements Iterator<ByteBuffer> {
+        private final Iterator<ByteBuffer> linesIt;
+        private long position = 0;
+
+        public LiteralIterator(Iterator<ByteBuffer> linesIt) {
+            this.linesIt = linesIt;
+        }
+
+        public boolean hasNext() {
+            return linesIt.hasNext() || position < literal.getLength();
+        }
+
+        public ByteBuffer next() {
+            if (linesIt.hasNext()) {
+                return linesIt.next();
+            }
+            if (position >= literal.getLength()) {
+                throw new NoSuchElementException();
+            }
+            byte[] chunk = new byte[(int) Math.min(LITERAL_CHUNK_SIZE, literal.getLength() - position)];
+            try {
+                int read = 0;
+                while (read < chunk.length) {
+                    read += literal.read(position + read, chunk, read, chunk.length - read);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to read literal", e);
+            }
+            position += chunk.length;
+            return ByteBuffer.wrap(chunk);
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
 }
@@ -19,15 +19,14 @@
 package org.apache.james.protocols.imap.core;
 
 import java.nio.ByteBuffer;
-import java.util.Collection;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import org.apache.james.protocols.api.ProtocolSession.State;
+import org.apache.james.protocols.api.DeferredFileBuffer;
 import org.apache.james.protocols.api.Request;
 import org.apache.james.protocols.api.Response;
 import org.apache.james.protocols.api.handler.CommandDispatcher;
-import org.apache.james.protocols.api.handler.MultiLineHandler;
+import org.apache.james.protocols.api.handler.StreamingMultiLineHandler;
 import org.apache.james.protocols.imap.IMAPRequest;
 import org.apache.james.protocols.imap.IMAPSession;
 
@@ -41,36 +40,29 @@ public class IMAPCommandDispatcher extends CommandDispatcher<IMAPSession>{
         Matcher matcher = LITERAL_PATTERN.matcher(request.getArgument());
         if (matcher.matches()) {
             final long bytesToRead = Long.parseLong(matcher.group(1));
-            MultiLineHandler<IMAPSession> handler = new MultiLineHandler<IMAPSession>() {
-                
-                private static final String BYTES_READ = "BYTES_READ";
+            buffer.rewind();
+            
+            // keep a copy of the line, as the buffer may get reused once this method returns
+            final ByteBuffer line = ByteBuffer.allocate(buffer.remaining());
+            line.put(buffer).flip();
+
+            // the literal may be big (for example on APPEND), so stream it instead of holding all of it in memory
+            StreamingMultiLineHandler<IMAPSession> handler = new StreamingMultiLineHandler<IMAPSession>() {
                 
                 /*
                  * (non-Javadoc)
-                 * @see org.apache.james.protocols.api.handler.MultiLineHandler#isReady(org.apache.james.protocols.api.ProtocolSession, java.nio.ByteBuffer)
+                 * @see org.apache.james.protocols.api.handler.StreamingMultiLineHandler#isReady(org.apache.james.protocols.api.ProtocolSession, java.nio.ByteBuffer, org.apache.james.protocols.api.DeferredFileBuffer)
                  */
-                protected boolean isReady(IMAPSession session, ByteBuffer line) {
-                    long bytesRead = (Long) session.setAttachment(BYTES_READ, null, State.Transaction);
-                    bytesRead += line.remaining();
-                    if (bytesRead >= bytesToRead) {
-                        return true;
-                    } else {
-                        session.setAttachment(BYTES_READ, bytesRead, State.Transaction);
-                        return false;
-                    }
+                protected boolean isReady(IMAPSession session, ByteBuffer l, DeferredFileBuffer literal) {
+                    return literal.getLength() >= bytesToRead;
                 }
 
                 @Override
-                protected Response onLines(IMAPSession session, Collection<ByteBuffer> lines) {
+                protected Response onLines(IMAPSession session, DeferredFileBuffer literal) {
                     session.popLineHandler();
-                    return dispatchCommandHandlers(session, new IMAPRequest(lines));
+                    return dispatchCommandHandlers(session, new IMAPRequest(line, literal));
                 }
             };
-            buffer.rewind();
-            
-            // push the line to the handler
-            handler.onLine(session, buffer);
-            
             session.pushLineHandler(handler);
             return null;
             
@@ -87,6 +87,22 @@ public abstract class AbstractLMTPServerTest extends AbstractSMTPServerTest{
     }
 
 
+    @Override
+    public void testAsyncHooksWithPipelining() throws Exception {
+        // Disable
+    }
+
+    @Override
+    public void testTarpitWithPipelining() throws Exception {
+        // Disable
+    }
+
+    @Override
+    public void testBdatWithPipelining() throws Exception {
+        // Disable
+    }
+
+
     @Override
     public void testMailWithoutBrackets() throws Exception {
         TestMessageHook hook = new TestMessageHook();
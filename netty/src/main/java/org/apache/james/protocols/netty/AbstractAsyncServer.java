@@ -19,15 +19,18 @@
 package org.apache.james.protocols.netty;
 
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.james.protocols.api.ProtocolServer;
 import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.group.ChannelGroup;
 import org.jboss.netty.channel.group.DefaultChannelGroup;
@@ -46,14 +49,20 @@ public abstract class AbstractAsyncServer implements ProtocolServer{
     
     private volatile int timeout = 120;
 
-    private ServerBootstrap bootstrap;
+    private final List<ServerBootstrap> bootstraps = new ArrayList<ServerBootstrap>();
 
     private volatile boolean started;
     
     private final ChannelGroup channels = new DefaultChannelGroup();
 
+    private final List<Channel> serverChannels = new ArrayList<Channel>();
+    
+    private volatile boolean draining;
+
     private volatile int ioWorker = DEFAULT_IO_WORKER_COUNT;
     
+    private volatile int acceptors = 1;
+    
     private List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
     
     public synchronized void setListenAddresses(InetSocketAddress... addresses) {
@@ -80,6 +89,31 @@ public abstract class AbstractAsyncServer implements ProtocolServer{
         return ioWorker;
     }
     
+    /**
+     * Set the count of acceptors which get bound to every listen address. Default is 1.
+     * 
+     * If more then one acceptor is used, every acceptor gets its own boss thread and its own set of IO-workers, the IO-worker
+     * count is split between them. All acceptors are bound to the same address with <code>SO_REUSEPORT</code>, so the kernel
+     * balances the incoming connections between them and a connection is served by the IO-workers of the acceptor which accepted it. 
+     * This only works if {@link ReusePortUpstreamHandler#isSupported()} returns <code>true</code>, otherwise {@link #bind()} will fail.
+     * 
+     * @param acceptors
+     */
+    public void setAcceptorCount(int acceptors) {
+        if (started) throw new IllegalStateException("Can only be set when the server is not running");
+        if (acceptors < 1) throw new IllegalArgumentException("At least one acceptor is needed");
+        this.acceptors = acceptors;
+    }
+    
+    /**
+     * Return the count of acceptors which get bound to every listen address
+     * 
+     * @return acceptors
+     */
+    public int getAcceptorCount() {
+        return acceptors;
+    }
+    
 
     /*
      * (non-Javadoc)
@@ -90,15 +124,42 @@ public abstract class AbstractAsyncServer implements ProtocolServer{
 
         if (addresses.isEmpty()) throw new RuntimeException("Please specify at least on socketaddress to which the server should get bound!");
 
-        bootstrap = new ServerBootstrap(createSocketChannelFactory());
+        if (acceptors > 1 && !ReusePortUpstreamHandler.isSupported()) throw new IllegalStateException("SO_REUSEPORT is not supported, only one acceptor can be used");
+
         ChannelPipelineFactory factory = createPipelineFactory(channels);
+        for (int i = 0; i < acceptors; i++) {
+            ServerBootstrap bootstrap;
+            if (acceptors == 1) {
+                bootstrap = new ServerBootstrap(createSocketChannelFactory());
+            } else {
+                // split the workers between the acceptors so every acceptor has a fixed set of workers
+                int workers = Math.max(1, ioWorker / acceptors + (i < ioWorker % acceptors ? 1 : 0));
+                bootstrap = new ServerBootstrap(createSocketChannelFactory(workers));
+                bootstrap.setParentHandler(new ReusePortUpstreamHandler());
+            }
+            
+            // Configure the pipeline factory.
+            bootstrap.setPipelineFactory(factory);
+            configureBootstrap(bootstrap);
+            bootstraps.add(bootstrap);
+        }
         
-        // Configure the pipeline factory.
-        bootstrap.setPipelineFactory(factory);
-        configureBootstrap(bootstrap);
-        
-        for (int i = 0; i < addresses.size();i++) {
-            channels.add(bootstrap.bind(addresses.get(i)));
+        try {
+            for (int i = 0; i < addresses.size();i++) {
+                // bind the other acceptors to the address of the first, so it also works with ephemeral ports
+                SocketAddress address = addresses.get(i);
+                for (int a = 0; a < bootstraps.size(); a++) {
+                    Channel serverChannel = bootstraps.get(a).bind(address);
+                    serverChannels.add(serverChannel);
+                    channels.add(serverChannel);
+                    address = serverChannel.getLocalAddress();
+                }
+            }
+        } catch (RuntimeException e) {
+            channels.close().awaitUninterruptibly();
+            serverChannels.clear();
+            releaseBootstraps();
+            throw e;
         }
         started = true;
 
@@ -117,6 +178,16 @@ public abstract class AbstractAsyncServer implements ProtocolServer{
     }
     
     protected ServerSocketChannelFactory createSocketChannelFactory() {
+        return createSocketChannelFactory(ioWorker);
+    }
+    
+    /**
+     * Create the {@link ServerSocketChannelFactory} for one acceptor. This is called once per acceptor, see {@link #setAcceptorCount(int)}
+     * 
+     * @param ioWorker the count of IO-workers to use for the acceptor
+     * @return factory
+     */
+    protected ServerSocketChannelFactory createSocketChannelFactory(int ioWorker) {
         return new NioServerSocketChannelFactory(createBossExecutor(), createWorkerExecutor(), ioWorker);
     }
     
@@ -127,13 +198,97 @@ public abstract class AbstractAsyncServer implements ProtocolServer{
      */
     public synchronized void unbind() {
         if (started == false) return;
-        ChannelPipelineFactory factory = bootstrap.getPipelineFactory();
+        channels.close().awaitUninterruptibly();
+        serverChannels.clear();
+        releaseBootstraps();
+        started = false;
+    }
+    
+    private void releaseBootstraps() {
+        ChannelPipelineFactory factory = bootstraps.get(0).getPipelineFactory();
         if (factory instanceof ExternalResourceReleasable) {
             ((ExternalResourceReleasable) factory).releaseExternalResources();
         }
-        channels.close().awaitUninterruptibly();
-        bootstrap.releaseExternalResources();
-        started = false;
+        for (int i = 0; i < bootstraps.size(); i++) {
+            bootstraps.get(i).releaseExternalResources();
+        }
+        bootstraps.clear();
+    }
+
+    /**
+     * Stop the server gracefully. 
+     * 
+     * No new connections are accepted anymore. Every session which is not in a transaction gets a shutdown response and is closed, 
+     * the others are closed once their transaction was completed. Connections which are still open after the timeout are closed and 
+     * the server gets unbound. While the server drains, {@link #isDraining()} returns <code>true</code> and 
+     * {@link #getConnectionCount()} reports the connections which are still open.
+     * 
+     * @param timeout the maximal time to wait for the sessions to complete their transaction
+     * @param unit
+     * @return the count of connections which were still open after the timeout elapsed
+     */
+    public int unbind(long timeout, TimeUnit unit) {
+        List<Channel> connections;
+        synchronized (this) {
+            if (started == false) return 0;
+            draining = true;
+            for (int i = 0; i < serverChannels.size(); i++) {
+                Channel serverChannel = serverChannels.get(i);
+                channels.remove(serverChannel);
+                serverChannel.close().awaitUninterruptibly();
+            }
+            serverChannels.clear();
+            connections = new ArrayList<Channel>(channels);
+        }
+        try {
+            for (int i = 0; i < connections.size(); i++) {
+                requestShutdown(connections.get(i));
+            }
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            int open = 0;
+            for (int i = 0; i < connections.size(); i++) {
+                Channel connection = connections.get(i);
+                long remaining = deadline - System.nanoTime();
+                if (remaining > 0) {
+                    connection.getCloseFuture().awaitUninterruptibly(TimeUnit.NANOSECONDS.toMillis(remaining));
+                }
+                if (!connection.getCloseFuture().isDone()) {
+                    open++;
+                }
+            }
+            unbind();
+            return open;
+        } finally {
+            draining = false;
+        }
+    }
+
+    /**
+     * Ask the given connection to close itself once its session is not in a transaction anymore. The check is done by the I/O thread 
+     * of the connection, see {@link ShutdownRequestedEvent#fire(Channel)}
+     * 
+     * @param channel
+     */
+    protected void requestShutdown(Channel channel) {
+        ShutdownRequestedEvent.fire(channel);
+    }
+
+    /**
+     * Return <code>true</code> while the server is stopped via {@link #unbind(long, TimeUnit)} 
+     * 
+     * @return draining
+     */
+    public boolean isDraining() {
+        return draining;
+    }
+
+    /**
+     * Return the count of open connections
+     * 
+     * @return count
+     */
+    public synchronized int getConnectionCount() {
+        return channels.size() - serverChannels.size();
     }
     
     
@@ -24,12 +24,10 @@ import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.ChannelUpstreamHandler;
 import org.jboss.netty.channel.group.ChannelGroup;
-import org.jboss.netty.handler.codec.frame.DelimiterBasedFrameDecoder;
-import org.jboss.netty.handler.codec.frame.Delimiters;
 import org.jboss.netty.handler.execution.ExecutionHandler;
 import org.jboss.netty.handler.stream.ChunkedWriteHandler;
 import org.jboss.netty.util.ExternalResourceReleasable;
-import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timer;
 
 /**
  * Abstract base class for {@link ChannelPipelineFactory} implementations
@@ -40,8 +38,9 @@ public abstract class AbstractChannelPipelineFactory implements ChannelPipelineF
 
     public final static int MAX_LINE_LENGTH = 8192;
     protected final ConnectionLimitUpstreamHandler connectionLimitHandler;
-    protected final ConnectionPerIpLimitUpstreamHandler connectionPerIpLimitHandler;
-    private final HashedWheelTimer timer = new HashedWheelTimer();
+    protected final ConnectionLimiterUpstreamHandler connectionPerIpLimitHandler;
+    private final Timer timer = SharedTimer.acquire();
+    private final ReadCompleteUpstreamHandler readCompleteHandler = new ReadCompleteUpstreamHandler();
     private final ChannelGroupHandler groupHandler;
 	private final int timeout;
     private final ExecutionHandler eHandler;
@@ -50,8 +49,26 @@ public abstract class AbstractChannelPipelineFactory implements ChannelPipelineF
     }
     
     public AbstractChannelPipelineFactory(int timeout, int maxConnections, int maxConnectsPerIp, ChannelGroup channels, ExecutionHandler eHandler) {
+        this(timeout, maxConnections, newPerIpLimiter(maxConnectsPerIp), channels, eHandler);
+    }
+
+    private static ConnectionLimiter newPerIpLimiter(int maxConnectsPerIp) {
+        ConnectionLimiter limiter = new ConnectionLimiter();
+        limiter.setMaxConnectionsPerIp(maxConnectsPerIp);
+        return limiter;
+    }
+
+    /**
+     * 
+     * @param timeout
+     * @param maxConnections
+     * @param limiter the {@link ConnectionLimiter} which enforces the per IP and per prefix limits
+     * @param channels
+     * @param eHandler
+     */
+    public AbstractChannelPipelineFactory(int timeout, int maxConnections, ConnectionLimiter limiter, ChannelGroup channels, ExecutionHandler eHandler) {
         this.connectionLimitHandler = new ConnectionLimitUpstreamHandler(maxConnections);
-        this.connectionPerIpLimitHandler = new ConnectionPerIpLimitUpstreamHandler(maxConnectsPerIp);
+        this.connectionPerIpLimitHandler = new ConnectionLimiterUpstreamHandler(limiter);
         this.groupHandler = new ChannelGroupHandler(channels);
         this.timeout = timeout;
         this.eHandler = eHandler;
@@ -72,18 +89,23 @@ public abstract class AbstractChannelPipelineFactory implements ChannelPipelineF
 
         pipeline.addLast(HandlerConstants.CONNECTION_PER_IP_LIMIT_HANDLER, connectionPerIpLimitHandler);
 
+        // Notify the handlers behind the framer once all lines of a read were passed to them
+        pipeline.addLast(HandlerConstants.READ_COMPLETE_HANDLER, readCompleteHandler);
         
-        // Add the text line decoder which limit the max line length, don't strip the delimiter and use CRLF as delimiter
-        pipeline.addLast(HandlerConstants.FRAMER, new DelimiterBasedFrameDecoder(MAX_LINE_LENGTH, false, Delimiters.lineDelimiter()));
+        // Add the text line decoder which limit the max line length and don't strip the delimiter. The lines are passed as slices of the received data
+        pipeline.addLast(HandlerConstants.FRAMER, new LineFrameDecoder(MAX_LINE_LENGTH));
        
         // Add the ChunkedWriteHandler to be able to write ChunkInput
         pipeline.addLast(HandlerConstants.CHUNK_HANDLER, new ChunkedWriteHandler());
-        pipeline.addLast(HandlerConstants.TIMEOUT_HANDLER, new TimeoutHandler(timer, timeout));
+        pipeline.addLast(HandlerConstants.TIMEOUT_HANDLER, new TimeoutHandler(getTimer(), timeout));
 
         if (eHandler != null) {
             pipeline.addLast(HandlerConstants.EXECUTION_HANDLER, eHandler);
         }
         
+        // Hold back pipelined lines while a FutureResponse is pending
+        pipeline.addLast(HandlerConstants.PENDING_RESPONSE_HANDLER, new PendingResponseUpstreamHandler());
+
         pipeline.addLast(HandlerConstants.CORE_HANDLER, createHandler());
 
 
@@ -93,6 +115,15 @@ public abstract class AbstractChannelPipelineFactory implements ChannelPipelineF
 
 
     
+    /**
+     * Return the {@link Timer} which is used for the idle timeouts. This is the process wide {@link SharedTimer}
+     * 
+     * @return timer
+     */
+    protected Timer getTimer() {
+        return timer;
+    }
+
     /**
      * Create the core {@link ChannelUpstreamHandler} to use
      * 
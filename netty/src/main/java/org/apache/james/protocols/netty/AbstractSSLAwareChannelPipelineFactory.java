@@ -41,6 +41,11 @@ public abstract class AbstractSSLAwareChannelPipelineFactory extends AbstractCha
         super(timeout, maxConnections, maxConnectsPerIp, group, eHandler);
     }
 
+    public AbstractSSLAwareChannelPipelineFactory(int timeout,
+            int maxConnections, ConnectionLimiter limiter, ChannelGroup group, ExecutionHandler eHandler) {
+        super(timeout, maxConnections, limiter, group, eHandler);
+    }
+
     public AbstractSSLAwareChannelPipelineFactory(int timeout,
             int maxConnections, int maxConnectsPerIp, ChannelGroup group, String[] enabledCipherSuites, ExecutionHandler eHandler) {
         this(timeout, maxConnections, maxConnectsPerIp, group, eHandler);
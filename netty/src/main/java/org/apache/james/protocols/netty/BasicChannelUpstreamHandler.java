@@ -18,9 +18,6 @@
  ****************************************************************/
 package org.apache.james.protocols.netty;
 
-import java.util.LinkedList;
-import java.util.List;
-
 import javax.net.ssl.SSLEngine;
 
 import org.apache.james.protocols.api.ProtocolSessionImpl;
@@ -29,22 +26,26 @@ import org.apache.james.protocols.api.ProtocolSession;
 import org.apache.james.protocols.api.ProtocolTransport;
 import org.apache.james.protocols.api.Response;
 import org.apache.james.protocols.api.Encryption;
-import org.apache.james.protocols.api.future.FutureResponse;
+import org.apache.james.protocols.api.ResponseQueueWatermarks;
 import org.apache.james.protocols.api.handler.ConnectHandler;
 import org.apache.james.protocols.api.handler.DisconnectHandler;
 import org.apache.james.protocols.api.handler.LineHandler;
 import org.apache.james.protocols.api.handler.ProtocolHandlerChain;
-import org.apache.james.protocols.api.handler.ProtocolHandlerResultHandler;
+import org.apache.james.protocols.api.handler.ProtocolHandlerIndex;
+import org.apache.james.protocols.api.handler.ProtocolHandlerResultPipeline;
+import org.apache.james.protocols.api.metrics.ProtocolMetrics;
 import org.apache.james.protocols.netty.NettyProtocolTransport;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelHandler.Sharable;
+import org.jboss.netty.channel.ChannelEvent;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelStateEvent;
 import org.jboss.netty.channel.ChannelUpstreamHandler;
 import org.jboss.netty.channel.ExceptionEvent;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.WriteCompletionEvent;
 import org.jboss.netty.handler.codec.frame.TooLongFrameException;
 
 /**
@@ -55,15 +56,90 @@ public class BasicChannelUpstreamHandler extends SimpleChannelUpstreamHandler {
     protected final Protocol protocol;
     protected final ProtocolHandlerChain chain;
     protected final Encryption secure;
+    private final boolean writeAggregation;
+    private final ResponseQueueWatermarks watermarks;
 
     public BasicChannelUpstreamHandler(Protocol protocol) {
         this(protocol, null);
     }
 
     public BasicChannelUpstreamHandler(Protocol protocol, Encryption secure) {
+        this(protocol, secure, false);
+    }
+
+    /**
+     * 
+     * @param protocol
+     * @param secure
+     * @param writeAggregation <code>true</code> if all {@link Response}'s which are written while processing the lines of one read should 
+     *                         be written to the client at once
+     */
+    public BasicChannelUpstreamHandler(Protocol protocol, Encryption secure, boolean writeAggregation) {
+        this(protocol, secure, writeAggregation, null);
+    }
+
+    /**
+     * 
+     * @param protocol
+     * @param secure
+     * @param writeAggregation <code>true</code> if all {@link Response}'s which are written while processing the lines of one read should 
+     *                         be written to the client at once
+     * @param watermarks       the {@link ResponseQueueWatermarks} which are shared by all sessions or <code>null</code> if the response 
+     *                         queue should not be bounded
+     */
+    public BasicChannelUpstreamHandler(Protocol protocol, Encryption secure, boolean writeAggregation, ResponseQueueWatermarks watermarks) {
         this.protocol = protocol;
         this.chain = protocol.getProtocolChain();
         this.secure = secure;
+        this.writeAggregation = writeAggregation;
+        this.watermarks = watermarks;
+    }
+
+    /**
+     * Flush the aggregated {@link Response}'s once a {@link ReadCompleteEvent} is received and reject the connection once a 
+     * {@link ConnectionRejectedEvent} is received. After a {@link ShutdownRequestedEvent} was received the connection is closed
+     * as soon as the session is not in a transaction anymore.
+     */
+    @Override
+    public void handleUpstream(ChannelHandlerContext ctx, ChannelEvent e) throws Exception {
+        if (e instanceof ConnectionRejectedEvent) {
+            connectionRejected(ctx);
+            return;
+        }
+        if (e instanceof ShutdownRequestedEvent) {
+            ProtocolSession session = (ProtocolSession) ctx.getAttachment();
+            if (session != null) {
+                ((NettyProtocolTransport) ((ProtocolSessionImpl) session).getProtocolTransport()).requestShutdown();
+                shutdownIfIdle(session);
+            }
+            return;
+        }
+        if (e instanceof ReadCompleteEvent) {
+            ProtocolSession session = (ProtocolSession) ctx.getAttachment();
+            if (session != null) {
+                ((NettyProtocolTransport) ((ProtocolSessionImpl) session).getProtocolTransport()).endBatch(session);
+                shutdownIfIdle(session);
+            }
+        }
+        super.handleUpstream(ctx, e);
+    }
+
+    /**
+     * Write the {@link Response} returned by {@link ProtocolSession#newShutdownResponse()} and close the connection if a shutdown was 
+     * requested and the session is not in a transaction
+     * 
+     * @param session
+     */
+    private void shutdownIfIdle(ProtocolSession session) {
+        ProtocolTransport transport = ((ProtocolSessionImpl) session).getProtocolTransport();
+        if (((NettyProtocolTransport) transport).shutdownIfIdle(session)) {
+            session.getLogger().info("Closing connection from " + session.getRemoteAddress().getAddress().getHostAddress() + " because the server shuts down");
+            Response r = session.newShutdownResponse();
+            if (r != null) {
+                transport.writeResponse(r, session);
+            }
+            transport.writeResponse(Response.DISCONNECT, session);
+        }
     }
 
 
@@ -81,26 +157,26 @@ public class BasicChannelUpstreamHandler extends SimpleChannelUpstreamHandler {
     @SuppressWarnings({ "unchecked", "rawtypes" })
     @Override
     public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
-        List<ConnectHandler> connectHandlers = chain.getHandlers(ConnectHandler.class);
-        List<ProtocolHandlerResultHandler> resultHandlers = chain.getHandlers(ProtocolHandlerResultHandler.class);
+        ProtocolHandlerIndex index = chain.getHandlerIndex();
+        ConnectHandler[] connectHandlers = index.getConnectHandlers();
+        ProtocolHandlerResultPipeline resultPipeline = index.getResultPipeline();
         ProtocolSession session = (ProtocolSession) ctx.getAttachment();
         session.getLogger().info("Connection established from " + session.getRemoteAddress().getAddress().getHostAddress());
+        ProtocolMetrics metrics = session.getMetrics();
+        if (metrics != null) {
+            metrics.connectionOpened();
+        }
         if (connectHandlers != null) {
-            for (int i = 0; i < connectHandlers.size(); i++) {
-                ConnectHandler cHandler = connectHandlers.get(i);
+            for (int i = 0; i < connectHandlers.length; i++) {
+                ConnectHandler cHandler = connectHandlers[i];
                 
-                long start = System.currentTimeMillis();
-                Response response = connectHandlers.get(i).onConnect(session);
-                long executionTime = System.currentTimeMillis() - start;
-                
-                for (int a = 0; a < resultHandlers.size(); a++) {
-                    // Disable till PROTOCOLS-37 is implemented
-                    if (response instanceof FutureResponse) {
-                        session.getLogger().debug("ProtocolHandlerResultHandler are not supported for FutureResponse yet");
-                        break;
-                    } 
-                    resultHandlers.get(a).onResponse(session, response, executionTime, cHandler);
+                long start = System.nanoTime();
+                Response response = cHandler.onConnect(session);
+                if (metrics != null) {
+                    metrics.recordHandler(cHandler, System.nanoTime() - start);
                 }
+                
+                response = resultPipeline.onResponse(session, response, start, cHandler);
                 if (response != null) {
                     // TODO: This kind of sucks but I was able to come up with something more elegant here
                     ((ProtocolSessionImpl)session).getProtocolTransport().writeResponse(response, session);
@@ -113,19 +189,54 @@ public class BasicChannelUpstreamHandler extends SimpleChannelUpstreamHandler {
 
 
 
+    /**
+     * Write the {@link Response} returned by {@link ProtocolSession#newConnectionLimitExceededResponse()} and close the connection.
+     * The {@link ConnectHandler}'s are not called for a rejected connection.
+     * 
+     * @param ctx
+     */
+    protected void connectionRejected(ChannelHandlerContext ctx) {
+        ProtocolSession session = (ProtocolSession) ctx.getAttachment();
+        session.getLogger().info("Connection limit exceeded for " + session.getRemoteAddress().getAddress().getHostAddress() + ", rejecting connection");
+        if (session.getMetrics() != null) {
+            session.getMetrics().connectionRejected();
+        }
+        ProtocolTransport transport = ((ProtocolSessionImpl) session).getProtocolTransport();
+        Response r = session.newConnectionLimitExceededResponse();
+        if (r != null) {
+            transport.writeResponse(r, session);
+        }
+        transport.writeResponse(Response.DISCONNECT, session);
+    }
+
     @SuppressWarnings({ "rawtypes", "unchecked" })
 	@Override
     public void channelDisconnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
-        List<DisconnectHandler> connectHandlers = chain.getHandlers(DisconnectHandler.class);
+        DisconnectHandler[] connectHandlers = chain.getHandlerIndex().getDisconnectHandlers();
         ProtocolSession session = (ProtocolSession) ctx.getAttachment();
         if (connectHandlers != null) {
-            for (int i = 0; i < connectHandlers.size(); i++) {
-                connectHandlers.get(i).onDisconnect(session);
+            for (int i = 0; i < connectHandlers.length; i++) {
+                connectHandlers[i].onDisconnect(session);
             }
         }
+        if (session.getMetrics() != null) {
+            session.getMetrics().connectionClosed();
+        }
         super.channelDisconnected(ctx, e);
     }
 
+    /**
+     * Count the bytes which were written to the socket
+     */
+    @Override
+    public void writeComplete(ChannelHandlerContext ctx, WriteCompletionEvent e) throws Exception {
+        ProtocolSession session = (ProtocolSession) ctx.getAttachment();
+        if (session != null && session.getMetrics() != null) {
+            session.getMetrics().bytesWritten(e.getWrittenAmount());
+        }
+        super.writeComplete(ctx, e);
+    }
+
 
     /**
      * Call the {@link LineHandler} 
@@ -134,35 +245,34 @@ public class BasicChannelUpstreamHandler extends SimpleChannelUpstreamHandler {
     @Override
     public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
         ProtocolSession pSession = (ProtocolSession) ctx.getAttachment();
-        LinkedList<LineHandler> lineHandlers = chain.getHandlers(LineHandler.class);
-        LinkedList<ProtocolHandlerResultHandler> resultHandlers = chain.getHandlers(ProtocolHandlerResultHandler.class);
+        ProtocolHandlerIndex index = chain.getHandlerIndex();
+        LineHandler lHandler = index.getLastLineHandler();
+        ProtocolHandlerResultPipeline resultPipeline = index.getResultPipeline();
 
         
-        if (lineHandlers.size() > 0) {
-        
-            ChannelBuffer buf = (ChannelBuffer) e.getMessage();      
+        try {
+            if (lHandler != null) {
+                ((NettyProtocolTransport) ((ProtocolSessionImpl) pSession).getProtocolTransport()).beginBatch();
             
-            LineHandler lHandler=  (LineHandler) lineHandlers.getLast();
-            long start = System.currentTimeMillis();            
-            Response response = lHandler.onLine(pSession,buf.toByteBuffer());
-            long executionTime = System.currentTimeMillis() - start;
-
-            for (int i = 0; i < resultHandlers.size(); i++) {
-                // Disable till PROTOCOLS-37 is implemented
-                if (response instanceof FutureResponse) {
-                    pSession.getLogger().debug("ProtocolHandlerResultHandler are not supported for FutureResponse yet");
-                    break;
-                } 
-                response = resultHandlers.get(i).onResponse(pSession, response, executionTime, lHandler);
-            }
-            if (response != null) {
-                // TODO: This kind of sucks but I was able to come up with something more elegant here
-                ((ProtocolSessionImpl)pSession).getProtocolTransport().writeResponse(response, pSession);
+                ChannelBuffer buf = (ChannelBuffer) e.getMessage();      
+                if (pSession.getMetrics() != null) {
+                    pSession.getMetrics().bytesRead(buf.readableBytes());
+                }
+                
+                long start = System.nanoTime();            
+                Response response = lHandler.onLine(pSession, LineFrameDecoder.toByteBuffer(buf));
+                response = resultPipeline.onResponse(pSession, response, start, lHandler);
+                if (response != null) {
+                    // TODO: This kind of sucks but I was able to come up with something more elegant here
+                    ((ProtocolSessionImpl)pSession).getProtocolTransport().writeResponse(response, pSession);
+                }
+    
             }
-
+            
+            super.messageReceived(ctx, e);
+        } finally {
+            LineFrameDecoder.frameProcessed(ctx);
         }
-        
-        super.messageReceived(ctx, e);
     }
 
 
@@ -202,7 +312,14 @@ public class BasicChannelUpstreamHandler extends SimpleChannelUpstreamHandler {
             }
         }
         
-        return protocol.newSession(new NettyProtocolTransport(ctx.getChannel(), engine));
+        NettyProtocolTransport transport = new NettyProtocolTransport(ctx.getChannel(), engine);
+        transport.setWriteAggregation(writeAggregation);
+        transport.setResponseQueueWatermarks(watermarks);
+        ProtocolSession session = protocol.newSession(transport);
+        if (session instanceof ProtocolSessionImpl) {
+            ((ProtocolSessionImpl) session).setMetrics(protocol.getMetrics());
+        }
+        return session;
     }
 
     @Override
@@ -0,0 +1,424 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.protocols.netty;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the concurrent connections and the connection rate per remote IP and per network prefix (for example a /24 IPv4 or a
+ * /64 IPv6 network).
+ * 
+ * The rates are enforced by token buckets which allow a burst of the configured connection count and refill one token every
+ * <code>period / connections</code>. An address is only tracked while it has open connections or an incompletely refilled bucket,
+ * so an entry is dropped as soon as it does not carry any state anymore. The addresses are stored as (masked) raw bytes and the
+ * count of tracked entries is bounded. If the bound is reached, the entries without open connections are evicted even if their
+ * bucket was not refilled yet. If all entries have open connections, connections from addresses which are not tracked yet are
+ * rejected.
+ * 
+ * All limits can be changed at runtime. This class is thread-safe.
+ */
+public class ConnectionLimiter {
+
+    /**
+     * The default maximal count of tracked addresses and prefixes
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 65536;
+
+    /**
+     * The default prefix length for IPv4 addresses
+     */
+    public static final int DEFAULT_IPV4_PREFIX_LENGTH = 24;
+
+    /**
+     * The default prefix length for IPv6 addresses
+     */
+    public static final int DEFAULT_IPV6_PREFIX_LENGTH = 64;
+
+    private final static long SWEEP_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+    private final static long FULL_SWEEP_INTERVAL = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final LimitTable ipTable;
+    private final LimitTable prefixTable;
+
+    private volatile int maxConnectionsPerIp;
+    private volatile long ipInterval;
+    private volatile long ipBurst;
+
+    private volatile int ipv4PrefixLength = DEFAULT_IPV4_PREFIX_LENGTH;
+    private volatile int ipv6PrefixLength = DEFAULT_IPV6_PREFIX_LENGTH;
+    private volatile int maxConnectionsPerPrefix;
+    private volatile long prefixInterval;
+    private volatile long prefixBurst;
+
+    public ConnectionLimiter() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * 
+     * @param maxEntries the maximal count of addresses and the maximal count of prefixes which are tracked at the same time
+     */
+    public ConnectionLimiter(int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be > 0");
+        }
+        this.ipTable = new LimitTable(maxEntries);
+        this.prefixTable = new LimitTable(maxEntries);
+    }
+
+    /**
+     * Set the maximal count of concurrent connections per IP
+     * 
+     * @param maxConnectionsPerIp the count or a value &lt;= 0 to disable the limit
+     */
+    public void setMaxConnectionsPerIp(int maxConnectionsPerIp) {
+        this.maxConnectionsPerIp = maxConnectionsPerIp;
+    }
+
+    public int getMaxConnectionsPerIp() {
+        return maxConnectionsPerIp;
+    }
+
+    /**
+     * Set the connection rate per IP
+     * 
+     * @param connections the count of connections which are allowed per period or a value &lt;= 0 to disable the limit
+     * @param period the period
+     * @param unit the unit of the period
+     */
+    public void setConnectionRatePerIp(int connections, long period, TimeUnit unit) {
+        long burst = connections > 0 ? unit.toNanos(period) : 0;
+        this.ipBurst = burst;
+        this.ipInterval = connections > 0 ? Math.max(1, burst / connections) : 0;
+    }
+
+    /**
+     * Set the prefix lengths which are used to group the addresses for the per prefix limits
+     * 
+     * @param ipv4PrefixLength the prefix length for IPv4 addresses (0 - 32)
+     * @param ipv6PrefixLength the prefix length for IPv6 addresses (0 - 128)
+     */
+    public void setPrefixLength(int ipv4PrefixLength, int ipv6PrefixLength) {
+        if (ipv4PrefixLength < 0 || ipv4PrefixLength > 32) {
+            throw new IllegalArgumentException("IPv4 prefix length must be between 0 and 32");
+        }
+        if (ipv6PrefixLength < 0 || ipv6PrefixLength > 128) {
+            throw new IllegalArgumentException("IPv6 prefix length must be between 0 and 128");
+        }
+        this.ipv4PrefixLength = ipv4PrefixLength;
+        this.ipv6PrefixLength = ipv6PrefixLength;
+    }
+
+    public int getIPv4PrefixLength() {
+        return ipv4PrefixLength;
+    }
+
+    public int getIPv6PrefixLength() {
+        return ipv6PrefixLength;
+    }
+
+    /**
+     * Set the maximal count of concurrent connections per prefix
+     * 
+     * @param maxConnectionsPerPrefix the count or a value &lt;= 0 to disable the limit
+     */
+    public void setMaxConnectionsPerPrefix(int maxConnectionsPerPrefix) {
+        this.maxConnectionsPerPrefix = maxConnectionsPerPrefix;
+    }
+
+    public int getMaxConnectionsPerPrefix() {
+        return maxConnectionsPerPrefix;
+    }
+
+    /**
+     * Set the connection rate per prefix
+     * 
+     * @param connections the count of connections which are allowed per period or a value &lt;= 0 to disable the limit
+     * @param period the period
+     * @param unit the unit of the period
+     */
+    public void setConnectionRatePerPrefix(int connections, long period, TimeUnit unit) {
+        long burst = connections > 0 ? unit.toNanos(period) : 0;
+        this.prefixBurst = burst;
+        this.prefixInterval = connections > 0 ? Math.max(1, burst / connections) : 0;
+    }
+
+    /**
+     * Try to acquire a connection for the given address. 
+     * 
+     * @param address
+     * @return lease which must be released once the connection was closed or <code>null</code> if the connection exceeds a limit
+     */
+    public Lease tryAcquire(InetAddress address) {
+        long now = System.nanoTime();
+        byte[] raw = address.getAddress();
+
+        Entry ipEntry = null;
+        int maxIp = maxConnectionsPerIp;
+        long ipInterval = this.ipInterval;
+        if (maxIp > 0 || ipInterval > 0) {
+            ipEntry = ipTable.acquire(new AddressKey(raw, raw.length * 8), maxIp, ipInterval, ipBurst, now);
+            if (ipEntry == null) {
+                return null;
+            }
+        }
+
+        Entry prefixEntry = null;
+        int maxPrefix = maxConnectionsPerPrefix;
+        long prefixInterval = this.prefixInterval;
+        if (maxPrefix > 0 || prefixInterval > 0) {
+            int prefixLength = raw.length == 4 ? ipv4PrefixLength : ipv6PrefixLength;
+            prefixEntry = prefixTable.acquire(new AddressKey(raw, prefixLength), maxPrefix, prefixInterval, prefixBurst, now);
+            if (prefixEntry == null) {
+                if (ipEntry != null) {
+                    ipTable.release(ipEntry, now);
+                }
+                return null;
+            }
+        }
+        return new Lease(ipEntry, prefixEntry);
+    }
+
+    /**
+     * Return the count of open connections which were acquired for the given IP. Only connections which were acquired while a
+     * per IP limit was set are counted.
+     * 
+     * @param address
+     * @return count
+     */
+    public int getConnections(InetAddress address) {
+        byte[] raw = address.getAddress();
+        return ipTable.getConnections(new AddressKey(raw, raw.length * 8));
+    }
+
+    /**
+     * Return the count of IP's which are tracked at the moment
+     * 
+     * @return count
+     */
+    public int getTrackedAddressCount() {
+        return ipTable.size();
+    }
+
+    /**
+     * Return the count of prefixes which are tracked at the moment
+     * 
+     * @return count
+     */
+    public int getTrackedPrefixCount() {
+        return prefixTable.size();
+    }
+
+    /**
+     * A connection which was accepted by the {@link ConnectionLimiter}
+     */
+    public final class Lease {
+        private final Entry ipEntry;
+        private final Entry prefixEntry;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        private Lease(Entry ipEntry, Entry prefixEntry) {
+            this.ipEntry = ipEntry;
+            this.prefixEntry = prefixEntry;
+        }
+
+        /**
+         * Release the connection. Calling this method more than once has no effect.
+         */
+        public void release() {
+            if (released.compareAndSet(false, true)) {
+                long now = System.nanoTime();
+                if (ipEntry != null) {
+                    ipTable.release(ipEntry, now);
+                }
+                if (prefixEntry != null) {
+                    prefixTable.release(prefixEntry, now);
+                }
+            }
+        }
+    }
+
+    /**
+     * Tracks the open connections and the token bucket of an address or prefix. Guarded by its own monitor.
+     */
+    private static final class Entry {
+        private final AddressKey key;
+        private int connections;
+
+        // The time at which the bucket is completely refilled again
+        private long refilled;
+        private boolean removed;
+
+        private Entry(AddressKey key, long now) {
+            this.key = key;
+            this.refilled = now;
+        }
+
+        private boolean isIdle(long now) {
+            return connections == 0 && refilled - now <= 0;
+        }
+    }
+
+    private static final class LimitTable {
+        private final ConcurrentMap<AddressKey, Entry> entries = new ConcurrentHashMap<AddressKey, Entry>();
+        private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+        private final int maxEntries;
+
+        private LimitTable(int maxEntries) {
+            this.maxEntries = maxEntries;
+        }
+
+        private Entry acquire(AddressKey key, int maxConnections, long interval, long burst, long now) {
+            sweepIfNeeded(now);
+            while (true) {
+                Entry entry = entries.get(key);
+                if (entry == null) {
+                    if (entries.size() >= maxEntries) {
+                        return null;
+                    }
+                    entry = new Entry(key, now);
+                    Entry old = entries.putIfAbsent(key, entry);
+                    if (old != null) {
+                        entry = old;
+                    }
+                }
+                synchronized (entry) {
+                    if (entry.removed) {
+                        // evicted concurrently, so try again with a fresh entry
+                        continue;
+                    }
+                    if (maxConnections > 0 && entry.connections >= maxConnections) {
+                        return null;
+                    }
+                    if (interval > 0) {
+                        long refilled = entry.refilled - now > 0 ? entry.refilled : now;
+                        if (refilled + interval - now > burst) {
+                            return null;
+                        }
+                        entry.refilled = refilled + interval;
+                    }
+                    entry.connections++;
+                    return entry;
+                }
+            }
+        }
+
+        private void release(Entry entry, long now) {
+            synchronized (entry) {
+                entry.connections--;
+                if (entry.isIdle(now)) {
+                    remove(entry);
+                }
+            }
+        }
+
+        private int getConnections(AddressKey key) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                return 0;
+            }
+            synchronized (entry) {
+                return entry.connections;
+            }
+        }
+
+        private int size() {
+            return entries.size();
+        }
+
+        // Must be called while holding the monitor of the entry
+        private void remove(Entry entry) {
+            entry.removed = true;
+            entries.remove(entry.key, entry);
+        }
+
+        /**
+         * Drop the entries which don't carry any state anymore. This is done at most once per second, or more often if the table
+         * is full. If the table is still full afterwards, the entries without open connections are dropped as well.
+         */
+        private void sweepIfNeeded(long now) {
+            boolean full = entries.size() >= maxEntries;
+            long last = lastSweep.get();
+            if (now - last < (full ? FULL_SWEEP_INTERVAL : SWEEP_INTERVAL) || !lastSweep.compareAndSet(last, now)) {
+                return;
+            }
+            sweep(now, false);
+            if (full && entries.size() >= maxEntries) {
+                sweep(now, true);
+            }
+        }
+
+        private void sweep(long now, boolean evict) {
+            Iterator<Entry> it = entries.values().iterator();
+            while (it.hasNext()) {
+                Entry entry = it.next();
+                synchronized (entry) {
+                    if (!entry.removed && (entry.isIdle(now) || (evict && entry.connections == 0))) {
+                        remove(entry);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The raw bytes of an address of which all bits behind the prefix are cleared
+     */
+    private static final class AddressKey {
+        private final byte[] address;
+        private final int hashCode;
+
+        private AddressKey(byte[] raw, int prefixLength) {
+            byte[] address = raw.clone();
+            for (int i = 0; i < address.length; i++) {
+                int bits = prefixLength - i * 8;
+                if (bits <= 0) {
+                    address[i] = 0;
+                } else if (bits < 8) {
+                    address[i] &= (byte) (0xFF << (8 - bits));
+                }
+            }
+            this.address = address;
+            this.hashCode = Arrays.hashCode(address);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj instanceof AddressKey) {
+                return Arrays.equals(address, ((AddressKey) obj).address);
+            }
+            return false;
+        }
+    }
+}
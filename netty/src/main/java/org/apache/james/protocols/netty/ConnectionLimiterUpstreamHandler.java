@@ -0,0 +1,88 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.protocols.netty;
+
+import java.net.InetSocketAddress;
+
+import org.jboss.netty.channel.ChannelHandler.Sharable;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.ChannelUpstreamHandler;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+
+/**
+ * {@link ChannelUpstreamHandler} which enforces the limits of a {@link ConnectionLimiter}. 
+ * 
+ * A connection which exceeds a limit is not reported as connected to the next handlers. A {@link ConnectionRejectedEvent} is fired 
+ * instead, so the protocol can answer with a proper response before the connection is closed.
+ */
+@Sharable
+public class ConnectionLimiterUpstreamHandler extends SimpleChannelUpstreamHandler {
+
+    private final static Object REJECTED = new Object();
+
+    private final ConnectionLimiter limiter;
+
+    public ConnectionLimiterUpstreamHandler(ConnectionLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    public ConnectionLimiter getConnectionLimiter() {
+        return limiter;
+    }
+
+    @Override
+    public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        InetSocketAddress remoteAddress = (InetSocketAddress) ctx.getChannel().getRemoteAddress();
+        ConnectionLimiter.Lease lease = limiter.tryAcquire(remoteAddress.getAddress());
+        if (lease == null) {
+            ctx.setAttachment(REJECTED);
+        } else {
+            ctx.setAttachment(lease);
+        }
+        super.channelOpen(ctx, e);
+    }
+
+    @Override
+    public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        if (ctx.getAttachment() == REJECTED) {
+            ctx.sendUpstream(new ConnectionRejectedEvent(ctx.getChannel()));
+        } else {
+            super.channelConnected(ctx, e);
+        }
+    }
+
+    @Override
+    public void channelDisconnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        // The next handlers never saw the connection of a rejected channel, so don't tell them about the disconnect
+        if (ctx.getAttachment() != REJECTED) {
+            super.channelDisconnected(ctx, e);
+        }
+    }
+
+    @Override
+    public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        Object attachment = ctx.getAttachment();
+        if (attachment instanceof ConnectionLimiter.Lease) {
+            ((ConnectionLimiter.Lease) attachment).release();
+        }
+        ctx.setAttachment(null);
+        super.channelClosed(ctx, e);
+    }
+}
@@ -18,86 +18,33 @@
  ****************************************************************/
 package org.apache.james.protocols.netty;
 
-import java.net.InetSocketAddress;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 
-import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelPipeline;
-import org.jboss.netty.channel.ChannelStateEvent;
 import org.jboss.netty.channel.ChannelUpstreamHandler;
-import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
 
 /**
  * {@link ChannelUpstreamHandler} which limit connections per IP
  * 
  * This handler must be used as singleton when adding it to the {@link ChannelPipeline} to work correctly
- *
- * TODO: Remove when its committed to NETTY. 
- *       https://jira.jboss.org/jira/browse/NETTY-311
  */
-public class ConnectionPerIpLimitUpstreamHandler extends SimpleChannelUpstreamHandler{
+public class ConnectionPerIpLimitUpstreamHandler extends ConnectionLimiterUpstreamHandler {
 
-    private final ConcurrentMap<String, AtomicInteger> connections = new ConcurrentHashMap<String, AtomicInteger>();    
-    private volatile int maxConnectionsPerIp = -1;
-    
     public ConnectionPerIpLimitUpstreamHandler(int maxConnectionsPerIp) {
-        this.maxConnectionsPerIp = maxConnectionsPerIp;
+        super(new ConnectionLimiter());
+        setMaxConnectionsPerIp(maxConnectionsPerIp);
     }
     
     public int getConnections(String ip) {
-        AtomicInteger count = connections.get(ip);
-        if (count == null) {
+        try {
+            return getConnectionLimiter().getConnections(InetAddress.getByName(ip));
+        } catch (UnknownHostException e) {
             return 0;
-        } else {
-            return count.get();
         }
     }
     
     public void setMaxConnectionsPerIp(int maxConnectionsPerIp) {
-        this.maxConnectionsPerIp = maxConnectionsPerIp;
-    }
-    
-    
-    @Override
-    public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
-
-        if (maxConnectionsPerIp > 0) {
-            InetSocketAddress remoteAddress = (InetSocketAddress) ctx.getChannel().getRemoteAddress();
-            String remoteIp = remoteAddress.getAddress().getHostAddress();
-            
-            AtomicInteger atomicCount = connections.get(remoteIp);
-
-            if (atomicCount == null) {
-            	atomicCount = new AtomicInteger(1);
-                AtomicInteger oldAtomicCount = connections.putIfAbsent(remoteIp, atomicCount);
-                // if another thread put a new counter for this ip, we must use the other one.
-                if (oldAtomicCount != null) {
-                	atomicCount = oldAtomicCount;
-                }
-            } else {
-                Integer count = atomicCount.incrementAndGet();
-                if (count > maxConnectionsPerIp) {
-                    ctx.getChannel().close();
-                }
-            }
-        }
-        
-        super.channelOpen(ctx, e);
-    }
-    @Override
-    public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
-        if (maxConnectionsPerIp > 0) {
-            InetSocketAddress remoteAddress = (InetSocketAddress) ctx.getChannel().getRemoteAddress();
-            String remoteIp = remoteAddress.getAddress().getHostAddress();
-            
-            AtomicInteger atomicCount = connections.get(remoteIp);
-            if (atomicCount != null) {
-                atomicCount.decrementAndGet();
-            }              
-            
-        }
-        super.channelClosed(ctx, e);
+        getConnectionLimiter().setMaxConnectionsPerIp(maxConnectionsPerIp);
     }
 }
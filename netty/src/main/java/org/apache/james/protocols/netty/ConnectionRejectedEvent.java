@@ -0,0 +1,58 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.protocols.netty;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.Channels;
+
+/**
+ * {@link ChannelEvent} which is fired upstream instead of the CONNECTED event if a connection exceeds a limit. The handler which 
+ * receives it is responsible for writing a rejection response to the client and closing the channel.
+ */
+public final class ConnectionRejectedEvent implements ChannelEvent {
+
+    private final Channel channel;
+
+    public ConnectionRejectedEvent(Channel channel) {
+        this.channel = channel;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.jboss.netty.channel.ChannelEvent#getChannel()
+     */
+    public Channel getChannel() {
+        return channel;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.jboss.netty.channel.ChannelEvent#getFuture()
+     */
+    public ChannelFuture getFuture() {
+        return Channels.succeededFuture(channel);
+    }
+
+    @Override
+    public String toString() {
+        return channel.toString() + " REJECTED";
+    }
+}
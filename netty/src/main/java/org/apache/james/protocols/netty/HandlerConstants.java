@@ -37,12 +37,16 @@ public interface HandlerConstants {
 
     public static final String CONNECTION_PER_IP_LIMIT_HANDLER = "connectionPerIpLimit";
 
+    public static final String READ_COMPLETE_HANDLER = "readCompleteHandler";
+
     public static final String FRAMER = "framer";
 
     public static final String EXECUTION_HANDLER = "executionHandler";
 
     public static final String TIMEOUT_HANDLER = "timeoutHandler";
 
+    public static final String PENDING_RESPONSE_HANDLER = "pendingResponseHandler";
+
     public static final String CORE_HANDLER = "coreHandler";
 
     public static final String CHUNK_HANDLER = "chunkHandler";
@@ -0,0 +1,321 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.protocols.netty;
+
+import java.nio.ByteBuffer;
+
+import org.apache.james.protocols.api.handler.BulkLineHandler;
+import org.apache.james.protocols.api.handler.PayloadTerminator;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelUpstreamHandler;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.handler.codec.frame.TooLongFrameException;
+
+/**
+ * {@link ChannelUpstreamHandler} which splits the received {@link ChannelBuffer}'s in lines. The delimiter is not stripped.
+ * 
+ * In contrast to the {@link org.jboss.netty.handler.codec.frame.DelimiterBasedFrameDecoder} the frames are slices of the received 
+ * {@link ChannelBuffer} and so no copy is needed. Only the bytes of an incomplete line are copied once more data is received. As the
+ * received {@link ChannelBuffer}'s are never modified it's safe to hand over the slices to another thread.
+ * 
+ * If a {@link PayloadTerminator} is set, the decoder switches to the bulk mode which is used by {@link BulkLineHandler}'s. In this mode 
+ * all complete lines of the received data are passed as one frame till the payload is terminated.
+ * 
+ * Only one frame is passed upstream at a time. The next frame is decoded once the handler which consumed the frame called 
+ * {@link #frameProcessed(ChannelHandlerContext)}, by the thread which calls it. So if the handlers are executed by another thread (for 
+ * example by an ExecutionHandler or after a pending {@link org.apache.james.protocols.api.future.FutureResponse}), the data behind a 
+ * command is never framed before the command was processed and so maybe switched the decoder to the bulk mode. If the handlers are 
+ * executed by the IO-Thread, all frames of the received data are still passed upstream in one go.
+ */
+public class LineFrameDecoder extends SimpleChannelUpstreamHandler {
+
+    private final static byte LF = '\n';
+    private final static byte CR = '\r';
+    private final static byte DOT = '.';
+    
+    private final int maxLineLength;
+    
+    // guarded by this, as the frames may be decoded by a thread of the ExecutionHandler
+    private ChannelBuffer cumulation;
+    private boolean discarding = false;
+    private long tooLongFrameLength;
+    private PayloadTerminator terminator;
+    private long remaining;
+    
+    // guarded by this
+    private boolean frameInFlight;
+    private boolean decoding;
+    private boolean readCompletePending;
+    
+    private volatile ChannelHandlerContext ctx;
+    
+    public LineFrameDecoder(int maxLineLength) {
+        if (maxLineLength <= 0) {
+            throw new IllegalArgumentException("maxLineLength must be a positive integer: " + maxLineLength);
+        }
+        this.maxLineLength = maxLineLength;
+    }
+
+    /**
+     * Set the {@link PayloadTerminator} of the payload which is expected next or <code>null</code> to split all data in lines. The new 
+     * mode is used for all data which was not passed as a frame yet.
+     * 
+     * @param terminator
+     */
+    public synchronized void setPayloadTerminator(PayloadTerminator terminator) {
+        this.terminator = terminator;
+        if (terminator != null) {
+            remaining = terminator.getLength();
+        }
+    }
+    
+    /**
+     * Return the current {@link PayloadTerminator} or <code>null</code> if all data is split in lines
+     * 
+     * @return terminator
+     */
+    public synchronized PayloadTerminator getPayloadTerminator() {
+        return terminator;
+    }
+    
+    /**
+     * Return a read-only {@link ByteBuffer} which holds the readable bytes of the given frame. The {@link ByteBuffer} starts at position 0, 
+     * so it's safe to call {@link ByteBuffer#rewind()} on it.
+     * 
+     * @param frame
+     * @return buffer
+     */
+    public static ByteBuffer toByteBuffer(ChannelBuffer frame) {
+        return frame.toByteBuffer().slice().asReadOnlyBuffer();
+    }
+    
+    /**
+     * Tell the {@link LineFrameDecoder} of the pipeline that the last frame was processed, so the next one can be decoded. This MUST be 
+     * called by every handler which consumes the frames, once it is done with a frame. It is a no-op if a custom framer is used.
+     * 
+     * @param ctx the {@link ChannelHandlerContext} of the handler which consumed the frame
+     */
+    public static void frameProcessed(ChannelHandlerContext ctx) {
+        ChannelHandler framer = ctx.getPipeline().get(HandlerConstants.FRAMER);
+        if (framer instanceof LineFrameDecoder) {
+            ((LineFrameDecoder) framer).frameProcessed();
+        }
+    }
+    
+    /**
+     * Decode the next frame and pass it upstream, as the last one was processed. If the IO-Thread passes the frames upstream at the 
+     * moment this returns directly and the IO-Thread goes on.
+     */
+    private void frameProcessed() {
+        ChannelHandlerContext ctx = this.ctx;
+        synchronized (this) {
+            frameInFlight = false;
+            if (ctx == null || decoding) {
+                return;
+            }
+            decoding = true;
+        }
+        decodeFrames(ctx, false);
+    }
+    
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        Object m = e.getMessage();
+        if (!(m instanceof ChannelBuffer)) {
+            ctx.sendUpstream(e);
+            return;
+        }
+        ChannelBuffer input = (ChannelBuffer) m;
+        if (!input.readable()) {
+            return;
+        }
+        this.ctx = ctx;
+        
+        synchronized (this) {
+            if (cumulation == null) {
+                cumulation = input;
+            } else if (cumulation.readableBytes() > maxLineLength) {
+                // complete frames are held back till the last one was processed, so don't copy them again and again
+                cumulation = ChannelBuffers.wrappedBuffer(cumulation, input);
+            } else {
+                // copy the incomplete line and the new data to a new buffer, as we must not modify a buffer which was already sliced
+                ChannelBuffer buffer = ChannelBuffers.buffer(cumulation.readableBytes() + input.readableBytes());
+                buffer.writeBytes(cumulation);
+                buffer.writeBytes(input);
+                cumulation = buffer;
+            }
+            if (decoding) {
+                // another thread passes the frames upstream at the moment and will pick up the new data
+                return;
+            }
+            decoding = true;
+        }
+        decodeFrames(ctx, true);
+    }
+    
+    /**
+     * Pass frames upstream till no complete frame is left or a frame was not processed yet. The caller MUST have set the decoding flag.
+     * 
+     * @param ctx
+     * @param ioThread <code>true</code> if called for received data. The {@link ReadCompleteUpstreamHandler} fires the 
+     *                 {@link ReadCompleteEvent} in this case, otherwise it is fired here once all frames were processed
+     */
+    private void decodeFrames(ChannelHandlerContext ctx, boolean ioThread) {
+        boolean readComplete = false;
+        try {
+            while (true) {
+                ChannelBuffer frame = null;
+                synchronized (this) {
+                    if (!frameInFlight && cumulation != null) {
+                        frame = decode(ctx, cumulation);
+                        if (!cumulation.readable()) {
+                            cumulation = null;
+                        }
+                    }
+                    if (frame == null) {
+                        decoding = false;
+                        if (!frameInFlight && readCompletePending) {
+                            readCompletePending = false;
+                            readComplete = !ioThread;
+                        }
+                        break;
+                    }
+                    frameInFlight = true;
+                    if (!ioThread) {
+                        readCompletePending = true;
+                    }
+                }
+                Channels.fireMessageReceived(ctx, frame, ctx.getChannel().getRemoteAddress());
+            }
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                decoding = false;
+                frameInFlight = false;
+            }
+            throw e;
+        }
+        if (readComplete) {
+            ctx.sendUpstream(new ReadCompleteEvent(ctx.getChannel()));
+        }
+    }
+
+    private synchronized ChannelBuffer decode(ChannelHandlerContext ctx, ChannelBuffer buffer) {
+        if (terminator != null) {
+            if (terminator.isDotLine()) {
+                return decodeDotTerminated(ctx, buffer);
+            } else {
+                return decodeLength(ctx, buffer);
+            }
+        }
+        return decodeLine(ctx, buffer);
+    }
+    
+    private ChannelBuffer decodeLength(ChannelHandlerContext ctx, ChannelBuffer buffer) {
+        if (remaining == 0) {
+            // an empty payload
+            terminator = null;
+            return decodeLine(ctx, buffer);
+        }
+        int length = (int) Math.min(remaining, buffer.readableBytes());
+        remaining -= length;
+        if (remaining == 0) {
+            terminator = null;
+        }
+        return buffer.readSlice(length);
+    }
+    
+    private ChannelBuffer decodeDotTerminated(ChannelHandlerContext ctx, ChannelBuffer buffer) {
+        int start = buffer.readerIndex();
+        int end = buffer.writerIndex();
+        int lineStart = start;
+        while (lineStart < end) {
+            int eol = buffer.indexOf(lineStart, end, LF);
+            if (eol == -1) {
+                break;
+            }
+            if (eol - lineStart == 2 && buffer.getByte(lineStart) == DOT && buffer.getByte(lineStart + 1) == CR) {
+                if (lineStart == start) {
+                    // the terminating line, so switch back to single lines after it
+                    terminator = null;
+                    return buffer.readSlice(3);
+                } 
+                // pass the terminating line on its own
+                break;
+            }
+            lineStart = eol + 1;
+        }
+        if (lineStart == start) {
+            // no complete line
+            return decodeLine(ctx, buffer);
+        }
+        return buffer.readSlice(lineStart - start);
+    }
+    
+    private ChannelBuffer decodeLine(ChannelHandlerContext ctx, ChannelBuffer buffer) {
+        int start = buffer.readerIndex();
+        int eol = buffer.indexOf(start, buffer.writerIndex(), LF);
+        if (eol == -1) {
+            if (buffer.readableBytes() > maxLineLength) {
+                // discard everything till the next delimiter
+                tooLongFrameLength += buffer.readableBytes();
+                buffer.skipBytes(buffer.readableBytes());
+                discarding = true;
+            }
+            return null;
+        }
+        
+        int length = eol - start + 1;
+        if (discarding) {
+            buffer.skipBytes(length);
+            long frameLength = tooLongFrameLength + length;
+            discarding = false;
+            tooLongFrameLength = 0;
+            fail(ctx, frameLength);
+            return decodeNext(ctx, buffer);
+        }
+        
+        int contentLength = length - 1;
+        if (contentLength > 0 && buffer.getByte(eol - 1) == CR) {
+            contentLength--;
+        }
+        if (contentLength > maxLineLength) {
+            buffer.skipBytes(length);
+            fail(ctx, length);
+            return decodeNext(ctx, buffer);
+        }
+        return buffer.readSlice(length);
+    }
+    
+    private ChannelBuffer decodeNext(ChannelHandlerContext ctx, ChannelBuffer buffer) {
+        if (buffer.readable()) {
+            return decode(ctx, buffer);
+        }
+        return null;
+    }
+    
+    private void fail(ChannelHandlerContext ctx, long frameLength) {
+        Channels.fireExceptionCaught(ctx, new TooLongFrameException("frame length exceeds " + maxLineLength + ": " + frameLength + " - discarded"));
+    }
+}
@@ -22,6 +22,7 @@ import org.apache.james.protocols.api.ProtocolSessionImpl;
 import org.apache.james.protocols.api.ProtocolSession;
 import org.apache.james.protocols.api.Response;
 import org.apache.james.protocols.api.handler.LineHandler;
+import org.apache.james.protocols.api.metrics.ProtocolMetrics;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelUpstreamHandler;
@@ -43,14 +44,34 @@ public class LineHandlerUpstreamHandler<S extends ProtocolSession> extends Simpl
         this.session = session;
     }
     
+    /**
+     * Return the {@link LineHandler} which is called by this {@link ChannelUpstreamHandler}
+     * 
+     * @return handler
+     */
+    public LineHandler<S> getLineHandler() {
+        return handler;
+    }
+    
     @Override
     public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {        
         ChannelBuffer buf = (ChannelBuffer) e.getMessage();      
+        ((NettyProtocolTransport) ((ProtocolSessionImpl) session).getProtocolTransport()).beginBatch();
 
-        Response response = handler.onLine(session, buf.toByteBuffer()); 
-        if (response != null) {
-            // TODO: This kind of sucks but I was not able to come up with something more elegant here
-            ((ProtocolSessionImpl)session).getProtocolTransport().writeResponse(response, session);
+        try {
+            ProtocolMetrics metrics = session.getMetrics();
+            long start = System.nanoTime();
+            Response response = handler.onLine(session, LineFrameDecoder.toByteBuffer(buf)); 
+            if (metrics != null) {
+                metrics.recordHandler(handler, System.nanoTime() - start);
+                metrics.bytesRead(buf.readableBytes());
+            }
+            if (response != null) {
+                // TODO: This kind of sucks but I was not able to come up with something more elegant here
+                ((ProtocolSessionImpl)session).getProtocolTransport().writeResponse(response, session);
+            }
+        } finally {
+            LineFrameDecoder.frameProcessed(ctx);
         }
     }
 
@@ -24,19 +24,33 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetSocketAddress;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.net.ssl.SSLEngine;
 
 import org.apache.james.protocols.api.AbstractProtocolTransport;
+import org.apache.james.protocols.api.BytesStreamSegment;
 import org.apache.james.protocols.api.CombinedInputStream;
+import org.apache.james.protocols.api.FileStreamSegment;
+import org.apache.james.protocols.api.InputStreamSegment;
 import org.apache.james.protocols.api.ProtocolSession;
+import org.apache.james.protocols.api.StreamSegment;
+import org.apache.james.protocols.api.future.FutureResponse;
+import org.apache.james.protocols.api.handler.BulkLineHandler;
+import org.apache.james.protocols.api.handler.PayloadTerminator;
 import org.apache.james.protocols.api.handler.LineHandler;
+import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelHandler;
 import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.DefaultFileRegion;
 import org.jboss.netty.handler.ssl.SslHandler;
+import org.jboss.netty.handler.stream.ChunkedNioFile;
 import org.jboss.netty.handler.stream.ChunkedStream;
 
 /**
@@ -44,15 +58,75 @@ import org.jboss.netty.handler.stream.ChunkedStream;
  */
 public class NettyProtocolTransport extends AbstractProtocolTransport {
     
+    /**
+     * Chunk size which is used for streams that can not be transferred via zero-copy
+     */
+    private final static int CHUNK_SIZE = 8192;
+    
+    /**
+     * Chunk size which is used when TLS is active. Files can not be transferred via zero-copy in this case, so use bigger chunks to 
+     * reduce the overhead per chunk
+     */
+    private final static int TLS_CHUNK_SIZE = 65536;
+    
     private final Channel channel;
     private final SSLEngine engine;
     private int lineHandlerCount = 0;
+    private volatile boolean shutdownRequested;
+    private final AtomicBoolean shutdown = new AtomicBoolean(false);
     
     public NettyProtocolTransport(Channel channel, SSLEngine engine) {
         this.channel = channel;
         this.engine = engine;
     }
 
+    /**
+     * Mark the transport to be closed once the session is not in a transaction anymore
+     */
+    void requestShutdown() {
+        shutdownRequested = true;
+    }
+
+    /**
+     * Return <code>true</code> if a shutdown was requested but the connection was not closed yet
+     * 
+     * @return requested
+     */
+    boolean isShutdownRequested() {
+        return shutdownRequested && !shutdown.get();
+    }
+
+    /**
+     * Return <code>true</code> if a shutdown was requested and this is the first call which finds the session outside of a transaction.
+     * 
+     * While a {@link FutureResponse} is pending or held back lines are passed upstream by an other thread, the session is never treated
+     * as idle. The {@link PendingResponseUpstreamHandler} fires a new {@link ShutdownRequestedEvent} once it is done.
+     * 
+     * @param session
+     * @return shutdown
+     */
+    boolean shutdownIfIdle(ProtocolSession session) {
+        if (!shutdownRequested || isResponsePending()) {
+            return false;
+        }
+        ChannelHandler handler = channel.getPipeline().get(HandlerConstants.PENDING_RESPONSE_HANDLER);
+        if (handler instanceof PendingResponseUpstreamHandler && !((PendingResponseUpstreamHandler) handler).isIdle()) {
+            return false;
+        }
+        return !session.isInTransaction() && shutdown.compareAndSet(false, true);
+    }
+
+    /**
+     * Pass the lines upstream which were held back while a {@link FutureResponse} was pending
+     */
+    @Override
+    protected void onResponsesWritten(ProtocolSession session) {
+        ChannelHandler handler = channel.getPipeline().get(HandlerConstants.PENDING_RESPONSE_HANDLER);
+        if (handler instanceof PendingResponseUpstreamHandler) {
+            ((PendingResponseUpstreamHandler) handler).resume();
+        }
+    }
+
     /**
      * @see org.apache.james.protocols.api.ProtocolTransport#getRemoteAddress()
      */
@@ -87,8 +161,11 @@ public class NettyProtocolTransport extends AbstractProtocolTransport {
      */
     public void popLineHandler() {
         if (lineHandlerCount > 0) {
-            channel.getPipeline().remove("lineHandler" + lineHandlerCount);
+            LineHandlerUpstreamHandler<?> handler = (LineHandlerUpstreamHandler<?>) channel.getPipeline().remove("lineHandler" + lineHandlerCount);
             lineHandlerCount--;
+            if (handler.getLineHandler() instanceof BulkLineHandler) {
+                setPayloadTerminator(null);
+            }
         }
     }
 
@@ -113,55 +190,144 @@ public class NettyProtocolTransport extends AbstractProtocolTransport {
         if (startTLS) {
             prepareStartTLS();
         }
-        channel.write(ChannelBuffers.wrappedBuffer(bytes));
+        write(ChannelBuffers.wrappedBuffer(bytes));
         
     }
 
+    /**
+     * Write all given <code>byte</code> arrays with one gathering write
+     */
+    @Override
+    protected void writeToClient(List<byte[]> bytes, ProtocolSession session) {
+        write(ChannelBuffers.wrappedBuffer(bytes.toArray(new byte[bytes.size()][])));
+    }
+    
+    /**
+     * Write the {@link ChannelBuffer} and keep track of the bytes which were not written to the remote peer yet
+     * 
+     * @param buffer
+     */
+    private ChannelFuture write(ChannelBuffer buffer) {
+        return write(buffer, buffer.readableBytes());
+    }
+    
+    /**
+     * Write the given message and keep track of the bytes which were not written to the remote peer yet. If the length of the message
+     * is not known <code>-1</code> must be given as <code>bytes</code>.
+     * 
+     * @param message
+     * @param bytes
+     */
+    private ChannelFuture write(Object message, final long bytes) {
+        ChannelFuture future = channel.write(message);
+        if (bytes > 0) {
+            bytesQueued(bytes);
+            future.addListener(new ChannelFutureListener() {
+                
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    bytesWritten(bytes);
+                }
+            });
+        }
+        return future;
+    }
+
     @Override
     protected void close() {
         channel.write(ChannelBuffers.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
     }
 
 
+    /**
+     * Split the {@link InputStream} in {@link StreamSegment}'s, so every {@link FileInputStream} which is part of a 
+     * {@link CombinedInputStream} can get transferred via zero-copy
+     */
     @Override
     protected void writeToClient(InputStream in, ProtocolSession session, boolean startTLS) {
+        List<StreamSegment> segments = new ArrayList<StreamSegment>();
+        addSegments(in, segments);
+        writeToClient(segments, session, startTLS);
+    }
+    
+    private void addSegments(InputStream in, List<StreamSegment> segments) {
+        if (in instanceof CombinedInputStream) {
+            Iterator<InputStream> streams = ((CombinedInputStream) in).iterator();
+            while(streams.hasNext()) {
+                addSegments(streams.next(), segments);
+            }
+        } else if (in instanceof FileInputStream) {
+            FileChannel fChannel = ((FileInputStream) in).getChannel();
+            try {
+                long position = fChannel.position();
+                segments.add(new FileStreamSegment(fChannel, position, fChannel.size() - position));
+            } catch (IOException e) {
+                // We handle this later
+                segments.add(new InputStreamSegment(new ExceptionInputStream(e)));
+            }
+        } else {
+            segments.add(new InputStreamSegment(in));
+        }
+    }
+
+    /**
+     * Write every {@link FileStreamSegment} via a {@link DefaultFileRegion} and so make use of zero-copy. If TLS is active the file is 
+     * written in big chunks. All other {@link StreamSegment}'s are written in chunks or directly if they are backed by a <code>byte</code> 
+     * array.
+     * 
+     * The {@link FileChannel}'s are not closed per segment, as more then one segment may share the same {@link FileChannel}. They are 
+     * closed once the last segment was written.
+     */
+    @Override
+    protected void writeToClient(final List<StreamSegment> segments, ProtocolSession session, boolean startTLS) {
         if (startTLS) {
             prepareStartTLS();
         }
-        if (!isTLSStarted()) {
-            if (in instanceof FileInputStream) {
-                FileChannel fChannel = ((FileInputStream) in).getChannel();
-                try {
-                    channel.write(new DefaultFileRegion(fChannel, 0, fChannel.size(), true));
-
-                } catch (IOException e) {
-                    // We handle this later
-                    channel.write(new ChunkedStream(new ExceptionInputStream(e)));
-                }
-                return;
-
-            } else if (in instanceof CombinedInputStream) {
-                Iterator<InputStream> streams = ((CombinedInputStream) in).iterator();
-                while(streams.hasNext()) {
-                    InputStream pIn = streams.next();
-                    if (pIn instanceof FileInputStream) {
-                        FileChannel fChannel = ((FileInputStream) in).getChannel();
-                        try {
-                            channel.write(new DefaultFileRegion(fChannel, 0, fChannel.size(), true));
-                            return;
-
-                        } catch (IOException e) {
-                            // We handle this later
-                            channel.write(new ChunkedStream(new ExceptionInputStream(e)));
-                        }                    
-                    } else {
-                        channel.write(new ChunkedStream(in));
+        boolean tls = isTLSStarted();
+        ChannelFuture future = null;
+        for (int i = 0; i < segments.size(); i++) {
+            StreamSegment segment = segments.get(i);
+            if (segment instanceof FileStreamSegment) {
+                FileStreamSegment fSegment = (FileStreamSegment) segment;
+                if (tls) {
+                    try {
+                        future = write(new SharedChunkedNioFile(fSegment), fSegment.getLength());
+                    } catch (IOException e) {
+                        // We handle this later
+                        future = channel.write(new ChunkedStream(new ExceptionInputStream(e)));
                     }
+                } else {
+                    future = write(new DefaultFileRegion(fSegment.getChannel(), fSegment.getOffset(), fSegment.getLength(), false), fSegment.getLength());
                 }
-                return;
+            } else if (segment instanceof BytesStreamSegment) {
+                BytesStreamSegment bSegment = (BytesStreamSegment) segment;
+                future = write(ChannelBuffers.wrappedBuffer(bSegment.getBytes(), bSegment.getOffset(), (int) bSegment.getLength()));
+            } else {
+                future = write(new ChunkedStream(segment.getStream(), tls ? TLS_CHUNK_SIZE : CHUNK_SIZE), segment.getLength());
             }
-        } 
-        channel.write(new ChunkedStream(in));
+        }
+        if (future != null) {
+            future.addListener(new ChannelFutureListener() {
+                
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    FileStreamSegment.closeChannels(segments);
+                }
+            });
+        }
+    }
+    
+    /**
+     * {@link ChunkedNioFile} which does not close the {@link FileChannel} of the {@link FileStreamSegment} once it was written
+     */
+    private static final class SharedChunkedNioFile extends ChunkedNioFile {
+
+        public SharedChunkedNioFile(FileStreamSegment segment) throws IOException {
+            super(segment.getChannel(), segment.getOffset(), segment.getLength(), TLS_CHUNK_SIZE);
+        }
+
+        @Override
+        public void close() throws Exception {
+            // the FileChannel is closed once all segments were written
+        }
     }
 
     /*
@@ -180,6 +346,29 @@ public class NettyProtocolTransport extends AbstractProtocolTransport {
         return channel.isReadable();
     }
 
+    /*
+     * (non-Javadoc)
+     * @see org.apache.james.protocols.api.ProtocolTransport#setIdleTimeout(int)
+     */
+    public void setIdleTimeout(int timeout) {
+        ChannelHandler handler = channel.getPipeline().get(HandlerConstants.TIMEOUT_HANDLER);
+        if (handler instanceof TimeoutHandler) {
+            ((TimeoutHandler) handler).setTimeout(timeout);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.james.protocols.api.ProtocolTransport#getIdleTimeout()
+     */
+    public int getIdleTimeout() {
+        ChannelHandler handler = channel.getPipeline().get(HandlerConstants.TIMEOUT_HANDLER);
+        if (handler instanceof TimeoutHandler) {
+            return ((TimeoutHandler) handler).getTimeout();
+        }
+        return 0;
+    }
+
     /*
      * (non-Javadoc)
      * @see org.apache.james.protocols.api.ProtocolTransport#getLocalAddress()
@@ -196,6 +385,22 @@ public class NettyProtocolTransport extends AbstractProtocolTransport {
         // 
         // See JAMES-1277
         channel.getPipeline().addBefore(HandlerConstants.CORE_HANDLER, "lineHandler" + lineHandlerCount, new LineHandlerUpstreamHandler(session, overrideCommandHandler));
+        
+        if (overrideCommandHandler instanceof BulkLineHandler) {
+            setPayloadTerminator(((BulkLineHandler) overrideCommandHandler).getPayloadTerminator(session));
+        }
+    }
+    
+    /**
+     * Switch the {@link LineFrameDecoder} to the bulk mode for the given {@link PayloadTerminator}. This is a no-op if a custom framer is used
+     * 
+     * @param terminator
+     */
+    private void setPayloadTerminator(PayloadTerminator terminator) {
+        ChannelHandler framer = channel.getPipeline().get(HandlerConstants.FRAMER);
+        if (framer instanceof LineFrameDecoder) {
+            ((LineFrameDecoder) framer).setPayloadTerminator(terminator);
+        }
     }
     
    
@@ -23,6 +23,7 @@ import javax.net.ssl.SSLContext;
 
 import org.apache.james.protocols.api.Protocol;
 import org.apache.james.protocols.api.Encryption;
+import org.apache.james.protocols.api.ResponseQueueWatermarks;
 import org.apache.james.protocols.api.handler.ProtocolHandler;
 import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.ChannelUpstreamHandler;
@@ -47,6 +48,12 @@ public class NettyServer extends AbstractAsyncServer {
     private int maxCurConnections;
 
     private int maxCurConnectionsPerIP;
+    
+    private boolean writeAggregation;
+    
+    private ResponseQueueWatermarks watermarks;
+
+    private ConnectionLimiter limiter;
    
     public NettyServer(Protocol protocol) {
         this(protocol, null);
@@ -82,6 +89,25 @@ public class NettyServer extends AbstractAsyncServer {
         }
     }
     
+    /**
+     * Set true if the events of every session should be processed in a thread of its own, using virtual threads on Java 21 and later. 
+     * The events of a session are still processed in order, but in contrast to {@link #setUseExecutionHandler(boolean, int)} the count
+     * of sessions which can block at the same time is not limited by a pool size. This replaces an ExecutionHandler which was set before.
+     * 
+     * @param useVirtualThreads <code>true</code> if a thread per session should be used
+     * @see OrderedSessionExecutor
+     */
+    public void setUseVirtualThreads(boolean useVirtualThreads) {
+        if (isBound()) throw new IllegalStateException("Server running already");
+        if (eHandler != null) {
+            eHandler.releaseExternalResources();
+            eHandler = null;
+        }
+        if (useVirtualThreads) {
+            eHandler = new ExecutionHandler(new OrderedSessionExecutor());
+        }
+    }
+    
     public void setMaxConcurrentConnections(int maxCurConnections) {
         if (isBound()) throw new IllegalStateException("Server running already");
         this.maxCurConnections = maxCurConnections;
@@ -92,8 +118,59 @@ public class NettyServer extends AbstractAsyncServer {
         this.maxCurConnectionsPerIP = maxCurConnectionsPerIP;
     }
     
+    /**
+     * Set the {@link ConnectionLimiter} which enforces the per IP and per prefix connection limits and rates. If one is set, the value
+     * of {@link #setMaxConcurrentConnectionsPerIP(int)} is ignored.
+     * 
+     * @param limiter the limiter or <code>null</code> to only limit the concurrent connections per IP
+     */
+    public void setConnectionLimiter(ConnectionLimiter limiter) {
+        if (isBound()) throw new IllegalStateException("Server running already");
+        this.limiter = limiter;
+    }
+
+    /**
+     * Return the {@link ConnectionLimiter} which was set or <code>null</code> if none was set
+     * 
+     * @return limiter
+     */
+    public ConnectionLimiter getConnectionLimiter() {
+        return limiter;
+    }
+    
+    /**
+     * Set true if all responses which are written while processing the lines of one read should be written back to the client at once. 
+     * This reduces the count of writes for clients which make use of PIPELINING.
+     * 
+     * @param writeAggregation
+     */
+    public void setWriteAggregation(boolean writeAggregation) {
+        if (isBound()) throw new IllegalStateException("Server running already");
+        this.writeAggregation = writeAggregation;
+    }
+    
+    /**
+     * Set the {@link ResponseQueueWatermarks} which are used to bound the queued responses of every connection. Reading from a connection is
+     * suspended once one of the high watermarks is reached and resumed after the queue drained.
+     * 
+     * @param watermarks the watermarks or <code>null</code> if the queue should not be bounded
+     */
+    public void setResponseQueueWatermarks(ResponseQueueWatermarks watermarks) {
+        if (isBound()) throw new IllegalStateException("Server running already");
+        this.watermarks = watermarks;
+    }
+    
+    /**
+     * Return the {@link ResponseQueueWatermarks} which hold the queue depth of all connections or <code>null</code> if none are set
+     * 
+     * @return watermarks
+     */
+    public ResponseQueueWatermarks getResponseQueueWatermarks() {
+        return watermarks;
+    }
+    
     protected ChannelUpstreamHandler createCoreHandler() {
-        return new BasicChannelUpstreamHandler(protocol, secure);
+        return new BasicChannelUpstreamHandler(protocol, secure, writeAggregation, watermarks);
     }
     
     @Override
@@ -105,8 +182,13 @@ public class NettyServer extends AbstractAsyncServer {
 
     @Override
     protected ChannelPipelineFactory createPipelineFactory(ChannelGroup group) {
+        ConnectionLimiter limiter = this.limiter;
+        if (limiter == null) {
+            limiter = new ConnectionLimiter();
+            limiter.setMaxConnectionsPerIp(maxCurConnectionsPerIP);
+        }
 
-        return new AbstractSSLAwareChannelPipelineFactory(getTimeout(), maxCurConnections, maxCurConnectionsPerIP, group, eHandler) {
+        return new AbstractSSLAwareChannelPipelineFactory(getTimeout(), maxCurConnections, limiter, group, eHandler) {
 
             @Override
             protected ChannelUpstreamHandler createHandler() {
@@ -0,0 +1,221 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.protocols.netty;
+
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.handler.execution.ChannelEventRunnable;
+import org.jboss.netty.handler.execution.ExecutionHandler;
+import org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
+import org.jboss.netty.util.ExternalResourceReleasable;
+
+/**
+ * {@link Executor} for the {@link ExecutionHandler} which processes the events of every {@link Channel} in order, but does not limit the
+ * count of sessions which are processed concurrently. 
+ * 
+ * Once an event is received for an idle session, a new task is submitted to the underlying thread-per-task {@link ExecutorService}. The
+ * task processes all events of the session which are queued and ends once there are no events left. So blocking handlers like DNS lookups 
+ * only block their own session and there is no pool size which needs to be tuned as for the {@link OrderedMemoryAwareThreadPoolExecutor}.
+ * 
+ * On Java 21 and later the tasks are executed in virtual threads, on older JVM's a cached pool of platform threads is used. As the
+ * executor is unbounded, a {@link org.apache.james.protocols.api.ResponseQueueWatermarks} should be used to limit the memory per session.
+ */
+public class OrderedSessionExecutor implements Executor, ExternalResourceReleasable {
+
+    private final ConcurrentMap<Channel, SessionQueue> queues = new ConcurrentHashMap<Channel, SessionQueue>();
+    private final ExecutorService executor;
+    
+    /**
+     * Create a new instance which uses virtual threads if the JVM supports them
+     */
+    public OrderedSessionExecutor() {
+        this(newThreadPerTaskExecutor());
+    }
+    
+    /**
+     * 
+     * @param executor the {@link ExecutorService} which is used to run the tasks of the sessions. It should not limit the count of
+     *                 concurrent tasks
+     */
+    public OrderedSessionExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Return <code>true</code> if the JVM supports virtual threads and so {@link #OrderedSessionExecutor()} makes use of them
+     * 
+     * @return supported
+     */
+    public static boolean isVirtualThreadsSupported() {
+        return newVirtualThreadPerTaskExecutor() != null;
+    }
+    
+    /**
+     * Return an {@link ExecutorService} which starts a new virtual thread per task or a cached thread pool if the JVM does not support
+     * virtual threads
+     * 
+     * @return executor
+     */
+    public static ExecutorService newThreadPerTaskExecutor() {
+        ExecutorService executor = newVirtualThreadPerTaskExecutor();
+        if (executor == null) {
+            executor = Executors.newCachedThreadPool();
+        }
+        return executor;
+    }
+    
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            // Only available on Java 21 and later
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+    
+    /**
+     * Return the count of sessions which have events queued or in progress
+     * 
+     * @return count
+     */
+    public int getActiveSessionCount() {
+        return queues.size();
+    }
+    
+    /**
+     * Execute the given task. Tasks of the {@link ExecutionHandler} are executed in order of their {@link Channel}, all other tasks are 
+     * just executed by the underlying {@link ExecutorService}
+     */
+    public void execute(Runnable task) {
+        if (!(task instanceof ChannelEventRunnable)) {
+            executor.execute(task);
+            return;
+        }
+        Channel channel = ((ChannelEventRunnable) task).getEvent().getChannel();
+        while (true) {
+            SessionQueue queue = queues.get(channel);
+            if (queue == null) {
+                queue = new SessionQueue(channel);
+                SessionQueue old = queues.putIfAbsent(channel, queue);
+                if (old != null) {
+                    queue = old;
+                }
+            }
+            if (queue.offer(task)) {
+                return;
+            }
+            // the queue was retired in the meantime because the channel was closed, so just try again with a new one
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.jboss.netty.util.ExternalResourceReleasable#releaseExternalResources()
+     */
+    public void releaseExternalResources() {
+        executor.shutdown();
+    }
+    
+    /**
+     * The queued events of one {@link Channel}. At most one task drains the queue at a time, which makes sure the events are 
+     * processed in order.
+     */
+    private final class SessionQueue implements Runnable {
+        private final Channel channel;
+        
+        // guarded by this
+        private final Queue<Runnable> tasks = new LinkedList<Runnable>();
+        private boolean running;
+        private boolean retired;
+        
+        public SessionQueue(Channel channel) {
+            this.channel = channel;
+        }
+        
+        /**
+         * Queue the task and start a drain if none is running
+         * 
+         * @param task
+         * @return false if this queue was retired and so the task was not queued
+         */
+        public boolean offer(Runnable task) {
+            synchronized (this) {
+                if (retired) {
+                    return false;
+                }
+                tasks.add(task);
+                if (running) {
+                    return true;
+                }
+                running = true;
+            }
+            try {
+                executor.execute(this);
+            } catch (RuntimeException e) {
+                synchronized (this) {
+                    running = false;
+                    tasks.clear();
+                }
+                throw e;
+            }
+            return true;
+        }
+
+        public void run() {
+            while (true) {
+                Runnable task;
+                synchronized (this) {
+                    task = tasks.poll();
+                    if (task == null) {
+                        running = false;
+                        if (!channel.isOpen()) {
+                            // no more events will follow the closed event, so retire the queue
+                            retired = true;
+                            queues.remove(channel, this);
+                        }
+                        return;
+                    }
+                }
+                boolean completed = false;
+                try {
+                    task.run();
+                    completed = true;
+                } finally {
+                    if (!completed) {
+                        // let the exception propagate, but make sure the following events are still processed
+                        synchronized (this) {
+                            running = false;
+                            if (!tasks.isEmpty()) {
+                                running = true;
+                                executor.execute(this);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
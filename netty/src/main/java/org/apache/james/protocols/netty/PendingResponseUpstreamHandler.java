@@ -0,0 +1,144 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.protocols.netty;
+
+import java.util.LinkedList;
+
+import org.apache.james.protocols.api.ProtocolSession;
+import org.apache.james.protocols.api.ProtocolSessionImpl;
+import org.apache.james.protocols.api.future.FutureResponse;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelUpstreamHandler;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+
+/**
+ * {@link ChannelUpstreamHandler} which holds back the received lines while a {@link FutureResponse} is pending. This makes sure 
+ * pipelined commands are not processed before the command in front of them was completed, for example by an asynchronous hook. 
+ * The lines are passed upstream again once all pending {@link FutureResponse}'s were written, using the thread which completed them.
+ * While lines are held back reading from the channel is paused.
+ * 
+ * This handler must be placed in front of the core handler and keeps state, so one instance per channel is needed.
+ */
+public class PendingResponseUpstreamHandler extends SimpleChannelUpstreamHandler {
+
+    private final LinkedList<MessageEvent> deferred = new LinkedList<MessageEvent>();
+    private boolean replaying = false;
+    private volatile ChannelHandlerContext ctx;
+    
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        this.ctx = ctx;
+        NettyProtocolTransport transport = getTransport(ctx);
+        if (transport != null) {
+            boolean defer;
+            synchronized (this) {
+                defer = replaying || !deferred.isEmpty() || transport.isResponsePending();
+                if (defer) {
+                    deferred.add(e);
+                }
+            }
+            if (defer) {
+                // don't read more till the pending responses were written
+                transport.pauseReadWhilePending();
+                return;
+            }
+        }
+        super.messageReceived(ctx, e);
+    }
+
+    /**
+     * Return the number of lines which are held back at the moment
+     * 
+     * @return count
+     */
+    public synchronized int getDeferredCount() {
+        return deferred.size();
+    }
+
+    /**
+     * Return <code>true</code> if no lines are held back and none are passed upstream at the moment
+     * 
+     * @return idle
+     */
+    synchronized boolean isIdle() {
+        return !replaying && deferred.isEmpty();
+    }
+
+    /**
+     * Pass the held back lines upstream until a {@link FutureResponse} is pending again
+     */
+    void resume() {
+        ChannelHandlerContext ctx = this.ctx;
+        if (ctx == null) {
+            return;
+        }
+        NettyProtocolTransport transport = getTransport(ctx);
+        if (transport == null) {
+            return;
+        }
+        boolean replayed = false;
+        while (true) {
+            MessageEvent e;
+            synchronized (this) {
+                if (replaying || transport.isResponsePending()) {
+                    break;
+                }
+                e = deferred.poll();
+                if (e == null) {
+                    break;
+                }
+                replaying = true;
+            }
+            replayed = true;
+            try {
+                ctx.sendUpstream(e);
+            } finally {
+                synchronized (this) {
+                    replaying = false;
+                }
+            }
+        }
+        if (replayed) {
+            // the replayed lines may have been aggregated, so flush them now
+            transport.endBatch(getSession(ctx));
+        }
+        if (transport.isShutdownRequested()) {
+            // the session was not treated as idle while the lines were held back, so check again
+            ShutdownRequestedEvent.fire(ctx.getChannel());
+        }
+    }
+
+    private static ProtocolSession getSession(ChannelHandlerContext ctx) {
+        ChannelHandlerContext coreCtx = ctx.getPipeline().getContext(HandlerConstants.CORE_HANDLER);
+        if (coreCtx == null) {
+            return null;
+        }
+        return (ProtocolSession) coreCtx.getAttachment();
+    }
+
+    private static NettyProtocolTransport getTransport(ChannelHandlerContext ctx) {
+        ProtocolSession session = getSession(ctx);
+        if (session == null) {
+            return null;
+        }
+        return (NettyProtocolTransport) ((ProtocolSessionImpl) session).getProtocolTransport();
+    }
+}
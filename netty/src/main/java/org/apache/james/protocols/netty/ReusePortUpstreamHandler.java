@@ -0,0 +1,112 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.protocols.netty;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Set;
+
+import org.jboss.netty.channel.ChannelHandler.Sharable;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+
+/**
+ * Parent handler of a {@link org.jboss.netty.bootstrap.ServerBootstrap} which enables <code>SO_REUSEPORT</code> on the server socket before it
+ * gets bound. This allows to bind more then one acceptor to the same address and let the kernel balance the incoming connections between
+ * them.
+ * 
+ * Netty 3 does not expose the option, so it is set on the underlying {@link ServerSocketChannel} directly. This only works with the NIO
+ * transport and on a JVM which knows the option (Java 9 and later). Use {@link #isSupported()} to check if the option can be used.
+ * 
+ * The socket option API is looked up via reflection, as this module is still built for Java 6.
+ */
+@Sharable
+public class ReusePortUpstreamHandler extends SimpleChannelUpstreamHandler {
+
+    private final static Object SO_REUSEPORT = lookupOption();
+    private final static Method SET_OPTION = lookupMethod("setOption", "java.net.SocketOption", "java.lang.Object");
+    private final static Method SUPPORTED_OPTIONS = lookupMethod("supportedOptions");
+    private final static boolean SUPPORTED = checkSupported();
+
+    /**
+     * Return <code>true</code> if <code>SO_REUSEPORT</code> is supported by the JVM and the operating system
+     * 
+     * @return supported
+     */
+    public static boolean isSupported() {
+        return SUPPORTED;
+    }
+    
+    @Override
+    public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        if (!SUPPORTED) {
+            throw new IllegalStateException("SO_REUSEPORT is not supported");
+        }
+        Field field = ctx.getChannel().getClass().getDeclaredField("socket");
+        field.setAccessible(true);
+        SET_OPTION.invoke(field.get(ctx.getChannel()), SO_REUSEPORT, Boolean.TRUE);
+        super.channelOpen(ctx, e);
+    }
+
+    private static Object lookupOption() {
+        try {
+            return Class.forName("java.net.StandardSocketOptions").getField("SO_REUSEPORT").get(null);
+        } catch (Exception e) {
+            // not available in this JVM
+            return null;
+        }
+    }
+    
+    private static Method lookupMethod(String name, String... parameterTypes) {
+        try {
+            Class<?>[] types = new Class<?>[parameterTypes.length];
+            for (int i = 0; i < types.length; i++) {
+                types[i] = Class.forName(parameterTypes[i]);
+            }
+            return ServerSocketChannel.class.getMethod(name, types);
+        } catch (Exception e) {
+            // not available in this JVM
+            return null;
+        }
+    }
+    
+    private static boolean checkSupported() {
+        if (SO_REUSEPORT == null || SET_OPTION == null || SUPPORTED_OPTIONS == null) {
+            return false;
+        }
+        ServerSocketChannel channel = null;
+        try {
+            channel = ServerSocketChannel.open();
+            return ((Set<?>) SUPPORTED_OPTIONS.invoke(channel)).contains(SO_REUSEPORT);
+        } catch (Exception e) {
+            return false;
+        } finally {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // ignore on close
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.protocols.netty;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+
+/**
+ * {@link Timer} which is shared by all servers of the process, so there is only one timer thread no matter how many servers and 
+ * connections exist. 
+ * 
+ * Every user must get its own instance via {@link #acquire()} and call {@link #stop()} on it once it is not needed anymore. The
+ * underlying {@link HashedWheelTimer} is started on the first {@link #acquire()} and stopped once all instances were stopped.
+ */
+public final class SharedTimer implements Timer {
+
+    private final static long TICK_DURATION = 100;
+    
+    private static HashedWheelTimer timer;
+    private static int users;
+
+    private boolean stopped;
+
+    private SharedTimer() {
+    }
+
+    /**
+     * Return a new reference to the shared {@link Timer}
+     * 
+     * @return timer
+     */
+    public static SharedTimer acquire() {
+        synchronized (SharedTimer.class) {
+            if (timer == null) {
+                timer = new HashedWheelTimer(new ThreadFactory() {
+                    
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "james-protocols-timer");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                }, TICK_DURATION, TimeUnit.MILLISECONDS);
+            }
+            users++;
+            return new SharedTimer();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.jboss.netty.util.Timer#newTimeout(org.jboss.netty.util.TimerTask, long, java.util.concurrent.TimeUnit)
+     */
+    public Timeout newTimeout(TimerTask task, long delay, TimeUnit unit) {
+        HashedWheelTimer timer;
+        synchronized (SharedTimer.class) {
+            if (stopped) {
+                throw new IllegalStateException("Timer was stopped already");
+            }
+            timer = SharedTimer.timer;
+        }
+        return timer.newTimeout(task, delay, unit);
+    }
+
+    /**
+     * Release this reference. The shared {@link HashedWheelTimer} is stopped once the last reference was released. As other 
+     * users may still use the shared timer, the pending {@link Timeout}'s are never returned. 
+     */
+    @SuppressWarnings("unchecked")
+    public Set<Timeout> stop() {
+        HashedWheelTimer toStop = null;
+        synchronized (SharedTimer.class) {
+            if (stopped) {
+                return Collections.EMPTY_SET;
+            }
+            stopped = true;
+            if (--users == 0) {
+                toStop = timer;
+                timer = null;
+            }
+        }
+        if (toStop != null) {
+            toStop.stop();
+        }
+        return Collections.EMPTY_SET;
+    }
+}
@@ -0,0 +1,87 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.protocols.netty;
+
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.DownstreamMessageEvent;
+
+/**
+ * {@link ChannelEvent} which is fired upstream once the server shuts down gracefully. The core handler closes the connection as soon
+ * as the session is not in a transaction anymore.
+ * 
+ * The event must be fired via {@link #fire(Channel)}, so it is processed in order with the received lines.
+ */
+public final class ShutdownRequestedEvent implements ChannelEvent {
+
+    private final Channel channel;
+
+    public ShutdownRequestedEvent(Channel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Fire a {@link ShutdownRequestedEvent} upstream from the I/O thread of the given {@link Channel}. This way it passes an optional
+     * ExecutionHandler in order with the received lines and is never processed at the same time as one of them. 
+     * 
+     * Netty completes every write on the I/O thread of the {@link Channel}, so an empty buffer is written and the event is fired once
+     * the write was completed. If the {@link Channel} is closed before, no event is fired at all.
+     * 
+     * @param channel
+     */
+    public static void fire(final Channel channel) {
+        ChannelFuture future = Channels.future(channel);
+        
+        // add the listener before the write, so it is never notified by the calling thread
+        future.addListener(new ChannelFutureListener() {
+            
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (future.isSuccess()) {
+                    channel.getPipeline().sendUpstream(new ShutdownRequestedEvent(channel));
+                }
+            }
+        });
+        channel.getPipeline().sendDownstream(new DownstreamMessageEvent(channel, future, ChannelBuffers.EMPTY_BUFFER, null));
+    }
+    
+    /*
+     * (non-Javadoc)
+     * @see org.jboss.netty.channel.ChannelEvent#getChannel()
+     */
+    public Channel getChannel() {
+        return channel;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.jboss.netty.channel.ChannelEvent#getFuture()
+     */
+    public ChannelFuture getFuture() {
+        return Channels.succeededFuture(channel);
+    }
+
+    @Override
+    public String toString() {
+        return channel.toString() + " SHUTDOWN_REQUESTED";
+    }
+}
@@ -18,29 +18,139 @@
  ****************************************************************/
 package org.apache.james.protocols.netty;
 
+import java.util.concurrent.TimeUnit;
+
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelHandlerContext;
-import org.jboss.netty.handler.timeout.IdleState;
-import org.jboss.netty.handler.timeout.IdleStateHandler;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.util.Timeout;
 import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
 
 /**
- * {@link IdleStateHandler} implementation which disconnect the {@link Channel} after a configured
- * idle timeout. Be aware that this handle is not thread safe so it can't be shared across pipelines
- *
+ * Handler which disconnect the {@link Channel} after a configured idle timeout. The timeout can be changed at any time, for 
+ * example to use a different timeout while the client is in a specific protocol state. The idle time is always measured from
+ * the last received message.
+ * 
+ * Only one {@link Timeout} per {@link Channel} is pending on the {@link Timer} at a time, so the {@link Timer} is meant to be 
+ * shared by all pipelines. Be aware that this handler can't be shared across pipelines
  */
-public class TimeoutHandler extends IdleStateHandler{
+public class TimeoutHandler extends SimpleChannelUpstreamHandler {
+
+    private final Timer timer;
+    private final TimerTask task = new IdleTimeoutTask();
+    
+    private volatile long timeoutMillis;
+    private volatile long lastReadTime;
+    private volatile ChannelHandlerContext ctx;
+
+    // Guarded by this
+    private Timeout timeout;
+    private boolean closed;
 
+    /**
+     * 
+     * @param timer
+     * @param readerIdleTimeSeconds the timeout in seconds or 0 if the connection should never time out
+     */
     public TimeoutHandler(Timer timer, int readerIdleTimeSeconds) {
-        super(timer, readerIdleTimeSeconds, 0, 0);
+        this.timer = timer;
+        this.timeoutMillis = TimeUnit.SECONDS.toMillis(Math.max(0, readerIdleTimeSeconds));
+    }
+
+    /**
+     * Set the idle timeout. The new timeout is applied to the time which passed since the last message was received.
+     * 
+     * @param readerIdleTimeSeconds the timeout in seconds or 0 if the connection should never time out
+     */
+    public void setTimeout(int readerIdleTimeSeconds) {
+        long timeoutMillis = TimeUnit.SECONDS.toMillis(Math.max(0, readerIdleTimeSeconds));
+        this.timeoutMillis = timeoutMillis;
+        if (ctx != null) {
+            schedule(lastReadTime + timeoutMillis - System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Return the idle timeout in seconds
+     * 
+     * @return timeout
+     */
+    public int getTimeout() {
+        return (int) TimeUnit.MILLISECONDS.toSeconds(timeoutMillis);
+    }
+
+    @Override
+    public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        lastReadTime = System.currentTimeMillis();
+        this.ctx = ctx;
+        schedule(timeoutMillis);
+        super.channelOpen(ctx, e);
     }
 
     @Override
-    protected void channelIdle(ChannelHandlerContext ctx, IdleState state, long lastActivityTimeMillis) throws Exception {
-        if (state.equals(IdleState.READER_IDLE)) {
-            ctx.getChannel().close();
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        lastReadTime = System.currentTimeMillis();
+        super.messageReceived(ctx, e);
+    }
+
+    @Override
+    public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        synchronized (this) {
+            closed = true;
+            if (timeout != null) {
+                timeout.cancel();
+                timeout = null;
+            }
         }
+        super.channelClosed(ctx, e);
     }
 
+    /**
+     * Replace the pending {@link Timeout} with one which expires after the given delay
+     * 
+     * @param delay
+     */
+    private synchronized void schedule(long delay) {
+        if (timeout != null) {
+            timeout.cancel();
+            timeout = null;
+        }
+        if (closed || timeoutMillis <= 0) {
+            return;
+        }
+        timeout = timer.newTimeout(task, Math.max(0, delay), TimeUnit.MILLISECONDS);
+    }
 
+    /**
+     * Called once the connection was idle for longer than the timeout. This implementation closes the {@link Channel}
+     * 
+     * @param ctx
+     * @throws Exception
+     */
+    protected void channelIdle(ChannelHandlerContext ctx) throws Exception {
+        ctx.getChannel().close();
+    }
+
+    private final class IdleTimeoutTask implements TimerTask {
+
+        public void run(Timeout expired) throws Exception {
+            if (expired.isCancelled() || !ctx.getChannel().isOpen()) {
+                return;
+            }
+            long timeoutMillis = TimeoutHandler.this.timeoutMillis;
+            if (timeoutMillis <= 0) {
+                return;
+            }
+            long remaining = lastReadTime + timeoutMillis - System.currentTimeMillis();
+            if (remaining <= 0) {
+                channelIdle(ctx);
+            } else {
+                // a message was received in the meantime
+                schedule(remaining);
+            }
+        }
+    }
 }
@@ -0,0 +1,251 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.protocols.netty4;
+
+import javax.net.ssl.SSLEngine;
+
+import org.apache.james.protocols.api.Encryption;
+import org.apache.james.protocols.api.Protocol;
+import org.apache.james.protocols.api.ProtocolSession;
+import org.apache.james.protocols.api.ProtocolSessionImpl;
+import org.apache.james.protocols.api.ProtocolTransport;
+import org.apache.james.protocols.api.Response;
+import org.apache.james.protocols.api.ResponseQueueWatermarks;
+import org.apache.james.protocols.api.handler.ConnectHandler;
+import org.apache.james.protocols.api.handler.DisconnectHandler;
+import org.apache.james.protocols.api.handler.LineHandler;
+import org.apache.james.protocols.api.handler.ProtocolHandlerChain;
+import org.apache.james.protocols.api.handler.ProtocolHandlerIndex;
+import org.apache.james.protocols.api.handler.ProtocolHandlerResultPipeline;
+import org.apache.james.protocols.api.metrics.ProtocolMetrics;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.TooLongFrameException;
+import io.netty.util.AttributeKey;
+
+/**
+ * Core handler which is used by the {@link Netty4Server} for SMTP and the other line based protocols. The {@link ProtocolSession} 
+ * is stored as attribute of the channel.
+ */
+@Sharable
+public class BasicChannelInboundHandler extends ChannelInboundHandlerAdapter {
+    
+    /**
+     * The {@link AttributeKey} under which the {@link ProtocolSession} of a channel is stored
+     */
+    public final static AttributeKey<ProtocolSession> SESSION = AttributeKey.valueOf(BasicChannelInboundHandler.class, "session");
+    
+    protected final Protocol protocol;
+    protected final ProtocolHandlerChain chain;
+    protected final Encryption secure;
+    private final boolean writeAggregation;
+    private final ResponseQueueWatermarks watermarks;
+
+    public BasicChannelInboundHandler(Protocol protocol) {
+        this(protocol, null, false, null);
+    }
+
+    /**
+     * 
+     * @param protocol
+     * @param secure
+     * @param writeAggregation <code>true</code> if all {@link Response}'s which are written while processing the lines of one read should 
+     *                         be written to the client at once
+     * @param watermarks       the {@link ResponseQueueWatermarks} which are shared by all sessions or <code>null</code> if the response 
+     *                         queue should not be bounded
+     */
+    public BasicChannelInboundHandler(Protocol protocol, Encryption secure, boolean writeAggregation, ResponseQueueWatermarks watermarks) {
+        this.protocol = protocol;
+        this.chain = protocol.getProtocolChain();
+        this.secure = secure;
+        this.writeAggregation = writeAggregation;
+        this.watermarks = watermarks;
+    }
+
+    /**
+     * Create the {@link ProtocolSession} and call the {@link ConnectHandler} instances which are stored in the {@link ProtocolHandlerChain}
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        ProtocolSession session = createSession(ctx);
+        ctx.channel().attr(SESSION).set(session);
+        
+        ProtocolHandlerIndex index = chain.getHandlerIndex();
+        ConnectHandler[] connectHandlers = index.getConnectHandlers();
+        ProtocolHandlerResultPipeline resultPipeline = index.getResultPipeline();
+        session.getLogger().info("Connection established from " + session.getRemoteAddress().getAddress().getHostAddress());
+        ProtocolMetrics metrics = session.getMetrics();
+        if (metrics != null) {
+            metrics.connectionOpened();
+        }
+        if (connectHandlers != null) {
+            for (int i = 0; i < connectHandlers.length; i++) {
+                ConnectHandler cHandler = connectHandlers[i];
+                
+                long start = System.nanoTime();
+                Response response = cHandler.onConnect(session);
+                if (metrics != null) {
+                    metrics.recordHandler(cHandler, System.nanoTime() - start);
+                }
+                
+                response = resultPipeline.onResponse(session, response, start, cHandler);
+                if (response != null) {
+                    ((ProtocolSessionImpl)session).getProtocolTransport().writeResponse(response, session);
+                }
+               
+            }
+        }
+        super.channelActive(ctx);
+    }
+
+    /**
+     * Call the {@link DisconnectHandler} instances which are stored in the {@link ProtocolHandlerChain} and cleanup the channel
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        ProtocolSession session = ctx.channel().attr(SESSION).get();
+        if (session != null) {
+            DisconnectHandler[] disconnectHandlers = chain.getHandlerIndex().getDisconnectHandlers();
+            if (disconnectHandlers != null) {
+                for (int i = 0; i < disconnectHandlers.length; i++) {
+                    disconnectHandlers[i].onDisconnect(session);
+                }
+            }
+            if (session.getMetrics() != null) {
+                session.getMetrics().connectionClosed();
+            }
+            session.getLogger().info("Connection closed for " + session.getRemoteAddress().getAddress().getHostAddress());
+        }
+        cleanup(ctx);
+        super.channelInactive(ctx);
+    }
+
+    /**
+     * Call the {@link LineHandler} 
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (!(msg instanceof ByteBuf)) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+        ByteBuf buf = (ByteBuf) msg;
+        try {
+            ProtocolSession pSession = ctx.channel().attr(SESSION).get();
+            ProtocolHandlerIndex index = chain.getHandlerIndex();
+            LineHandler lHandler = index.getLastLineHandler();
+            ProtocolHandlerResultPipeline resultPipeline = index.getResultPipeline();
+    
+            if (lHandler != null) {
+                ((Netty4ProtocolTransport) ((ProtocolSessionImpl) pSession).getProtocolTransport()).beginBatch();
+            
+                if (pSession.getMetrics() != null) {
+                    pSession.getMetrics().bytesRead(buf.readableBytes());
+                }
+                
+                long start = System.nanoTime();            
+                Response response = lHandler.onLine(pSession, LineFrameDecoder.toByteBuffer(buf));
+                response = resultPipeline.onResponse(pSession, response, start, lHandler);
+                if (response != null) {
+                    ((ProtocolSessionImpl)pSession).getProtocolTransport().writeResponse(response, pSession);
+                }
+            }
+        } finally {
+            buf.release();
+            LineFrameDecoder.frameProcessed(ctx);
+        }
+    }
+
+    /**
+     * Flush the aggregated {@link Response}'s once all lines of a read were processed
+     */
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        ProtocolSession session = ctx.channel().attr(SESSION).get();
+        if (session != null) {
+            ((Netty4ProtocolTransport) ((ProtocolSessionImpl) session).getProtocolTransport()).endBatch(session);
+        }
+        super.channelReadComplete(ctx);
+    }
+
+    /**
+     * Cleanup the channel
+     * 
+     * @param ctx
+     */
+    protected void cleanup(ChannelHandlerContext ctx) {
+        ProtocolSession session = ctx.channel().attr(SESSION).get();
+        if (session != null) {
+            session.resetState();
+        }
+    }
+
+    protected ProtocolSession createSession(ChannelHandlerContext ctx) throws Exception {
+        SSLEngine engine = null;
+        if (secure != null) {
+            engine = secure.getContext().createSSLEngine();
+            String[] enabledCipherSuites = secure.getEnabledCipherSuites();
+            if (enabledCipherSuites != null && enabledCipherSuites.length > 0) {
+                engine.setEnabledCipherSuites(enabledCipherSuites);
+            }
+        }
+        
+        Netty4ProtocolTransport transport = new Netty4ProtocolTransport(ctx.channel(), engine);
+        transport.setWriteAggregation(writeAggregation);
+        transport.setResponseQueueWatermarks(watermarks);
+        ProtocolSession session = protocol.newSession(transport);
+        if (session instanceof ProtocolSessionImpl) {
+            ((ProtocolSessionImpl) session).setMetrics(protocol.getMetrics());
+        }
+        return session;
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        ProtocolSession session = ctx.channel().attr(SESSION).get();
+        if (cause instanceof TooLongFrameException && session != null) {
+            Response r = session.newLineTooLongResponse();
+            ProtocolTransport transport = ((ProtocolSessionImpl)session).getProtocolTransport();
+            if (r != null)  {
+                transport.writeResponse(r, session);
+            }
+        } else {
+            if (ctx.channel().isActive() && session != null) {
+                ProtocolTransport transport = ((ProtocolSessionImpl)session).getProtocolTransport();
+
+                Response r = session.newFatalErrorResponse();
+                if (r != null) {
+                    transport.writeResponse(r, session);
+                } 
+                transport.writeResponse(Response.DISCONNECT, session);
+            }
+            if (session != null) {
+                session.getLogger().debug("Unable to process request", cause);
+            }
+            cleanup(ctx);            
+        }
+    }
+
+}
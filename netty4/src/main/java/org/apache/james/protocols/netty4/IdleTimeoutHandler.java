@@ -0,0 +1,161 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.protocols.netty4;
+
+import java.util.concurrent.TimeUnit;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.concurrent.ScheduledFuture;
+
+/**
+ * Handler which disconnect the {@link Channel} after a configured idle timeout. The timeout can be changed at any time, for 
+ * example to use a different timeout while the client is in a specific protocol state. The idle time is always measured from
+ * the last received message.
+ * 
+ * The timeout is scheduled on the event loop of the {@link Channel}, so no extra timer thread is needed. Be aware that this handler 
+ * can't be shared across pipelines
+ */
+public class IdleTimeoutHandler extends ChannelInboundHandlerAdapter {
+
+    private final Runnable task = new IdleTimeoutTask();
+    
+    private volatile long timeoutNanos;
+    private volatile long lastReadTime;
+    private volatile ChannelHandlerContext ctx;
+
+    // only accessed by the event loop
+    private ScheduledFuture<?> timeout;
+    private boolean closed;
+
+    /**
+     * 
+     * @param readerIdleTimeSeconds the timeout in seconds or 0 if the connection should never time out
+     */
+    public IdleTimeoutHandler(int readerIdleTimeSeconds) {
+        this.timeoutNanos = TimeUnit.SECONDS.toNanos(Math.max(0, readerIdleTimeSeconds));
+    }
+
+    /**
+     * Set the idle timeout. The new timeout is applied to the time which passed since the last message was received.
+     * 
+     * @param readerIdleTimeSeconds the timeout in seconds or 0 if the connection should never time out
+     */
+    public void setTimeout(int readerIdleTimeSeconds) {
+        this.timeoutNanos = TimeUnit.SECONDS.toNanos(Math.max(0, readerIdleTimeSeconds));
+        final ChannelHandlerContext ctx = this.ctx;
+        if (ctx != null) {
+            if (ctx.channel().eventLoop().inEventLoop()) {
+                schedule(lastReadTime + timeoutNanos - System.nanoTime());
+            } else {
+                ctx.channel().eventLoop().execute(new Runnable() {
+                    
+                    public void run() {
+                        schedule(lastReadTime + timeoutNanos - System.nanoTime());
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Return the idle timeout in seconds
+     * 
+     * @return timeout
+     */
+    public int getTimeout() {
+        return (int) TimeUnit.NANOSECONDS.toSeconds(timeoutNanos);
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        lastReadTime = System.nanoTime();
+        this.ctx = ctx;
+        schedule(timeoutNanos);
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        lastReadTime = System.nanoTime();
+        super.channelRead(ctx, msg);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        closed = true;
+        if (timeout != null) {
+            timeout.cancel(false);
+            timeout = null;
+        }
+        super.channelInactive(ctx);
+    }
+
+    /**
+     * Replace the pending timeout with one which expires after the given delay. This MUST be called from the event loop
+     * 
+     * @param delay
+     */
+    private void schedule(long delay) {
+        if (timeout != null) {
+            timeout.cancel(false);
+            timeout = null;
+        }
+        if (closed || timeoutNanos <= 0) {
+            return;
+        }
+        timeout = ctx.channel().eventLoop().schedule(task, Math.max(0, delay), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Called once the connection was idle for longer than the timeout. This implementation closes the {@link Channel}
+     * 
+     * @param ctx
+     * @throws Exception
+     */
+    protected void channelIdle(ChannelHandlerContext ctx) throws Exception {
+        ctx.channel().close();
+    }
+
+    private final class IdleTimeoutTask implements Runnable {
+
+        public void run() {
+            timeout = null;
+            if (closed || !ctx.channel().isOpen()) {
+                return;
+            }
+            long timeoutNanos = IdleTimeoutHandler.this.timeoutNanos;
+            if (timeoutNanos <= 0) {
+                return;
+            }
+            long remaining = lastReadTime + timeoutNanos - System.nanoTime();
+            if (remaining <= 0) {
+                try {
+                    channelIdle(ctx);
+                } catch (Exception e) {
+                    ctx.fireExceptionCaught(e);
+                }
+            } else {
+                // a message was received in the meantime
+                schedule(remaining);
+            }
+        }
+    }
+}
@@ -0,0 +1,285 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.protocols.netty4;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.apache.james.protocols.api.handler.BulkLineHandler;
+import org.apache.james.protocols.api.handler.PayloadTerminator;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.TooLongFrameException;
+
+/**
+ * {@link ByteToMessageDecoder} which splits the received {@link ByteBuf}'s in lines. The delimiter is not stripped.
+ * 
+ * The frames are retained slices of the received data, so no copy is needed till the line is handed over to the handler via 
+ * {@link #toByteBuffer(ByteBuf)}. 
+ * 
+ * If a {@link PayloadTerminator} is set, the decoder switches to the bulk mode which is used by {@link BulkLineHandler}'s. In this mode 
+ * all complete lines of the received data are passed as one frame till the payload is terminated.
+ * 
+ * Only one frame is passed on at a time. The next frame is decoded once the handler which consumed the frame called 
+ * {@link #frameProcessed(ChannelHandlerContext)}. So if the handlers are executed by an {@link io.netty.util.concurrent.EventExecutorGroup} 
+ * or the frame is held back because of a pending {@link org.apache.james.protocols.api.future.FutureResponse}, the data behind a command 
+ * is never framed before the command was processed and so maybe switched the decoder to the bulk mode.
+ */
+public class LineFrameDecoder extends ByteToMessageDecoder {
+
+    private final static byte LF = '\n';
+    private final static byte CR = '\r';
+    private final static byte DOT = '.';
+    
+    private final int maxLineLength;
+    
+    // only accessed by the event loop
+    private boolean discarding = false;
+    private long tooLongFrameLength;
+    private boolean reading;
+    private boolean decoded;
+    private boolean readCompletePending;
+    
+    private volatile boolean frameInFlight;
+    private volatile ChannelHandlerContext ctx;
+
+    // guarded by this, as it may be changed by a thread of an EventExecutorGroup
+    private PayloadTerminator terminator;
+    private long remaining;
+    
+    public LineFrameDecoder(int maxLineLength) {
+        if (maxLineLength <= 0) {
+            throw new IllegalArgumentException("maxLineLength must be a positive integer: " + maxLineLength);
+        }
+        this.maxLineLength = maxLineLength;
+    }
+
+    /**
+     * Set the {@link PayloadTerminator} of the payload which is expected next or <code>null</code> to split all data in lines. The new 
+     * mode is used for all data which was not passed as a frame yet.
+     * 
+     * @param terminator
+     */
+    public synchronized void setPayloadTerminator(PayloadTerminator terminator) {
+        this.terminator = terminator;
+        if (terminator != null) {
+            remaining = terminator.getLength();
+        }
+    }
+    
+    /**
+     * Return the current {@link PayloadTerminator} or <code>null</code> if all data is split in lines
+     * 
+     * @return terminator
+     */
+    public synchronized PayloadTerminator getPayloadTerminator() {
+        return terminator;
+    }
+    
+    /**
+     * Copy the readable bytes of the given frame to a read-only heap {@link ByteBuffer} which starts at position 0. 
+     * 
+     * The frame is part of a pooled buffer which gets reused once it was released, but {@link org.apache.james.protocols.api.handler.LineHandler}'s 
+     * are allowed to keep a reference to the line, so it's copied out of the pool. 
+     * 
+     * @param frame
+     * @return buffer
+     */
+    public static ByteBuffer toByteBuffer(ByteBuf frame) {
+        byte[] bytes = new byte[frame.readableBytes()];
+        frame.getBytes(frame.readerIndex(), bytes);
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+    
+    /**
+     * Tell the {@link LineFrameDecoder} of the pipeline that the last frame was processed, so the next one can be decoded. This MUST be 
+     * called by every handler which consumes the frames, once it is done with a frame. It is a no-op if a custom framer is used.
+     * 
+     * @param ctx the {@link ChannelHandlerContext} of the handler which consumed the frame
+     */
+    public static void frameProcessed(ChannelHandlerContext ctx) {
+        ChannelHandler framer = ctx.pipeline().get(HandlerConstants.FRAMER);
+        if (framer instanceof LineFrameDecoder) {
+            ((LineFrameDecoder) framer).frameProcessed();
+        }
+    }
+    
+    private void frameProcessed() {
+        frameInFlight = false;
+        final ChannelHandlerContext ctx = this.ctx;
+        if (ctx == null || (reading && ctx.executor().inEventLoop())) {
+            // the event loop decodes the next frame once the current one was passed on
+            return;
+        }
+        ctx.executor().execute(new Runnable() {
+
+            public void run() {
+                decodeNext(ctx);
+            }
+        });
+    }
+    
+    /**
+     * Decode the held back data. Once all frames were processed a read complete event is fired, as the one of the read was fired before.
+     * This is executed by the event loop
+     */
+    private void decodeNext(ChannelHandlerContext ctx) {
+        if (ctx.isRemoved()) {
+            return;
+        }
+        decoded = false;
+        try {
+            channelRead(ctx, Unpooled.EMPTY_BUFFER);
+        } catch (Exception e) {
+            ctx.fireExceptionCaught(e);
+            return;
+        }
+        if (decoded) {
+            readCompletePending = true;
+        } else if (readCompletePending && !frameInFlight) {
+            readCompletePending = false;
+            ctx.fireChannelReadComplete();
+        }
+    }
+    
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        this.ctx = ctx;
+        super.handlerAdded(ctx);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        reading = true;
+        try {
+            super.channelRead(ctx, msg);
+        } finally {
+            reading = false;
+        }
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+        if (frameInFlight) {
+            // hold the data back till the last frame was processed, as it may switch to the bulk mode
+            return;
+        }
+        ByteBuf frame = decode0(ctx, in);
+        if (frame != null) {
+            frameInFlight = true;
+            decoded = true;
+            out.add(frame);
+        }
+    }
+
+    private synchronized ByteBuf decode0(ChannelHandlerContext ctx, ByteBuf buffer) {
+        if (terminator != null) {
+            if (terminator.isDotLine()) {
+                return decodeDotTerminated(ctx, buffer);
+            } else {
+                return decodeLength(ctx, buffer);
+            }
+        }
+        return decodeLine(ctx, buffer);
+    }
+    
+    private ByteBuf decodeLength(ChannelHandlerContext ctx, ByteBuf buffer) {
+        if (remaining == 0) {
+            // an empty payload
+            terminator = null;
+            return decodeLine(ctx, buffer);
+        }
+        int length = (int) Math.min(remaining, buffer.readableBytes());
+        remaining -= length;
+        if (remaining == 0) {
+            terminator = null;
+        }
+        return buffer.readRetainedSlice(length);
+    }
+    
+    private ByteBuf decodeDotTerminated(ChannelHandlerContext ctx, ByteBuf buffer) {
+        int start = buffer.readerIndex();
+        int end = buffer.writerIndex();
+        int lineStart = start;
+        while (lineStart < end) {
+            int eol = buffer.indexOf(lineStart, end, LF);
+            if (eol == -1) {
+                break;
+            }
+            if (eol - lineStart == 2 && buffer.getByte(lineStart) == DOT && buffer.getByte(lineStart + 1) == CR) {
+                if (lineStart == start) {
+                    // the terminating line, so switch back to single lines after it
+                    terminator = null;
+                    return buffer.readRetainedSlice(3);
+                } 
+                // pass the terminating line on its own
+                break;
+            }
+            lineStart = eol + 1;
+        }
+        if (lineStart == start) {
+            // no complete line
+            return decodeLine(ctx, buffer);
+        }
+        return buffer.readRetainedSlice(lineStart - start);
+    }
+    
+    private ByteBuf decodeLine(ChannelHandlerContext ctx, ByteBuf buffer) {
+        int start = buffer.readerIndex();
+        int eol = buffer.indexOf(start, buffer.writerIndex(), LF);
+        if (eol == -1) {
+            if (buffer.readableBytes() > maxLineLength) {
+                // discard everything till the next delimiter
+                tooLongFrameLength += buffer.readableBytes();
+                buffer.skipBytes(buffer.readableBytes());
+                discarding = true;
+            }
+            return null;
+        }
+        
+        int length = eol - start + 1;
+        if (discarding) {
+            buffer.skipBytes(length);
+            long frameLength = tooLongFrameLength + length;
+            discarding = false;
+            tooLongFrameLength = 0;
+            fail(ctx, frameLength);
+            return null;
+        }
+        
+        int contentLength = length - 1;
+        if (contentLength > 0 && buffer.getByte(eol - 1) == CR) {
+            contentLength--;
+        }
+        if (contentLength > maxLineLength) {
+            buffer.skipBytes(length);
+            fail(ctx, length);
+            return null;
+        }
+        return buffer.readRetainedSlice(length);
+    }
+    
+    private void fail(ChannelHandlerContext ctx, long frameLength) {
+        ctx.fireExceptionCaught(new TooLongFrameException("frame length exceeds " + maxLineLength + ": " + frameLength + " - discarded"));
+    }
+}
@@ -0,0 +1,81 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.protocols.netty4;
+
+import org.apache.james.protocols.api.ProtocolSession;
+import org.apache.james.protocols.api.ProtocolSessionImpl;
+import org.apache.james.protocols.api.Response;
+import org.apache.james.protocols.api.handler.LineHandler;
+import org.apache.james.protocols.api.metrics.ProtocolMetrics;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+
+/**
+ * {@link ChannelInboundHandlerAdapter} implementation which will call a given {@link LineHandler} implementation
+ *
+ * @param <S>
+ */
+public class LineHandlerChannelInboundHandler<S extends ProtocolSession> extends ChannelInboundHandlerAdapter {
+
+    private final LineHandler<S> handler;
+    private final S session;
+    
+    public LineHandlerChannelInboundHandler(S session, LineHandler<S> handler) {
+        this.handler = handler;
+        this.session = session;
+    }
+    
+    /**
+     * Return the {@link LineHandler} which is called by this handler
+     * 
+     * @return handler
+     */
+    public LineHandler<S> getLineHandler() {
+        return handler;
+    }
+    
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (!(msg instanceof ByteBuf)) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+        ByteBuf buf = (ByteBuf) msg;
+        try {
+            ((Netty4ProtocolTransport) ((ProtocolSessionImpl) session).getProtocolTransport()).beginBatch();
+    
+            ProtocolMetrics metrics = session.getMetrics();
+            long start = System.nanoTime();
+            Response response = handler.onLine(session, LineFrameDecoder.toByteBuffer(buf)); 
+            if (metrics != null) {
+                metrics.recordHandler(handler, System.nanoTime() - start);
+                metrics.bytesRead(buf.readableBytes());
+            }
+            if (response != null) {
+                ((ProtocolSessionImpl)session).getProtocolTransport().writeResponse(response, session);
+            }
+        } finally {
+            buf.release();
+            LineFrameDecoder.frameProcessed(ctx);
+        }
+    }
+
+}
@@ -0,0 +1,412 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.protocols.netty4;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLEngine;
+
+import org.apache.james.protocols.api.AbstractProtocolTransport;
+import org.apache.james.protocols.api.BytesStreamSegment;
+import org.apache.james.protocols.api.CombinedInputStream;
+import org.apache.james.protocols.api.FileStreamSegment;
+import org.apache.james.protocols.api.InputStreamSegment;
+import org.apache.james.protocols.api.ProtocolSession;
+import org.apache.james.protocols.api.StreamSegment;
+import org.apache.james.protocols.api.future.FutureResponse;
+import org.apache.james.protocols.api.handler.BulkLineHandler;
+import org.apache.james.protocols.api.handler.LineHandler;
+import org.apache.james.protocols.api.handler.PayloadTerminator;
+import org.apache.james.protocols.api.metrics.ProtocolMetrics;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.stream.ChunkedNioFile;
+import io.netty.handler.stream.ChunkedStream;
+import io.netty.util.concurrent.EventExecutor;
+
+/**
+ * A Netty 4 implementation of a ProtocolTransport
+ */
+public class Netty4ProtocolTransport extends AbstractProtocolTransport {
+    
+    /**
+     * Chunk size which is used for streams that can not be transferred via zero-copy
+     */
+    private final static int CHUNK_SIZE = 8192;
+    
+    /**
+     * Chunk size which is used when TLS is active. Files can not be transferred via zero-copy in this case, so use bigger chunks to 
+     * reduce the overhead per chunk
+     */
+    private final static int TLS_CHUNK_SIZE = 65536;
+    
+    /**
+     * Source of the numeric ids. The protocols expect them to be digits only, for example in the APOP timestamp of POP3
+     */
+    private final static AtomicInteger IDS = new AtomicInteger();
+    
+    private final String id = Integer.toString(IDS.incrementAndGet() & Integer.MAX_VALUE);
+    private final Channel channel;
+    private final SSLEngine engine;
+    private int lineHandlerCount = 0;
+    
+    public Netty4ProtocolTransport(Channel channel, SSLEngine engine) {
+        this.channel = channel;
+        this.engine = engine;
+    }
+
+    /**
+     * Pass the lines on which were held back while a {@link FutureResponse} was pending
+     */
+    @Override
+    protected void onResponsesWritten(ProtocolSession session) {
+        ChannelHandler handler = channel.pipeline().get(HandlerConstants.PENDING_RESPONSE_HANDLER);
+        if (handler instanceof PendingResponseChannelInboundHandler) {
+            ((PendingResponseChannelInboundHandler) handler).resume();
+        }
+    }
+
+    /**
+     * @see org.apache.james.protocols.api.ProtocolTransport#getRemoteAddress()
+     */
+    public InetSocketAddress getRemoteAddress() {
+        return (InetSocketAddress) channel.remoteAddress();
+    }
+
+    /**
+     * @see org.apache.james.protocols.api.ProtocolTransport#getId()
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @see org.apache.james.protocols.api.ProtocolTransport#isTLSStarted()
+     */
+    public boolean isTLSStarted() {
+        return channel.pipeline().get(SslHandler.class) != null;
+    }
+
+    /**
+     * @see org.apache.james.protocols.api.ProtocolTransport#isStartTLSSupported()
+     */
+    public boolean isStartTLSSupported() {
+        return engine != null;
+    }
+
+
+    /**
+     * @see org.apache.james.protocols.api.ProtocolTransport#popLineHandler()
+     */
+    public void popLineHandler() {
+        if (lineHandlerCount > 0) {
+            LineHandlerChannelInboundHandler<?> handler = (LineHandlerChannelInboundHandler<?>) channel.pipeline().remove("lineHandler" + lineHandlerCount);
+            lineHandlerCount--;
+            if (handler.getLineHandler() instanceof BulkLineHandler) {
+                setPayloadTerminator(null);
+            }
+        }
+    }
+
+    /**
+     * @see org.apache.james.protocols.api.ProtocolTransport#getPushedLineHandlerCount()
+     */
+    public int getPushedLineHandlerCount() {
+        return lineHandlerCount;
+    }
+
+    /**
+     * Add the {@link SslHandler} to the pipeline and start encrypting after the next written message
+     */
+    private void prepareStartTLS() {
+        engine.setUseClientMode(false);
+        channel.pipeline().addFirst(HandlerConstants.SSL_HANDLER, new SslHandler(engine, true));
+    }
+
+    @Override
+    protected void writeToClient(byte[] bytes, ProtocolSession session, boolean startTLS) {
+        if (startTLS) {
+            prepareStartTLS();
+        }
+        write(Unpooled.wrappedBuffer(bytes), session);
+    }
+
+    /**
+     * Write all given <code>byte</code> arrays with one gathering write
+     */
+    @Override
+    protected void writeToClient(List<byte[]> bytes, ProtocolSession session) {
+        write(Unpooled.wrappedBuffer(bytes.toArray(new byte[bytes.size()][])), session);
+    }
+    
+    /**
+     * Write the {@link ByteBuf} and keep track of the bytes which were not written to the remote peer yet
+     * 
+     * @param buffer
+     * @param session
+     */
+    private ChannelFuture write(ByteBuf buffer, ProtocolSession session) {
+        return write(buffer, buffer.readableBytes(), session);
+    }
+
+    /**
+     * Write the given message, keep track of the bytes which were not written to the remote peer yet and count them once they were
+     * written. If the length of the message is not known <code>-1</code> must be given as <code>bytes</code>.
+     * 
+     * @param message
+     * @param bytes
+     * @param session
+     */
+    private ChannelFuture write(Object message, final long bytes, ProtocolSession session) {
+        final ProtocolMetrics metrics = session != null ? session.getMetrics() : null;
+        ChannelFuture future = channel.writeAndFlush(message);
+        if (bytes > 0) {
+            bytesQueued(bytes);
+            future.addListener(new ChannelFutureListener() {
+                
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    bytesWritten(bytes);
+                    if (metrics != null && future.isSuccess()) {
+                        metrics.bytesWritten(bytes);
+                    }
+                }
+            });
+        }
+        return future;
+    }
+    
+    @Override
+    protected void close() {
+        channel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+    }
+
+
+    /**
+     * Split the {@link InputStream} in {@link StreamSegment}'s, so every {@link FileInputStream} which is part of a 
+     * {@link CombinedInputStream} can get transferred via zero-copy
+     */
+    @Override
+    protected void writeToClient(InputStream in, ProtocolSession session, boolean startTLS) {
+        List<StreamSegment> segments = new ArrayList<StreamSegment>();
+        addSegments(in, segments);
+        writeToClient(segments, session, startTLS);
+    }
+    
+    private void addSegments(InputStream in, List<StreamSegment> segments) {
+        if (in instanceof CombinedInputStream) {
+            Iterator<InputStream> streams = ((CombinedInputStream) in).iterator();
+            while(streams.hasNext()) {
+                addSegments(streams.next(), segments);
+            }
+        } else if (in instanceof FileInputStream) {
+            FileChannel fChannel = ((FileInputStream) in).getChannel();
+            try {
+                long position = fChannel.position();
+                segments.add(new FileStreamSegment(fChannel, position, fChannel.size() - position));
+            } catch (IOException e) {
+                // We handle this later
+                segments.add(new InputStreamSegment(new ExceptionInputStream(e)));
+            }
+        } else {
+            segments.add(new InputStreamSegment(in));
+        }
+    }
+
+    /**
+     * Write every {@link FileStreamSegment} via a {@link DefaultFileRegion} and so make use of zero-copy. If TLS is active the file is 
+     * written in big chunks. All other {@link StreamSegment}'s are written in chunks or directly if they are backed by a <code>byte</code> 
+     * array.
+     * 
+     * The {@link FileChannel}'s are not closed per segment, as more then one segment may share the same {@link FileChannel}. They are 
+     * closed once the last segment was written.
+     */
+    @Override
+    protected void writeToClient(final List<StreamSegment> segments, ProtocolSession session, boolean startTLS) {
+        if (startTLS) {
+            prepareStartTLS();
+        }
+        boolean tls = isTLSStarted();
+        ChannelFuture future = null;
+        for (int i = 0; i < segments.size(); i++) {
+            StreamSegment segment = segments.get(i);
+            if (segment instanceof FileStreamSegment) {
+                FileStreamSegment fSegment = (FileStreamSegment) segment;
+                if (tls) {
+                    try {
+                        future = write(new SharedChunkedNioFile(fSegment), fSegment.getLength(), session);
+                    } catch (IOException e) {
+                        // We handle this later
+                        future = write(new ChunkedStream(new ExceptionInputStream(e)), 0, session);
+                    }
+                } else {
+                    future = write(new SharedFileRegion(fSegment), fSegment.getLength(), session);
+                }
+            } else if (segment instanceof BytesStreamSegment) {
+                BytesStreamSegment bSegment = (BytesStreamSegment) segment;
+                future = write(Unpooled.wrappedBuffer(bSegment.getBytes(), bSegment.getOffset(), (int) bSegment.getLength()), session);
+            } else {
+                future = write(new ChunkedStream(segment.getStream(), tls ? TLS_CHUNK_SIZE : CHUNK_SIZE), segment.getLength(), session);
+            }
+        }
+        if (future != null) {
+            future.addListener(new ChannelFutureListener() {
+                
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    FileStreamSegment.closeChannels(segments);
+                }
+            });
+        }
+    }
+    
+    /**
+     * {@link DefaultFileRegion} which does not close the {@link FileChannel} of the {@link FileStreamSegment} once it was released
+     */
+    private static final class SharedFileRegion extends DefaultFileRegion {
+
+        public SharedFileRegion(FileStreamSegment segment) {
+            super(segment.getChannel(), segment.getOffset(), segment.getLength());
+        }
+
+        @Override
+        protected void deallocate() {
+            // the FileChannel is closed once all segments were written
+        }
+    }
+    
+    /**
+     * {@link ChunkedNioFile} which does not close the {@link FileChannel} of the {@link FileStreamSegment} once it was written
+     */
+    private static final class SharedChunkedNioFile extends ChunkedNioFile {
+
+        public SharedChunkedNioFile(FileStreamSegment segment) throws IOException {
+            super(segment.getChannel(), segment.getOffset(), segment.getLength(), TLS_CHUNK_SIZE);
+        }
+
+        @Override
+        public void close() throws Exception {
+            // the FileChannel is closed once all segments were written
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.james.protocols.api.ProtocolTransport#setReadable(boolean)
+     */
+    public void setReadable(boolean readable) {
+        channel.config().setAutoRead(readable);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.james.protocols.api.ProtocolTransport#isReadable()
+     */
+    public boolean isReadable() {
+        return channel.config().isAutoRead();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.james.protocols.api.ProtocolTransport#setIdleTimeout(int)
+     */
+    public void setIdleTimeout(int timeout) {
+        ChannelHandler handler = channel.pipeline().get(HandlerConstants.TIMEOUT_HANDLER);
+        if (handler instanceof IdleTimeoutHandler) {
+            ((IdleTimeoutHandler) handler).setTimeout(timeout);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.james.protocols.api.ProtocolTransport#getIdleTimeout()
+     */
+    public int getIdleTimeout() {
+        ChannelHandler handler = channel.pipeline().get(HandlerConstants.TIMEOUT_HANDLER);
+        if (handler instanceof IdleTimeoutHandler) {
+            return ((IdleTimeoutHandler) handler).getTimeout();
+        }
+        return 0;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.james.protocols.api.ProtocolTransport#getLocalAddress()
+     */
+    public InetSocketAddress getLocalAddress() {
+        return (InetSocketAddress) channel.localAddress();
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public void pushLineHandler(LineHandler<? extends ProtocolSession> overrideCommandHandler, ProtocolSession session) {
+        lineHandlerCount++;
+        // Add the linehandler in front of the coreHandler so we can be sure 
+        // it is executed with the same EventExecutor as the coreHandler
+        EventExecutor executor = channel.pipeline().context(HandlerConstants.CORE_HANDLER).executor();
+        channel.pipeline().addBefore(executor == channel.eventLoop() ? null : executor, HandlerConstants.CORE_HANDLER, "lineHandler" + lineHandlerCount, new LineHandlerChannelInboundHandler(session, overrideCommandHandler));
+        
+        if (overrideCommandHandler instanceof BulkLineHandler) {
+            setPayloadTerminator(((BulkLineHandler) overrideCommandHandler).getPayloadTerminator(session));
+        }
+    }
+    
+    /**
+     * Switch the {@link LineFrameDecoder} to the bulk mode for the given {@link PayloadTerminator}. This is a no-op if a custom framer is used
+     * 
+     * @param terminator
+     */
+    private void setPayloadTerminator(PayloadTerminator terminator) {
+        ChannelHandler framer = channel.pipeline().get(HandlerConstants.FRAMER);
+        if (framer instanceof LineFrameDecoder) {
+            ((LineFrameDecoder) framer).setPayloadTerminator(terminator);
+        }
+    }
+    
+   
+    /**
+     * {@link InputStream} which just re-throw the {@link IOException} on the next {@link #read()} operation.
+     */
+    private static final class ExceptionInputStream extends InputStream {
+        private final IOException e;
+
+        public ExceptionInputStream(IOException e) {
+            this.e = e;
+        }
+        
+        @Override
+        public int read() throws IOException {
+            throw e;
+        }
+        
+    }
+
+}
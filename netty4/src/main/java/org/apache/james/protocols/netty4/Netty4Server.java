@@ -0,0 +1,382 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.protocols.netty4;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLEngine;
+
+import org.apache.james.protocols.api.Encryption;
+import org.apache.james.protocols.api.Protocol;
+import org.apache.james.protocols.api.ProtocolServer;
+import org.apache.james.protocols.api.ResponseQueueWatermarks;
+import org.apache.james.protocols.api.handler.ProtocolHandler;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollMode;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.util.concurrent.GlobalEventExecutor;
+
+/**
+ * Generic {@link ProtocolServer} which uses Netty 4. It can be used as drop-in replacement for the Netty 3 based 
+ * <code>org.apache.james.protocols.netty.NettyServer</code>, so both can be compared with the same {@link Protocol}.
+ * 
+ * On Linux the native epoll transport is used in edge-triggered mode, on all other platforms or if the native library can't be loaded
+ * it falls back to NIO. Received data is read into pooled direct buffers.
+ */
+public class Netty4Server implements ProtocolServer {
+
+    public final static int MAX_LINE_LENGTH = 8192;
+    
+    public static final int DEFAULT_IO_WORKER_COUNT = Runtime.getRuntime().availableProcessors() * 2;
+
+    protected final Protocol protocol;
+
+    protected final Encryption secure;
+    
+    private volatile int backlog = 250;
+    
+    private volatile int timeout = 120;
+
+    private volatile int ioWorker = DEFAULT_IO_WORKER_COUNT;
+    
+    private volatile boolean nativeTransport = true;
+    
+    private int executorThreads;
+    
+    private boolean writeAggregation;
+    
+    private ResponseQueueWatermarks watermarks;
+    
+    private List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+
+    private volatile boolean started;
+    
+    private ChannelGroup channels;
+    
+    private EventLoopGroup bossGroup;
+    
+    private EventLoopGroup workerGroup;
+    
+    private EventExecutorGroup executorGroup;
+    
+    private boolean epoll;
+    
+    public Netty4Server(Protocol protocol) {
+        this(protocol, null);
+    }
+    
+    public Netty4Server(Protocol protocol, Encryption secure) {
+        this.protocol = protocol;
+        this.secure = secure;
+    }
+    
+    public synchronized void setListenAddresses(InetSocketAddress... addresses) {
+        if (started) throw new IllegalStateException("Can only be set when the server is not running");
+        this.addresses = Collections.unmodifiableList(Arrays.asList(addresses));
+    }
+    
+    /**
+     * Set the IO-worker thread count to use. Default is nCores * 2
+     * 
+     * @param ioWorker
+     */
+    public void setIoWorkerCount(int ioWorker) {
+        if (started) throw new IllegalStateException("Can only be set when the server is not running");
+        this.ioWorker = ioWorker;
+    }
+    
+    /**
+     * Return the IO worker thread count to use
+     * 
+     * @return ioWorker
+     */
+    public int getIoWorkerCount() {
+        return ioWorker;
+    }
+    
+    /**
+     * Set false if the NIO transport should be used even if the native epoll transport is available. Default is true
+     * 
+     * @param nativeTransport
+     */
+    public void setUseNativeTransport(boolean nativeTransport) {
+        if (started) throw new IllegalStateException("Can only be set when the server is not running");
+        this.nativeTransport = nativeTransport;
+    }
+    
+    /**
+     * Return <code>true</code> if the server is bound and uses the native epoll transport
+     * 
+     * @return epoll
+     */
+    public synchronized boolean isNativeTransport() {
+        return started && epoll;
+    }
+    
+    /**
+     * Set true if an {@link EventExecutorGroup} should be used to hand over the tasks. This should be done if you have some 
+     * {@link ProtocolHandler}'s which need to full fill some blocking operation.
+     * 
+     * @param useHandler <code>true</code> if an {@link EventExecutorGroup} should be used
+     * @param size the thread count to use
+     */
+    public void setUseExecutionHandler(boolean useHandler, int size) {
+        if (started) throw new IllegalStateException("Server running already");
+        this.executorThreads = useHandler ? size : 0;
+    }
+    
+    /**
+     * Set true if all responses which are written while processing the lines of one read should be written back to the client at once. 
+     * This reduces the count of writes for clients which make use of PIPELINING.
+     * 
+     * @param writeAggregation
+     */
+    public void setWriteAggregation(boolean writeAggregation) {
+        if (started) throw new IllegalStateException("Server running already");
+        this.writeAggregation = writeAggregation;
+    }
+    
+    /**
+     * Set the {@link ResponseQueueWatermarks} which are used to bound the queued responses of every connection. Reading from a connection is
+     * suspended once one of the high watermarks is reached and resumed after the queue drained.
+     * 
+     * @param watermarks the watermarks or <code>null</code> if the queue should not be bounded
+     */
+    public void setResponseQueueWatermarks(ResponseQueueWatermarks watermarks) {
+        if (started) throw new IllegalStateException("Server running already");
+        this.watermarks = watermarks;
+    }
+
+    /**
+     * Set the read/write timeout for the server. This will throw a {@link IllegalStateException} if the
+     * server is running.
+     * 
+     * @param timeout
+     */
+    public void setTimeout(int timeout) {
+        if (started) throw new IllegalStateException("Can only be set when the server is not running");
+        this.timeout = timeout;
+    }
+    
+    /**
+     * Set the Backlog for the socket. This will throw a {@link IllegalStateException} if the server is running.
+     * 
+     * @param backlog
+     */
+    public void setBacklog(int backlog) {
+        if (started) throw new IllegalStateException("Can only be set when the server is not running");
+        this.backlog = backlog;
+    }
+    
+    /*
+     * (non-Javadoc)
+     * @see org.apache.james.protocols.api.ProtocolServer#getBacklog()
+     */
+    public int getBacklog() {
+        return backlog;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.james.protocols.api.ProtocolServer#getTimeout()
+     */
+    public int getTimeout() {
+        return timeout;
+    }
+    
+    /*
+     * (non-Javadoc)
+     * @see org.apache.james.protocols.api.ProtocolServer#getListenAddresses()
+     */
+    public synchronized List<InetSocketAddress> getListenAddresses() {
+        return addresses;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.james.protocols.api.ProtocolServer#isBound()
+     */
+    public boolean isBound() {
+        return started;
+    }
+    
+    /*
+     * (non-Javadoc)
+     * @see org.apache.james.protocols.api.ProtocolServer#bind()
+     */
+    public synchronized void bind() throws Exception {
+        if (started) throw new IllegalStateException("Server running already");
+
+        if (addresses.isEmpty()) throw new RuntimeException("Please specify at least on socketaddress to which the server should get bound!");
+
+        epoll = nativeTransport && Epoll.isAvailable();
+        Class<? extends ServerChannel> channelClass;
+        if (epoll) {
+            bossGroup = new EpollEventLoopGroup(1);
+            workerGroup = new EpollEventLoopGroup(ioWorker);
+            channelClass = EpollServerSocketChannel.class;
+        } else {
+            bossGroup = new NioEventLoopGroup(1);
+            workerGroup = new NioEventLoopGroup(ioWorker);
+            channelClass = NioServerSocketChannel.class;
+        }
+        if (executorThreads > 0) {
+            executorGroup = new DefaultEventExecutorGroup(executorThreads);
+        }
+        channels = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
+        
+        ServerBootstrap bootstrap = new ServerBootstrap();
+        bootstrap.group(bossGroup, workerGroup).channel(channelClass).childHandler(createChannelInitializer(createCoreHandler()));
+        configureBootstrap(bootstrap);
+        
+        try {
+            for (int i = 0; i < addresses.size(); i++) {
+                channels.add(bootstrap.bind(addresses.get(i)).sync().channel());
+            }
+        } catch (Exception e) {
+            release();
+            throw e;
+        }
+        started = true;
+    }
+    
+    /**
+     * Configure the bootstrap before it get bound
+     * 
+     * @param bootstrap
+     */
+    protected void configureBootstrap(ServerBootstrap bootstrap) {
+        bootstrap.option(ChannelOption.SO_BACKLOG, backlog);
+        bootstrap.option(ChannelOption.SO_REUSEADDR, true);
+        bootstrap.childOption(ChannelOption.TCP_NODELAY, true);
+        bootstrap.childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT);
+        if (epoll) {
+            bootstrap.childOption(EpollChannelOption.EPOLL_MODE, EpollMode.EDGE_TRIGGERED);
+        }
+    }
+    
+    /**
+     * Create the core {@link ChannelHandler} to use. It's shared by all channels
+     * 
+     * @return coreHandler
+     */
+    protected ChannelHandler createCoreHandler() {
+        return new BasicChannelInboundHandler(protocol, secure, writeAggregation, watermarks);
+    }
+
+    /**
+     * Create the {@link ChannelInitializer} which sets up the {@link ChannelPipeline} of every accepted channel
+     * 
+     * @param coreHandler
+     * @return initializer
+     */
+    protected ChannelInitializer<Channel> createChannelInitializer(final ChannelHandler coreHandler) {
+        final ChannelGroup channels = this.channels;
+        final EventExecutorGroup executorGroup = this.executorGroup;
+        return new ChannelInitializer<Channel>() {
+
+            @Override
+            protected void initChannel(Channel channel) throws Exception {
+                // Add all open channels to the group so that they are closed on shutdown.
+                channels.add(channel);
+                
+                ChannelPipeline pipeline = channel.pipeline();
+                if (isSSLSocket()) {
+                    pipeline.addLast(HandlerConstants.SSL_HANDLER, new SslHandler(createSSLEngine()));
+                }
+                
+                // Add the line decoder which limit the max line length and don't strip the delimiter
+                pipeline.addLast(HandlerConstants.FRAMER, new LineFrameDecoder(MAX_LINE_LENGTH));
+               
+                // Add the ChunkedWriteHandler to be able to write ChunkedInput
+                pipeline.addLast(HandlerConstants.CHUNK_HANDLER, new ChunkedWriteHandler());
+                pipeline.addLast(HandlerConstants.TIMEOUT_HANDLER, new IdleTimeoutHandler(timeout));
+                // Hold back pipelined lines while a FutureResponse is pending
+                pipeline.addLast(executorGroup, HandlerConstants.PENDING_RESPONSE_HANDLER, new PendingResponseChannelInboundHandler());
+                pipeline.addLast(executorGroup, HandlerConstants.CORE_HANDLER, coreHandler);
+            }
+        };
+    }
+    
+    /**
+     * Return if the socket is using SSL/TLS
+     * 
+     * @return isSSL
+     */
+    protected boolean isSSLSocket() {
+        return secure != null && secure.getContext() != null && !secure.isStartTLS();
+    }
+    
+    private SSLEngine createSSLEngine() {
+        // We need to set clientMode to false.
+        // See https://issues.apache.org/jira/browse/JAMES-1025
+        SSLEngine engine = secure.getContext().createSSLEngine();
+        engine.setUseClientMode(false);
+        String[] enabledCipherSuites = secure.getEnabledCipherSuites();
+        if (enabledCipherSuites != null && enabledCipherSuites.length > 0) {
+            engine.setEnabledCipherSuites(enabledCipherSuites);
+        }
+        return engine;
+    }
+    
+    /*
+     * (non-Javadoc)
+     * @see org.apache.james.protocols.api.ProtocolServer#unbind()
+     */
+    public synchronized void unbind() {
+        if (started == false) return;
+        release();
+        started = false;
+    }
+    
+    private void release() {
+        channels.close().awaitUninterruptibly();
+        bossGroup.shutdownGracefully(0, 5, TimeUnit.SECONDS).awaitUninterruptibly();
+        workerGroup.shutdownGracefully(0, 5, TimeUnit.SECONDS).awaitUninterruptibly();
+        if (executorGroup != null) {
+            executorGroup.shutdownGracefully(0, 5, TimeUnit.SECONDS).awaitUninterruptibly();
+            executorGroup = null;
+        }
+    }
+}
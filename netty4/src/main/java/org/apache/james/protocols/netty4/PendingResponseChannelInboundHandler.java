@@ -0,0 +1,115 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.protocols.netty4;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+import org.apache.james.protocols.api.ProtocolSession;
+import org.apache.james.protocols.api.ProtocolSessionImpl;
+import org.apache.james.protocols.api.future.FutureResponse;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * Handler which holds back the received lines while a {@link FutureResponse} is pending. This makes sure pipelined commands are
+ * not processed before the command in front of them was completed, for example by an asynchronous hook. The lines are passed
+ * on again once all pending {@link FutureResponse}'s were written. While lines are held back reading from the channel is paused.
+ * 
+ * This handler must be added with the same executor as the core handler and keeps state, so one instance per channel is needed.
+ */
+public class PendingResponseChannelInboundHandler extends ChannelInboundHandlerAdapter {
+
+    private final Queue<Object> deferred = new ArrayDeque<Object>();
+    private volatile ChannelHandlerContext ctx;
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        this.ctx = ctx;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        Netty4ProtocolTransport transport = getTransport(ctx);
+        if (transport != null && (!deferred.isEmpty() || transport.isResponsePending())) {
+            deferred.add(msg);
+            // don't read more till the pending responses were written
+            transport.pauseReadWhilePending();
+            return;
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        releaseDeferred();
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        releaseDeferred();
+    }
+
+    private void releaseDeferred() {
+        Object msg;
+        while ((msg = deferred.poll()) != null) {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    /**
+     * Pass the held back lines on until a {@link FutureResponse} is pending again. This is executed by the executor of the handler
+     */
+    void resume() {
+        final ChannelHandlerContext ctx = this.ctx;
+        if (ctx == null) {
+            return;
+        }
+        ctx.executor().execute(new Runnable() {
+
+            public void run() {
+                Netty4ProtocolTransport transport = getTransport(ctx);
+                if (transport == null) {
+                    return;
+                }
+                boolean replayed = false;
+                while (!deferred.isEmpty() && !transport.isResponsePending()) {
+                    ctx.fireChannelRead(deferred.poll());
+                    replayed = true;
+                }
+                if (replayed) {
+                    // the replayed lines may have been aggregated, so flush them now
+                    transport.endBatch(ctx.channel().attr(BasicChannelInboundHandler.SESSION).get());
+                }
+            }
+        });
+    }
+
+    private static Netty4ProtocolTransport getTransport(ChannelHandlerContext ctx) {
+        ProtocolSession session = ctx.channel().attr(BasicChannelInboundHandler.SESSION).get();
+        if (session == null) {
+            return null;
+        }
+        return (Netty4ProtocolTransport) ((ProtocolSessionImpl) session).getProtocolTransport();
+    }
+}
@@ -19,8 +19,12 @@
 
 package org.apache.james.protocols.pop3;
 
+import java.util.List;
+
+import org.apache.james.protocols.api.AttributeKey;
 import org.apache.james.protocols.api.ProtocolSession;
 import org.apache.james.protocols.pop3.mailbox.Mailbox;
+import org.apache.james.protocols.pop3.mailbox.MessageMetaData;
 
 /**
  * All the handlers access this interface to communicate with POP3Handler object
@@ -32,6 +36,10 @@ public interface POP3Session extends ProtocolSession {
     final static String DELETED_UID_LIST = "DELETED_UID_LIST";
     final static String APOP_TIMESTAMP = "APOP_TIMESTAMP";
 
+    // Typed keys of the above, which share the storage with the String keys
+    final static AttributeKey<List<MessageMetaData>> UID_LIST_KEY = AttributeKey.valueOf(UID_LIST);
+    final static AttributeKey<List<String>> DELETED_UID_LIST_KEY = AttributeKey.valueOf(DELETED_UID_LIST);
+
     // Authentication states for the POP3 interaction
     /** Waiting for user id */
     final static int AUTHENTICATION_READY = 0;
@@ -31,6 +31,17 @@ import org.apache.james.protocols.pop3.mailbox.Mailbox;
 public class POP3SessionImpl extends ProtocolSessionImpl implements POP3Session {
 
     private static final Response LINE_TOO_LONG = new POP3Response(POP3Response.ERR_RESPONSE, "Exceed maximal line length").immutable();
+    private static final Response TOO_MANY_CONNECTIONS;
+    private static final Response SHUTDOWN;
+    static {
+        POP3Response response = new POP3Response(POP3Response.ERR_RESPONSE, "Too many connections");
+        response.setEndSession(true);
+        TOO_MANY_CONNECTIONS = response.immutable();
+        
+        response = new POP3Response(POP3Response.ERR_RESPONSE, "Server shutting down");
+        response.setEndSession(true);
+        SHUTDOWN = response.immutable();
+    }
     private int handlerState;
 
     private Mailbox mailbox;
@@ -56,7 +67,7 @@ public class POP3SessionImpl extends ProtocolSessionImpl implements POP3Session
 
     @Override
     public void resetState() {
-        getState().clear();
+        super.resetState();
 
         setHandlerState(AUTHENTICATION_READY);
     }
@@ -85,4 +96,22 @@ public class POP3SessionImpl extends ProtocolSessionImpl implements POP3Session
     public Response newFatalErrorResponse() {
         return POP3Response.ERR;
     }
+
+    @Override
+    public Response newConnectionLimitExceededResponse() {
+        return TOO_MANY_CONNECTIONS;
+    }
+
+    @Override
+    public Response newShutdownResponse() {
+        return SHUTDOWN;
+    }
+
+    /**
+     * The session is in a transaction once the user was authenticated, as the deletions are only applied on QUIT
+     */
+    @Override
+    public boolean isInTransaction() {
+        return super.isInTransaction() || handlerState == TRANSACTION;
+    }
 }
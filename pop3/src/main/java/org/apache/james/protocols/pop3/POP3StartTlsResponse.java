@@ -19,8 +19,7 @@
 
 package org.apache.james.protocols.pop3;
 
-import java.util.List;
-
+import org.apache.james.protocols.api.ImmutableStartTlsResponse;
 import org.apache.james.protocols.api.Response;
 import org.apache.james.protocols.api.StartTlsResponse;
 
@@ -45,20 +44,7 @@ public class POP3StartTlsResponse extends POP3Response implements StartTlsRespon
     @Override
     public Response immutable() {
         // We need to override this and return a StartTlsResponse. See ROTOCOLS-89
-        return new StartTlsResponse() {
-            
-            public boolean isEndSession() {
-                return POP3StartTlsResponse.this.isEndSession();
-            }
-            
-            public String getRetCode() {
-                return POP3StartTlsResponse.this.getRetCode();
-            }
-            
-            public List<CharSequence> getLines() {
-                return POP3StartTlsResponse.this.getLines();
-            }
-        };
+        return new ImmutableStartTlsResponse(this);
     }
 
 }
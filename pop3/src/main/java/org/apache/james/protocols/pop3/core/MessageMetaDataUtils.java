@@ -36,8 +36,7 @@ public class MessageMetaDataUtils {
      * @return data
      */
     public static MessageMetaData getMetaData(POP3Session session, int number) {
-        @SuppressWarnings("unchecked")
-        List<MessageMetaData> uidList = (List<MessageMetaData>) session.getAttachment(POP3Session.UID_LIST, State.Transaction);
+        List<MessageMetaData> uidList = session.getAttachment(POP3Session.UID_LIST_KEY, State.Transaction);
         if (uidList == null || number > uidList.size()) {
             return null;
         } else {
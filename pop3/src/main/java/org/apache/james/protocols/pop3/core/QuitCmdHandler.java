@@ -53,13 +53,12 @@ public class QuitCmdHandler implements CommandHandler<POP3Session> {
      * Handler method called upon receipt of a QUIT command. This method handles
      * cleanup of the POP3Handler state.
      */
-    @SuppressWarnings("unchecked")
     public Response onCommand(POP3Session session, Request request) {
         Response response = null;
         if (session.getHandlerState() == POP3Session.AUTHENTICATION_READY || session.getHandlerState() == POP3Session.AUTHENTICATION_USERSET) {
             return SIGN_OFF;
         }
-        List<String> toBeRemoved = (List<String>) session.getAttachment(POP3Session.DELETED_UID_LIST, State.Transaction);
+        List<String> toBeRemoved = session.getAttachment(POP3Session.DELETED_UID_LIST_KEY, State.Transaction);
         Mailbox mailbox = session.getUserMailbox();
         try {
             String[] uids = toBeRemoved.toArray(new String[toBeRemoved.size()]);
@@ -47,13 +47,12 @@ public class UidlCmdHandler implements CommandHandler<POP3Session>, CapaCapabili
      * Handler method called upon receipt of a UIDL command. Returns a listing
      * of message ids to the client.
      */
-    @SuppressWarnings("unchecked")
     public Response onCommand(POP3Session session, Request request) {
         POP3Response response = null;
         String parameters = request.getArgument();
         if (session.getHandlerState() == POP3Session.TRANSACTION) {
-            List<MessageMetaData> uidList = (List<MessageMetaData>) session.getAttachment(POP3Session.UID_LIST, State.Transaction);
-            List<String> deletedUidList = (List<String>) session.getAttachment(POP3Session.DELETED_UID_LIST, State.Transaction);
+            List<MessageMetaData> uidList = session.getAttachment(POP3Session.UID_LIST_KEY, State.Transaction);
+            List<String> deletedUidList = session.getAttachment(POP3Session.DELETED_UID_LIST_KEY, State.Transaction);
             try {
                 String identifier = session.getUserMailbox().getIdentifier();
                 if (parameters == null) {
@@ -0,0 +1,165 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.protocols.smtp;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.apache.james.protocols.api.ChunkPool;
+import org.apache.james.protocols.api.DeferredFileBuffer;
+import org.apache.james.protocols.api.ProtocolSession;
+
+/**
+ * {@link MailEnvelope} implementation which keeps the message in memory till it exceeds a threshold and moves it to a temporary file 
+ * after that. So the heap used per message is bounded, no matter how big the message is. The memory is taken from a {@link ChunkPool}
+ * and given back once the envelope is closed.
+ * 
+ * The message is never copied when it is read. Every call of {@link #getMessageInputStream()} returns a new stream which reads directly 
+ * from the memory or the file, and {@link #getMessageBuffers()} gives access to the message without any copy.
+ * 
+ * The envelope must be closed once it is not needed anymore to delete the temporary file. If it is stored as an attachment of 
+ * {@link ProtocolSession.State#Transaction}, like it is done by the DATA command, this happens when the state is reset after the 
+ * message was processed. So hooks which need the message after they returned must copy it.
+ */
+public class DeferredFileMailEnvelope implements MailEnvelope, Closeable {
+
+    private final DeferredFileBuffer buffer;
+    private List<MailAddress> recipients;
+    private MailAddress sender;
+    private OutputStream out;
+
+    /**
+     * Create a new envelope 
+     * 
+     * @param threshold the count of bytes which are kept in memory
+     * @param directory the directory in which the temporary file is created or <code>null</code> to use the default temporary directory
+     * @param pool      the {@link ChunkPool} which is used to hold the message in memory
+     */
+    public DeferredFileMailEnvelope(int threshold, File directory, ChunkPool pool) {
+        this.buffer = new DeferredFileBuffer(threshold, directory, pool);
+    }
+
+    /**
+     * Create a new envelope which uses the {@link ChunkPool#getDefault()}
+     * 
+     * @param threshold the count of bytes which are kept in memory
+     * @param directory the directory in which the temporary file is created or <code>null</code> to use the default temporary directory
+     */
+    public DeferredFileMailEnvelope(int threshold, File directory) {
+        this(threshold, directory, ChunkPool.getDefault());
+    }
+
+    public DeferredFileMailEnvelope() {
+        this(DeferredFileBuffer.DEFAULT_THRESHOLD, null);
+    }
+
+    /**
+     * @see org.apache.james.protocols.smtp.MailEnvelope#getSize()
+     */
+    public long getSize() {
+        if (out == null) {
+            return -1;
+        }
+        return buffer.getLength();
+    }
+
+    /**
+     * @see org.apache.james.protocols.smtp.MailEnvelope#getRecipients()
+     */
+    public List<MailAddress> getRecipients() {
+        return recipients;
+    }
+
+    /**
+     * @see org.apache.james.protocols.smtp.MailEnvelope#getSender()
+     */
+    public MailAddress getSender() {
+        return sender;
+    }
+
+    /**
+     * Set the recipients of the mail
+     * 
+     * @param recipientCollection
+     */
+    public void setRecipients(List<MailAddress> recipientCollection) {
+        this.recipients = recipientCollection;
+    }
+
+    /**
+     * Set the sender of the mail
+     * 
+     * @param sender
+     */
+    public void setSender(MailAddress sender) {
+        this.sender = sender;
+    }
+
+    /**
+     * @see org.apache.james.protocols.smtp.MailEnvelope#getMessageOutputStream()
+     */
+    public OutputStream getMessageOutputStream() {
+        if (out == null) {
+            out = buffer.getOutputStream();
+        }
+        return out;
+    }
+
+    /**
+     * Return a new {@link InputStream} which reads the message from the start without copying it first
+     * 
+     * @see org.apache.james.protocols.smtp.MailEnvelope#getMessageInputStream()
+     */
+    public InputStream getMessageInputStream() {
+        return buffer.getInputStream();
+    }
+
+    /**
+     * Return a read-only view of the message. If the message was moved to the temporary file it is memory-mapped. The returned 
+     * {@link ByteBuffer}'s MUST NOT be used after the envelope was closed.
+     * 
+     * @return buffers
+     * @throws IOException
+     */
+    public ByteBuffer[] getMessageBuffers() throws IOException {
+        return buffer.getReadOnlyBuffers();
+    }
+
+    /**
+     * Return <code>true</code> if the message is still held in memory
+     * 
+     * @return inMemory
+     */
+    public boolean isInMemory() {
+        return buffer.isInMemory();
+    }
+
+    /**
+     * Give back the memory and delete the temporary file of the message
+     */
+    public void close() {
+        buffer.close();
+    }
+}
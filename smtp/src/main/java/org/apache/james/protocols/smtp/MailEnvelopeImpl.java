@@ -20,24 +20,37 @@
 
 package org.apache.james.protocols.smtp;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.List;
 
+import org.apache.james.protocols.api.ChunkPool;
+import org.apache.james.protocols.api.DeferredFileBuffer;
+
 /**
  * MailEnvelope implementation which stores everything in memory
  * 
+ * The message is held in chunks which are allocated as needed, so it is never copied while it grows or when it is read. As the 
+ * envelope may still be used by hooks after the transaction was finished, the chunks are not pooled. Use {@link DeferredFileMailEnvelope}
+ * to make use of the shared {@link ChunkPool}.
  *
  */
 public class MailEnvelopeImpl implements MailEnvelope{
 
+    /**
+     * Allocates the chunks without pooling them, as they are never given back
+     */
+    private final static ChunkPool UNPOOLED = new ChunkPool(ChunkPool.DEFAULT_CHUNK_SIZE, 0, false);
+
     private List<MailAddress> recipients;
 
     private MailAddress sender;
 
-    private ByteArrayOutputStream outputStream;
+    private DeferredFileBuffer buffer;
+    
+    private OutputStream outputStream;
 
     /**
      * @see org.apache.james.protocols.smtp.MailEnvelope#getSize()
@@ -45,7 +58,7 @@ public class MailEnvelopeImpl implements MailEnvelope{
     public long getSize() {
         if (outputStream == null)
             return -1;
-        return outputStream.size();
+        return buffer.getLength();
     }
 
     /**
@@ -85,17 +98,30 @@ public class MailEnvelopeImpl implements MailEnvelope{
      */
     public OutputStream getMessageOutputStream() {
         if (outputStream == null) {
-            // use 100kb as default which should be enough for most emails
-            this.outputStream = new ByteArrayOutputStream(100 * 1024);
+            // the buffer never moves the message to a file
+            this.buffer = new DeferredFileBuffer(Integer.MAX_VALUE, null, UNPOOLED);
+            this.outputStream = buffer.getOutputStream();
         }
         return outputStream;
     }
 
     /**
+     * Return a new {@link InputStream} which reads the message from the start without copying it first
+     * 
      * @see org.apache.james.protocols.smtp.MailEnvelope#getMessageInputStream()
      */
     public InputStream getMessageInputStream() {
-        return new ByteArrayInputStream(outputStream.toByteArray());
+        return buffer.getInputStream();
+    }
+    
+    /**
+     * Return a read-only view of the message without copying it
+     * 
+     * @return buffers
+     * @throws IOException
+     */
+    public ByteBuffer[] getMessageBuffers() throws IOException {
+        return buffer.getReadOnlyBuffers();
     }
 }
 
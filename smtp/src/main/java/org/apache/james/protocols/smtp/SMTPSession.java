@@ -19,6 +19,9 @@
 
 package org.apache.james.protocols.smtp;
 
+import java.util.List;
+
+import org.apache.james.protocols.api.AttributeKey;
 import org.apache.james.protocols.api.ProtocolSession;
 
 /**
@@ -36,6 +39,15 @@ public interface SMTPSession extends ProtocolSession{
     /** HELO or EHLO */
     final static String CURRENT_HELO_MODE = "CURRENT_HELO_MODE";
     final static String CURRENT_HELO_NAME = "CURRENT_HELO_NAME";
+    /** The BODY type given with the MAIL command */
+    final static String BODY_TYPE = "BODY_TYPE";
+
+    // Typed keys of the above, which share the storage with the String keys
+    final static AttributeKey<MailAddress> SENDER_KEY = AttributeKey.valueOf(SENDER);
+    final static AttributeKey<List<MailAddress>> RCPT_LIST_KEY = AttributeKey.valueOf(RCPT_LIST);
+    final static AttributeKey<String> CURRENT_HELO_MODE_KEY = AttributeKey.valueOf(CURRENT_HELO_MODE);
+    final static AttributeKey<String> CURRENT_HELO_NAME_KEY = AttributeKey.valueOf(CURRENT_HELO_NAME);
+    final static AttributeKey<String> BODY_TYPE_KEY = AttributeKey.valueOf(BODY_TYPE);
 
     /**
      * Returns the service wide configuration
@@ -18,7 +18,7 @@
  ****************************************************************/
 package org.apache.james.protocols.smtp;
 
-import java.util.Collection;
+import java.util.List;
 
 import org.apache.james.protocols.api.ProtocolSessionImpl;
 import org.apache.james.protocols.api.ProtocolTransport;
@@ -53,13 +53,13 @@ public class SMTPSessionImpl extends ProtocolSessionImpl implements SMTPSession
     @Override
     public void resetState() {
         // remember the ehlo mode between resets
-        Object currentHeloMode = getState().get(CURRENT_HELO_MODE);
+        String currentHeloMode = getAttachment(CURRENT_HELO_MODE_KEY, State.Transaction);
 
-        getState().clear();
+        super.resetState();
 
         // start again with the old helo mode
         if (currentHeloMode != null) {
-            getState().put(CURRENT_HELO_MODE, currentHeloMode);
+            setAttachment(CURRENT_HELO_MODE_KEY, currentHeloMode, State.Transaction);
         }
     }
 
@@ -67,16 +67,9 @@ public class SMTPSessionImpl extends ProtocolSessionImpl implements SMTPSession
     /**
      * @see org.apache.james.protocols.smtp.SMTPSession#getRcptCount()
      */
-    @SuppressWarnings("unchecked")
     public int getRcptCount() {
-        int count = 0;
-
-        // check if the key exists
-        if (getState().get(SMTPSession.RCPT_LIST) != null) {
-            count = ((Collection<MailAddress>) getState().get(SMTPSession.RCPT_LIST)).size();
-        }
-
-        return count;
+        List<MailAddress> rcpts = getAttachment(RCPT_LIST_KEY, State.Transaction);
+        return rcpts == null ? 0 : rcpts.size();
     }
 
     /**
@@ -104,6 +97,28 @@ public class SMTPSessionImpl extends ProtocolSessionImpl implements SMTPSession
         return FATAL_ERROR;
     }
 
+    @Override
+    public Response newConnectionLimitExceededResponse() {
+        SMTPResponse response = new SMTPResponse(SMTPRetCode.SERVICE_NOT_AVAILABLE, getConfiguration().getHelloName() + " Too many connections, closing transmission channel");
+        response.setEndSession(true);
+        return response;
+    }
+
+    @Override
+    public Response newShutdownResponse() {
+        SMTPResponse response = new SMTPResponse(SMTPRetCode.SERVICE_NOT_AVAILABLE, getConfiguration().getHelloName() + " Service shutting down, closing transmission channel");
+        response.setEndSession(true);
+        return response;
+    }
+
+    /**
+     * The session is in a transaction from MAIL till the message was accepted or the transaction was reset
+     */
+    @Override
+    public boolean isInTransaction() {
+        return super.isInTransaction() || getAttachment(SENDER_KEY, State.Transaction) != null;
+    }
+
     @Override
     public SMTPConfiguration getConfiguration() {
         return (SMTPConfiguration) config;
@@ -19,8 +19,7 @@
 
 package org.apache.james.protocols.smtp;
 
-import java.util.List;
-
+import org.apache.james.protocols.api.ImmutableStartTlsResponse;
 import org.apache.james.protocols.api.Response;
 import org.apache.james.protocols.api.StartTlsResponse;
 
@@ -46,20 +45,7 @@ public class SMTPStartTlsResponse extends SMTPResponse implements StartTlsRespon
     @Override
     public Response immutable() {
         // We need to override this and return a StartTlsResponse. See ROTOCOLS-89
-        return new StartTlsResponse() {
-            
-            public boolean isEndSession() {
-                return SMTPStartTlsResponse.this.isEndSession();
-            }
-            
-            public String getRetCode() {
-                return SMTPStartTlsResponse.this.getRetCode();
-            }
-            
-            public List<CharSequence> getLines() {
-                return SMTPStartTlsResponse.this.getLines();
-            }
-        };
+        return new ImmutableStartTlsResponse(this);
     }
 
 }
@@ -31,16 +31,19 @@ import org.apache.james.protocols.api.handler.LineHandler;
 import org.apache.james.protocols.smtp.SMTPSession;
 
 /**
- * Abstract base class for {@link SeparatingDataLineFilter} implementations that add headers to a message
+ * Abstract base class for {@link SeparatingDataLineFilter} implementations that add headers to a message. The headers are added to
+ * messages which are transfered via BDAT too.
  * 
+ * As only the headers are of interest, it is not called for the blocks of the body.
  *
  */
-public abstract class AbstractAddHeadersFilter extends SeparatingDataLineFilter{
+public abstract class AbstractAddHeadersFilter extends SeparatingDataLineFilter implements DataHeadersFilter, DataChunkFilter{
 
     private static final AtomicInteger COUNTER = new AtomicInteger(0);
     
     private final String headersPrefixAdded = "HEADERS_PREFIX_ADDED" + COUNTER.incrementAndGet();
     private final String headersSuffixAdded = "HEADERS_SUFFIX_ADDED" + COUNTER.incrementAndGet();
+    private final String separatorScanner = "SEPARATOR_SCANNER" + COUNTER.incrementAndGet();
 
     enum Location{
         Prefix,
@@ -73,6 +76,153 @@ public abstract class AbstractAddHeadersFilter extends SeparatingDataLineFilter{
         return super.onHeadersLine(session, line, next);
     }
    
+    /*
+     * (non-Javadoc)
+     * @see org.apache.james.protocols.smtp.core.DataLineBlockFilter#onBlock(org.apache.james.protocols.smtp.SMTPSession, org.apache.james.protocols.smtp.core.DataLineBlock, org.apache.james.protocols.smtp.core.DataLineBlockHandler)
+     */
+    public Response onBlock(SMTPSession session, DataLineBlock block, final DataLineBlockHandler next) {
+        LineHandler<SMTPSession> handler = new LineHandler<SMTPSession>() {
+
+            public Response onLine(SMTPSession session, ByteBuffer line) {
+                return next.onBlock(session, DataLineBlock.parse(line, false));
+            }
+        };
+        
+        Response response;
+        if (getLocation() == Location.Prefix) {
+            if (block.getLineCount() > 0 && session.getAttachment(headersPrefixAdded, State.Transaction) == null) {
+                session.setAttachment(headersPrefixAdded, Boolean.TRUE, State.Transaction);
+                if (block.getSeparatorLine() == 0) {
+                    // no headers at all
+                    return next.onBlock(session, block);
+                }
+                response = addHeaders(session, handler);
+                if (response != null) {
+                    return response;
+                }
+            }
+            return next.onBlock(session, block);
+        }
+        
+        int separator = block.getSeparatorLine();
+        if (separator == -1 || session.getAttachment(headersSuffixAdded, State.Transaction) != null) {
+            return next.onBlock(session, block);
+        }
+        session.setAttachment(headersSuffixAdded, Boolean.TRUE, State.Transaction);
+        response = separator > 0 ? next.onBlock(session, block.slice(0, separator)) : null;
+        if (response == null) {
+            response = addHeaders(session, handler);
+        }
+        if (response == null) {
+            response = next.onBlock(session, block.slice(separator, block.getLineCount()));
+        }
+        return response;
+    }
+    
+    /**
+     * Add headers to the message
+     * 
+     * @param session
+     * @param handler
+     * @return response
+     */
+    private Response addHeaders(SMTPSession session, LineHandler<SMTPSession> handler) {
+        Response response;
+        for (Header header: headers(session)) {
+            response = header.transferTo(session, handler);
+            if (response != null) {
+                return response;
+            }
+        }
+        return null;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.james.protocols.smtp.core.DataChunkFilter#onChunk(org.apache.james.protocols.smtp.SMTPSession, java.nio.ByteBuffer, boolean, org.apache.james.protocols.smtp.core.DataChunkHandler)
+     */
+    public Response onChunk(SMTPSession session, ByteBuffer chunk, boolean last, DataChunkHandler next) {
+        if (getLocation() == Location.Prefix) {
+            if (session.getAttachment(headersPrefixAdded, State.Transaction) == null) {
+                session.setAttachment(headersPrefixAdded, Boolean.TRUE, State.Transaction);
+                Response response = addHeaders(session, next);
+                if (response != null) {
+                    return response;
+                }
+            }
+            return next.onChunk(session, chunk, last);
+        }
+        
+        if (session.getAttachment(headersSuffixAdded, State.Transaction) != null) {
+            return next.onChunk(session, chunk, last);
+        }
+        SeparatorScanner scanner = (SeparatorScanner) session.getAttachment(separatorScanner, State.Transaction);
+        if (scanner == null) {
+            scanner = new SeparatorScanner();
+            session.setAttachment(separatorScanner, scanner, State.Transaction);
+        }
+        
+        Response response = null;
+        if (scanner.pendingCR) {
+            if (!chunk.hasRemaining() && !last) {
+                return null;
+            }
+            scanner.pendingCR = false;
+            if (chunk.hasRemaining() && chunk.get(chunk.position()) == '\n') {
+                // the separator started at the end of the last chunk
+                session.setAttachment(headersSuffixAdded, Boolean.TRUE, State.Transaction);
+                response = addHeaders(session, next);
+                if (response == null) {
+                    response = next.onChunk(session, ByteBuffer.wrap(CR), false);
+                }
+                return response != null ? response : next.onChunk(session, chunk, last);
+            }
+            scanner.lineStart = false;
+            response = next.onChunk(session, ByteBuffer.wrap(CR), last && !chunk.hasRemaining());
+            if (response != null || !chunk.hasRemaining()) {
+                return response;
+            }
+        }
+        
+        int separator = scanner.scan(chunk, last);
+        if (separator >= 0) {
+            session.setAttachment(headersSuffixAdded, Boolean.TRUE, State.Transaction);
+            ByteBuffer headers = chunk.duplicate();
+            headers.limit(separator);
+            response = next.onChunk(session, headers, false);
+            if (response == null) {
+                response = addHeaders(session, next);
+            }
+            if (response == null) {
+                chunk.position(separator);
+                response = next.onChunk(session, chunk, last);
+            }
+        } else if (scanner.pendingCR) {
+            // hold back the CR as it may be the start of the separator
+            chunk.limit(chunk.limit() - 1);
+            response = next.onChunk(session, chunk, false);
+        } else if (chunk.hasRemaining() || last) {
+            response = next.onChunk(session, chunk, last);
+        }
+        return response;
+    }
+    
+    /**
+     * Add headers to the message which is transfered in chunks
+     * 
+     * @param session
+     * @param next
+     * @return response
+     */
+    private Response addHeaders(SMTPSession session, final DataChunkHandler next) {
+        return addHeaders(session, new LineHandler<SMTPSession>() {
+
+            public Response onLine(SMTPSession session, ByteBuffer line) {
+                return next.onChunk(session, line, false);
+            }
+        });
+    }
+    
     /**
      * Add headers to the message
      * 
@@ -99,6 +249,42 @@ public abstract class AbstractAddHeadersFilter extends SeparatingDataLineFilter{
      */
     protected abstract Collection<Header> headers(SMTPSession session);
     
+    private final static byte[] CR = { '\r' };
+    
+    /**
+     * Searches the empty line which separates the headers from the body in a message which is transfered in chunks
+     */
+    private final static class SeparatorScanner {
+        private boolean lineStart = true;
+        private boolean pendingCR;
+        
+        /**
+         * Scan the remaining bytes of the chunk without changing its position.
+         * 
+         * @param chunk
+         * @param last
+         * @return the index of the separator or -1 if it was not found. In the later case {@link #pendingCR} is set if the chunk ends with
+         *         a CR at the start of a line
+         */
+        private int scan(ByteBuffer chunk, boolean last) {
+            int limit = chunk.limit();
+            for (int i = chunk.position(); i < limit; i++) {
+                byte b = chunk.get(i);
+                if (lineStart && b == '\r') {
+                    if (i + 1 == limit) {
+                        pendingCR = !last;
+                        return -1;
+                    }
+                    if (chunk.get(i + 1) == '\n') {
+                        return i;
+                    }
+                }
+                lineStart = b == '\n';
+            }
+            return -1;
+        }
+    }
+    
     public final static class Header {
         public static final String MULTI_LINE_PREFIX = "          ";
         
@@ -21,14 +21,21 @@ package org.apache.james.protocols.smtp.core;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.james.protocols.api.Request;
 import org.apache.james.protocols.api.Response;
+import org.apache.james.protocols.api.future.FutureResponse;
+import org.apache.james.protocols.api.future.FutureResponse.ResponseListener;
+import org.apache.james.protocols.api.future.FutureResponseImpl;
 import org.apache.james.protocols.api.handler.CommandHandler;
 import org.apache.james.protocols.api.handler.ExtensibleHandler;
 import org.apache.james.protocols.smtp.SMTPResponse;
 import org.apache.james.protocols.smtp.SMTPRetCode;
 import org.apache.james.protocols.smtp.SMTPSession;
+import org.apache.james.protocols.smtp.dsn.DSNStatus;
+import org.apache.james.protocols.smtp.hook.FutureHookResult;
+import org.apache.james.protocols.smtp.hook.FutureHookResult.HookResultListener;
 import org.apache.james.protocols.smtp.hook.HookResult;
 import org.apache.james.protocols.smtp.hook.HookResultHook;
 import org.apache.james.protocols.smtp.hook.HookReturnCode;
@@ -39,6 +46,8 @@ import org.apache.james.protocols.smtp.hook.HookReturnCode;
  */
 public abstract class AbstractHookableCmdHandler<Hook extends org.apache.james.protocols.smtp.hook.Hook> implements CommandHandler<SMTPSession>, ExtensibleHandler {
 
+    private static final Response HOOK_ERROR = new SMTPResponse(SMTPRetCode.LOCAL_ERROR, DSNStatus.getStatus(DSNStatus.TRANSIENT,
+            DSNStatus.UNDEFINED_STATUS) + " Temporary problem. Please try again later").immutable();
 
     private List<Hook> hooks;
     private List<HookResultHook> rHooks;
@@ -55,13 +64,7 @@ public abstract class AbstractHookableCmdHandler<Hook extends org.apache.james.p
         Response response = doFilterChecks(session, command, parameters);
 
         if (response == null) {
-
-            response = processHooks(session, command, parameters);
-            if (response == null) {
-                return doCoreCmd(session, command, parameters);
-            } else {
-                return response;
-            }
+            return doHooksAndCoreCmd(session, command, parameters);
         } else {
             return response;
         }
@@ -69,7 +72,27 @@ public abstract class AbstractHookableCmdHandler<Hook extends org.apache.james.p
     }
 
     /**
-     * Process all hooks for the given command
+     * Process all hooks and execute the core command handling if no hook returned a result which stops
+     * the processing. If one of the hooks returns a {@link FutureHookResult} which is not ready yet the
+     * returned {@link Response} will be a {@link FutureResponse} which is completed once all the hooks
+     * and the core command handling were executed
+     * 
+     * @param session
+     * @param command
+     * @param parameters
+     * @return response
+     */
+    protected Response doHooksAndCoreCmd(SMTPSession session, String command, String parameters) {
+        Response response = processHooks(session, command, parameters, 0, null);
+        if (response == null) {
+            return doCoreCmd(session, command, parameters);
+        } else {
+            return response;
+        }
+    }
+
+    /**
+     * Process the hooks for the given command, starting with the hook at the given index
      * 
      * @param session
      *            the SMTPSession object
@@ -77,72 +100,144 @@ public abstract class AbstractHookableCmdHandler<Hook extends org.apache.james.p
      *            the command
      * @param parameters
      *            the paramaters
+     * @param index
+     *            the index of the first hook to execute
+     * @param future
+     *            the {@link FutureResponseImpl} to complete if the processing was suspended before, otherwise <code>null</code>
      * @return SMTPResponse
      */
-    private Response processHooks(SMTPSession session, String command,
-            String parameters) {
+    private Response processHooks(final SMTPSession session, final String command,
+            final String parameters, int index, final FutureResponseImpl future) {
         List<Hook> hooks = getHooks();
         if (hooks != null) {
             int count = hooks.size();
-            for (int i = 0; i < count; i++) {
-                Hook rawHook = hooks.get(i);
+            for (int i = index; i < count; i++) {
+                final Hook rawHook = hooks.get(i);
                 session.getLogger().debug("executing hook " + rawHook.getClass().getName());
-                long start = System.currentTimeMillis();
+                final long start = System.nanoTime();
                 
                 HookResult hRes = callHook(rawHook, session, parameters);
-                long executionTime = System.currentTimeMillis() - start;
+                if (hRes instanceof FutureHookResult && !((FutureHookResult) hRes).isReady()) {
+                    // suspend the processing until the hook is done and resume with the next hook
+                    final FutureResponseImpl fResponse = future != null ? future : new FutureResponseImpl(session.getLogger());
+                    final int next = i + 1;
+                    ((FutureHookResult) hRes).addListener(new HookResultListener() {
 
-                if (rHooks != null) {
-                    for (int i2 = 0; i2 < rHooks.size(); i2++) {
-                        Object rHook = rHooks.get(i2);
-                        session.getLogger().debug("executing hook " + rHook);
-                        hRes = ((HookResultHook) rHook).onHookResult(session, hRes, executionTime, rawHook);
-                    }
-                }
-                
-                // call the core cmd if we receive a ok return code of the hook so no other hooks are executed
-                if ((hRes.getResult() & HookReturnCode.OK) == HookReturnCode.OK) {
-                    final Response response = doCoreCmd(session, command, parameters);
-                    if ((hRes.getResult() & HookReturnCode.DISCONNECT) == HookReturnCode.DISCONNECT) {
-                        return new Response() {
-                            
-                            /*
-                             * (non-Javadoc)
-                             * @see org.apache.james.protocols.api.Response#isEndSession()
-                             */
-                            public boolean isEndSession() {
-                                return true;
-                            }
-                            
-                            /*
-                             * (non-Javadoc)
-                             * @see org.apache.james.protocols.api.Response#getRetCode()
-                             */
-                            public String getRetCode() {
-                                return response.getRetCode();
+                        public void onHookResult(FutureHookResult result) {
+                            Response response;
+                            try {
+                                response = handleHookResult(session, command, parameters, rawHook, result.getHookResult(), start);
+                                if (response == null) {
+                                    response = processHooks(session, command, parameters, next, fResponse);
+                                    if (response == fResponse) {
+                                        // suspended again
+                                        return;
+                                    }
+                                    if (response == null) {
+                                        response = doCoreCmd(session, command, parameters);
+                                    }
+                                }
+                            } catch (RuntimeException e) {
+                                session.getLogger().error("Unable to process hook result of " + rawHook, e);
+                                response = HOOK_ERROR;
                             }
-                            
-                            /*
-                             * (non-Javadoc)
-                             * @see org.apache.james.protocols.api.Response#getLines()
-                             */
-                            public List<CharSequence> getLines() {
-                                return response.getLines();
-                            }
-                        };
-                    }
+                            completeResponse(fResponse, response);
+                        }
+                    });
+                    return fResponse;
+                }
+                Response response = handleHookResult(session, command, parameters, rawHook, hRes, start);
+                if (response != null) {
                     return response;
-                } else {
-                    SMTPResponse res = calcDefaultSMTPResponse(hRes);
-                    if (res != null) {
-                        return res;
-                    }
                 }
             }
         }
         return null;
     }
 
+    /**
+     * Handle the {@link HookResult} of the given hook
+     * 
+     * @param session
+     * @param command
+     * @param parameters
+     * @param rawHook
+     * @param hRes
+     * @param start the time in nanoseconds when the hook was called
+     * @return response or <code>null</code> if the next hook should be called
+     */
+    private Response handleHookResult(SMTPSession session, String command, String parameters, Hook rawHook, HookResult hRes, long start) {
+        long executionNanos = System.nanoTime() - start;
+        long executionTime = TimeUnit.NANOSECONDS.toMillis(executionNanos);
+        if (session.getMetrics() != null) {
+            session.getMetrics().recordHandler(rawHook, executionNanos);
+        }
+
+        if (rHooks != null) {
+            for (int i2 = 0; i2 < rHooks.size(); i2++) {
+                Object rHook = rHooks.get(i2);
+                session.getLogger().debug("executing hook " + rHook);
+                hRes = ((HookResultHook) rHook).onHookResult(session, hRes, executionTime, rawHook);
+            }
+        }
+        
+        // call the core cmd if we receive a ok return code of the hook so no other hooks are executed
+        if ((hRes.getResult() & HookReturnCode.OK) == HookReturnCode.OK) {
+            final Response response = doCoreCmd(session, command, parameters);
+            if ((hRes.getResult() & HookReturnCode.DISCONNECT) == HookReturnCode.DISCONNECT) {
+                return new Response() {
+                    
+                    /*
+                     * (non-Javadoc)
+                     * @see org.apache.james.protocols.api.Response#isEndSession()
+                     */
+                    public boolean isEndSession() {
+                        return true;
+                    }
+                    
+                    /*
+                     * (non-Javadoc)
+                     * @see org.apache.james.protocols.api.Response#getRetCode()
+                     */
+                    public String getRetCode() {
+                        return response.getRetCode();
+                    }
+                    
+                    /*
+                     * (non-Javadoc)
+                     * @see org.apache.james.protocols.api.Response#getLines()
+                     */
+                    public List<CharSequence> getLines() {
+                        return response.getLines();
+                    }
+                };
+            }
+            return response;
+        } else {
+            return calcDefaultSMTPResponse(hRes);
+        }
+    }
+
+    /**
+     * Complete the given {@link FutureResponseImpl} with the {@link Response}. If the {@link Response} is a {@link FutureResponse}
+     * itself the {@link FutureResponseImpl} is completed once it is ready
+     * 
+     * @param future
+     * @param response
+     */
+    protected static void completeResponse(final FutureResponseImpl future, Response response) {
+        if (response instanceof FutureResponse) {
+            ((FutureResponse) response).addListener(new ResponseListener() {
+
+                public void onResponse(FutureResponse response) {
+                    future.setResponse(response);
+                }
+            });
+        } else {
+            future.setResponse(response);
+        }
+    }
+
     /**
      * Must be implemented by hookable cmd handlers to make the effective call to an hook.
      * 
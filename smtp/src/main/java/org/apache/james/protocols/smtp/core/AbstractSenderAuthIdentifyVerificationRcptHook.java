@@ -46,8 +46,8 @@ public abstract class AbstractSenderAuthIdentifyVerificationRcptHook implements
             MailAddress rcpt) {
         if (session.getUser() != null) {
             String authUser = (session.getUser()).toLowerCase(Locale.US);
-            MailAddress senderAddress = (MailAddress) session.getAttachment(
-                    SMTPSession.SENDER, ProtocolSession.State.Transaction);
+            MailAddress senderAddress = session.getAttachment(
+                    SMTPSession.SENDER_KEY, ProtocolSession.State.Transaction);
             String username= null;
 
             if (senderAddress != null) {
@@ -0,0 +1,44 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.protocols.smtp.core;
+
+import java.nio.ByteBuffer;
+
+import org.apache.james.protocols.api.Response;
+import org.apache.james.protocols.api.handler.ProtocolHandler;
+import org.apache.james.protocols.smtp.SMTPSession;
+
+/**
+ * The counterpart of {@link DataLineFilter} for messages which are transfered via BDAT. The filters are called once per received
+ * chunk and not per line, so they should not assume anything about the line boundaries.
+ */
+public interface DataChunkFilter extends ProtocolHandler {
+
+    /**
+     * Handle the chunk and pass it (or a modified version of it) to the next {@link DataChunkHandler}
+     * 
+     * @param session
+     * @param chunk
+     * @param last <code>true</code> if this is the end of the message
+     * @param next
+     * @return response
+     */
+    Response onChunk(SMTPSession session, ByteBuffer chunk, boolean last, DataChunkHandler next);
+}
@@ -0,0 +1,42 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.protocols.smtp.core;
+
+import java.nio.ByteBuffer;
+
+import org.apache.james.protocols.api.Response;
+import org.apache.james.protocols.smtp.SMTPSession;
+
+/**
+ * Handles the raw chunks of a message which was transfered via BDAT. In contrast to the lines of a DATA transfer the chunks are not
+ * dot-stuffed and may start or end anywhere in a line.
+ */
+public interface DataChunkHandler {
+
+    /**
+     * Handle the given chunk of the message
+     * 
+     * @param session
+     * @param chunk the bytes of the chunk, starting at the current position
+     * @param last <code>true</code> if this is the end of the message
+     * @return response or <code>null</code> if the message should get processed further
+     */
+    Response onChunk(SMTPSession session, ByteBuffer chunk, boolean last);
+}
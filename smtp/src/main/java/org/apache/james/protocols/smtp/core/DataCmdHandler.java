@@ -18,6 +18,7 @@
  ****************************************************************/
 package org.apache.james.protocols.smtp.core;
 
+import java.io.File;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -26,13 +27,19 @@ import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 
+import org.apache.james.protocols.api.AttributeKey;
+import org.apache.james.protocols.api.ChunkPool;
 import org.apache.james.protocols.api.ProtocolSession;
+import org.apache.james.protocols.api.ProtocolSessionImpl;
 import org.apache.james.protocols.api.Request;
 import org.apache.james.protocols.api.Response;
+import org.apache.james.protocols.api.handler.BulkLineHandler;
 import org.apache.james.protocols.api.handler.CommandHandler;
 import org.apache.james.protocols.api.handler.ExtensibleHandler;
 import org.apache.james.protocols.api.handler.LineHandler;
+import org.apache.james.protocols.api.handler.PayloadTerminator;
 import org.apache.james.protocols.api.handler.WiringException;
+import org.apache.james.protocols.smtp.DeferredFileMailEnvelope;
 import org.apache.james.protocols.smtp.MailAddress;
 import org.apache.james.protocols.smtp.MailEnvelope;
 import org.apache.james.protocols.smtp.MailEnvelopeImpl;
@@ -50,6 +57,7 @@ public class DataCmdHandler implements CommandHandler<SMTPSession>, ExtensibleHa
     private static final Response NO_RECIPIENT = new SMTPResponse(SMTPRetCode.BAD_SEQUENCE, DSNStatus.getStatus(DSNStatus.PERMANENT,DSNStatus.DELIVERY_OTHER)+" No recipients specified").immutable();
     private static final Response NO_SENDER = new SMTPResponse(SMTPRetCode.BAD_SEQUENCE, DSNStatus.getStatus(DSNStatus.PERMANENT,DSNStatus.DELIVERY_OTHER)+" No sender specified").immutable();
     private static final Response UNEXPECTED_ARG = new SMTPResponse(SMTPRetCode.SYNTAX_ERROR_COMMAND_UNRECOGNIZED, DSNStatus.getStatus(DSNStatus.PERMANENT,DSNStatus.DELIVERY_INVALID_ARG)+" Unexpected argument provided with DATA command").immutable();
+    private static final Response BINARYMIME_NOT_ALLOWED = new SMTPResponse(SMTPRetCode.BAD_SEQUENCE, DSNStatus.getStatus(DSNStatus.PERMANENT,DSNStatus.DELIVERY_OTHER)+" BINARYMIME messages must be transfered with BDAT").immutable();
     private static final Response DATA_READY = new SMTPResponse(SMTPRetCode.DATA_READY, "Ok Send data ending with <CRLF>.<CRLF>").immutable();
     private static final Collection<String> COMMANDS = Collections.unmodifiableCollection(Arrays.asList("DATA"));
 
@@ -87,9 +95,194 @@ public class DataCmdHandler implements CommandHandler<SMTPSession>, ExtensibleHa
                 
     }
    
+    /**
+     * {@link DataLineBlockHandler} which calls the wrapped {@link DataLineBlockFilter}
+     */
+    public static final class DataLineBlockFilterWrapper implements DataLineBlockHandler {
+
+        private final DataLineBlockFilter filter;
+        private final DataLineBlockHandler next;
+        
+        public DataLineBlockFilterWrapper(DataLineBlockFilter filter, DataLineBlockHandler next) {
+            this.filter = filter;
+            this.next = next;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see org.apache.james.protocols.smtp.core.DataLineBlockHandler#onBlock(org.apache.james.protocols.smtp.SMTPSession, org.apache.james.protocols.smtp.core.DataLineBlock)
+         */
+        public Response onBlock(SMTPSession session, DataLineBlock block) {
+            return filter.onBlock(session, block, next);
+        }
+    }
+    
+    /**
+     * {@link DataLineBlockHandler} which passes every line of the block to a {@link DataLineFilter} which does not implement 
+     * {@link DataLineBlockFilter}. The lines the filter passes on are given to the next {@link DataLineBlockHandler} as blocks of one line.
+     */
+    public static final class DataLineFilterAdapter implements DataLineBlockHandler {
+
+        private final DataLineFilter filter;
+        private final DataLineBlockHandler next;
+        
+        public DataLineFilterAdapter(DataLineFilter filter, DataLineBlockHandler next) {
+            this.filter = filter;
+            this.next = next;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see org.apache.james.protocols.smtp.core.DataLineBlockHandler#onBlock(org.apache.james.protocols.smtp.SMTPSession, org.apache.james.protocols.smtp.core.DataLineBlock)
+         */
+        public Response onBlock(SMTPSession session, DataLineBlock block) {
+            NextLineHandler lineHandler = new NextLineHandler(next);
+            int handlerCount = session.getPushedLineHandlerCount();
+            int separator = block.getSeparatorLine();
+            Response response = null;
+            for (int i = 0; i < block.getLineCount(); i++) {
+                lineHandler.headersComplete = block.isHeadersComplete() || (separator != -1 && i > separator);
+                response = keepOrder(session, response, filter.onLine(session, block.getLine(i), lineHandler));
+                
+                // stop if the handler was removed, as the rest of the block is not part of the message
+                if (session.getPushedLineHandlerCount() < handlerCount) {
+                    break;
+                }
+            }
+            return response;
+        }
+        
+        private final static class NextLineHandler implements LineHandler<SMTPSession> {
+            private final DataLineBlockHandler next;
+            private boolean headersComplete;
+
+            public NextLineHandler(DataLineBlockHandler next) {
+                this.next = next;
+            }
+            
+            public Response onLine(SMTPSession session, ByteBuffer line) {
+                return next.onBlock(session, DataLineBlock.parse(line, headersComplete));
+            }
+        }
+    }
+    
+    /**
+     * {@link BulkLineHandler} which receives one message in big chunks and passes them as {@link DataLineBlock}'s to the 
+     * {@link DataLineBlockHandler}'s. Once the headers are complete the {@link DataHeadersFilter}'s are skipped.
+     */
+    public static final class DataLineBlockReader implements BulkLineHandler<SMTPSession> {
+        
+        private final DataLineBlockHandler handler;
+        private final DataLineBlockHandler bodyHandler;
+        private boolean headersComplete;
+        
+        /**
+         * @param handler the handler for blocks which contain headers
+         * @param bodyHandler the handler for blocks which only contain the body
+         */
+        public DataLineBlockReader(DataLineBlockHandler handler, DataLineBlockHandler bodyHandler) {
+            this.handler = handler;
+            this.bodyHandler = bodyHandler;
+        }
+        
+        /*
+         * (non-Javadoc)
+         * @see org.apache.james.protocols.api.handler.BulkLineHandler#getPayloadTerminator(org.apache.james.protocols.api.ProtocolSession)
+         */
+        public PayloadTerminator getPayloadTerminator(SMTPSession session) {
+            return PayloadTerminator.DOT_LINE;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see org.apache.james.protocols.api.handler.LineHandler#onLine(org.apache.james.protocols.api.ProtocolSession, java.nio.ByteBuffer)
+         */
+        public Response onLine(SMTPSession session, ByteBuffer chunk) {
+            DataLineBlock block = DataLineBlock.parse(chunk, headersComplete);
+            DataLineBlockHandler next = headersComplete ? bodyHandler : handler;
+            if (block.getSeparatorLine() != -1) {
+                headersComplete = true;
+            }
+            return next.onBlock(session, block);
+        }
+    }
+    
+    /**
+     * {@link DataLineBlockHandler} at the end of the chain, which discards everything until the end of the message
+     */
+    private static final DataLineBlockHandler DATA_CONSUMER = new DataLineBlockHandler() {
+        
+        public Response onBlock(SMTPSession session, DataLineBlock block) {
+            if (block.isEnd()) {
+                session.popLineHandler();
+            }
+            return null;
+        }
+    };
+    
+    /**
+     * Return the response which should be returned for the message so far. If there was a response before it is written first, so
+     * the order is kept.
+     * 
+     * @param session
+     * @param response the response so far or <code>null</code>
+     * @param next the new response or <code>null</code>
+     * @return response
+     * @throws IllegalStateException if both responses are given, but the session gives no access to its transport to write the first one
+     */
+    private static Response keepOrder(SMTPSession session, Response response, Response next) {
+        if (next == null) {
+            return response;
+        }
+        if (response != null) {
+            if (!(session instanceof ProtocolSessionImpl)) {
+                throw new IllegalStateException("Unable to write " + response + " before " + next + ", as " + session.getClass().getName() 
+                        + " does not give access to its transport");
+            }
+            ((ProtocolSessionImpl) session).getProtocolTransport().writeResponse(response, session);
+        }
+        return next;
+    }
+    
     public final static String MAILENV = "MAILENV";
+    public final static AttributeKey<MailEnvelope> MAILENV_KEY = AttributeKey.valueOf(MAILENV);
+    
+    private DataLineBlockHandler blockHandler = DATA_CONSUMER;
+    private DataLineBlockHandler bodyBlockHandler = DATA_CONSUMER;
     
-    private LineHandler<SMTPSession> lineHandler;
+    private int spoolThreshold = -1;
+    private File spoolDirectory;
+    private ChunkPool chunkPool = ChunkPool.getDefault();
+    
+    /**
+     * Set the count of bytes of a message which are kept in memory. If set the message is stored in a {@link DeferredFileMailEnvelope}, 
+     * which moves it to a temporary file once it gets bigger. Default is <code>-1</code>, which keeps the whole message in memory.
+     * 
+     * @param spoolThreshold
+     */
+    public void setSpoolThreshold(int spoolThreshold) {
+        this.spoolThreshold = spoolThreshold;
+    }
+    
+    /**
+     * Set the directory in which the temporary files of big messages are created. Default is <code>null</code>, which uses the 
+     * default temporary directory.
+     * 
+     * @param spoolDirectory
+     */
+    public void setSpoolDirectory(File spoolDirectory) {
+        this.spoolDirectory = spoolDirectory;
+    }
+    
+    /**
+     * Set the {@link ChunkPool} which is used to hold the messages in memory if a spool threshold is set. Default is 
+     * {@link ChunkPool#getDefault()}
+     * 
+     * @param chunkPool
+     */
+    public void setChunkPool(ChunkPool chunkPool) {
+        this.chunkPool = chunkPool;
+    }
     
     /**
      * process DATA command
@@ -115,22 +308,49 @@ public class DataCmdHandler implements CommandHandler<SMTPSession>, ExtensibleHa
      * @param session SMTP session object
      * @param argument the argument passed in with the command by the SMTP client
      */
-    @SuppressWarnings("unchecked")
     protected Response doDATA(SMTPSession session, String argument) {
-        MailEnvelope env = createEnvelope(session, (MailAddress) session.getAttachment(SMTPSession.SENDER,ProtocolSession.State.Transaction), new ArrayList<MailAddress>((Collection<MailAddress>)session.getAttachment(SMTPSession.RCPT_LIST,ProtocolSession.State.Transaction)));
-        session.setAttachment(MAILENV, env,ProtocolSession.State.Transaction);
-        session.pushLineHandler(lineHandler);
+        MailEnvelope env = createEnvelope(session, session.getAttachment(SMTPSession.SENDER_KEY,ProtocolSession.State.Transaction), new ArrayList<MailAddress>(session.getAttachment(SMTPSession.RCPT_LIST_KEY,ProtocolSession.State.Transaction)));
+        session.setAttachment(MAILENV_KEY, env,ProtocolSession.State.Transaction);
+        session.pushLineHandler(getLineHandler());
         
         return DATA_READY;
     }
     
+    /**
+     * Create the {@link MailEnvelope} for the message. This returns a {@link DeferredFileMailEnvelope} if a spool threshold was set and
+     * a {@link MailEnvelopeImpl} otherwise.
+     * 
+     * @param session
+     * @param sender
+     * @param recipients
+     * @return envelope
+     */
     protected MailEnvelope createEnvelope(SMTPSession session, MailAddress sender, List<MailAddress> recipients) {
+        if (spoolThreshold >= 0) {
+            DeferredFileMailEnvelope env = new DeferredFileMailEnvelope(spoolThreshold, spoolDirectory, chunkPool);
+            env.setRecipients(recipients);
+            env.setSender(sender);
+            return env;
+        }
         MailEnvelopeImpl env = new MailEnvelopeImpl();
         env.setRecipients(recipients);
         env.setSender(sender);
         return env;
     }
     
+    /**
+     * Create the {@link MailEnvelope} for a message which is received by another command, like BDAT. The envelope is created by 
+     * {@link #createEnvelope(SMTPSession, MailAddress, List)}, so the spool settings of this handler apply.
+     * 
+     * @param session
+     * @param sender
+     * @param recipients
+     * @return envelope
+     */
+    public MailEnvelope newEnvelope(SMTPSession session, MailAddress sender, List<MailAddress> recipients) {
+        return createEnvelope(session, sender, recipients);
+    }
+    
     
     /**
      * @see org.apache.james.protocols.api.handler.CommandHandler#getImplCommands()
@@ -158,29 +378,49 @@ public class DataCmdHandler implements CommandHandler<SMTPSession>, ExtensibleHa
     public void wireExtensions(Class interfaceName, List extension) throws WiringException {
         if (DataLineFilter.class.equals(interfaceName)) {
 
-            LineHandler<SMTPSession> lineHandler = new DataConsumerLineHandler();
+            DataLineBlockHandler handler = DATA_CONSUMER;
+            DataLineBlockHandler bodyHandler = DATA_CONSUMER;
             for (int i = extension.size() - 1; i >= 0; i--) {
-                lineHandler = new DataLineFilterWrapper((DataLineFilter) extension.get(i), lineHandler);
+                DataLineFilter filter = (DataLineFilter) extension.get(i);
+                handler = wrap(filter, handler);
+                if (!(filter instanceof DataHeadersFilter)) {
+                    bodyHandler = wrap(filter, bodyHandler);
+                }
             }
 
-            this.lineHandler = lineHandler;
+            this.blockHandler = handler;
+            this.bodyBlockHandler = bodyHandler;
+        }
+    }
+    
+    private static DataLineBlockHandler wrap(DataLineFilter filter, DataLineBlockHandler next) {
+        if (filter instanceof DataLineBlockFilter) {
+            return new DataLineBlockFilterWrapper((DataLineBlockFilter) filter, next);
         }
+        return new DataLineFilterAdapter(filter, next);
     }
 
     protected Response doDATAFilter(SMTPSession session, String argument) {
         if ((argument != null) && (argument.length() > 0)) {
             return UNEXPECTED_ARG;
         }
-        if (session.getAttachment(SMTPSession.SENDER, ProtocolSession.State.Transaction) == null) {
+        if (session.getAttachment(SMTPSession.SENDER_KEY, ProtocolSession.State.Transaction) == null) {
             return NO_SENDER;
-        } else if (session.getAttachment(SMTPSession.RCPT_LIST, ProtocolSession.State.Transaction) == null) {
+        } else if (session.getAttachment(SMTPSession.RCPT_LIST_KEY, ProtocolSession.State.Transaction) == null) {
             return NO_RECIPIENT;
+        } else if ("BINARYMIME".equals(session.getAttachment(SMTPSession.BODY_TYPE_KEY, ProtocolSession.State.Transaction))) {
+            return BINARYMIME_NOT_ALLOWED;
         }
         return null;
     }
 
+    /**
+     * Return a new {@link LineHandler} which receives the next message and passes it to the {@link DataLineFilter}'s
+     * 
+     * @return lineHandler
+     */
     protected LineHandler<SMTPSession> getLineHandler() {
-        return lineHandler;
+        return new DataLineBlockReader(blockHandler, bodyBlockHandler);
     }
 
 }
@@ -0,0 +1,224 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.protocols.smtp.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A block of lines of a message which was transfered via DATA. The block holds the received bytes as they are (so still dot-stuffed)
+ * together with an index of the lines, which is built once when the block is received.
+ * 
+ * The block itself is never modified. The {@link ByteBuffer}'s returned by the methods are independent views of the bytes.
+ */
+public final class DataLineBlock {
+
+    private final static byte LF = '\n';
+    private final static byte CR = '\r';
+    private final static byte DOT = '.';
+    
+    /**
+     * A block which only holds the line which terminates the message
+     */
+    public final static DataLineBlock END = parse(ByteBuffer.wrap(new byte[] { DOT, CR, LF }), true);
+    
+    private final ByteBuffer buffer;
+    private final int start;
+    private final int[] lineEnds;
+    private final int offset;
+    private final int count;
+    private final int separator;
+    private final boolean headersComplete;
+    private final boolean end;
+    
+    private DataLineBlock(ByteBuffer buffer, int start, int[] lineEnds, int offset, int count, int separator, boolean headersComplete, boolean end) {
+        this.buffer = buffer;
+        this.start = start;
+        this.lineEnds = lineEnds;
+        this.offset = offset;
+        this.count = count;
+        this.separator = separator;
+        this.headersComplete = headersComplete;
+        this.end = end;
+    }
+
+    /**
+     * Index the lines of the remaining bytes of the given buffer. The index stops after the line which terminates the message, so 
+     * everything after it is not part of the block. The position of the buffer is not changed.
+     * 
+     * @param data 
+     * @param headersComplete <code>true</code> if the separator of the headers and the body was part of an earlier block
+     * @return block
+     */
+    public static DataLineBlock parse(ByteBuffer data, boolean headersComplete) {
+        int[] lineEnds = new int[8];
+        int count = 0;
+        int separator = -1;
+        boolean end = false;
+        int limit = data.limit();
+        int lineStart = data.position();
+        while (lineStart < limit) {
+            int lineEnd = lineStart;
+            while (lineEnd < limit && data.get(lineEnd) != LF) {
+                lineEnd++;
+            }
+            lineEnd = Math.min(lineEnd + 1, limit);
+            
+            if (count == lineEnds.length) {
+                int[] newLineEnds = new int[count * 2];
+                System.arraycopy(lineEnds, 0, newLineEnds, 0, count);
+                lineEnds = newLineEnds;
+            }
+            lineEnds[count++] = lineEnd;
+            
+            int length = lineEnd - lineStart;
+            if (length == 3 && data.get(lineStart) == DOT && data.get(lineStart + 1) == CR && data.get(lineStart + 2) == LF) {
+                end = true;
+                break;
+            } else if (length == 2 && separator == -1 && !headersComplete && data.get(lineStart) == CR && data.get(lineStart + 1) == LF) {
+                separator = count - 1;
+            }
+            lineStart = lineEnd;
+        }
+        return new DataLineBlock(data, data.position(), lineEnds, 0, count, separator, headersComplete, end);
+    }
+    
+    /**
+     * Return the count of lines in this block
+     * 
+     * @return count
+     */
+    public int getLineCount() {
+        return count;
+    }
+    
+    /**
+     * Return the index of the first byte of the given line in the {@link ByteBuffer} returned by {@link #getBuffer()}
+     * 
+     * @param line
+     * @return start
+     */
+    public int getLineStart(int line) {
+        checkIndex(line);
+        return line == 0 ? start : lineEnds[offset + line - 1];
+    }
+    
+    /**
+     * Return the index after the last byte of the given line (including the line break) in the {@link ByteBuffer} returned by 
+     * {@link #getBuffer()}
+     * 
+     * @param line
+     * @return end
+     */
+    public int getLineEnd(int line) {
+        checkIndex(line);
+        return lineEnds[offset + line];
+    }
+    
+    private void checkIndex(int line) {
+        if (line < 0 || line >= count) {
+            throw new IndexOutOfBoundsException("Line " + line + " of " + count);
+        }
+    }
+    
+    /**
+     * Return the bytes of all lines in the block. The position and limit of the returned {@link ByteBuffer} mark the start of the 
+     * first and the end of the last line.
+     * 
+     * @return buffer
+     */
+    public ByteBuffer getBuffer() {
+        ByteBuffer data = buffer.duplicate();
+        data.limit(getEnd());
+        data.position(start);
+        return data;
+    }
+    
+    /**
+     * Return the given line including the line break
+     * 
+     * @param line
+     * @return line
+     */
+    public ByteBuffer getLine(int line) {
+        ByteBuffer data = buffer.duplicate();
+        data.limit(getLineEnd(line));
+        data.position(getLineStart(line));
+        return data.slice();
+    }
+    
+    /**
+     * Return the count of bytes of all lines in the block
+     * 
+     * @return length
+     */
+    public int getLength() {
+        return getEnd() - start;
+    }
+    
+    private int getEnd() {
+        return count == 0 ? start : lineEnds[offset + count - 1];
+    }
+    
+    /**
+     * Return the index of the empty line which separates the headers from the body, or <code>-1</code> if it is not part of this block
+     * 
+     * @return separator
+     */
+    public int getSeparatorLine() {
+        return separator;
+    }
+    
+    /**
+     * Return <code>true</code> if the separator of the headers and the body was part of an earlier block. In this case all lines of 
+     * the block are part of the body.
+     * 
+     * @return headersComplete
+     */
+    public boolean isHeadersComplete() {
+        return headersComplete;
+    }
+    
+    /**
+     * Return <code>true</code> if the last line of the block is the line which terminates the message
+     * 
+     * @return end
+     */
+    public boolean isEnd() {
+        return end;
+    }
+    
+    /**
+     * Return a block which holds the lines from the given index (inclusive) to the other one (exclusive). The bytes and the index are 
+     * shared with this block.
+     * 
+     * @param from
+     * @param to
+     * @return block
+     */
+    public DataLineBlock slice(int from, int to) {
+        if (from < 0 || to > count || from > to) {
+            throw new IndexOutOfBoundsException("Lines " + from + " to " + to + " of " + count);
+        }
+        int newSeparator = separator >= from && separator < to ? separator - from : -1;
+        boolean newHeadersComplete = headersComplete || (separator != -1 && separator < from);
+        int newStart = from == count ? getEnd() : getLineStart(from);
+        return new DataLineBlock(buffer, newStart, lineEnds, offset + from, to - from, newSeparator, newHeadersComplete, end && to == count);
+    }
+}
@@ -0,0 +1,42 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.protocols.smtp.core;
+
+import org.apache.james.protocols.api.Response;
+import org.apache.james.protocols.smtp.SMTPSession;
+
+/**
+ * {@link DataLineFilter} which can handle a whole {@link DataLineBlock} at once. If a filter implements this interface the 
+ * {@link DataCmdHandler} calls {@link #onBlock(SMTPSession, DataLineBlock, DataLineBlockHandler)} instead of 
+ * {@link #onLine(SMTPSession, java.nio.ByteBuffer, org.apache.james.protocols.api.handler.LineHandler)}, which saves one call per
+ * line and filter.
+ */
+public interface DataLineBlockFilter extends DataLineFilter {
+
+    /**
+     * Handle the block and pass it (or a modified version of it) to the next {@link DataLineBlockHandler}
+     * 
+     * @param session
+     * @param block
+     * @param next
+     * @return response
+     */
+    Response onBlock(SMTPSession session, DataLineBlock block, DataLineBlockHandler next);
+}
@@ -24,19 +24,26 @@ package org.apache.james.protocols.smtp.core;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.james.protocols.api.ProtocolSession;
 import org.apache.james.protocols.api.Response;
+import org.apache.james.protocols.api.future.FutureResponse;
+import org.apache.james.protocols.api.future.FutureResponse.ResponseListener;
+import org.apache.james.protocols.api.future.FutureResponseImpl;
 import org.apache.james.protocols.api.handler.ExtensibleHandler;
 import org.apache.james.protocols.api.handler.LineHandler;
 import org.apache.james.protocols.api.handler.WiringException;
-import org.apache.james.protocols.smtp.MailEnvelopeImpl;
+import org.apache.james.protocols.smtp.MailEnvelope;
 import org.apache.james.protocols.smtp.SMTPResponse;
 import org.apache.james.protocols.smtp.SMTPRetCode;
 import org.apache.james.protocols.smtp.SMTPSession;
 import org.apache.james.protocols.smtp.dsn.DSNStatus;
+import org.apache.james.protocols.smtp.hook.FutureHookResult;
+import org.apache.james.protocols.smtp.hook.FutureHookResult.HookResultListener;
 import org.apache.james.protocols.smtp.hook.HookResult;
 import org.apache.james.protocols.smtp.hook.HookResultHook;
 import org.apache.james.protocols.smtp.hook.HookReturnCode;
@@ -45,9 +52,11 @@ import org.apache.james.protocols.smtp.hook.MessageHook;
 /**
  * This class handles the actual calling of the {@link MessageHook} implementations to queue the message. If no {@link MessageHook} return OK or DECLINED it will write back an
  * error to the client to report the problem while trying to queue the message 
+ * 
+ * It acts as {@link DataChunkFilter} too, so messages received via BDAT are stored and queued the same way.
  *
  */
-public class DataLineMessageHookHandler implements DataLineFilter, ExtensibleHandler {
+public class DataLineMessageHookHandler implements DataLineBlockFilter, DataChunkFilter, ExtensibleHandler {
 
     private static final Response ERROR_PROCESSING_MESSAGE = new SMTPResponse(SMTPRetCode.LOCAL_ERROR,DSNStatus.getStatus(DSNStatus.TRANSIENT,
             DSNStatus.UNDEFINED_STATUS) + " Error processing message").immutable();
@@ -62,32 +71,72 @@ public class DataLineMessageHookHandler implements DataLineFilter, ExtensibleHan
      * (non-Javadoc)
      * @see org.apache.james.protocols.smtp.core.DataLineFilter#onLine(org.apache.james.protocols.smtp.SMTPSession, java.nio.ByteBuffer, org.apache.james.protocols.api.handler.LineHandler)
      */
-    public Response onLine(final SMTPSession session, ByteBuffer line, LineHandler<SMTPSession> next) {
-        MailEnvelopeImpl env = (MailEnvelopeImpl) session.getAttachment(DataCmdHandler.MAILENV, ProtocolSession.State.Transaction);
-        OutputStream out = env.getMessageOutputStream();
+    public Response onLine(SMTPSession session, ByteBuffer line, LineHandler<SMTPSession> next) {
+        MailEnvelope env = session.getAttachment(DataCmdHandler.MAILENV_KEY, ProtocolSession.State.Transaction);
         try {
+            OutputStream out = env.getMessageOutputStream();
             // 46 is "."
             // Stream terminated            
             int c = line.get();
             if (line.remaining() == 2 && c== 46) {
-                out.flush();
-                out.close();
-                
-                Response response = processExtensions(session, env);
                 session.popLineHandler();
-                session.resetState();
-                return response;
+                return complete(session, env, out);
                 
             // DotStuffing.
             } else if (c == 46 && line.get() == 46) {
-                byte[] bline = readBytes(line);
-                out.write(bline,1,bline.length-1);
+                line.position(1);
+                write(out, line);
             // Standard write
             } else {
                 // TODO: maybe we should handle the Header/Body recognition here
                 // and if needed let a filter to cache the headers to apply some
                 // transformation before writing them to output.
-                out.write(readBytes(line));
+                line.rewind();
+                write(out, line);
+            }
+            out.flush();
+        } catch (IOException e) {
+            session.getLogger().error(
+                    "Unknown error occurred while processing DATA.", e);
+            
+            session.resetState();
+            return ERROR_PROCESSING_MESSAGE;
+        }
+        return null;
+    }
+
+    /**
+     * Write the lines of the block to the message. The lines are written in as few calls as possible, as the block only needs to be
+     * split for the lines which are dot-stuffed.
+     * 
+     * @see org.apache.james.protocols.smtp.core.DataLineBlockFilter#onBlock(org.apache.james.protocols.smtp.SMTPSession, org.apache.james.protocols.smtp.core.DataLineBlock, org.apache.james.protocols.smtp.core.DataLineBlockHandler)
+     */
+    public Response onBlock(SMTPSession session, DataLineBlock block, DataLineBlockHandler next) {
+        MailEnvelope env = session.getAttachment(DataCmdHandler.MAILENV_KEY, ProtocolSession.State.Transaction);
+        try {
+            OutputStream out = env.getMessageOutputStream();
+            ByteBuffer data = block.getBuffer();
+            ByteBuffer run = data.duplicate();
+            int lines = block.isEnd() ? block.getLineCount() - 1 : block.getLineCount();
+            int start = data.position();
+            for (int i = 0; i < lines; i++) {
+                int lineStart = block.getLineStart(i);
+                // 46 is "."
+                if (block.getLineEnd(i) - lineStart > 1 && data.get(lineStart) == 46 && data.get(lineStart + 1) == 46) {
+                    // DotStuffing
+                    run.limit(lineStart);
+                    run.position(start);
+                    write(out, run);
+                    start = lineStart + 1;
+                }
+            }
+            run.limit(lines == 0 ? start : block.getLineEnd(lines - 1));
+            run.position(start);
+            write(out, run);
+            
+            if (block.isEnd()) {
+                session.popLineHandler();
+                return complete(session, env, out);
             }
             out.flush();
         } catch (IOException e) {
@@ -100,60 +149,167 @@ public class DataLineMessageHookHandler implements DataLineFilter, ExtensibleHan
         return null;
     }
 
-    private byte[] readBytes(ByteBuffer line) {
-        line.rewind();
-        byte[] bline;
-        if (line.hasArray()) {
-            bline = line.array();
+    /*
+     * (non-Javadoc)
+     * @see org.apache.james.protocols.smtp.core.DataChunkFilter#onChunk(org.apache.james.protocols.smtp.SMTPSession, java.nio.ByteBuffer, boolean, org.apache.james.protocols.smtp.core.DataChunkHandler)
+     */
+    public Response onChunk(SMTPSession session, ByteBuffer chunk, boolean last, DataChunkHandler next) {
+        MailEnvelope env = session.getAttachment(DataCmdHandler.MAILENV_KEY, ProtocolSession.State.Transaction);
+        try {
+            OutputStream out = env.getMessageOutputStream();
+            write(out, chunk);
+            if (last) {
+                return complete(session, env, out);
+            }
+        } catch (IOException e) {
+            session.getLogger().error(
+                    "Unknown error occurred while processing BDAT.", e);
+            
+            session.resetState();
+            return ERROR_PROCESSING_MESSAGE;
+        }
+        return null;
+    }
+
+    /**
+     * Close the message and call the {@link MessageHook}'s. The state of the session is reset once they are done.
+     * 
+     * @param session
+     * @param env
+     * @param out
+     * @return response
+     * @throws IOException
+     */
+    private Response complete(final SMTPSession session, MailEnvelope env, OutputStream out) throws IOException {
+        out.flush();
+        out.close();
+        
+        Response response = processExtensions(session, env);
+        if (response instanceof FutureResponse && !((FutureResponse) response).isReady()) {
+            // the hooks still need the state, so reset it once they are done
+            ((FutureResponse) response).addListener(new ResponseListener() {
+
+                public void onResponse(FutureResponse response) {
+                    session.resetState();
+                }
+            });
+        } else {
+            session.resetState();
+        }
+        return response;
+    }
+
+    /**
+     * Write the remaining bytes of the line. If the {@link OutputStream} is also a {@link WritableByteChannel} the line is passed as it
+     * is, otherwise it is only copied if it is not backed by an accessible array.
+     * 
+     * @param out
+     * @param line
+     * @throws IOException
+     */
+    private void write(OutputStream out, ByteBuffer line) throws IOException {
+        if (out instanceof WritableByteChannel) {
+            WritableByteChannel channel = (WritableByteChannel) out;
+            while (line.hasRemaining()) {
+                channel.write(line);
+            }
+        } else if (line.hasArray()) {
+            out.write(line.array(), line.arrayOffset() + line.position(), line.remaining());
         } else {
-            bline = new byte[line.remaining()];
+            byte[] bline = new byte[line.remaining()];
             line.get(bline);
+            out.write(bline);
         }
-        return bline;
     }
 
     /**
      * @param session
      */
-    protected Response processExtensions(SMTPSession session, MailEnvelopeImpl mail) {
+    protected Response processExtensions(SMTPSession session, MailEnvelope mail) {
        
 
         if (mail != null && messageHandlers != null) {
-            int count = messageHandlers.size();
-            for (int i = 0; i < count; i++) {
-                MessageHook rawHandler = (MessageHook) messageHandlers.get(i);
-                session.getLogger().debug("executing message handler " + rawHandler);
+            Response response = processExtensions(session, mail, 0, null);
+            if (response == null) {
+                // Not queue the message!
+                response = AbstractHookableCmdHandler.calcDefaultSMTPResponse(new HookResult(HookReturnCode.DENY));
+            }
+            return response;
+        }
+        
+        return null;
+    }
 
-                long start = System.currentTimeMillis();
-                HookResult hRes = rawHandler.onMessage(session, mail);
-                long executionTime = System.currentTimeMillis() - start;
+    /**
+     * Call the {@link MessageHook}'s starting with the hook at the given index. If a hook returns a {@link FutureHookResult} which
+     * is not ready yet the processing is suspended and a {@link FutureResponse} is returned
+     * 
+     * @param session
+     * @param mail
+     * @param index the index of the first hook to call
+     * @param future the {@link FutureResponseImpl} to complete if the processing was suspended before, otherwise <code>null</code>
+     * @return response or <code>null</code> if no hook returned a result
+     */
+    private Response processExtensions(final SMTPSession session, final MailEnvelope mail, int index, final FutureResponseImpl future) {
+        int count = messageHandlers.size();
+        for (int i = index; i < count; i++) {
+            final MessageHook rawHandler = (MessageHook) messageHandlers.get(i);
+            session.getLogger().debug("executing message handler " + rawHandler);
 
-                if (rHooks != null) {
-                    for (int i2 = 0; i2 < rHooks.size(); i2++) {
-                        Object rHook = rHooks.get(i2);
-                        session.getLogger().debug("executing hook " + rHook);
+            final long start = System.nanoTime();
+            HookResult hRes = rawHandler.onMessage(session, mail);
+            if (hRes instanceof FutureHookResult && !((FutureHookResult) hRes).isReady()) {
+                final FutureResponseImpl fResponse = future != null ? future : new FutureResponseImpl(session.getLogger());
+                final int next = i + 1;
+                ((FutureHookResult) hRes).addListener(new HookResultListener() {
 
-                        hRes = ((HookResultHook) rHook).onHookResult(session, hRes, executionTime, rawHandler);
+                    public void onHookResult(FutureHookResult result) {
+                        Response response = handleHookResult(session, rawHandler, result.getHookResult(), start);
+                        if (response == null) {
+                            response = processExtensions(session, mail, next, fResponse);
+                            if (response == fResponse) {
+                                // suspended again
+                                return;
+                            }
+                            if (response == null) {
+                                // Not queue the message!
+                                response = AbstractHookableCmdHandler.calcDefaultSMTPResponse(new HookResult(HookReturnCode.DENY));
+                            }
+                        }
+                        fResponse.setResponse(response);
                     }
-                }
+                });
+                return fResponse;
+            }
 
-                SMTPResponse response = AbstractHookableCmdHandler.calcDefaultSMTPResponse(hRes);
+            Response response = handleHookResult(session, rawHandler, hRes, start);
 
-                // if the response is received, stop processing of command
-                // handlers
-                if (response != null) {
-                    return response;
-                }
+            // if the response is received, stop processing of command
+            // handlers
+            if (response != null) {
+                return response;
             }
+        }
+        return null;
+    }
 
-            // Not queue the message!
-            SMTPResponse response = AbstractHookableCmdHandler.calcDefaultSMTPResponse(new HookResult(HookReturnCode.DENY));
-            return response;
+    private Response handleHookResult(SMTPSession session, MessageHook rawHandler, HookResult hRes, long start) {
+        long executionNanos = System.nanoTime() - start;
+        long executionTime = TimeUnit.NANOSECONDS.toMillis(executionNanos);
+        if (session.getMetrics() != null) {
+            session.getMetrics().recordHandler(rawHandler, executionNanos);
+        }
+
+        if (rHooks != null) {
+            for (int i2 = 0; i2 < rHooks.size(); i2++) {
+                Object rHook = rHooks.get(i2);
+                session.getLogger().debug("executing hook " + rHook);
 
-          
+                hRes = ((HookResultHook) rHook).onHookResult(session, hRes, executionTime, rawHandler);
+            }
         }
-        
-        return null;
+
+        return AbstractHookableCmdHandler.calcDefaultSMTPResponse(hRes);
     }
 
     /**
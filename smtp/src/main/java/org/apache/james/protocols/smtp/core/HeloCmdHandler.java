@@ -61,7 +61,7 @@ public class HeloCmdHandler extends AbstractHookableCmdHandler<HeloHook> {
      */
     protected Response doCoreCmd(SMTPSession session, String command,
             String parameters) {
-        session.setAttachment(SMTPSession.CURRENT_HELO_MODE, COMMAND_NAME, ProtocolSession.State.Connection);
+        session.setAttachment(SMTPSession.CURRENT_HELO_MODE_KEY, COMMAND_NAME, ProtocolSession.State.Connection);
         StringBuilder response = new StringBuilder();
         response.append(session.getConfiguration().getHelloName()).append(
                 " Hello ").append(parameters).append(" [").append(
@@ -81,7 +81,7 @@ public class HeloCmdHandler extends AbstractHookableCmdHandler<HeloHook> {
             return DOMAIN_REQUIRED;
         } else {
             // store provided name
-            session.setAttachment(SMTPSession.CURRENT_HELO_NAME, parameters, State.Connection);
+            session.setAttachment(SMTPSession.CURRENT_HELO_NAME_KEY, parameters, State.Connection);
             return null;
         }
     }
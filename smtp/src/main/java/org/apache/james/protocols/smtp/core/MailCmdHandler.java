@@ -32,11 +32,16 @@ import java.util.StringTokenizer;
 import org.apache.james.protocols.api.ProtocolSession.State;
 import org.apache.james.protocols.api.Request;
 import org.apache.james.protocols.api.Response;
+import org.apache.james.protocols.api.future.FutureResponse;
+import org.apache.james.protocols.api.future.FutureResponse.ResponseListener;
+import org.apache.james.protocols.api.future.FutureResponseImpl;
 import org.apache.james.protocols.smtp.MailAddress;
 import org.apache.james.protocols.smtp.SMTPResponse;
 import org.apache.james.protocols.smtp.SMTPRetCode;
 import org.apache.james.protocols.smtp.SMTPSession;
 import org.apache.james.protocols.smtp.dsn.DSNStatus;
+import org.apache.james.protocols.smtp.hook.FutureHookResult;
+import org.apache.james.protocols.smtp.hook.FutureHookResult.HookResultListener;
 import org.apache.james.protocols.smtp.hook.HookResult;
 import org.apache.james.protocols.smtp.hook.MailHook;
 import org.apache.james.protocols.smtp.hook.MailParametersHook;
@@ -74,15 +79,27 @@ public class MailCmdHandler extends AbstractHookableCmdHandler<MailHook> {
      * org.apache.james.protocols.smtp.core.AbstractHookableCmdHandler
      * #onCommand(SMTPSession, Request)
      */
-    public Response onCommand(SMTPSession session, Request request) {
+    public Response onCommand(final SMTPSession session, Request request) {
         Response response = super.onCommand(session, request);
+        if (response instanceof FutureResponse && !((FutureResponse) response).isReady()) {
+            ((FutureResponse) response).addListener(new ResponseListener() {
+
+                public void onResponse(FutureResponse response) {
+                    cleanupSender(session, response);
+                }
+            });
+        } else {
+            cleanupSender(session, response);
+        }
+        return response;
+    }
+
+    private void cleanupSender(SMTPSession session, Response response) {
         // Check if the response was not ok
         if (response.getRetCode().equals(SMTPRetCode.MAIL_OK) == false) {
             // cleanup the session
-            session.setAttachment(SMTPSession.SENDER, null,  State.Transaction);
+            session.setAttachment(SMTPSession.SENDER_KEY, null,  State.Transaction);
         }
-
-        return response;
     }
 
 	/**
@@ -96,8 +113,8 @@ public class MailCmdHandler extends AbstractHookableCmdHandler<MailHook> {
      */
     private Response doMAIL(SMTPSession session, String argument) {
         StringBuilder responseBuffer = new StringBuilder();
-        MailAddress sender = (MailAddress) session.getAttachment(
-                SMTPSession.SENDER, State.Transaction);
+        MailAddress sender = session.getAttachment(
+                SMTPSession.SENDER_KEY, State.Transaction);
         responseBuffer.append(
                 DSNStatus.getStatus(DSNStatus.SUCCESS, DSNStatus.ADDRESS_OTHER))
                 .append(" Sender <");
@@ -130,7 +147,7 @@ public class MailCmdHandler extends AbstractHookableCmdHandler<MailHook> {
      */
     protected Response doFilterChecks(SMTPSession session, String command,
             String parameters) {
-        return doMAILFilter(session, parameters);
+        return doMAILFilter(session, command, parameters);
     }
 
     /**
@@ -139,7 +156,8 @@ public class MailCmdHandler extends AbstractHookableCmdHandler<MailHook> {
      * @param argument
      *            the argument passed in with the command by the SMTP client
      */
-    private Response doMAILFilter(SMTPSession session, String argument) {
+    private Response doMAILFilter(SMTPSession session, String command, String argument) {
+        String parameters = argument;
         String sender = null;
 
         if ((argument != null) && (argument.indexOf(":") > 0)) {
@@ -147,10 +165,10 @@ public class MailCmdHandler extends AbstractHookableCmdHandler<MailHook> {
             sender = argument.substring(colonIndex + 1);
             argument = argument.substring(0, colonIndex);
         }
-        if (session.getAttachment(SMTPSession.SENDER, State.Transaction) != null) {
+        if (session.getAttachment(SMTPSession.SENDER_KEY, State.Transaction) != null) {
             return SENDER_ALREADY_SPECIFIED;
         } else if (session.getAttachment(
-                SMTPSession.CURRENT_HELO_MODE, State.Connection) == null
+                SMTPSession.CURRENT_HELO_MODE_KEY, State.Connection) == null
                 && session.getConfiguration().useHeloEhloEnforcement()) {
             return EHLO_HELO_NEEDED;
         } else if (argument == null
@@ -173,87 +191,139 @@ public class MailCmdHandler extends AbstractHookableCmdHandler<MailHook> {
 
                 StringTokenizer optionTokenizer = new StringTokenizer(
                         mailOptionString, " ");
-                while (optionTokenizer.hasMoreElements()) {
-                    String mailOption = optionTokenizer.nextToken();
-                    int equalIndex = mailOption.indexOf('=');
-                    String mailOptionName = mailOption;
-                    String mailOptionValue = "";
-                    if (equalIndex > 0) {
-                        mailOptionName = mailOption.substring(0, equalIndex)
-                                .toUpperCase(Locale.US);
-                        mailOptionValue = mailOption.substring(equalIndex + 1);
-                    }
+                return processMailParameters(session, command, parameters, optionTokenizer, sender, null);
+            }
+            return doSenderFilter(session, sender);
+        }
+    }
+
+    /**
+     * Call the {@link MailParametersHook}'s for the remaining MAIL options. If a hook returns a {@link FutureHookResult}
+     * which is not ready yet the processing is suspended and the returned {@link FutureResponse} is completed with
+     * the response of the whole MAIL command
+     * 
+     * @param session
+     * @param command
+     * @param parameters
+     * @param optionTokenizer
+     * @param sender
+     * @param future the {@link FutureResponseImpl} to complete if the processing was suspended before, otherwise <code>null</code>
+     * @return response
+     */
+    private Response processMailParameters(final SMTPSession session, final String command, final String parameters,
+            final StringTokenizer optionTokenizer, final String sender, final FutureResponseImpl future) {
+        while (optionTokenizer.hasMoreElements()) {
+            String mailOption = optionTokenizer.nextToken();
+            int equalIndex = mailOption.indexOf('=');
+            String mailOptionName = mailOption;
+            String mailOptionValue = "";
+            if (equalIndex > 0) {
+                mailOptionName = mailOption.substring(0, equalIndex)
+                        .toUpperCase(Locale.US);
+                mailOptionValue = mailOption.substring(equalIndex + 1);
+            }
 
-                    // Handle the SIZE extension keyword
+            // Handle the SIZE extension keyword
 
-                    if (paramHooks.containsKey(mailOptionName)) {
-                        MailParametersHook hook = paramHooks.get(mailOptionName);
-                        SMTPResponse res = calcDefaultSMTPResponse(hook.doMailParameter(session, mailOptionName, mailOptionValue));
-                        if (res != null) {
-                            return res;
-                        }
-                    } else {
-                        // Unexpected option attached to the Mail command
-                        if (session.getLogger().isDebugEnabled()) {
-                            StringBuilder debugBuffer = new StringBuilder(128)
-                                    .append(
-                                            "MAIL command had unrecognized/unexpected option ")
-                                    .append(mailOptionName).append(
-                                            " with value ").append(
-                                            mailOptionValue);
-                            session.getLogger().debug(debugBuffer.toString());
+            if (paramHooks.containsKey(mailOptionName)) {
+                MailParametersHook hook = paramHooks.get(mailOptionName);
+                HookResult hRes = hook.doMailParameter(session, mailOptionName, mailOptionValue);
+                if (hRes instanceof FutureHookResult && !((FutureHookResult) hRes).isReady()) {
+                    final FutureResponseImpl fResponse = future != null ? future : new FutureResponseImpl(session.getLogger());
+                    ((FutureHookResult) hRes).addListener(new HookResultListener() {
+
+                        public void onHookResult(FutureHookResult result) {
+                            Response response = calcDefaultSMTPResponse(result.getHookResult());
+                            if (response == null) {
+                                response = processMailParameters(session, command, parameters, optionTokenizer, sender, fResponse);
+                                if (response == fResponse) {
+                                    // suspended again
+                                    return;
+                                }
+                                if (response == null) {
+                                    response = doHooksAndCoreCmd(session, command, parameters);
+                                }
+                            }
+                            completeResponse(fResponse, response);
                         }
-                    }
+                    });
+                    return fResponse;
                 }
-            }
-            if (session.getConfiguration().useAddressBracketsEnforcement()
-                    && (!sender.startsWith("<") || !sender.endsWith(">"))) {
-                if (session.getLogger().isInfoEnabled()) {
-                    StringBuilder errorBuffer = new StringBuilder(128).append(
-                            "Error parsing sender address: ").append(sender)
-                            .append(": did not start and end with < >");
-                    session.getLogger().info(errorBuffer.toString());
+                SMTPResponse res = calcDefaultSMTPResponse(hRes);
+                if (res != null) {
+                    return res;
+                }
+            } else {
+                // Unexpected option attached to the Mail command
+                if (session.getLogger().isDebugEnabled()) {
+                    StringBuilder debugBuffer = new StringBuilder(128)
+                            .append(
+                                    "MAIL command had unrecognized/unexpected option ")
+                            .append(mailOptionName).append(
+                                    " with value ").append(
+                                    mailOptionValue);
+                    session.getLogger().debug(debugBuffer.toString());
                 }
-                return SYNTAX_ERROR;
             }
-            MailAddress senderAddress = null;
+        }
+        return doSenderFilter(session, sender);
+    }
 
-            if (session.getConfiguration().useAddressBracketsEnforcement()
-                    || (sender.startsWith("<") && sender.endsWith(">"))) {
-                // Remove < and >
-                sender = sender.substring(1, sender.length() - 1);
+    /**
+     * Parse the sender and store it in the session
+     * 
+     * @param session
+     * @param sender the sender without the MAIL options
+     * @return response if the sender is not valid, otherwise <code>null</code>
+     */
+    private Response doSenderFilter(SMTPSession session, String sender) {
+        if (session.getConfiguration().useAddressBracketsEnforcement()
+                && (!sender.startsWith("<") || !sender.endsWith(">"))) {
+            if (session.getLogger().isInfoEnabled()) {
+                StringBuilder errorBuffer = new StringBuilder(128).append(
+                        "Error parsing sender address: ").append(sender)
+                        .append(": did not start and end with < >");
+                session.getLogger().info(errorBuffer.toString());
             }
+            return SYNTAX_ERROR;
+        }
+        MailAddress senderAddress = null;
 
-            if (sender.length() == 0) {
-                // This is the <> case. Let senderAddress == null
-            } else {
+        if (session.getConfiguration().useAddressBracketsEnforcement()
+                || (sender.startsWith("<") && sender.endsWith(">"))) {
+            // Remove < and >
+            sender = sender.substring(1, sender.length() - 1);
+        }
 
-                if (sender.indexOf("@") < 0) {
-                    sender = sender
-                            + "@"
-                            + getDefaultDomain();
-                }
+        if (sender.length() == 0) {
+            // This is the <> case. Let senderAddress == null
+        } else {
 
-                try {
-                    senderAddress = new MailAddress(sender);
-                } catch (Exception pe) {
-                    if (session.getLogger().isInfoEnabled()) {
-                        StringBuilder errorBuffer = new StringBuilder(256)
-                                .append("Error parsing sender address: ")
-                                .append(sender).append(": ").append(
-                                        pe.getMessage());
-                        session.getLogger().info(errorBuffer.toString());
-                    }
-                    return SYNTAX_ERROR_ADDRESS;
-                }
+            if (sender.indexOf("@") < 0) {
+                sender = sender
+                        + "@"
+                        + getDefaultDomain();
             }
-            if ((senderAddress == null) || 
-                    ((senderAddress.getLocalPart().length() == 0) && (senderAddress.getDomain().length() == 0))) {
-                senderAddress = MailAddress.nullSender();
+
+            try {
+                senderAddress = new MailAddress(sender);
+            } catch (Exception pe) {
+                if (session.getLogger().isInfoEnabled()) {
+                    StringBuilder errorBuffer = new StringBuilder(256)
+                            .append("Error parsing sender address: ")
+                            .append(sender).append(": ").append(
+                                    pe.getMessage());
+                    session.getLogger().info(errorBuffer.toString());
+                }
+                return SYNTAX_ERROR_ADDRESS;
             }
-            // Store the senderAddress in session map
-            session.setAttachment(SMTPSession.SENDER, senderAddress, State.Transaction);
         }
+        if ((senderAddress == null) || 
+                ((senderAddress.getLocalPart().length() == 0) && (senderAddress.getDomain().length() == 0))) {
+            senderAddress = MailAddress.nullSender();
+        }
+        // Store the senderAddress in session map
+        session.setAttachment(SMTPSession.SENDER_KEY, senderAddress, State.Transaction);
         return null;
     }
     /**
@@ -268,7 +338,7 @@ public class MailCmdHandler extends AbstractHookableCmdHandler<MailHook> {
      * {@inheritDoc}
      */
     protected HookResult callHook(MailHook rawHook, SMTPSession session, String parameters) {
-        MailAddress sender = (MailAddress) session.getAttachment(SMTPSession.SENDER, State.Transaction);
+        MailAddress sender = session.getAttachment(SMTPSession.SENDER_KEY, State.Transaction);
         if (sender.isNullSender()) {
             sender = null;
         }
@@ -23,6 +23,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 import java.util.Locale;
 import java.util.StringTokenizer;
 
@@ -62,18 +63,17 @@ public class RcptCmdHandler extends AbstractHookableCmdHandler<RcptHook> impleme
      * @param parameters
      *            parameters passed in with the command by the SMTP client
      */
-    @SuppressWarnings("unchecked")
     protected Response doCoreCmd(SMTPSession session, String command,
             String parameters) {
-        Collection<MailAddress> rcptColl = (Collection<MailAddress>) session.getAttachment(
-                SMTPSession.RCPT_LIST, State.Transaction);
+        List<MailAddress> rcptColl = session.getAttachment(
+                SMTPSession.RCPT_LIST_KEY, State.Transaction);
         if (rcptColl == null) {
             rcptColl = new ArrayList<MailAddress>();
         }
         MailAddress recipientAddress = (MailAddress) session.getAttachment(
                 CURRENT_RECIPIENT, State.Transaction);
         rcptColl.add(recipientAddress);
-        session.setAttachment(SMTPSession.RCPT_LIST, rcptColl, State.Transaction);
+        session.setAttachment(SMTPSession.RCPT_LIST_KEY, rcptColl, State.Transaction);
         StringBuilder response = new StringBuilder();
         response
                 .append(
@@ -98,7 +98,7 @@ public class RcptCmdHandler extends AbstractHookableCmdHandler<RcptHook> impleme
             recipient = argument.substring(colonIndex + 1);
             argument = argument.substring(0, colonIndex);
         }
-        if (session.getAttachment(SMTPSession.SENDER, State.Transaction) == null) {
+        if (session.getAttachment(SMTPSession.SENDER_KEY, State.Transaction) == null) {
             return MAIL_NEEDED;
         } else if (argument == null
                 || !argument.toUpperCase(Locale.US).equals("TO")
@@ -207,8 +207,8 @@ public class RcptCmdHandler extends AbstractHookableCmdHandler<RcptHook> impleme
         } else if (null != recipient) {
             sb.append(" [to:" + recipient + "]");
         }
-        if (null != session.getAttachment(SMTPSession.SENDER, State.Transaction)) {
-            sb.append(" [from:" + ((MailAddress) session.getAttachment(SMTPSession.SENDER, State.Transaction)).toString() + "]");
+        if (null != session.getAttachment(SMTPSession.SENDER_KEY, State.Transaction)) {
+            sb.append(" [from:" + session.getAttachment(SMTPSession.SENDER_KEY, State.Transaction).toString() + "]");
         }
         return sb.toString();
     }
@@ -233,7 +233,7 @@ public class RcptCmdHandler extends AbstractHookableCmdHandler<RcptHook> impleme
     protected HookResult callHook(RcptHook rawHook, SMTPSession session,
             String parameters) {
         return rawHook.doRcpt(session,
-                (MailAddress) session.getAttachment(SMTPSession.SENDER, State.Transaction),
+                session.getAttachment(SMTPSession.SENDER_KEY, State.Transaction),
                 (MailAddress) session.getAttachment(CURRENT_RECIPIENT, State.Transaction));
     }
 
@@ -86,14 +86,13 @@ public class ReceivedDataLineFilter extends AbstractAddHeadersFilter {
     /**
      * Returns the Received header for the message.
      */
-    @SuppressWarnings("unchecked")
     @Override
     protected Collection<Header> headers(SMTPSession session) {
 
         StringBuilder headerLineBuffer = new StringBuilder();
 
-        String heloMode = (String) session.getAttachment(SMTPSession.CURRENT_HELO_MODE, State.Connection);
-        String heloName = (String) session.getAttachment(SMTPSession.CURRENT_HELO_NAME, State.Connection);
+        String heloMode = session.getAttachment(SMTPSession.CURRENT_HELO_MODE_KEY, State.Connection);
+        String heloName = session.getAttachment(SMTPSession.CURRENT_HELO_NAME_KEY, State.Connection);
 
         // Put our Received header first
         headerLineBuffer.append("from ").append(session.getRemoteAddress().getHostName());
@@ -108,14 +107,15 @@ public class ReceivedDataLineFilter extends AbstractAddHeadersFilter {
         headerLineBuffer.append("by ").append(session.getConfiguration().getHelloName()).append(" (").append(session.getConfiguration().getSoftwareName()).append(") with ").append(getServiceType(session, heloMode));
         headerLineBuffer.append(" ID ").append(session.getSessionID());
 
-        if (((Collection<?>) session.getAttachment(SMTPSession.RCPT_LIST, State.Transaction)).size() == 1) {
+        List<MailAddress> rcpts = session.getAttachment(SMTPSession.RCPT_LIST_KEY, State.Transaction);
+        if (rcpts.size() == 1) {
             // Only indicate a recipient if they're the only recipient
             // (prevents email address harvesting and large headers in
             // bulk email)
             header.add(headerLineBuffer.toString());
             
             headerLineBuffer = new StringBuilder();
-            headerLineBuffer.append("for <").append(((List<MailAddress>) session.getAttachment(SMTPSession.RCPT_LIST, State.Transaction)).get(0).toString()).append(">;");
+            headerLineBuffer.append("for <").append(rcpts.get(0).toString()).append(">;");
         } else {
             // Put the ; on the end of the 'by' line
             headerLineBuffer.append(";");
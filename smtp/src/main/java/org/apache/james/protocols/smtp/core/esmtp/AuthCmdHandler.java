@@ -30,10 +30,13 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
 import java.util.StringTokenizer;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.codec.binary.Base64;
 import org.apache.james.protocols.api.Request;
 import org.apache.james.protocols.api.Response;
+import org.apache.james.protocols.api.future.FutureResponse;
+import org.apache.james.protocols.api.future.FutureResponseImpl;
 import org.apache.james.protocols.api.handler.CommandHandler;
 import org.apache.james.protocols.api.handler.ExtensibleHandler;
 import org.apache.james.protocols.api.handler.LineHandler;
@@ -43,6 +46,8 @@ import org.apache.james.protocols.smtp.SMTPRetCode;
 import org.apache.james.protocols.smtp.SMTPSession;
 import org.apache.james.protocols.smtp.dsn.DSNStatus;
 import org.apache.james.protocols.smtp.hook.AuthHook;
+import org.apache.james.protocols.smtp.hook.FutureHookResult;
+import org.apache.james.protocols.smtp.hook.FutureHookResult.HookResultListener;
 import org.apache.james.protocols.smtp.hook.HookResult;
 import org.apache.james.protocols.smtp.hook.HookResultHook;
 import org.apache.james.protocols.smtp.hook.HookReturnCode;
@@ -335,51 +340,104 @@ public class AuthCmdHandler
             return new SMTPResponse(SMTPRetCode.SYNTAX_ERROR_ARGUMENTS,"Could not decode parameters for AUTH "+authType);
         }
 
-        Response res = null;
-        
+        Response res = doAuthTest(session, user, pass, authType, 0, null);
+        if (res == null) {
+            res = authFailed(session, user, authType);
+        }
+        return res;
+    }
+
+    /**
+     * Call the {@link AuthHook}'s starting with the hook at the given index. If a hook returns a {@link FutureHookResult} which
+     * is not ready yet the processing is suspended and a {@link FutureResponse} is returned
+     * 
+     * @param session
+     * @param user
+     * @param pass
+     * @param authType
+     * @param index the index of the first hook to call
+     * @param future the {@link FutureResponseImpl} to complete if the processing was suspended before, otherwise <code>null</code>
+     * @return response or <code>null</code> if no hook returned a result
+     */
+    private Response doAuthTest(final SMTPSession session, final String user, final String pass, final String authType, int index, final FutureResponseImpl future) {
         List<AuthHook> hooks = getHooks();
         
         if (hooks != null) {
             int count = hooks.size();
-            for (int i = 0; i < count; i++) {
-                AuthHook rawHook = hooks.get(i);
+            for (int i = index; i < count; i++) {
+                final AuthHook rawHook = hooks.get(i);
                 session.getLogger().debug("executing  hook " + rawHook);
                 
 
-                long start = System.currentTimeMillis();
+                final long start = System.nanoTime();
                 HookResult hRes = rawHook.doAuth(session, user, pass);
-                long executionTime = System.currentTimeMillis() - start;
-
-                if (rHooks != null) {
-                    for (int i2 = 0; i2 < rHooks.size(); i2++) {
-                        Object rHook = rHooks.get(i2);
-                        session.getLogger().debug("executing  hook " + rHook);
-                    
-                        hRes = ((HookResultHook) rHook).onHookResult(session, hRes, executionTime, rawHook);
-                    }
+                if (hRes instanceof FutureHookResult && !((FutureHookResult) hRes).isReady()) {
+                    final FutureResponseImpl fResponse = future != null ? future : new FutureResponseImpl(session.getLogger());
+                    final int next = i + 1;
+                    ((FutureHookResult) hRes).addListener(new HookResultListener() {
+
+                        public void onHookResult(FutureHookResult result) {
+                            Response response = handleHookResult(session, rawHook, result.getHookResult(), start, authType);
+                            if (response == null) {
+                                response = doAuthTest(session, user, pass, authType, next, fResponse);
+                                if (response == fResponse) {
+                                    // suspended again
+                                    return;
+                                }
+                                if (response == null) {
+                                    response = authFailed(session, user, authType);
+                                }
+                            }
+                            fResponse.setResponse(response);
+                        }
+                    });
+                    return fResponse;
                 }
-                
-                res = calcDefaultSMTPResponse(hRes);
-                
+                Response res = handleHookResult(session, rawHook, hRes, start, authType);
                 if (res != null) {
-                    if (SMTPRetCode.AUTH_FAILED.equals(res.getRetCode())) {
-                        session.getLogger().info("AUTH method "+authType+" failed");
-                    } else if (SMTPRetCode.AUTH_OK.equals(res.getRetCode())) {
-                        if (session.getLogger().isDebugEnabled()) {
-                            // TODO: Make this string a more useful debug message
-                            session.getLogger().debug("AUTH method "+authType+" succeeded");
-                        }
-                    }
                     return res;
                 }
             }
         }
+        return null;
+    }
 
-        res = AUTH_FAILED;
-        session.getLogger().error("AUTH method "+authType+" failed from " + user + "@" + session.getRemoteAddress().getAddress().getHostAddress()); 
+    private Response handleHookResult(SMTPSession session, AuthHook rawHook, HookResult hRes, long start, String authType) {
+        long executionNanos = System.nanoTime() - start;
+        long executionTime = TimeUnit.NANOSECONDS.toMillis(executionNanos);
+        if (session.getMetrics() != null) {
+            session.getMetrics().recordHandler(rawHook, executionNanos);
+        }
+
+        if (rHooks != null) {
+            for (int i2 = 0; i2 < rHooks.size(); i2++) {
+                Object rHook = rHooks.get(i2);
+                session.getLogger().debug("executing  hook " + rHook);
+            
+                hRes = ((HookResultHook) rHook).onHookResult(session, hRes, executionTime, rawHook);
+            }
+        }
+        
+        Response res = calcDefaultSMTPResponse(hRes);
+        
+        if (res != null) {
+            if (SMTPRetCode.AUTH_FAILED.equals(res.getRetCode())) {
+                session.getLogger().info("AUTH method "+authType+" failed");
+            } else if (SMTPRetCode.AUTH_OK.equals(res.getRetCode())) {
+                if (session.getLogger().isDebugEnabled()) {
+                    // TODO: Make this string a more useful debug message
+                    session.getLogger().debug("AUTH method "+authType+" succeeded");
+                }
+            }
+        }
         return res;
     }
 
+    private Response authFailed(SMTPSession session, String user, String authType) {
+        session.getLogger().error("AUTH method "+authType+" failed from " + user + "@" + session.getRemoteAddress().getAddress().getHostAddress()); 
+        return AUTH_FAILED;
+    }
+
 
     /**
      * Calculate the SMTPResponse for the given result
@@ -0,0 +1,320 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.protocols.smtp.core.esmtp;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.james.protocols.api.ProtocolSession.State;
+import org.apache.james.protocols.api.Request;
+import org.apache.james.protocols.api.Response;
+import org.apache.james.protocols.api.handler.BulkLineHandler;
+import org.apache.james.protocols.api.handler.CommandHandler;
+import org.apache.james.protocols.api.handler.ExtensibleHandler;
+import org.apache.james.protocols.api.handler.PayloadTerminator;
+import org.apache.james.protocols.api.handler.WiringException;
+import org.apache.james.protocols.smtp.MailAddress;
+import org.apache.james.protocols.smtp.MailEnvelope;
+import org.apache.james.protocols.smtp.SMTPResponse;
+import org.apache.james.protocols.smtp.SMTPRetCode;
+import org.apache.james.protocols.smtp.SMTPSession;
+import org.apache.james.protocols.smtp.core.DataChunkFilter;
+import org.apache.james.protocols.smtp.core.DataChunkHandler;
+import org.apache.james.protocols.smtp.core.DataCmdHandler;
+import org.apache.james.protocols.smtp.dsn.DSNStatus;
+import org.apache.james.protocols.smtp.hook.HookResult;
+import org.apache.james.protocols.smtp.hook.HookReturnCode;
+import org.apache.james.protocols.smtp.hook.MailParametersHook;
+
+/**
+ * Handles the BDAT command and the CHUNKING and BINARYMIME extensions as defined in RFC 3030.
+ * 
+ * The chunks are read as they are, without any dot-stuffing or line framing, and are passed to the {@link DataChunkFilter}'s. So 
+ * {@link org.apache.james.protocols.smtp.core.DataLineFilter}'s which don't implement {@link DataChunkFilter} are not used for 
+ * messages which are transfered via BDAT.
+ * 
+ * The envelope is created by the {@link DataCmdHandler} of the chain, so its spool settings apply here too. If the chain has no 
+ * {@link DataCmdHandler}, the messages are kept in memory.
+ * 
+ * This needs a transport which supports the {@link PayloadTerminator#length(long)} mode of {@link BulkLineHandler}'s. If the transport
+ * passes more data than the chunk size, the session is closed as the chunk can't be read correctly.
+ */
+public class BdatCmdHandler implements CommandHandler<SMTPSession>, ExtensibleHandler, EhloExtension, MailParametersHook {
+
+    private final static String COMMAND_NAME = "BDAT";
+    private final static Collection<String> COMMANDS = Collections.unmodifiableCollection(Arrays.asList(COMMAND_NAME));
+    private final static List<String> FEATURES = Collections.unmodifiableList(Arrays.asList("CHUNKING", "BINARYMIME"));
+    private final static String[] MAIL_PARAMS = { "BODY" };
+    private final static List<String> BODY_TYPES = Arrays.asList("7BIT", "8BITMIME", "BINARYMIME");
+    
+    private static final Response SYNTAX_ERROR = new SMTPResponse(SMTPRetCode.SYNTAX_ERROR_ARGUMENTS, DSNStatus.getStatus(DSNStatus.PERMANENT, DSNStatus.DELIVERY_INVALID_ARG) + " Usage: BDAT <chunk-size> [LAST]").immutable();
+    private static final Response NO_RECIPIENT = new SMTPResponse(SMTPRetCode.BAD_SEQUENCE, DSNStatus.getStatus(DSNStatus.PERMANENT,DSNStatus.DELIVERY_OTHER)+" No recipients specified").immutable();
+    private static final Response NO_SENDER = new SMTPResponse(SMTPRetCode.BAD_SEQUENCE, DSNStatus.getStatus(DSNStatus.PERMANENT,DSNStatus.DELIVERY_OTHER)+" No sender specified").immutable();
+    private static final HookResult BODY_SYNTAX_ERROR = new HookResult(HookReturnCode.DENY, SMTPRetCode.SYNTAX_ERROR_ARGUMENTS, DSNStatus.getStatus(DSNStatus.PERMANENT, DSNStatus.DELIVERY_INVALID_ARG) + " Unsupported value for BODY parameter");
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final Response CHUNK_OVERRUN;
+    static {
+        SMTPResponse response = new SMTPResponse(SMTPRetCode.SERVICE_NOT_AVAILABLE, DSNStatus.getStatus(DSNStatus.TRANSIENT, DSNStatus.SYSTEM_OTHER) + " Unable to read the BDAT chunk, closing transmission channel");
+        response.setEndSession(true);
+        CHUNK_OVERRUN = response.immutable();
+    }
+
+    /**
+     * {@link DataChunkHandler} which calls the wrapped {@link DataChunkFilter}
+     */
+    public static final class DataChunkFilterWrapper implements DataChunkHandler {
+
+        private final DataChunkFilter filter;
+        private final DataChunkHandler next;
+        
+        public DataChunkFilterWrapper(DataChunkFilter filter, DataChunkHandler next) {
+            this.filter = filter;
+            this.next = next;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see org.apache.james.protocols.smtp.core.DataChunkHandler#onChunk(org.apache.james.protocols.smtp.SMTPSession, java.nio.ByteBuffer, boolean)
+         */
+        public Response onChunk(SMTPSession session, ByteBuffer chunk, boolean last) {
+            return filter.onChunk(session, chunk, last, next);
+        }
+    }
+    
+    /**
+     * {@link DataChunkHandler} at the end of the chain, which just discards the chunk
+     */
+    private static final DataChunkHandler DISCARD = new DataChunkHandler() {
+        
+        public Response onChunk(SMTPSession session, ByteBuffer chunk, boolean last) {
+            return null;
+        }
+    };
+    
+    /**
+     * {@link BulkLineHandler} which reads one chunk and passes it to the {@link DataChunkHandler}. It removes itself once the
+     * chunk was read completely.
+     */
+    private final class ChunkLineHandler implements BulkLineHandler<SMTPSession> {
+        private final boolean last;
+        private long remaining;
+        private final long size;
+        private Response error;
+        
+        public ChunkLineHandler(long size, boolean last, Response error) {
+            this.size = size;
+            this.remaining = size;
+            this.last = last;
+            this.error = error;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see org.apache.james.protocols.api.handler.BulkLineHandler#getPayloadTerminator(org.apache.james.protocols.api.ProtocolSession)
+         */
+        public PayloadTerminator getPayloadTerminator(SMTPSession session) {
+            return PayloadTerminator.length(remaining);
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see org.apache.james.protocols.api.handler.LineHandler#onLine(org.apache.james.protocols.api.ProtocolSession, java.nio.ByteBuffer)
+         */
+        public Response onLine(SMTPSession session, ByteBuffer data) {
+            if (data.remaining() > remaining) {
+                // the transport framed the data behind the chunk already, so it's not possible to tell where the next command starts
+                session.getLogger().error("Received " + (data.remaining() - remaining) + " bytes beyond the end of the BDAT chunk, closing the session");
+                session.popLineHandler();
+                session.resetState();
+                return CHUNK_OVERRUN;
+            }
+            remaining -= data.remaining();
+            
+            Response response = null;
+            boolean end = remaining == 0;
+            if (error == null && (data.hasRemaining() || end && last)) {
+                response = chunkHandler.onChunk(session, data, end && last);
+                if (response != null && !(end && last)) {
+                    // the transaction failed, so discard the rest of the chunk
+                    error = response;
+                    response = null;
+                }
+            }
+            if (end) {
+                session.popLineHandler();
+                return complete(session, size, last, response, error);
+            }
+            return null;
+        }
+    }
+    
+    private DataChunkHandler chunkHandler = DISCARD;
+    private DataCmdHandler dataHandler = new DataCmdHandler();
+    
+    /**
+     * @see org.apache.james.protocols.api.handler.CommandHandler#getImplCommands()
+     */
+    public Collection<String> getImplCommands() {
+        return COMMANDS;
+    }
+
+    /**
+     * @see org.apache.james.protocols.smtp.core.esmtp.EhloExtension#getImplementedEsmtpFeatures(org.apache.james.protocols.smtp.SMTPSession)
+     */
+    public List<String> getImplementedEsmtpFeatures(SMTPSession session) {
+        return FEATURES;
+    }
+
+    /**
+     * Handler method called upon receipt of a BDAT command. The transaction is checked before the chunk is read, but the chunk is 
+     * consumed in every case as the client may send it without waiting for the response.
+     */
+    public Response onCommand(SMTPSession session, Request request) {
+        String argument = request.getArgument();
+        if (argument == null) {
+            return SYNTAX_ERROR;
+        }
+        String[] args = argument.trim().split(" +");
+        long size = parseSize(args[0]);
+        if (size < 0 || args.length > 2 || (args.length == 2 && !"LAST".equalsIgnoreCase(args[1]))) {
+            return SYNTAX_ERROR;
+        }
+        boolean last = args.length == 2;
+        
+        Response error = null;
+        MailAddress sender = session.getAttachment(SMTPSession.SENDER_KEY, State.Transaction);
+        List<MailAddress> recipients = session.getAttachment(SMTPSession.RCPT_LIST_KEY, State.Transaction);
+        if (sender == null) {
+            error = NO_SENDER;
+        } else if (recipients == null) {
+            error = NO_RECIPIENT;
+        } else if (session.getAttachment(DataCmdHandler.MAILENV_KEY, State.Transaction) == null) {
+            MailEnvelope env = dataHandler.newEnvelope(session, sender, new ArrayList<MailAddress>(recipients));
+            session.setAttachment(DataCmdHandler.MAILENV_KEY, env, State.Transaction);
+        }
+        
+        if (size == 0) {
+            Response response = null;
+            if (error == null && last) {
+                response = chunkHandler.onChunk(session, EMPTY.duplicate(), true);
+            }
+            return complete(session, size, last, response, error);
+        }
+        session.pushLineHandler(new ChunkLineHandler(size, last, error));
+        return null;
+    }
+    
+    /**
+     * Return the response for a completely read chunk
+     * 
+     * @param session
+     * @param size
+     * @param last
+     * @param response the response of the {@link DataChunkHandler} for the last chunk
+     * @param error the response of a failure or <code>null</code>
+     * @return response
+     */
+    private Response complete(SMTPSession session, long size, boolean last, Response response, Response error) {
+        if (error != null) {
+            session.resetState();
+            return error;
+        }
+        if (last) {
+            return response;
+        }
+        return new SMTPResponse(SMTPRetCode.MAIL_OK, DSNStatus.getStatus(DSNStatus.SUCCESS, DSNStatus.UNDEFINED_STATUS) + " " + size + " octets received");
+    }
+    
+    /**
+     * Parse the chunk size
+     * 
+     * @param value
+     * @return size or <code>-1</code> if the value is not a valid size
+     */
+    private long parseSize(String value) {
+        if (value.length() == 0 || value.length() > 18) {
+            return -1;
+        }
+        long size = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            size = size * 10 + (c - '0');
+        }
+        return size;
+    }
+
+    /**
+     * Accepts the BODY values of RFC 1652 and RFC 3030 and stores them in the session, so DATA can be rejected for BINARYMIME
+     * messages.
+     * 
+     * @see org.apache.james.protocols.smtp.hook.MailParametersHook#doMailParameter(org.apache.james.protocols.smtp.SMTPSession, java.lang.String, java.lang.String)
+     */
+    public HookResult doMailParameter(SMTPSession session, String paramName, String paramValue) {
+        String type = paramValue.toUpperCase(Locale.US);
+        if (!BODY_TYPES.contains(type)) {
+            return BODY_SYNTAX_ERROR;
+        }
+        session.setAttachment(SMTPSession.BODY_TYPE_KEY, type, State.Transaction);
+        return null;
+    }
+
+    /**
+     * @see org.apache.james.protocols.smtp.hook.MailParametersHook#getMailParamNames()
+     */
+    public String[] getMailParamNames() {
+        return MAIL_PARAMS;
+    }
+
+    /**
+     * @see org.apache.james.protocols.api.handler.ExtensibleHandler#getMarkerInterfaces()
+     */
+    public List<Class<?>> getMarkerInterfaces() {
+        List<Class<?>> classes = new LinkedList<Class<?>>();
+        classes.add(DataChunkFilter.class);
+        classes.add(DataCmdHandler.class);
+        return classes;
+    }
+
+    /**
+     * @see org.apache.james.protocols.api.handler.ExtensibleHandler#wireExtensions(java.lang.Class, java.util.List)
+     */
+    public void wireExtensions(Class<?> interfaceName, List<?> extension) throws WiringException {
+        if (DataCmdHandler.class.equals(interfaceName)) {
+            if (!extension.isEmpty()) {
+                this.dataHandler = (DataCmdHandler) extension.get(0);
+            }
+        } else if (DataChunkFilter.class.equals(interfaceName)) {
+            DataChunkHandler handler = DISCARD;
+            for (int i = extension.size() - 1; i >= 0; i--) {
+                handler = new DataChunkFilterWrapper((DataChunkFilter) extension.get(i), handler);
+            }
+            this.chunkHandler = handler;
+        }
+    }
+}
@@ -65,7 +65,7 @@ public class EhloCmdHandler extends AbstractHookableCmdHandler<HeloHook> impleme
                 .append(" [")
                 .append(session.getRemoteAddress().getAddress().getHostAddress()).append("])"));
         
-        session.setAttachment(SMTPSession.CURRENT_HELO_MODE,
+        session.setAttachment(SMTPSession.CURRENT_HELO_MODE_KEY,
                 COMMAND_NAME, State.Connection);
 
         processExtensions(session, resp);
@@ -146,7 +146,7 @@ public class EhloCmdHandler extends AbstractHookableCmdHandler<HeloHook> impleme
             return DOMAIN_ADDRESS_REQUIRED;
         } else {
             // store provided name
-            session.setAttachment(SMTPSession.CURRENT_HELO_NAME, parameters, State.Connection);
+            session.setAttachment(SMTPSession.CURRENT_HELO_NAME_KEY, parameters, State.Connection);
             return null;
         }
     }
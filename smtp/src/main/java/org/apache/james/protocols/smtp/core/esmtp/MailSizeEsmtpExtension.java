@@ -19,18 +19,29 @@
 
 package org.apache.james.protocols.smtp.core.esmtp;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
+import org.apache.james.protocols.api.AttributeKey;
 import org.apache.james.protocols.api.Response;
 import org.apache.james.protocols.api.ProtocolSession.State;
+import org.apache.james.protocols.api.handler.BulkLineHandler;
 import org.apache.james.protocols.api.handler.LineHandler;
+import org.apache.james.protocols.api.handler.PayloadTerminator;
 import org.apache.james.protocols.smtp.MailEnvelope;
+import org.apache.james.protocols.smtp.SMTPResponse;
 import org.apache.james.protocols.smtp.SMTPRetCode;
 import org.apache.james.protocols.smtp.SMTPSession;
-import org.apache.james.protocols.smtp.core.DataLineFilter;
+import org.apache.james.protocols.smtp.core.DataChunkFilter;
+import org.apache.james.protocols.smtp.core.DataChunkHandler;
+import org.apache.james.protocols.smtp.core.DataCmdHandler;
+import org.apache.james.protocols.smtp.core.DataLineBlock;
+import org.apache.james.protocols.smtp.core.DataLineBlockFilter;
+import org.apache.james.protocols.smtp.core.DataLineBlockHandler;
 import org.apache.james.protocols.smtp.dsn.DSNStatus;
 import org.apache.james.protocols.smtp.hook.HookResult;
 import org.apache.james.protocols.smtp.hook.HookReturnCode;
@@ -39,15 +50,51 @@ import org.apache.james.protocols.smtp.hook.MessageHook;
 
 /**
  * Handle the ESMTP SIZE extension.
+ * 
+ * Once a message exceeds the maximum size its envelope is released at once. The rest of a DATA transfer is discarded by a 
+ * {@link BulkLineHandler} which only waits for the terminating line, before the error is returned.
  */
-public class MailSizeEsmtpExtension implements MailParametersHook, EhloExtension, DataLineFilter, MessageHook {
+public class MailSizeEsmtpExtension implements MailParametersHook, EhloExtension, DataLineBlockFilter, DataChunkFilter, MessageHook {
 
     private final static String MESG_SIZE = "MESG_SIZE"; // The size of the
-    private final static String MESG_FAILED = "MESG_FAILED";   // Message failed flag
+    private final static AttributeKey<MessageSize> CURRENT_SIZE = AttributeKey.valueOf("CURRENT_SIZE");
     private final static String[] MAIL_PARAMS = { "SIZE" };
     
     private static final HookResult SYNTAX_ERROR = new HookResult(HookReturnCode.DENY, SMTPRetCode.SYNTAX_ERROR_ARGUMENTS, DSNStatus.getStatus(DSNStatus.PERMANENT, DSNStatus.DELIVERY_INVALID_ARG) + " Syntactically incorrect value for SIZE parameter");
     private static final HookResult QUOTA_EXCEEDED = new HookResult(HookReturnCode.DENY, SMTPRetCode.QUOTA_EXCEEDED, DSNStatus.getStatus(DSNStatus.PERMANENT, DSNStatus.SYSTEM_MSG_TOO_BIG) + " Message size exceeds fixed maximum message size");
+    private static final Response QUOTA_EXCEEDED_RESPONSE = new SMTPResponse(QUOTA_EXCEEDED.getSmtpRetCode(), QUOTA_EXCEEDED.getSmtpDescription()).immutable();
+    
+    /**
+     * {@link BulkLineHandler} which discards the rest of a message which exceeded the maximum size. As the transport passes the 
+     * terminating line on its own, it does not need to look at any other data.
+     */
+    private static final class DiscardLineHandler implements BulkLineHandler<SMTPSession> {
+
+        /*
+         * (non-Javadoc)
+         * @see org.apache.james.protocols.api.handler.BulkLineHandler#getPayloadTerminator(org.apache.james.protocols.api.ProtocolSession)
+         */
+        public PayloadTerminator getPayloadTerminator(SMTPSession session) {
+            return PayloadTerminator.DOT_LINE;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see org.apache.james.protocols.api.handler.LineHandler#onLine(org.apache.james.protocols.api.ProtocolSession, java.nio.ByteBuffer)
+         */
+        public Response onLine(SMTPSession session, ByteBuffer line) {
+            int position = line.position();
+            // 46 is "."
+            if (line.remaining() == 3 && line.get(position) == 46 && line.get(position + 1) == '\r' && line.get(position + 2) == '\n') {
+                session.popLineHandler();
+                session.resetState();
+                return QUOTA_EXCEEDED_RESPONSE;
+            }
+            return null;
+        }
+    }
+    
+    private static final DiscardLineHandler DISCARD_HANDLER = new DiscardLineHandler();
 
 
 
@@ -136,64 +183,151 @@ public class MailSizeEsmtpExtension implements MailParametersHook, EhloExtension
 
 
     /**
-     * @see org.apache.james.protocols.smtp.core.DataLineFilter#onLine(SMTPSession, byte[], LineHandler)
+     * @see org.apache.james.protocols.smtp.core.DataLineFilter#onLine(SMTPSession, ByteBuffer, LineHandler)
      */
     public Response onLine(SMTPSession session, ByteBuffer line, LineHandler<SMTPSession> next) {
-        Response response = null;
-    	Boolean failed = (Boolean) session.getAttachment(MESG_FAILED, State.Transaction);
-        // If we already defined we failed and sent a reply we should simply
-        // wait for a CRLF.CRLF to be sent by the client.
-        if (failed != null && failed.booleanValue()) {
-            // TODO
-        } else {
-            if (line.remaining() == 3 && line.get() == 46) {
-                line.rewind();
-                response = next.onLine(session, line);
-            } else {
-                line.rewind();
-                Long currentSize = (Long) session.getAttachment("CURRENT_SIZE", State.Transaction);
-                Long newSize;
-                if (currentSize == null) {
-                    newSize = Long.valueOf(line.remaining());
-                } else {
-                    newSize = Long.valueOf(currentSize.intValue()+line.remaining());
-                }
-                
-                if (session.getConfiguration().getMaxMessageSize() > 0 && newSize.intValue() > session.getConfiguration().getMaxMessageSize()) {
-                    // Add an item to the state to suppress
-                    // logging of extra lines of data
-                    // that are sent after the size limit has
-                    // been hit.
-                    session.setAttachment(MESG_FAILED, Boolean.TRUE, State.Transaction);
-                    // then let the client know that the size
-                    // limit has been hit.
-                    response = next.onLine(session, ByteBuffer.wrap(".\r\n".getBytes()));
-                } else {
-                    line.rewind();
-                    response = next.onLine(session, line);
-                }
-                
-                session.setAttachment("CURRENT_SIZE", newSize, State.Transaction);
+        MessageSize currentSize = getCurrentSize(session);
+        if (currentSize.discarding) {
+            return null;
+        }
+        if (line.remaining() != 3 || line.get() != 46) {
+            line.rewind();
+            currentSize.size += line.remaining();
+            
+            if (session.getConfiguration().getMaxMessageSize() > 0 && currentSize.size > session.getConfiguration().getMaxMessageSize()) {
+                return discardMessage(session, currentSize, false);
+            }
+        }
+        line.rewind();
+        return next.onLine(session, line);
+    }
+
+    /**
+     * Count the bytes of the whole block at once. The terminating line is not counted.
+     * 
+     * @see org.apache.james.protocols.smtp.core.DataLineBlockFilter#onBlock(SMTPSession, DataLineBlock, DataLineBlockHandler)
+     */
+    public Response onBlock(SMTPSession session, DataLineBlock block, DataLineBlockHandler next) {
+        long maxMessageSize = session.getConfiguration().getMaxMessageSize();
+        if (maxMessageSize <= 0) {
+            return next.onBlock(session, block);
+        }
+        MessageSize currentSize = getCurrentSize(session);
+        if (currentSize.discarding) {
+            return null;
+        }
+        currentSize.size += block.getLength();
+        if (block.isEnd()) {
+            currentSize.size -= DataLineBlock.END.getLength();
+        }
+        if (currentSize.size > maxMessageSize) {
+            return discardMessage(session, currentSize, block.isEnd());
+        }
+        return next.onBlock(session, block);
+    }
+    
+    /**
+     * Reject the current DATA transfer because it exceeded the maximum size. The envelope is released and the rest of the message is 
+     * consumed by the {@link DiscardLineHandler}.
+     * 
+     * @param session
+     * @param currentSize
+     * @param end <code>true</code> if the message was already received completely
+     * @return response or <code>null</code> if the error is returned once the message was discarded
+     */
+    private Response discardMessage(SMTPSession session, MessageSize currentSize, boolean end) {
+        logRejected(session);
+        releaseEnvelope(session);
+        // the filters before may still pass the rest of the current block
+        currentSize.discarding = true;
+        session.popLineHandler();
+        if (end) {
+            session.resetState();
+            return QUOTA_EXCEEDED_RESPONSE;
+        }
+        session.pushLineHandler(DISCARD_HANDLER);
+        return null;
+    }
+    
+    /**
+     * Remove the envelope of the current message from the session and close it, so the data which was buffered for it is released
+     * 
+     * @param session
+     */
+    private void releaseEnvelope(SMTPSession session) {
+        MailEnvelope env = session.setAttachment(DataCmdHandler.MAILENV_KEY, null, State.Transaction);
+        if (env instanceof Closeable) {
+            try {
+                ((Closeable) env).close();
+            } catch (IOException e) {
+                session.getLogger().debug("Unable to release the envelope of the rejected message", e);
             }
         }
-        return response;
+    }
+    
+    private void logRejected(SMTPSession session) {
+        StringBuilder errorBuffer = new StringBuilder(256).append(
+                "Rejected message from ").append(
+                session.getAttachment(SMTPSession.SENDER_KEY, State.Transaction).toString())
+                .append(" from ").append(session.getRemoteAddress().getAddress().getHostAddress())
+                .append(" exceeding system maximum message size of ")
+                .append(
+                        session.getConfiguration().getMaxMessageSize());
+        session.getLogger().error(errorBuffer.toString());
+    }
+    
+    /**
+     * Return the size of the current message, which is stored in the session
+     * 
+     * @param session
+     * @return size
+     */
+    private MessageSize getCurrentSize(SMTPSession session) {
+        MessageSize currentSize = session.getAttachment(CURRENT_SIZE, State.Transaction);
+        if (currentSize == null) {
+            currentSize = new MessageSize();
+            session.setAttachment(CURRENT_SIZE, currentSize, State.Transaction);
+        }
+        return currentSize;
+    }
+    
+    /**
+     * Mutable holder of the message size, so it can be updated without boxing
+     */
+    private final static class MessageSize {
+        private long size;
+        private boolean discarding;
+    }
+
+    /**
+     * Count the bytes of the chunk and reject the message once the limit is exceeded. The transaction is reset at once, so the
+     * {@link BdatCmdHandler} discards the rest of the chunk and all following chunks of the message.
+     * 
+     * @see org.apache.james.protocols.smtp.core.DataChunkFilter#onChunk(SMTPSession, ByteBuffer, boolean, DataChunkHandler)
+     */
+    public Response onChunk(SMTPSession session, ByteBuffer chunk, boolean last, DataChunkHandler next) {
+        long maxMessageSize = session.getConfiguration().getMaxMessageSize();
+        if (maxMessageSize <= 0) {
+            return next.onChunk(session, chunk, last);
+        }
+        MessageSize currentSize = getCurrentSize(session);
+        currentSize.size += chunk.remaining();
+        if (currentSize.size > maxMessageSize) {
+            logRejected(session);
+            releaseEnvelope(session);
+            session.resetState();
+            return QUOTA_EXCEEDED_RESPONSE;
+        }
+        return next.onChunk(session, chunk, last);
     }
 
     /**
      * @see org.apache.james.protocols.smtp.hook.MessageHook#onMessage(SMTPSession, MailEnvelope)
      */
     public HookResult onMessage(SMTPSession session, MailEnvelope mail) {
-        Boolean failed = (Boolean) session.getAttachment(MESG_FAILED, State.Transaction);
-        if (failed != null && failed.booleanValue()) {
-            
-            StringBuilder errorBuffer = new StringBuilder(256).append(
-                    "Rejected message from ").append(
-                    session.getAttachment(SMTPSession.SENDER, State.Transaction).toString())
-                    .append(" from ").append(session.getRemoteAddress().getAddress().getHostAddress())
-                    .append(" exceeding system maximum message size of ")
-                    .append(
-                            session.getConfiguration().getMaxMessageSize());
-            session.getLogger().error(errorBuffer.toString());
+        MessageSize currentSize = session.getAttachment(CURRENT_SIZE, State.Transaction);
+        if (currentSize != null && currentSize.discarding) {
+            logRejected(session);
             return QUOTA_EXCEEDED;
         } else {
             return HookResult.declined();
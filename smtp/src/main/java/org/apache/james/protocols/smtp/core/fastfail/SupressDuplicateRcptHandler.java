@@ -42,9 +42,8 @@ public class SupressDuplicateRcptHandler implements RcptHook {
     /**
      * @see org.apache.james.protocols.smtp.hook.RcptHook#doRcpt(org.apache.james.protocols.smtp.SMTPSession, org.apache.mailet.MailAddress, org.apache.mailet.MailAddress)
      */
-    @SuppressWarnings("unchecked")
     public HookResult doRcpt(SMTPSession session, MailAddress sender, MailAddress rcpt) {
-        Collection<MailAddress> rcptList = (Collection<MailAddress>) session.getAttachment(SMTPSession.RCPT_LIST, State.Transaction);
+        Collection<MailAddress> rcptList = session.getAttachment(SMTPSession.RCPT_LIST_KEY, State.Transaction);
     
         // Check if the recipient is already in the rcpt list
         if(rcptList != null && rcptList.contains(rcpt)) {
@@ -0,0 +1,142 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.protocols.smtp.core.fastfail;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.james.protocols.api.AttributeKey;
+import org.apache.james.protocols.api.ProtocolSession;
+import org.apache.james.protocols.api.ProtocolSession.State;
+import org.apache.james.protocols.api.Response;
+import org.apache.james.protocols.api.future.ResponseScheduler;
+import org.apache.james.protocols.api.handler.CommandHandler;
+import org.apache.james.protocols.api.handler.ConnectHandler;
+import org.apache.james.protocols.api.handler.ProtocolHandler;
+import org.apache.james.protocols.api.handler.ProtocolHandlerResultHandler;
+import org.apache.james.protocols.smtp.SMTPSession;
+
+/**
+ * {@link ProtocolHandlerResultHandler} which slows down abusive clients by delaying the {@link Response}'s written to them. No thread
+ * is blocked while waiting, as the {@link Response}'s are released by a {@link ResponseScheduler}. The following policies are supported:
+ * 
+ * <ul>
+ * <li>The greeting can be delayed, which slows down clients that open many connections. Commands which are sent before the greeting 
+ * are not detected, they are held back by the transport and processed once the greeting was written.</li>
+ * <li>Once a client issued more failed commands than the threshold (for example invalid recipients or unknown commands), every further
+ * {@link Response} is delayed. The delay increases with every failed command, up to the configured maximum.</li>
+ * </ul>
+ * 
+ * This handler should be the last {@link ProtocolHandlerResultHandler}, as the ones after it only see the {@link Response} once the delay is
+ * over.
+ */
+public class TarpitHandler implements ProtocolHandlerResultHandler<Response, SMTPSession> {
+
+    public final static int DEFAULT_FAILURE_THRESHOLD = 3;
+    public final static long DEFAULT_DELAY = 1000;
+    public final static long DEFAULT_MAX_DELAY = 30000;
+
+    private final static AttributeKey<Integer> FAILURE_COUNT = AttributeKey.valueOf("TARPIT_FAILURE_COUNT");
+
+    private long greetingDelay = 0;
+    private int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+    private long delay = DEFAULT_DELAY;
+    private long maxDelay = DEFAULT_MAX_DELAY;
+    private ResponseScheduler scheduler = ResponseScheduler.getDefault();
+
+    /**
+     * Set the delay in milliseconds which is used for the greeting. Default is 0, which means the greeting is not delayed. Commands which 
+     * the client sends during the delay are not counted as failures.
+     * 
+     * @param greetingDelay
+     */
+    public void setGreetingDelay(long greetingDelay) {
+        this.greetingDelay = greetingDelay;
+    }
+
+    /**
+     * Set the count of failed commands a client may issue before its {@link Response}'s get delayed.
+     * 
+     * @param failureThreshold
+     */
+    public void setFailureThreshold(int failureThreshold) {
+        this.failureThreshold = failureThreshold;
+    }
+
+    /**
+     * Set the delay in milliseconds which is added for every failed command above the threshold
+     * 
+     * @param delay
+     */
+    public void setDelay(long delay) {
+        this.delay = delay;
+    }
+
+    /**
+     * Set the maximal delay in milliseconds of a {@link Response}
+     * 
+     * @param maxDelay
+     */
+    public void setMaxDelay(long maxDelay) {
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * Set the {@link ResponseScheduler} which releases the delayed {@link Response}'s. By default the shared {@link ResponseScheduler#getDefault()}
+     * is used.
+     * 
+     * @param scheduler
+     */
+    public void setResponseScheduler(ResponseScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.james.protocols.api.handler.ProtocolHandlerResultHandler#onResponse(org.apache.james.protocols.api.ProtocolSession, org.apache.james.protocols.api.Response, long, org.apache.james.protocols.api.handler.ProtocolHandler)
+     */
+    public Response onResponse(ProtocolSession session, Response response, long executionTime, ProtocolHandler handler) {
+        long responseDelay = 0;
+        if (handler instanceof ConnectHandler) {
+            responseDelay = greetingDelay;
+        } else if (handler instanceof CommandHandler) {
+            Integer failures = session.getAttachment(FAILURE_COUNT, State.Connection);
+            int count = failures == null ? 0 : failures;
+            if (isFailure(response)) {
+                count++;
+                session.setAttachment(FAILURE_COUNT, count, State.Connection);
+            }
+            if (count > failureThreshold) {
+                responseDelay = Math.min(delay * (count - failureThreshold), maxDelay);
+            }
+        }
+        return scheduler.schedule(response, responseDelay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Return <code>true</code> if the {@link Response} reports a temporary or permanent error
+     * 
+     * @param response
+     * @return failure
+     */
+    protected boolean isFailure(Response response) {
+        String retCode = response.getRetCode();
+        return retCode != null && retCode.length() > 0 && (retCode.charAt(0) == '4' || retCode.charAt(0) == '5');
+    }
+}
@@ -0,0 +1,40 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.protocols.smtp.hook;
+
+import org.apache.james.protocols.smtp.SMTPSession;
+
+/**
+ * {@link MailParametersHook} which completes its work asynchronously. The MAIL command is answered once
+ * the returned {@link FutureHookResult} is ready
+ * 
+ */
+public interface AsyncMailParametersHook extends MailParametersHook {
+
+    /**
+     * Return the FutureHookResult which will be completed once the hook is done
+     * 
+     * @param session the SMTPSession
+     * @param paramName parameter name
+     * @param paramValue parameter value
+     * @return future
+     */
+    FutureHookResult doMailParameter(SMTPSession session, String paramName, String paramValue);
+}
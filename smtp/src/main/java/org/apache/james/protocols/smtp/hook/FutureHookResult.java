@@ -0,0 +1,197 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.protocols.smtp.hook;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.james.protocols.api.logger.Logger;
+
+/**
+ * {@link HookResult} which is not known at the time the hook returns. This allows a hook to
+ * hand off its work (for example a DNS lookup or a call to a remote policy service) without
+ * blocking the thread which processes the session. The hookable handlers register a
+ * {@link HookResultListener} and continue with the next hook once {@link #setHookResult(HookResult)}
+ * was called.
+ * 
+ * Calling one of the getters before the result is ready will block until it is available.
+ */
+public class FutureHookResult extends HookResult {
+
+    private final Logger logger;
+    private HookResult result;
+    private List<HookResultListener> listeners;
+    private int waiters;
+
+    public FutureHookResult() {
+        this(null);
+    }
+
+    public FutureHookResult(Logger logger) {
+        super(HookReturnCode.DECLINED);
+        this.logger = logger;
+    }
+
+    protected final synchronized void checkReady() {
+        while (!isReady()) {
+            try {
+                waiters++;
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                waiters--;
+            }
+        }
+    }
+
+    /**
+     * Add a {@link HookResultListener} which will get notified once the {@link HookResult} is ready. If it is
+     * ready already the listener is notified directly
+     * 
+     * @param listener
+     */
+    public synchronized void addListener(HookResultListener listener) {
+        if (isReady()) {
+            listener.onHookResult(this);
+        } else {
+            if (listeners == null) {
+                listeners = new ArrayList<HookResultListener>();
+            }
+            listeners.add(listener);
+        }
+    }
+
+    /**
+     * Remove the {@link HookResultListener}
+     * 
+     * @param listener
+     */
+    public synchronized void removeListener(HookResultListener listener) {
+        if (!isReady()) {
+            if (listeners != null) {
+                listeners.remove(listener);
+            }
+        }
+    }
+
+    /**
+     * Return <code>true</code> if the {@link HookResult} is ready
+     * 
+     * @return ready
+     */
+    public synchronized boolean isReady() {
+        return result != null;
+    }
+
+    /**
+     * Return the {@link HookResult} which was set. This will block until it is ready
+     * 
+     * @return result
+     */
+    public HookResult getHookResult() {
+        checkReady();
+        return result;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.james.protocols.smtp.hook.HookResult#getResult()
+     */
+    public int getResult() {
+        return getHookResult().getResult();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.james.protocols.smtp.hook.HookResult#getSmtpRetCode()
+     */
+    public String getSmtpRetCode() {
+        return getHookResult().getSmtpRetCode();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.james.protocols.smtp.hook.HookResult#getSmtpDescription()
+     */
+    public String getSmtpDescription() {
+        return getHookResult().getSmtpDescription();
+    }
+
+    /**
+     * Set the {@link HookResult} which will be used to notify the registered
+     * {@link HookResultListener}'. After this method is called all waiting
+     * threads will get notified and {@link #isReady()} will return <code>true<code>.
+     * 
+     * A <code>null</code> result is treated as {@link HookResult#declined()}.
+     * 
+     * @param result
+     */
+    public void setHookResult(HookResult result) {
+        if (result == null) {
+            result = HookResult.declined();
+        }
+        boolean fire = false;
+        synchronized (this) {
+            if (!isReady()) {
+                this.result = result;
+                fire = listeners != null;
+
+                if (waiters > 0) {
+                    notifyAll();
+                }
+            }
+        }
+
+        if (fire) {
+            for (HookResultListener listener : listeners) {
+                try {
+                    listener.onHookResult(this);
+                } catch (Throwable e) {
+                    if (logger != null) {
+                        logger.warn("An exception was thrown by the listener " + listener, e);
+                    } else {
+                        e.printStackTrace();
+                    }
+                }
+            }
+            listeners = null;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        checkReady();
+        return result.toString();
+    }
+
+    /**
+     * Listener which will get notified once the {@link HookResult} of a {@link FutureHookResult} is ready
+     */
+    public interface HookResultListener {
+
+        /**
+         * Get called once the {@link HookResult} is ready
+         * 
+         * @param result
+         */
+        void onHookResult(FutureHookResult result);
+    }
+}
@@ -22,8 +22,9 @@ package org.apache.james.protocols.smtp.hook;
 /**
  * Result which get used for hooks
  * 
+ * @see FutureHookResult for results which are only known later
  */
-public final class HookResult {
+public class HookResult {
 
     private static final HookResult DECLINED = new HookResult(HookReturnCode.DECLINED);
     private static final HookResult OK = new HookResult(HookReturnCode.OK);
@@ -21,10 +21,15 @@ package org.apache.james.protocols.smtp;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.commons.net.smtp.SMTPClient;
@@ -38,6 +43,10 @@ import org.apache.james.protocols.api.handler.ProtocolHandler;
 import org.apache.james.protocols.api.handler.WiringException;
 import org.apache.james.protocols.api.utils.MockLogger;
 import org.apache.james.protocols.api.utils.TestUtils;
+import org.apache.james.protocols.smtp.core.fastfail.TarpitHandler;
+import org.apache.james.protocols.smtp.hook.AsyncMessageHook;
+import org.apache.james.protocols.smtp.hook.AsyncRcptHook;
+import org.apache.james.protocols.smtp.hook.FutureHookResult;
 import org.apache.james.protocols.smtp.hook.HeloHook;
 import org.apache.james.protocols.smtp.hook.HookResult;
 import org.apache.james.protocols.smtp.hook.HookReturnCode;
@@ -959,10 +968,200 @@ public abstract class AbstractSMTPServerTest {
         
     }
     
+    @Test
+    public void testAsyncHooksWithPipelining() throws Exception {
+        final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        final TestMessageHook testHook = new TestMessageHook();
+
+        AsyncRcptHook rcptHook = new AsyncRcptHook() {
+
+            public FutureHookResult doRcpt(SMTPSession session, MailAddress sender, final MailAddress rcpt) {
+                final FutureHookResult result = new FutureHookResult();
+                executor.schedule(new Runnable() {
+
+                    public void run() {
+                        if (RCPT1.equals(rcpt.toString())) {
+                            result.setHookResult(new HookResult(HookReturnCode.DENY));
+                        } else {
+                            result.setHookResult(HookResult.declined());
+                        }
+                    }
+                }, 100, TimeUnit.MILLISECONDS);
+                return result;
+            }
+        };
+        AsyncMessageHook messageHook = new AsyncMessageHook() {
+
+            public FutureHookResult onMessage(final SMTPSession session, final MailEnvelope mail) {
+                final FutureHookResult result = new FutureHookResult();
+                executor.schedule(new Runnable() {
+
+                    public void run() {
+                        result.setHookResult(testHook.onMessage(session, mail));
+                    }
+                }, 100, TimeUnit.MILLISECONDS);
+                return result;
+            }
+        };
+
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", TestUtils.getFreePort());
+        
+        ProtocolServer server = null;
+        Socket socket = null;
+        try {
+            server = createServer(createProtocol(rcptHook, messageHook), address);
+            server.bind();
+            
+            socket = createSocket(address);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+            OutputStream out = socket.getOutputStream();
+            assertTrue(in.readLine().startsWith("220"));
+
+            // the DATA command must not be processed before the recipients were accepted by the hook
+            out.write(("HELO localhost\r\nMAIL FROM:<" + SENDER + ">\r\nRCPT TO:<" + RCPT1 + ">\r\nRCPT TO:<" + RCPT2 + ">\r\nDATA\r\n").getBytes("US-ASCII"));
+            out.flush();
+            assertTrue(in.readLine().startsWith("250"));
+            assertTrue(in.readLine().startsWith("250"));
+            assertTrue(in.readLine().startsWith("5"));
+            assertTrue(in.readLine().startsWith("250"));
+            assertTrue(in.readLine().startsWith("354"));
+
+            out.write((MSG1 + "\r\n.\r\nQUIT\r\n").getBytes("US-ASCII"));
+            out.flush();
+            assertTrue(in.readLine().startsWith("250"));
+            assertTrue(in.readLine().startsWith("221"));
+
+            Iterator<MailEnvelope> queued = testHook.getQueued().iterator();
+            assertTrue(queued.hasNext());
+            
+            MailEnvelope env = queued.next();
+            checkEnvelope(env, SENDER, Arrays.asList(RCPT2), MSG1);
+            assertFalse(queued.hasNext());
+        } finally {
+            if (socket != null) {
+                socket.close();
+            }
+            if (server != null) {
+                server.unbind();
+            }
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testTarpitWithPipelining() throws Exception {
+        TarpitHandler tarpit = new TarpitHandler();
+        tarpit.setGreetingDelay(200);
+        tarpit.setFailureThreshold(1);
+        tarpit.setDelay(100);
+
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", TestUtils.getFreePort());
+        
+        ProtocolServer server = null;
+        Socket socket = null;
+        try {
+            server = createServer(createProtocol(tarpit), address);
+            server.bind();
+            
+            long start = System.nanoTime();
+            socket = createSocket(address);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+            OutputStream out = socket.getOutputStream();
+            assertTrue(in.readLine().startsWith("220"));
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 200);
+
+            // the second unknown command and all commands after it are delayed, but the order must be kept
+            start = System.nanoTime();
+            out.write("HELO localhost\r\nUNKNOWN1\r\nUNKNOWN2\r\nNOOP\r\nQUIT\r\n".getBytes("US-ASCII"));
+            out.flush();
+            assertTrue(in.readLine().startsWith("250"));
+            assertTrue(in.readLine().startsWith("5"));
+            assertTrue(in.readLine().startsWith("5"));
+            assertTrue(in.readLine().startsWith("250"));
+            assertTrue(in.readLine().startsWith("221"));
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 300);
+        } finally {
+            if (socket != null) {
+                socket.close();
+            }
+            if (server != null) {
+                server.unbind();
+            }
+        }
+    }
+    
+    @Test
+    public void testBdatWithPipelining() throws Exception {
+        // the chunks don't end with a line break, so they must be read by their size
+        checkBdat(MSG1, 30);
+    }
+    
+    /**
+     * Transfer the message in two chunks, which are split at the given index, and check that it was queued
+     * 
+     * @param msg
+     * @param split
+     * @throws Exception
+     */
+    protected void checkBdat(String msg, int split) throws Exception {
+        TestMessageHook hook = new TestMessageHook();
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", TestUtils.getFreePort());
+        
+        ProtocolServer server = null;
+        Socket socket = null;
+        try {
+            server = createServer(createProtocol(hook), address);
+            server.bind();
+            
+            socket = createSocket(address);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+            OutputStream out = socket.getOutputStream();
+            assertTrue(in.readLine().startsWith("220"));
+
+            out.write("EHLO localhost\r\n".getBytes("US-ASCII"));
+            out.flush();
+            boolean chunking = false;
+            String line;
+            do {
+                line = in.readLine();
+                assertTrue(line.startsWith("250"));
+                chunking |= line.substring(4).equals("CHUNKING");
+            } while (line.charAt(3) == '-');
+            assertTrue(chunking);
+            
+            String chunk1 = msg.substring(0, split);
+            String chunk2 = msg.substring(split);
+            out.write(("MAIL FROM:<" + SENDER + "> BODY=BINARYMIME\r\nRCPT TO:<" + RCPT1 + ">\r\nBDAT " + chunk1.length() + "\r\n" + chunk1 
+                    + "BDAT " + chunk2.length() + " LAST\r\n" + chunk2 + "QUIT\r\n").getBytes("US-ASCII"));
+            out.flush();
+            assertTrue(in.readLine().startsWith("250"));
+            assertTrue(in.readLine().startsWith("250"));
+            assertTrue(in.readLine().startsWith("250"));
+            assertTrue(in.readLine().startsWith("250"));
+            assertTrue(in.readLine().startsWith("221"));
+
+            Iterator<MailEnvelope> queued = hook.getQueued().iterator();
+            assertTrue(queued.hasNext());
+            checkEnvelope(queued.next(), SENDER, Arrays.asList(RCPT1), MSG1);
+            assertFalse(queued.hasNext());
+        } finally {
+            if (socket != null) {
+                socket.close();
+            }
+            if (server != null) {
+                server.unbind();
+            }
+        }
+    }
+    
     protected SMTPClient createClient() {
         return new SMTPClient();
     }
 
+    protected Socket createSocket(InetSocketAddress address) throws IOException {
+        return new Socket(address.getAddress(), address.getPort());
+    }
+
     protected abstract ProtocolServer createServer(Protocol protocol, InetSocketAddress address);
 
     
@@ -0,0 +1,150 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.protocols.smtp.core;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.james.protocols.api.Response;
+import org.apache.james.protocols.smtp.SMTPSession;
+import org.apache.james.protocols.smtp.utils.BaseFakeSMTPSession;
+import org.junit.Test;
+
+public class AddHeadersChunkFilterTest {
+
+    private final static String MESSAGE = "Subject: test\r\n\r\nbody\r\n\r\nmore\r\n";
+
+    @Test
+    public void testPrefix() throws Exception {
+        String expected = "X-Test: value\r\n" + MESSAGE;
+        for (int i = 0; i <= MESSAGE.length(); i++) {
+            assertEquals("Split at " + i, expected, transfer(new TestFilter(AbstractAddHeadersFilter.Location.Prefix), i));
+        }
+    }
+    
+    @Test
+    public void testSuffix() throws Exception {
+        String expected = "Subject: test\r\nX-Test: value\r\n\r\nbody\r\n\r\nmore\r\n";
+        for (int i = 0; i <= MESSAGE.length(); i++) {
+            assertEquals("Split at " + i, expected, transfer(new TestFilter(AbstractAddHeadersFilter.Location.Suffix), i));
+        }
+    }
+    
+    @Test
+    public void testSuffixByteByByte() throws Exception {
+        DataChunkFilter filter = new TestFilter(AbstractAddHeadersFilter.Location.Suffix);
+        FakeSession session = new FakeSession();
+        CollectingChunkHandler handler = new CollectingChunkHandler();
+        byte[] data = MESSAGE.getBytes("US-ASCII");
+        for (int i = 0; i < data.length; i++) {
+            assertNull(filter.onChunk(session, ByteBuffer.wrap(data, i, 1), false, handler));
+        }
+        assertNull(filter.onChunk(session, ByteBuffer.allocate(0), true, handler));
+        assertEquals("Subject: test\r\nX-Test: value\r\n\r\nbody\r\n\r\nmore\r\n", handler.toString());
+    }
+    
+    @Test
+    public void testSuffixWithoutSeparator() throws Exception {
+        FakeSession session = new FakeSession();
+        CollectingChunkHandler handler = new CollectingChunkHandler();
+        DataChunkFilter filter = new TestFilter(AbstractAddHeadersFilter.Location.Suffix);
+        assertNull(filter.onChunk(session, ByteBuffer.wrap("Subject: test\r\n\r".getBytes("US-ASCII")), true, handler));
+        assertEquals("Subject: test\r\n\r", handler.toString());
+    }
+    
+    private static String transfer(DataChunkFilter filter, int split) throws Exception {
+        FakeSession session = new FakeSession();
+        CollectingChunkHandler handler = new CollectingChunkHandler();
+        byte[] data = MESSAGE.getBytes("US-ASCII");
+        assertNull(filter.onChunk(session, ByteBuffer.wrap(data, 0, split), false, handler));
+        assertNull(filter.onChunk(session, ByteBuffer.wrap(data, split, data.length - split), true, handler));
+        return handler.toString();
+    }
+    
+    private final static class TestFilter extends AbstractAddHeadersFilter {
+        private final Location location;
+
+        public TestFilter(Location location) {
+            this.location = location;
+        }
+        
+        @Override
+        protected Location getLocation() {
+            return location;
+        }
+
+        @Override
+        protected Collection<Header> headers(SMTPSession session) {
+            return Arrays.asList(new Header("X-Test", "value"));
+        }
+    }
+    
+    private final static class CollectingChunkHandler implements DataChunkHandler {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private boolean last;
+        
+        public Response onChunk(SMTPSession session, ByteBuffer chunk, boolean last) {
+            assertEquals(false, this.last);
+            this.last = last;
+            while (chunk.hasRemaining()) {
+                out.write(chunk.get());
+            }
+            return null;
+        }
+        
+        @Override
+        public String toString() {
+            assertEquals(true, last);
+            return new String(out.toByteArray());
+        }
+    }
+    
+    private final static class FakeSession extends BaseFakeSMTPSession {
+        private final Map<String, Object> attachments = new HashMap<String, Object>();
+
+        @Override
+        public Object setAttachment(String key, Object value, State state) {
+            return attachments.put(key, value);
+        }
+
+        @Override
+        public Object getAttachment(String key, State state) {
+            return attachments.get(key);
+        }
+
+        @Override
+        public Charset getCharset() {
+            return Charset.forName("US-ASCII");
+        }
+
+        @Override
+        public String getLineDelimiter() {
+            return "\r\n";
+        }
+    }
+}
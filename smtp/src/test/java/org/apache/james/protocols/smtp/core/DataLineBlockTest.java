@@ -0,0 +1,158 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.protocols.smtp.core;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.james.protocols.api.Response;
+import org.apache.james.protocols.api.handler.LineHandler;
+import org.apache.james.protocols.smtp.SMTPSession;
+import org.apache.james.protocols.smtp.utils.BaseFakeSMTPSession;
+import org.junit.Test;
+
+public class DataLineBlockTest {
+
+    @Test
+    public void testParse() throws Exception {
+        DataLineBlock block = DataLineBlock.parse(wrap("Subject: test\r\n\r\nbody\r\n.\r\nQUIT\r\n"), false);
+        assertEquals(4, block.getLineCount());
+        assertEquals(1, block.getSeparatorLine());
+        assertFalse(block.isHeadersComplete());
+        assertTrue(block.isEnd());
+        assertEquals("Subject: test\r\n\r\nbody\r\n.\r\n", toString(block.getBuffer()));
+        assertEquals(block.getBuffer().remaining(), block.getLength());
+        assertEquals("Subject: test\r\n", toString(block.getLine(0)));
+        assertEquals("body\r\n", toString(block.getLine(2)));
+        assertEquals(".\r\n", toString(block.getLine(3)));
+        
+        // an empty line in the body is not the separator
+        block = DataLineBlock.parse(wrap("\r\nbody"), true);
+        assertEquals(2, block.getLineCount());
+        assertEquals(-1, block.getSeparatorLine());
+        assertFalse(block.isEnd());
+        assertEquals("body", toString(block.getLine(1)));
+    }
+    
+    @Test
+    public void testSlice() throws Exception {
+        DataLineBlock block = DataLineBlock.parse(wrap("Subject: test\r\n\r\nbody\r\n.\r\n"), false);
+        
+        DataLineBlock headers = block.slice(0, 1);
+        assertEquals(1, headers.getLineCount());
+        assertEquals(-1, headers.getSeparatorLine());
+        assertFalse(headers.isHeadersComplete());
+        assertFalse(headers.isEnd());
+        assertEquals("Subject: test\r\n", toString(headers.getBuffer()));
+
+        DataLineBlock separator = block.slice(1, 4);
+        assertEquals(0, separator.getSeparatorLine());
+        assertTrue(separator.isEnd());
+        assertEquals("\r\nbody\r\n.\r\n", toString(separator.getBuffer()));
+        
+        DataLineBlock body = separator.slice(1, 3);
+        assertTrue(body.isHeadersComplete());
+        assertEquals(-1, body.getSeparatorLine());
+        assertEquals("body\r\n", toString(body.getLine(0)));
+        
+        assertEquals(0, block.slice(4, 4).getLength());
+    }
+    
+    @Test
+    public void testReader() throws Exception {
+        final List<String> headerBlocks = new ArrayList<String>();
+        final List<String> lines = new ArrayList<String>();
+        final List<String> blocks = new ArrayList<String>();
+        DataHeadersFilter headersFilter = new DataHeadersFilter() {
+            
+            public Response onLine(SMTPSession session, ByteBuffer line, LineHandler<SMTPSession> next) {
+                throw new UnsupportedOperationException();
+            }
+            
+            public Response onBlock(SMTPSession session, DataLineBlock block, DataLineBlockHandler next) {
+                headerBlocks.add(DataLineBlockTest.toString(block.getBuffer()));
+                return next.onBlock(session, block);
+            }
+        };
+        DataLineFilter lineFilter = new DataLineFilter() {
+            
+            public Response onLine(SMTPSession session, ByteBuffer line, LineHandler<SMTPSession> next) {
+                lines.add(DataLineBlockTest.toString(line.duplicate()));
+                return next.onLine(session, line);
+            }
+        };
+        DataLineBlockFilter blockFilter = new DataLineBlockFilter() {
+            
+            public Response onLine(SMTPSession session, ByteBuffer line, LineHandler<SMTPSession> next) {
+                throw new UnsupportedOperationException();
+            }
+            
+            public Response onBlock(SMTPSession session, DataLineBlock block, DataLineBlockHandler next) {
+                blocks.add(DataLineBlockTest.toString(block.getBuffer()) + (block.isEnd() ? "[END]" : ""));
+                return next.onBlock(session, block);
+            }
+        };
+        DataCmdHandler handler = new DataCmdHandler();
+        handler.wireExtensions(DataLineFilter.class, Arrays.asList(headersFilter, lineFilter, blockFilter));
+        
+        FakeSession session = new FakeSession();
+        LineHandler<SMTPSession> reader = handler.getLineHandler();
+        assertNull(reader.onLine(session, wrap("Subject: test\r\n")));
+        assertNull(reader.onLine(session, wrap("\r\nbody\r\n")));
+        assertNull(reader.onLine(session, wrap("more\r\n.\r\n")));
+        
+        // the headers filter is not called anymore once the headers are complete
+        assertEquals(Arrays.asList("Subject: test\r\n", "\r\nbody\r\n"), headerBlocks);
+        assertEquals(Arrays.asList("Subject: test\r\n", "\r\n", "body\r\n", "more\r\n", ".\r\n"), lines);
+        assertEquals(Arrays.asList("Subject: test\r\n", "\r\n", "body\r\n", "more\r\n", ".\r\n[END]"), blocks);
+        assertEquals(0, session.getPushedLineHandlerCount());
+    }
+    
+    private static ByteBuffer wrap(String data) throws Exception {
+        return ByteBuffer.wrap(data.getBytes("US-ASCII")).asReadOnlyBuffer();
+    }
+    
+    private static String toString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return new String(bytes);
+    }
+    
+    private final static class FakeSession extends BaseFakeSMTPSession {
+        private int handlerCount = 1;
+
+        @Override
+        public int getPushedLineHandlerCount() {
+            return handlerCount;
+        }
+
+        @Override
+        public void popLineHandler() {
+            handlerCount--;
+        }
+    }
+}
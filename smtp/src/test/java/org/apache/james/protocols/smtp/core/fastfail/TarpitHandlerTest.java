@@ -0,0 +1,124 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.protocols.smtp.core.fastfail;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.james.protocols.api.Response;
+import org.apache.james.protocols.api.future.ResponseScheduler;
+import org.apache.james.protocols.api.handler.ConnectHandler;
+import org.apache.james.protocols.smtp.SMTPResponse;
+import org.apache.james.protocols.smtp.SMTPSession;
+import org.apache.james.protocols.smtp.core.NoopCmdHandler;
+import org.apache.james.protocols.smtp.utils.BaseFakeSMTPSession;
+import org.junit.Test;
+
+import static junit.framework.Assert.*;
+
+public class TarpitHandlerTest {
+
+    private final static Response OK = new SMTPResponse("250", "OK");
+    private final static Response FAILED = new SMTPResponse("550", "Failed");
+
+    private SMTPSession createSession() {
+        return new BaseFakeSMTPSession() {
+            private final Map<String, Object> map = new HashMap<String, Object>();
+
+            public Object setAttachment(String key, Object value, State state) {
+                if (state == State.Transaction) {
+                    throw new UnsupportedOperationException();
+                }
+                if (value == null) {
+                    return map.remove(key);
+                } else {
+                    return map.put(key, value);
+                }
+            }
+
+            public Object getAttachment(String key, State state) {
+                if (state == State.Transaction) {
+                    throw new UnsupportedOperationException();
+                }
+                return map.get(key);
+            }
+        };
+    }
+
+    private final static class RecordingScheduler extends ResponseScheduler {
+        private final List<Long> delays = new ArrayList<Long>();
+
+        public RecordingScheduler() {
+            super(null, null);
+        }
+
+        @Override
+        public Response schedule(Response response, long delay, TimeUnit unit) {
+            delays.add(unit.toMillis(delay));
+            return response;
+        }
+    }
+
+    @Test
+    public void testGreetingDelay() {
+        RecordingScheduler scheduler = new RecordingScheduler();
+        TarpitHandler handler = new TarpitHandler();
+        handler.setResponseScheduler(scheduler);
+        handler.setGreetingDelay(500);
+
+        ConnectHandler<SMTPSession> connectHandler = new ConnectHandler<SMTPSession>() {
+
+            public Response onConnect(SMTPSession session) {
+                return OK;
+            }
+        };
+        assertSame(OK, handler.onResponse(createSession(), OK, 0, connectHandler));
+        assertEquals(Long.valueOf(500), scheduler.delays.get(0));
+    }
+
+    @Test
+    public void testIncreasingDelayAfterFailures() {
+        RecordingScheduler scheduler = new RecordingScheduler();
+        TarpitHandler handler = new TarpitHandler();
+        handler.setResponseScheduler(scheduler);
+        handler.setFailureThreshold(2);
+        handler.setDelay(100);
+        handler.setMaxDelay(250);
+
+        SMTPSession session = createSession();
+        NoopCmdHandler cmdHandler = new NoopCmdHandler();
+        handler.onResponse(session, FAILED, 0, cmdHandler);
+        handler.onResponse(session, OK, 0, cmdHandler);
+        handler.onResponse(session, FAILED, 0, cmdHandler);
+        handler.onResponse(session, FAILED, 0, cmdHandler);
+        handler.onResponse(session, OK, 0, cmdHandler);
+        handler.onResponse(session, FAILED, 0, cmdHandler);
+        handler.onResponse(session, FAILED, 0, cmdHandler);
+
+        long[] expected = new long[] {0, 0, 0, 100, 100, 200, 250};
+        assertEquals(expected.length, scheduler.delays.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], scheduler.delays.get(i).longValue());
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.protocols.smtp.loopback;
+
+import org.apache.james.protocols.api.Protocol;
+import org.apache.james.protocols.api.loopback.LoopbackProtocolTransport;
+import org.apache.james.protocols.api.utils.MockLogger;
+import org.apache.james.protocols.smtp.SMTPConfigurationImpl;
+import org.apache.james.protocols.smtp.SMTPProtocol;
+import org.apache.james.protocols.smtp.SMTPProtocolHandlerChain;
+
+/**
+ * Benchmark which runs whole SMTP sessions through the {@link LoopbackProtocolTransport}, so only the protocol stack is measured and 
+ * not the network. Every session sends one pipelined transaction with a small message.
+ * 
+ * This is not executed as part of the build. Run it via its main method, the optional argument is the count of sessions per round.
+ */
+public class LoopbackSMTPBenchmark {
+
+    private final static byte[] TRANSACTION;
+    
+    static {
+        try {
+            TRANSACTION = ("EHLO localhost\r\nMAIL FROM:<me@sender>\r\nRCPT TO:<rcpt@domain>\r\nDATA\r\n"
+                    + "Subject: Testmessage\r\n\r\nThis is a message\r\n.\r\nQUIT\r\n").getBytes("US-ASCII");
+        } catch (Exception e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+    
+    public static void main(String[] args) throws Exception {
+        int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        
+        SMTPProtocolHandlerChain chain = new SMTPProtocolHandlerChain();
+        chain.wireExtensibleHandlers();
+        Protocol protocol = new SMTPProtocol(chain, new SMTPConfigurationImpl(), new MockLogger());
+        
+        for (int i = 0; i < 5; i++) {
+            // the first rounds are the warm up
+            long start = System.nanoTime();
+            long bytes = 0;
+            for (int a = 0; a < sessions; a++) {
+                LoopbackProtocolTransport transport = new LoopbackProtocolTransport(protocol);
+                transport.connect();
+                transport.receive(TRANSACTION);
+                bytes += transport.readOutput().length;
+            }
+            long elapsed = System.nanoTime() - start;
+            if (i > 1) {
+                System.out.println(sessions + " sessions in " + elapsed / 1000000 + " ms (" + (sessions * 1000000000L / elapsed) + " sessions/s, " 
+                        + bytes + " bytes written)");
+            }
+        }
+    }
+}
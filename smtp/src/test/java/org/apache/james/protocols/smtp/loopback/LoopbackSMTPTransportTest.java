@@ -0,0 +1,419 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.protocols.smtp.loopback;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.james.protocols.api.ChunkPool;
+import org.apache.james.protocols.api.Protocol;
+import org.apache.james.protocols.api.handler.ProtocolHandler;
+import org.apache.james.protocols.api.handler.UnknownCommandHandler;
+import org.apache.james.protocols.api.handler.WiringException;
+import org.apache.james.protocols.api.loopback.LoopbackProtocolTransport;
+import org.apache.james.protocols.api.utils.MockLogger;
+import org.apache.james.protocols.smtp.DeferredFileMailEnvelope;
+import org.apache.james.protocols.smtp.MailAddress;
+import org.apache.james.protocols.smtp.MailEnvelope;
+import org.apache.james.protocols.smtp.SMTPConfigurationImpl;
+import org.apache.james.protocols.smtp.SMTPProtocol;
+import org.apache.james.protocols.smtp.SMTPProtocolHandlerChain;
+import org.apache.james.protocols.smtp.SMTPSession;
+import org.apache.james.protocols.smtp.core.DataCmdHandler;
+import org.apache.james.protocols.smtp.hook.AsyncRcptHook;
+import org.apache.james.protocols.smtp.hook.FutureHookResult;
+import org.apache.james.protocols.smtp.hook.HookResult;
+import org.apache.james.protocols.smtp.hook.MessageHook;
+import org.apache.james.protocols.smtp.utils.TestMessageHook;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drive a whole SMTP session through the {@link LoopbackProtocolTransport}
+ */
+public class LoopbackSMTPTransportTest {
+
+    private final static String US_ASCII = "US-ASCII";
+    private final static String TRANSACTION = "HELO localhost\r\nMAIL FROM:<me@sender>\r\nRCPT TO:<rcpt@domain>\r\nDATA\r\n"
+            + "Subject: Testmessage\r\n\r\nThis is a message\r\n..with a dot\r\n.\r\nQUIT\r\n";
+    private final static String BDAT_MESSAGE = "Subject: Testmessage\r\n\r\nThis is a message\r\n.with a dot\r\n";
+    private final static String BDAT_TRANSACTION = "HELO localhost\r\nMAIL FROM:<me@sender> BODY=BINARYMIME\r\nRCPT TO:<rcpt@domain>\r\n"
+            + "BDAT 30\r\n" + BDAT_MESSAGE.substring(0, 30) + "BDAT " + (BDAT_MESSAGE.length() - 30) + " LAST\r\n" + BDAT_MESSAGE.substring(30) 
+            + "QUIT\r\n";
+
+    private Protocol createProtocol(ProtocolHandler... handlers) throws WiringException {
+        return createProtocol(-1, handlers);
+    }
+
+    private Protocol createProtocol(int spoolThreshold, ProtocolHandler... handlers) throws WiringException {
+        SMTPProtocolHandlerChain chain = new SMTPProtocolHandlerChain();
+        chain.addAll(0, Arrays.asList(handlers));
+        for (DataCmdHandler handler: chain.getHandlers(DataCmdHandler.class)) {
+            handler.setSpoolThreshold(spoolThreshold);
+        }
+        chain.wireExtensibleHandlers();
+        return new SMTPProtocol(chain, new SMTPConfigurationImpl(), new MockLogger());
+    }
+    
+    private Protocol createProtocol(final long maxMessageSize, ChunkPool pool, ProtocolHandler... handlers) throws WiringException {
+        SMTPProtocolHandlerChain chain = new SMTPProtocolHandlerChain();
+        chain.addAll(0, Arrays.asList(handlers));
+        for (DataCmdHandler handler: chain.getHandlers(DataCmdHandler.class)) {
+            handler.setSpoolThreshold(64 * 1024);
+            handler.setChunkPool(pool);
+        }
+        chain.wireExtensibleHandlers();
+        SMTPConfigurationImpl config = new SMTPConfigurationImpl() {
+
+            @Override
+            public long getMaxMessageSize() {
+                return maxMessageSize;
+            }
+        };
+        return new SMTPProtocol(chain, config, new MockLogger());
+    }
+    
+    private static String[] readLines(LoopbackProtocolTransport transport) throws IOException {
+        String output = new String(transport.readOutput(), US_ASCII);
+        if (output.length() == 0) {
+            return new String[0];
+        }
+        assertTrue(output.endsWith("\r\n"));
+        return output.split("\r\n");
+    }
+    
+    private static void assertReplies(String[] lines, String... codes) {
+        assertEquals(Arrays.toString(lines), codes.length, lines.length);
+        for (int i = 0; i < codes.length; i++) {
+            assertTrue(lines[i], lines[i].startsWith(codes[i]));
+        }
+    }
+    
+    private static void checkMessage(TestMessageHook hook) throws IOException {
+        assertEquals(1, hook.getQueued().size());
+        MailEnvelope env = hook.getQueued().get(0);
+        assertEquals("me@sender", env.getSender().toString());
+        assertEquals("rcpt@domain", env.getRecipients().get(0).toString());
+        
+        String message = new String(readFully(env), US_ASCII);
+        assertTrue(message, message.endsWith("Subject: Testmessage\r\n\r\nThis is a message\r\n.with a dot\r\n"));
+    }
+
+    private static byte[] readFully(MailEnvelope env) throws IOException {
+        InputStream in = env.getMessageInputStream();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1024];
+        int i;
+        while ((i = in.read(buf)) != -1) {
+            out.write(buf, 0, i);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+    
+    @Test
+    public void testPipelinedTransaction() throws Exception {
+        TestMessageHook hook = new TestMessageHook();
+        LoopbackProtocolTransport transport = new LoopbackProtocolTransport(createProtocol(hook));
+        transport.connect();
+        assertReplies(readLines(transport), "220");
+        
+        transport.receive(TRANSACTION.getBytes(US_ASCII));
+        assertReplies(readLines(transport), "250", "250", "250", "354", "250", "221");
+        assertTrue(transport.isClosed());
+        checkMessage(hook);
+    }
+    
+    @Test
+    public void testByteByByte() throws Exception {
+        TestMessageHook hook = new TestMessageHook();
+        LoopbackProtocolTransport transport = new LoopbackProtocolTransport(createProtocol(hook));
+        transport.connect();
+        
+        byte[] data = TRANSACTION.getBytes(US_ASCII);
+        for (int i = 0; i < data.length; i++) {
+            transport.receive(new byte[] {data[i]});
+        }
+        assertReplies(readLines(transport), "220", "250", "250", "250", "354", "250", "221");
+        checkMessage(hook);
+    }
+    
+    @Test
+    public void testSpoolToFile() throws Exception {
+        final StringBuilder read = new StringBuilder();
+        final DeferredFileMailEnvelope[] envelope = new DeferredFileMailEnvelope[1];
+        MessageHook hook = new MessageHook() {
+            
+            public HookResult onMessage(SMTPSession session, MailEnvelope mail) {
+                try {
+                    envelope[0] = (DeferredFileMailEnvelope) mail;
+                    assertFalse(envelope[0].isInMemory());
+                    
+                    // the message can be read more than once
+                    read.append(new String(readFully(mail), US_ASCII));
+                    ByteBuffer[] buffers = envelope[0].getMessageBuffers();
+                    assertEquals(1, buffers.length);
+                    assertEquals(mail.getSize(), buffers[0].remaining());
+                    return HookResult.ok();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        LoopbackProtocolTransport transport = new LoopbackProtocolTransport(createProtocol(16, hook));
+        transport.connect();
+        transport.receive(TRANSACTION.getBytes(US_ASCII));
+        assertReplies(readLines(transport), "220", "250", "250", "250", "354", "250", "221");
+        assertTrue(read.toString(), read.toString().endsWith("Subject: Testmessage\r\n\r\nThis is a message\r\n.with a dot\r\n"));
+        
+        // the temporary file is deleted once the transaction is reset
+        try {
+            envelope[0].getMessageBuffers();
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+    
+    @Test
+    public void testStartTls() throws Exception {
+        LoopbackProtocolTransport transport = new LoopbackProtocolTransport(createProtocol());
+        transport.setStartTLSSupported(true);
+        transport.connect();
+        transport.receive("EHLO localhost\r\nMAIL FROM:<me@sender>\r\n".getBytes(US_ASCII));
+        String[] lines = readLines(transport);
+        boolean advertised = false;
+        for (int i = 0; i < lines.length; i++) {
+            advertised |= lines[i].substring(4).equals("STARTTLS");
+        }
+        assertTrue(Arrays.toString(lines), advertised);
+
+        transport.receive("STARTTLS\r\n".getBytes(US_ASCII));
+        assertReplies(readLines(transport), "220");
+        assertTrue(transport.isTLSStarted());
+        
+        // the state must be reset after STARTTLS
+        assertNull(transport.getSession().getAttachment(SMTPSession.SENDER_KEY, SMTPSession.State.Transaction));
+    }
+
+    @Test
+    public void testLineTooLong() throws Exception {
+        LoopbackProtocolTransport transport = new LoopbackProtocolTransport(createProtocol());
+        transport.setMaxLineLength(100);
+        transport.connect();
+        readLines(transport);
+
+        char[] chars = new char[200];
+        Arrays.fill(chars, 'a');
+        transport.receive(("HELO " + new String(chars) + "\r\nHELO localhost\r\n").getBytes(US_ASCII));
+        assertReplies(readLines(transport), "500", "250");
+    }
+
+    @Test
+    public void testUnknownCommandMetrics() throws Exception {
+        Protocol protocol = createProtocol();
+        LoopbackProtocolTransport transport = new LoopbackProtocolTransport(protocol);
+        transport.connect();
+        readLines(transport);
+
+        StringBuilder commands = new StringBuilder("HELO localhost\r\n");
+        for (int i = 0; i < 100; i++) {
+            commands.append("CMD").append(i).append("\r\n");
+        }
+        transport.receive(commands.toString().getBytes(US_ASCII));
+        assertEquals(101, readLines(transport).length);
+        
+        // all unknown commands must share one histogram
+        String[] names = protocol.getMetrics().getCommandNames();
+        assertEquals(Arrays.toString(names), 2, names.length);
+        assertEquals(1, protocol.getMetrics().getExecutionCount("HELO"));
+        assertEquals(100, protocol.getMetrics().getExecutionCount(UnknownCommandHandler.COMMAND_IDENTIFIER));
+    }
+
+    @Test
+    public void testBareLineFeedAfterDot() throws Exception {
+        TestMessageHook hook = new TestMessageHook();
+        LoopbackProtocolTransport transport = new LoopbackProtocolTransport(createProtocol(hook));
+        transport.setMaxLineLength(100);
+        transport.connect();
+        readLines(transport);
+
+        // the line ".x\n" must not end the bulk mode, otherwise the following long line is rejected
+        char[] chars = new char[200];
+        Arrays.fill(chars, 'a');
+        transport.receive(("HELO localhost\r\nMAIL FROM:<me@sender>\r\nRCPT TO:<rcpt@domain>\r\nDATA\r\nSubject: Test\r\n\r\n.x\n" 
+                + new String(chars) + "\r\n.\r\nQUIT\r\n").getBytes(US_ASCII));
+        assertReplies(readLines(transport), "250", "250", "250", "354", "250", "221");
+        assertEquals(1, hook.getQueued().size());
+    }
+
+    @Test
+    public void testBdat() throws Exception {
+        TestMessageHook hook = new TestMessageHook();
+        LoopbackProtocolTransport transport = new LoopbackProtocolTransport(createProtocol(hook));
+        transport.connect();
+        readLines(transport);
+        
+        transport.receive(BDAT_TRANSACTION.getBytes(US_ASCII));
+        assertReplies(readLines(transport), "250", "250", "250", "250 2.0.0 30 octets", "250", "221");
+        checkMessage(hook);
+        
+        // the chunks are not dot-stuffed, but the Received header is still added
+        String message = new String(readFully(hook.getQueued().get(0)), US_ASCII);
+        assertTrue(message, message.startsWith("Received:"));
+    }
+    
+    @Test
+    public void testBdatSpoolToFile() throws Exception {
+        final List<Boolean> spooled = new ArrayList<Boolean>();
+        MessageHook hook = new MessageHook() {
+            
+            public HookResult onMessage(SMTPSession session, MailEnvelope mail) {
+                spooled.add(mail instanceof DeferredFileMailEnvelope && !((DeferredFileMailEnvelope) mail).isInMemory());
+                return HookResult.ok();
+            }
+        };
+        // only the DATA handler is configured, BDAT uses its settings
+        LoopbackProtocolTransport transport = new LoopbackProtocolTransport(createProtocol(16, hook));
+        transport.connect();
+        readLines(transport);
+        
+        transport.receive(BDAT_TRANSACTION.getBytes(US_ASCII));
+        assertReplies(readLines(transport), "250", "250", "250", "250", "250", "221");
+        assertEquals(Arrays.asList(true), spooled);
+    }
+    
+    @Test
+    public void testBdatByteByByte() throws Exception {
+        TestMessageHook hook = new TestMessageHook();
+        LoopbackProtocolTransport transport = new LoopbackProtocolTransport(createProtocol(hook));
+        transport.connect();
+        
+        byte[] data = BDAT_TRANSACTION.getBytes(US_ASCII);
+        for (int i = 0; i < data.length; i++) {
+            transport.receive(new byte[] {data[i]});
+        }
+        assertReplies(readLines(transport), "220", "250", "250", "250", "250", "250", "221");
+        checkMessage(hook);
+    }
+    
+    @Test
+    public void testBdatWithoutTransaction() throws Exception {
+        TestMessageHook hook = new TestMessageHook();
+        LoopbackProtocolTransport transport = new LoopbackProtocolTransport(createProtocol(hook));
+        transport.connect();
+        readLines(transport);
+        
+        // the chunk must be discarded
+        transport.receive("HELO localhost\r\nBDAT 6 LAST\r\nQUIT\r\nNOOP\r\nBDAT\r\nQUIT\r\n".getBytes(US_ASCII));
+        assertReplies(readLines(transport), "250", "503", "250", "501", "221");
+        assertEquals(0, hook.getQueued().size());
+    }
+    
+    @Test
+    public void testDataWithBinaryMime() throws Exception {
+        TestMessageHook hook = new TestMessageHook();
+        LoopbackProtocolTransport transport = new LoopbackProtocolTransport(createProtocol(hook));
+        transport.connect();
+        readLines(transport);
+        
+        transport.receive(("HELO localhost\r\nMAIL FROM:<me@sender> BODY=INVALID\r\nMAIL FROM:<me@sender> BODY=BINARYMIME\r\n"
+                + "RCPT TO:<rcpt@domain>\r\nDATA\r\nQUIT\r\n").getBytes(US_ASCII));
+        assertReplies(readLines(transport), "250", "501", "250", "250", "503", "221");
+    }
+
+    @Test
+    public void testOversizeMessageIsDiscarded() throws Exception {
+        ChunkPool pool = new ChunkPool(1024, 16, false);
+        TestMessageHook hook = new TestMessageHook();
+        LoopbackProtocolTransport transport = new LoopbackProtocolTransport(createProtocol(10000, pool, hook));
+        transport.connect();
+        readLines(transport);
+        
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            body.append("This is a line which is repeated until the message exceeds the maximum size of the message\r\n");
+        }
+        transport.receive(("HELO localhost\r\nMAIL FROM:<me@sender>\r\nRCPT TO:<rcpt@domain>\r\nDATA\r\nSubject: Big\r\n\r\n" + body + body)
+                .getBytes(US_ASCII));
+        assertReplies(readLines(transport), "250", "250", "250", "354");
+        
+        // the buffered data is released before the message is complete
+        assertEquals(0, pool.getAcquiredCount());
+        
+        transport.receive((body + ".\r\n" + TRANSACTION.substring(TRANSACTION.indexOf("MAIL"))).getBytes(US_ASCII));
+        assertReplies(readLines(transport), "552", "250", "250", "354", "250", "221");
+        
+        // only the second message was delivered, its pooled body is released once it was queued
+        assertEquals(1, hook.getQueued().size());
+        assertEquals(0, pool.getAcquiredCount());
+    }
+    
+    @Test
+    public void testOversizeBdat() throws Exception {
+        ChunkPool pool = new ChunkPool(1024, 16, false);
+        TestMessageHook hook = new TestMessageHook();
+        LoopbackProtocolTransport transport = new LoopbackProtocolTransport(createProtocol(10000, pool, hook));
+        transport.connect();
+        readLines(transport);
+        
+        byte[] chunk = new byte[20000];
+        Arrays.fill(chunk, (byte) 'a');
+        transport.receive("HELO localhost\r\nMAIL FROM:<me@sender>\r\nRCPT TO:<rcpt@domain>\r\nBDAT 20000\r\n".getBytes(US_ASCII));
+        transport.receive(chunk);
+        transport.receive(("BDAT 5 LAST\r\naaaaa" + BDAT_TRANSACTION.substring(BDAT_TRANSACTION.indexOf("MAIL"))).getBytes(US_ASCII));
+        assertReplies(readLines(transport), "250", "250", "250", "552", "503", "250", "250", "250", "250", "221");
+        assertEquals(1, hook.getQueued().size());
+        assertEquals(0, pool.getAcquiredCount());
+    }
+
+    @Test
+    public void testPendingResponseHoldsBackLines() throws Exception {
+        final FutureHookResult result = new FutureHookResult();
+        AsyncRcptHook rcptHook = new AsyncRcptHook() {
+            
+            public FutureHookResult doRcpt(SMTPSession session, MailAddress sender, MailAddress rcpt) {
+                return result;
+            }
+        };
+        TestMessageHook hook = new TestMessageHook();
+        LoopbackProtocolTransport transport = new LoopbackProtocolTransport(createProtocol(rcptHook, hook));
+        transport.connect();
+        readLines(transport);
+        
+        transport.receive(TRANSACTION.getBytes(US_ASCII));
+        assertReplies(readLines(transport), "250", "250");
+        assertTrue(transport.isResponsePending());
+        assertTrue(transport.getUnprocessedCount() > 0);
+        assertEquals(0, hook.getQueued().size());
+        
+        // the held back lines are processed by the thread which completes the hook
+        result.setHookResult(HookResult.declined());
+        assertReplies(readLines(transport), "250", "354", "250", "221");
+        assertEquals(0, transport.getUnprocessedCount());
+        checkMessage(hook);
+    }
+}
@@ -0,0 +1,109 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.protocols.smtp.netty;
+
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.james.protocols.api.utils.MockLogger;
+import org.apache.james.protocols.api.utils.TestUtils;
+import org.apache.james.protocols.netty.NettyServer;
+import org.apache.james.protocols.netty.ReusePortUpstreamHandler;
+import org.apache.james.protocols.smtp.SMTPConfigurationImpl;
+import org.apache.james.protocols.smtp.SMTPProtocol;
+import org.apache.james.protocols.smtp.SMTPProtocolHandlerChain;
+
+/**
+ * Loopback benchmark which measures how many connections per second a {@link NettyServer} can accept and greet with different 
+ * acceptor counts. Every client thread opens a connection, reads the greeting and closes the connection again in a loop.
+ * 
+ * This is not executed as part of the build. Run it via its main method, optional arguments are the count of client threads and the
+ * duration of every run in seconds and the maximal count of acceptors. The acceptor count gets doubled from one run to the next.
+ */
+public class AcceptThroughputBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors() * 4;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        
+        int max = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        if (!ReusePortUpstreamHandler.isSupported()) {
+            System.out.println("SO_REUSEPORT is not supported, only one acceptor can be used");
+            max = 1;
+        }
+        for (int acceptors = 1; acceptors <= max; acceptors *= 2) {
+            // warm up
+            run(acceptors, clients, 2);
+            long accepted = run(acceptors, clients, seconds);
+            System.out.println(acceptors + " acceptor(s), " + clients + " clients: " + (accepted / seconds) + " connections/s");
+        }
+    }
+    
+    private static long run(int acceptors, int clients, int seconds) throws Exception {
+        SMTPProtocolHandlerChain chain = new SMTPProtocolHandlerChain();
+        chain.wireExtensibleHandlers();
+        
+        final InetSocketAddress address = new InetSocketAddress("127.0.0.1", TestUtils.getFreePort());
+        NettyServer server = new NettyServer(new SMTPProtocol(chain, new SMTPConfigurationImpl(), new MockLogger()));
+        server.setListenAddresses(address);
+        server.setAcceptorCount(acceptors);
+        server.setBacklog(1024);
+        server.bind();
+        
+        final AtomicLong accepted = new AtomicLong();
+        final long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        final CountDownLatch latch = new CountDownLatch(clients);
+        try {
+            for (int i = 0; i < clients; i++) {
+                new Thread() {
+                    public void run() {
+                        byte[] buf = new byte[512];
+                        try {
+                            while (System.nanoTime() < end) {
+                                Socket socket = new Socket(address.getAddress(), address.getPort());
+                                try {
+                                    // an explicit close sends a RST, so we don't run out of ports because of TIME_WAIT sockets
+                                    socket.setSoLinger(true, 0);
+                                    InputStream in = socket.getInputStream();
+                                    if (in.read(buf) > 0) {
+                                        accepted.incrementAndGet();
+                                    }
+                                } finally {
+                                    socket.close();
+                                }
+                            }
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                        } finally {
+                            latch.countDown();
+                        }
+                    }
+                }.start();
+            }
+            latch.await();
+        } finally {
+            server.unbind();
+        }
+        return accepted.get();
+    }
+}
@@ -0,0 +1,142 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.protocols.smtp.netty;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.james.protocols.api.handler.ProtocolHandler;
+import org.apache.james.protocols.api.utils.MockLogger;
+import org.apache.james.protocols.api.utils.TestUtils;
+import org.apache.james.protocols.netty.NettyServer;
+import org.apache.james.protocols.netty.OrderedSessionExecutor;
+import org.apache.james.protocols.smtp.SMTPConfigurationImpl;
+import org.apache.james.protocols.smtp.SMTPProtocol;
+import org.apache.james.protocols.smtp.SMTPProtocolHandlerChain;
+import org.apache.james.protocols.smtp.SMTPSession;
+import org.apache.james.protocols.smtp.hook.HeloHook;
+import org.apache.james.protocols.smtp.hook.HookResult;
+
+/**
+ * Loopback benchmark which compares the ExecutionHandler with a fixed thread pool and the thread per session mode of the 
+ * {@link NettyServer} for a blocking {@link HeloHook}, like one which does a DNS lookup. Every session connects, sends a HELO and 
+ * a QUIT. All sessions are started at once.
+ * 
+ * This is not executed as part of the build. Run it via its main method, optional arguments are the count of sessions, the time
+ * in milliseconds the hook blocks and the size of the ExecutionHandler pool. Run it with Java 21 or later to make use of virtual threads.
+ */
+public class ExecutionModeBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int blockMillis = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        int poolSize = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+        
+        System.out.println("Virtual threads supported: " + OrderedSessionExecutor.isVirtualThreadsSupported());
+        for (int i = 0; i < 2; i++) {
+            // the first round is the warm up
+            long pool = run(false, poolSize, sessions, blockMillis);
+            long perSession = run(true, poolSize, sessions, blockMillis);
+            if (i > 0) {
+                System.out.println(sessions + " sessions, hook blocks " + blockMillis + " ms:");
+                System.out.println("  ExecutionHandler with " + poolSize + " threads: " + pool + " ms");
+                System.out.println("  thread per session                : " + perSession + " ms");
+            }
+        }
+    }
+    
+    private static long run(boolean threadPerSession, int poolSize, int sessions, final int blockMillis) throws Exception {
+        HeloHook hook = new HeloHook() {
+            
+            public HookResult doHelo(SMTPSession session, String helo) {
+                try {
+                    Thread.sleep(blockMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return HookResult.declined();
+            }
+        };
+        SMTPProtocolHandlerChain chain = new SMTPProtocolHandlerChain();
+        chain.addAll(0, Arrays.asList(new ProtocolHandler[] { hook }));
+        chain.wireExtensibleHandlers();
+        
+        final InetSocketAddress address = new InetSocketAddress("127.0.0.1", TestUtils.getFreePort());
+        NettyServer server = new NettyServer(new SMTPProtocol(chain, new SMTPConfigurationImpl(), new MockLogger()));
+        server.setListenAddresses(address);
+        server.setBacklog(sessions);
+        if (threadPerSession) {
+            server.setUseVirtualThreads(true);
+        } else {
+            server.setUseExecutionHandler(true, poolSize);
+        }
+        server.bind();
+        
+        ExecutorService clients = OrderedSessionExecutor.newThreadPerTaskExecutor();
+        final CountDownLatch latch = new CountDownLatch(sessions);
+        final AtomicInteger failed = new AtomicInteger();
+        long start = System.currentTimeMillis();
+        try {
+            for (int i = 0; i < sessions; i++) {
+                clients.execute(new Runnable() {
+                    
+                    public void run() {
+                        try {
+                            Socket socket = new Socket(address.getAddress(), address.getPort());
+                            try {
+                                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+                                OutputStream out = socket.getOutputStream();
+                                in.readLine();
+                                out.write("HELO localhost\r\n".getBytes("US-ASCII"));
+                                out.flush();
+                                if (!in.readLine().startsWith("250")) {
+                                    failed.incrementAndGet();
+                                }
+                                out.write("QUIT\r\n".getBytes("US-ASCII"));
+                                out.flush();
+                                in.readLine();
+                            } finally {
+                                socket.close();
+                            }
+                        } catch (Exception e) {
+                            failed.incrementAndGet();
+                        } finally {
+                            latch.countDown();
+                        }
+                    }
+                });
+            }
+            latch.await();
+        } finally {
+            clients.shutdown();
+            server.unbind();
+        }
+        if (failed.get() > 0) {
+            System.out.println("  " + failed.get() + " sessions failed");
+        }
+        return System.currentTimeMillis() - start;
+    }
+}
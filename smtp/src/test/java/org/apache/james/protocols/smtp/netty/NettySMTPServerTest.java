@@ -18,12 +18,38 @@
  ****************************************************************/
 package org.apache.james.protocols.smtp.netty;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.InputStream;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.commons.net.smtp.SMTPClient;
+import org.apache.commons.net.smtp.SMTPConnectionClosedException;
+import org.apache.commons.net.smtp.SMTPReply;
 import org.apache.james.protocols.api.Protocol;
 import org.apache.james.protocols.api.ProtocolServer;
+import org.apache.james.protocols.api.Response;
+import org.apache.james.protocols.api.handler.ConnectHandler;
+import org.apache.james.protocols.api.handler.ProtocolHandler;
+import org.apache.james.protocols.api.metrics.ProtocolMetrics;
+import org.apache.james.protocols.api.utils.TestUtils;
+import org.apache.james.protocols.netty.ConnectionLimiter;
 import org.apache.james.protocols.netty.NettyServer;
+import org.apache.james.protocols.netty.ReusePortUpstreamHandler;
 import org.apache.james.protocols.smtp.AbstractSMTPServerTest;
+import org.apache.james.protocols.smtp.SMTPSession;
+import org.apache.james.protocols.smtp.utils.TestMessageHook;
+import org.junit.Assume;
+import org.junit.Test;
 
 /**
  * Integration tests which use netty implementation
@@ -39,4 +65,287 @@ public class NettySMTPServerTest extends AbstractSMTPServerTest{
         server.setListenAddresses(address);
         return server;
     }
+
+    @Test
+    public void testMaxConnectionsPerIp() throws Exception {
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", TestUtils.getFreePort());
+        
+        NettyServer server = null;
+        try {
+            server = (NettyServer) createServer(createProtocol(new ProtocolHandler[0]), address);
+            server.setMaxConcurrentConnectionsPerIP(1);
+            server.bind();
+            
+            SMTPClient client = createClient();
+            client.connect(address.getAddress().getHostAddress(), address.getPort());
+            assertTrue("Reply="+ client.getReplyString(), SMTPReply.isPositiveCompletion(client.getReplyCode()));
+            
+            assertRejected(address);
+            
+            client.quit();
+            client.disconnect();
+            Thread.sleep(200);
+            
+            // the closed connection must be released
+            SMTPClient client3 = createClient();
+            client3.connect(address.getAddress().getHostAddress(), address.getPort());
+            assertTrue("Reply="+ client3.getReplyString(), SMTPReply.isPositiveCompletion(client3.getReplyCode()));
+            client3.quit();
+            client3.disconnect();
+        } finally {
+            if (server != null) {
+                server.unbind();
+            }
+        }
+    }
+    
+    @Test
+    public void testConnectionRatePerIp() throws Exception {
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", TestUtils.getFreePort());
+        
+        NettyServer server = null;
+        try {
+            ConnectionLimiter limiter = new ConnectionLimiter();
+            limiter.setConnectionRatePerIp(2, 1, TimeUnit.HOURS);
+            
+            server = (NettyServer) createServer(createProtocol(new ProtocolHandler[0]), address);
+            server.setConnectionLimiter(limiter);
+            server.bind();
+            
+            for (int i = 0; i < 2; i++) {
+                SMTPClient client = createClient();
+                client.connect(address.getAddress().getHostAddress(), address.getPort());
+                assertTrue("Reply="+ client.getReplyString(), SMTPReply.isPositiveCompletion(client.getReplyCode()));
+                client.quit();
+                client.disconnect();
+            }
+            
+            assertRejected(address);
+            
+            // the bucket was not refilled yet, so the address must still be tracked 
+            assertEquals(1, limiter.getTrackedAddressCount());
+        } finally {
+            if (server != null) {
+                server.unbind();
+            }
+        }
+    }
+    
+    @Test
+    public void testMaxConnectionsPerPrefix() throws Exception {
+        ConnectionLimiter limiter = new ConnectionLimiter();
+        limiter.setPrefixLength(24, 64);
+        limiter.setMaxConnectionsPerPrefix(2);
+        
+        ConnectionLimiter.Lease lease1 = limiter.tryAcquire(InetAddress.getByName("192.0.2.1"));
+        ConnectionLimiter.Lease lease2 = limiter.tryAcquire(InetAddress.getByName("192.0.2.200"));
+        assertNotNull(lease1);
+        assertNotNull(lease2);
+        assertNull(limiter.tryAcquire(InetAddress.getByName("192.0.2.3")));
+        assertNotNull(limiter.tryAcquire(InetAddress.getByName("192.0.3.1")));
+        assertNotNull(limiter.tryAcquire(InetAddress.getByName("2001:db8::1")));
+        
+        lease1.release();
+        // releasing twice must not free another slot
+        lease1.release();
+        assertNotNull(limiter.tryAcquire(InetAddress.getByName("192.0.2.3")));
+        assertNull(limiter.tryAcquire(InetAddress.getByName("192.0.2.4")));
+        
+        // nothing is tracked per IP as no per IP limit is set
+        assertEquals(0, limiter.getTrackedAddressCount());
+        assertEquals(3, limiter.getTrackedPrefixCount());
+    }
+
+    @Test
+    public void testIdleTimeoutChangedByHandler() throws Exception {
+        ConnectHandler<SMTPSession> connectHandler = new ConnectHandler<SMTPSession>() {
+
+            public Response onConnect(SMTPSession session) {
+                // use a short timeout till the client sent something
+                session.setIdleTimeout(1);
+                return null;
+            }
+        };
+        
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", TestUtils.getFreePort());
+        
+        ProtocolServer server = null;
+        try {
+            server = createServer(createProtocol(connectHandler), address);
+            server.bind();
+            assertEquals(120, server.getTimeout());
+            
+            Socket socket = new Socket(address.getAddress(), address.getPort());
+            try {
+                socket.setSoTimeout(10000);
+                long start = System.currentTimeMillis();
+                
+                // the connection must be closed by the server after the timeout
+                InputStream in = socket.getInputStream();
+                while (in.read() != -1) {
+                    // consume the greeting
+                }
+                long elapsed = System.currentTimeMillis() - start;
+                assertTrue("Closed after " + elapsed + "ms", elapsed >= 900 && elapsed < 5000);
+            } finally {
+                socket.close();
+            }
+        } finally {
+            if (server != null) {
+                server.unbind();
+            }
+        }
+    }
+    
+    @Test
+    public void testMetrics() throws Exception {
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", TestUtils.getFreePort());
+        
+        ProtocolServer server = null;
+        try {
+            Protocol protocol = createProtocol(new ProtocolHandler[0]);
+            server = createServer(protocol, address);
+            server.bind();
+            
+            SMTPClient client = createClient();
+            client.connect(address.getAddress().getHostAddress(), address.getPort());
+            client.helo("localhost");
+            client.noop();
+            client.quit();
+            client.disconnect();
+            Thread.sleep(200);
+            
+            ProtocolMetrics metrics = protocol.getMetrics();
+            assertEquals(1, metrics.getConnectionCount());
+            assertEquals(0, metrics.getActiveConnectionCount());
+            assertEquals(4, metrics.getResponseCount());
+            assertEquals("HELO localhost\r\nNOOP\r\nQUIT\r\n".length(), metrics.getBytesIn());
+            assertTrue(metrics.getBytesOut() > 0);
+            assertEquals(1, metrics.getExecutionCount("HELO"));
+            assertEquals(1, metrics.getExecutionCount("NOOP"));
+            assertTrue(metrics.getLatencyAtPercentile("HELO", 100) > 0);
+        } finally {
+            if (server != null) {
+                server.unbind();
+            }
+        }
+    }
+    
+    @Test
+    public void testGracefulUnbind() throws Exception {
+        TestMessageHook hook = new TestMessageHook();
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", TestUtils.getFreePort());
+        
+        final NettyServer server = (NettyServer) createServer(createProtocol(hook), address);
+        try {
+            server.bind();
+            
+            SMTPClient idleClient = createClient();
+            idleClient.connect(address.getAddress().getHostAddress(), address.getPort());
+            idleClient.helo("localhost");
+            
+            SMTPClient client = createClient();
+            client.connect(address.getAddress().getHostAddress(), address.getPort());
+            client.helo("localhost");
+            assertTrue("Reply="+ client.getReplyString(), client.setSender(SENDER));
+            
+            final AtomicInteger open = new AtomicInteger(-1);
+            Thread drain = new Thread() {
+                public void run() {
+                    open.set(server.unbind(10, TimeUnit.SECONDS));
+                }
+            };
+            drain.start();
+            Thread.sleep(500);
+            assertTrue(server.isDraining());
+            assertEquals(1, server.getConnectionCount());
+            
+            // the idle session must be closed with a 421 reply
+            try {
+                idleClient.noop();
+                fail("Connection should be closed");
+            } catch (SMTPConnectionClosedException e) {
+                assertEquals(SMTPReply.SERVICE_NOT_AVAILABLE, idleClient.getReplyCode());
+            }
+            
+            // the transaction must be completed before the connection is closed
+            assertTrue("Reply="+ client.getReplyString(), client.addRecipient(RCPT1));
+            assertTrue("Reply="+ client.getReplyString(), client.sendShortMessageData(MSG1));
+            try {
+                client.noop();
+                fail("Connection should be closed");
+            } catch (SMTPConnectionClosedException e) {
+                assertEquals(SMTPReply.SERVICE_NOT_AVAILABLE, client.getReplyCode());
+            }
+            
+            drain.join(5000);
+            assertEquals(0, open.get());
+            assertFalse(server.isBound());
+            assertEquals(1, hook.getQueued().size());
+        } finally {
+            server.unbind();
+        }
+    }
+    
+    @Test
+    public void testGracefulUnbindTimeout() throws Exception {
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", TestUtils.getFreePort());
+        
+        NettyServer server = (NettyServer) createServer(createProtocol(new ProtocolHandler[0]), address);
+        try {
+            server.bind();
+            
+            SMTPClient client = createClient();
+            client.connect(address.getAddress().getHostAddress(), address.getPort());
+            client.helo("localhost");
+            assertTrue("Reply="+ client.getReplyString(), client.setSender(SENDER));
+            
+            assertEquals(1, server.unbind(1, TimeUnit.SECONDS));
+            assertFalse(server.isBound());
+        } finally {
+            server.unbind();
+        }
+    }
+    
+    @Test
+    public void testMultipleAcceptors() throws Exception {
+        Assume.assumeTrue(ReusePortUpstreamHandler.isSupported());
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", TestUtils.getFreePort());
+        
+        NettyServer server = (NettyServer) createServer(createProtocol(new ProtocolHandler[0]), address);
+        try {
+            server.setAcceptorCount(4);
+            server.bind();
+            
+            SMTPClient[] clients = new SMTPClient[16];
+            for (int i = 0; i < clients.length; i++) {
+                clients[i] = createClient();
+                clients[i].connect(address.getAddress().getHostAddress(), address.getPort());
+                assertTrue("Reply="+ clients[i].getReplyString(), SMTPReply.isPositiveCompletion(clients[i].getReplyCode()));
+            }
+            assertEquals(clients.length, server.getConnectionCount());
+            for (int i = 0; i < clients.length; i++) {
+                clients[i].quit();
+                clients[i].disconnect();
+            }
+        } finally {
+            server.unbind();
+        }
+        assertFalse(server.isBound());
+        
+        // all acceptors must be unbound, so it's possible to bind without SO_REUSEPORT again
+        server.setAcceptorCount(1);
+        server.bind();
+        server.unbind();
+    }
+    
+    private void assertRejected(InetSocketAddress address) throws Exception {
+        SMTPClient client = createClient();
+        try {
+            client.connect(address.getAddress().getHostAddress(), address.getPort());
+            fail("Connection should be rejected");
+        } catch (SMTPConnectionClosedException e) {
+            assertEquals("Reply="+ client.getReplyString(), SMTPReply.SERVICE_NOT_AVAILABLE, client.getReplyCode());
+        }
+    }
 }
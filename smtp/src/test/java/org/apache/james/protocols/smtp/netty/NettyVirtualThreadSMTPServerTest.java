@@ -0,0 +1,110 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.protocols.smtp.netty;
+
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.net.smtp.SMTPClient;
+import org.apache.commons.net.smtp.SMTPReply;
+import org.apache.james.protocols.api.Protocol;
+import org.apache.james.protocols.api.ProtocolServer;
+import org.apache.james.protocols.api.utils.TestUtils;
+import org.apache.james.protocols.netty.NettyServer;
+import org.apache.james.protocols.smtp.AbstractSMTPServerTest;
+import org.apache.james.protocols.smtp.SMTPSession;
+import org.apache.james.protocols.smtp.hook.HeloHook;
+import org.apache.james.protocols.smtp.hook.HookResult;
+import org.junit.Test;
+
+/**
+ * Integration tests which use netty implementation with a thread per session
+ */
+public class NettyVirtualThreadSMTPServerTest extends AbstractSMTPServerTest{
+
+    @Override
+    protected ProtocolServer createServer(Protocol protocol, InetSocketAddress address) {
+        NettyServer server =  new NettyServer(protocol);
+        server.setUseVirtualThreads(true);
+        server.setListenAddresses(address);
+        return server;
+    }
+    
+    @Test
+    public void testBlockingHookOnlyBlocksItsSession() throws Exception {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        HeloHook hook = new HeloHook() {
+            
+            public HookResult doHelo(SMTPSession session, String helo) {
+                if (helo.equals("blocking")) {
+                    blocked.countDown();
+                    try {
+                        release.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return HookResult.declined();
+            }
+        };
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", TestUtils.getFreePort());
+        
+        ProtocolServer server = null;
+        try {
+            server = createServer(createProtocol(hook), address);  
+            server.bind();
+            
+            final SMTPClient blockingClient = createClient();
+            blockingClient.connect(address.getAddress().getHostAddress(), address.getPort());
+            Thread blocking = new Thread() {
+                public void run() {
+                    try {
+                        blockingClient.helo("blocking");
+                    } catch (Exception e) {
+                        // checked below
+                    }
+                }
+            };
+            blocking.start();
+            assertTrue(blocked.await(10, TimeUnit.SECONDS));
+            
+            // the other session must not be blocked by the hook
+            SMTPClient client = createClient();
+            client.connect(address.getAddress().getHostAddress(), address.getPort());
+            assertTrue("Reply="+ client.getReplyString(), SMTPReply.isPositiveCompletion(client.helo("localhost")));
+            client.quit();
+            client.disconnect();
+            
+            release.countDown();
+            blocking.join(10000);
+            assertTrue("Reply="+ blockingClient.getReplyString(), SMTPReply.isPositiveCompletion(blockingClient.getReplyCode()));
+            blockingClient.quit();
+            blockingClient.disconnect();
+        } finally {
+            release.countDown();
+            if (server != null) {
+                server.unbind();
+            }
+        }
+    }
+}
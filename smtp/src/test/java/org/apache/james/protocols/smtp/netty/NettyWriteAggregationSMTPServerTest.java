@@ -0,0 +1,107 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.protocols.smtp.netty;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import org.apache.james.protocols.api.Protocol;
+import org.apache.james.protocols.api.ProtocolServer;
+import org.apache.james.protocols.api.utils.TestUtils;
+import org.apache.james.protocols.netty.NettyServer;
+import org.apache.james.protocols.smtp.AbstractSMTPServerTest;
+import org.apache.james.protocols.smtp.MailEnvelope;
+import org.apache.james.protocols.smtp.utils.TestMessageHook;
+import org.junit.Test;
+
+/**
+ * Integration tests which use netty implementation with write aggregation enabled
+ * 
+ *
+ */
+public class NettyWriteAggregationSMTPServerTest extends AbstractSMTPServerTest{
+
+    
+    @Override
+    protected ProtocolServer createServer(Protocol protocol, InetSocketAddress address) {
+        NettyServer server =  new NettyServer(protocol);
+        server.setWriteAggregation(true);
+        server.setListenAddresses(address);
+        return server;
+    }
+    
+    @Test
+    public void testPipelining() throws Exception {
+        TestMessageHook hook = new TestMessageHook();
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", TestUtils.getFreePort());
+        
+        ProtocolServer server = null;
+        Socket socket = null;
+        try {
+            server = createServer(createProtocol(hook), address);  
+            server.bind();
+            
+            socket = new Socket(address.getAddress(), address.getPort());
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+            OutputStream out = socket.getOutputStream();
+            assertTrue(in.readLine().startsWith("220"));
+            
+            // send all commands with one write, the responses should be written back at once
+            out.write(("EHLO localhost\r\nMAIL FROM:<" + SENDER + ">\r\nRCPT TO:<" + RCPT1 + ">\r\nRCPT TO:<" + RCPT2 + ">\r\nDATA\r\n").getBytes("US-ASCII"));
+            out.flush();
+            
+            String line;
+            while ((line = in.readLine()).startsWith("250-")) {
+                // skip the ehlo extensions
+            }
+            assertTrue(line, line.startsWith("250 "));
+            assertTrue(in.readLine().startsWith("250"));
+            assertTrue(in.readLine().startsWith("250"));
+            assertTrue(in.readLine().startsWith("250"));
+            assertTrue(in.readLine().startsWith("354"));
+            
+            out.write((MSG1 + "\r\n.\r\nQUIT\r\n").getBytes("US-ASCII"));
+            out.flush();
+            assertTrue(in.readLine().startsWith("250"));
+            assertTrue(in.readLine().startsWith("221"));
+
+            Iterator<MailEnvelope> queued = hook.getQueued().iterator();
+            assertTrue(queued.hasNext());
+            
+            MailEnvelope env = queued.next();
+            checkEnvelope(env, SENDER, Arrays.asList(RCPT1, RCPT2), MSG1);
+            assertFalse(queued.hasNext());
+
+        } finally {
+            if (socket != null) {
+                socket.close();
+            }
+            if (server != null) {
+                server.unbind();
+            }
+        }
+    }
+}
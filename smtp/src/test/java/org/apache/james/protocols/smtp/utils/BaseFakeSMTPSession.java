@@ -24,8 +24,10 @@ import java.net.InetSocketAddress;
 import java.nio.charset.Charset;
 import java.util.Map;
 
+import org.apache.james.protocols.api.AttributeKey;
 import org.apache.james.protocols.api.ProtocolSession;
 import org.apache.james.protocols.api.Response;
+import org.apache.james.protocols.api.metrics.ProtocolMetrics;
 import org.apache.james.protocols.api.handler.LineHandler;
 import org.apache.james.protocols.api.logger.Logger;
 import org.apache.james.protocols.api.utils.MockLogger;
@@ -136,6 +138,18 @@ public class BaseFakeSMTPSession implements SMTPSession {
         throw new UnsupportedOperationException("Unimplemented Stub Method");
     }
 
+    public ProtocolMetrics getMetrics() {
+        return null;
+    }
+
+    public void setIdleTimeout(int timeout) {
+        throw new UnsupportedOperationException("Unimplemented Stub Method");
+    }
+
+    public int getIdleTimeout() {
+        throw new UnsupportedOperationException("Unimplemented Stub Method");
+    }
+
     public Response newLineTooLongResponse() {
         throw new UnsupportedOperationException("Unimplemented Stub Method");
     }
@@ -144,6 +158,18 @@ public class BaseFakeSMTPSession implements SMTPSession {
         throw new UnsupportedOperationException("Unimplemented Stub Method");
     }
 
+    public Response newConnectionLimitExceededResponse() {
+        throw new UnsupportedOperationException("Unimplemented Stub Method");
+    }
+
+    public Response newShutdownResponse() {
+        throw new UnsupportedOperationException("Unimplemented Stub Method");
+    }
+
+    public boolean isInTransaction() {
+        throw new UnsupportedOperationException("Unimplemented Stub Method");
+    }
+
     /*
      * (non-Javadoc)
      * @see org.apache.james.protocols.api.ProtocolSession#getRemoteAddress()
@@ -176,6 +202,22 @@ public class BaseFakeSMTPSession implements SMTPSession {
         throw new UnsupportedOperationException("Unimplemented Stub Method");
     }
 
+    /**
+     * Delegates to {@link #setAttachment(String, Object, State)}, so mocks only need to implement the String based method
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T setAttachment(AttributeKey<T> key, T value, State state) {
+        return (T) setAttachment(key.getName(), value, state);
+    }
+
+    /**
+     * Delegates to {@link #getAttachment(String, State)}, so mocks only need to implement the String based method
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getAttachment(AttributeKey<T> key, State state) {
+        return (T) getAttachment(key.getName(), state);
+    }
+
     public Charset getCharset() {
         throw new UnsupportedOperationException("Unimplemented Stub Method");
     }